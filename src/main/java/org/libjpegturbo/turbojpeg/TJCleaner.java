@@ -0,0 +1,205 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deterministic release of TurboJPEG native resources (cannot be instantiated)
+ * <p>
+ * Every compressor, decompressor, and transformer registers its native handle here when it is created. Calling
+ * <code>close()</code> on the instance releases the handle immediately. If an instance becomes unreachable without
+ * having been closed, then its handle is released by a shared {@link Cleaner} thread instead, and the instance is
+ * counted as leaked.
+ * <p>
+ * Leak detection records the stack trace of every registration so that leaked instances can be traced back to the
+ * code that created them. It is disabled by default, because capturing a stack trace is expensive. It can be enabled
+ * by setting the <code>org.libjpegturbo.turbojpeg.leakDetection</code> system property to <code>true</code> or by
+ * calling {@link #setLeakDetection}. Leaks are reported through the <code>org.libjpegturbo.turbojpeg</code> logger.
+ */
+public final class TJCleaner {
+
+    /**
+     * Releases a native resource. Implementations must not hold a reference to the object that owns the resource,
+     * or else the owner will never become unreachable.
+     */
+    public interface Releaser {
+
+        /**
+         * Release the native resource.
+         */
+        void release() throws TJException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger("org.libjpegturbo.turbojpeg");
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final AtomicLong leakCount = new AtomicLong();
+    private static volatile boolean leakDetection = Boolean.getBoolean("org.libjpegturbo.turbojpeg.leakDetection");
+
+    private TJCleaner() {
+    }
+
+    /**
+     * Register a native resource that is owned by <code>owner</code>.
+     *
+     * @param owner
+     *            the object that owns the native resource
+     *
+     * @param releaser
+     *            releases the native resource, either when {@link Registration#clean} is called or when
+     *            <code>owner</code> becomes phantom reachable
+     *
+     * @return a registration that the owner must clean when it is closed.
+     */
+    public static Registration register(Object owner, Releaser releaser) {
+        if (owner == null || releaser == null)
+            throw new IllegalArgumentException("Invalid argument in register()");
+        Action action = new Action(releaser, leakDetection ? new Throwable("Allocation site of "
+                + owner.getClass().getName()) : null);
+        return new Registration(action, CLEANER.register(owner, action));
+    }
+
+    /**
+     * Enable or disable leak detection for instances that are created from now on.
+     *
+     * @param enabled
+     *            true to record the allocation site of each instance and report it if the instance is leaked
+     */
+    public static void setLeakDetection(boolean enabled) {
+        leakDetection = enabled;
+    }
+
+    /**
+     * Returns true if leak detection is enabled.
+     *
+     * @return true if leak detection is enabled.
+     */
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * Returns the number of instances that became unreachable without having been closed.
+     *
+     * @return the number of instances that became unreachable without having been closed.
+     */
+    public static long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * A native resource registered with {@link TJCleaner}
+     */
+    public static final class Registration {
+
+        private final Action action;
+        private final Cleaner.Cleanable cleanable;
+
+        private Registration(Action action, Cleaner.Cleanable cleanable) {
+            this.action = action;
+            this.cleanable = cleanable;
+        }
+
+        /**
+         * Release the native resource now. Calling this more than once has no effect.
+         */
+        public void clean() throws TJException {
+            action.explicit = true;
+            cleanable.clean();
+            TJException e = action.failure;
+            if (e != null) {
+                action.failure = null;
+                throw e;
+            }
+        }
+
+        /**
+         * Forget the native resource without releasing it. This is for owners that have already released the
+         * resource by other means.
+         */
+        public void cancel() {
+            action.explicit = true;
+            action.cancelled = true;
+            cleanable.clean();
+        }
+
+        /**
+         * Returns true if the native resource has been released or forgotten.
+         *
+         * @return true if the native resource has been released or forgotten.
+         */
+        public boolean isCleaned() {
+            return action.done;
+        }
+    }
+
+    private static final class Action implements Runnable {
+
+        final Releaser releaser;
+        final Throwable allocationSite;
+        volatile boolean explicit = false;
+        volatile boolean cancelled = false;
+        volatile boolean done = false;
+        volatile TJException failure = null;
+
+        Action(Releaser releaser, Throwable allocationSite) {
+            this.releaser = releaser;
+            this.allocationSite = allocationSite;
+        }
+
+        @Override
+        public void run() {
+            done = true;
+            if (!explicit) {
+                leakCount.incrementAndGet();
+                if (allocationSite != null)
+                    LOGGER.log(Level.WARNING, "TurboJPEG instance was not closed before it became unreachable",
+                            allocationSite);
+            }
+            if (cancelled)
+                return;
+            try {
+                releaser.release();
+            } catch (TJException e) {
+                if (explicit)
+                    failure = e;
+                else
+                    LOGGER.log(Level.WARNING, "Could not release TurboJPEG native resource", e);
+            } catch (RuntimeException | LinkageError e) {
+                if (explicit)
+                    throw e;
+                LOGGER.log(Level.WARNING, "Could not release TurboJPEG native resource", e);
+            }
+        }
+    }
+}
@@ -39,12 +39,13 @@ import java.io.*;
 public class TJCompressor implements Closeable {
 
     private static final String NO_ASSOC_ERROR = "No source image is associated with this instance";
+    private static final byte[] EMPTY = new byte[0];
 
     /**
      * Create a TurboJPEG compressor instance.
      */
     public TJCompressor() throws TJException {
-        init();
+        initHandle();
     }
 
     /**
@@ -145,7 +146,7 @@ public class TJCompressor implements Closeable {
     public void setSourceImage(byte[] srcImage, int x, int y, int width, int pitch, int height, int pixelFormat)
             throws TJException {
         if (handle == 0)
-            init();
+            initHandle();
         if (srcImage == null || x < 0 || y < 0 || width < 1 || height < 1 || pitch < 0 || pixelFormat < 0
                 || pixelFormat >= TJ.NUMPF)
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
@@ -160,9 +161,47 @@ public class TJCompressor implements Closeable {
         srcX = x;
         srcY = y;
         srcBufInt = null;
+        srcBufDirect = null;
         srcYUVImage = null;
     }
 
+    /**
+     * Associate an uncompressed RGB, grayscale, or CMYK source image stored in a direct buffer with this compressor
+     * instance. The native code reads the pixels in place, so no copy of the image is made on either side of the JNI
+     * boundary. Direct source images can be compressed to JPEG but not encoded to YUV.
+     *
+     * @param srcImage
+     *            direct buffer containing RGB, grayscale, or CMYK pixels to be compressed. The image starts at the
+     *            buffer's current position. This buffer is not modified, and its position is not changed.
+     *
+     * @param x
+     *            see {@link #setSourceImage(byte[], int, int, int, int, int, int)} for description
+     *
+     * @param y
+     *            see {@link #setSourceImage(byte[], int, int, int, int, int, int)} for description
+     *
+     * @param width
+     *            see {@link #setSourceImage(byte[], int, int, int, int, int, int)} for description
+     *
+     * @param pitch
+     *            see {@link #setSourceImage(byte[], int, int, int, int, int, int)} for description
+     *
+     * @param height
+     *            see {@link #setSourceImage(byte[], int, int, int, int, int, int)} for description
+     *
+     * @param pixelFormat
+     *            pixel format of the source image (one of {@link TJ#PF_RGB TJ.PF_*})
+     */
+    public void setSourceImage(ByteBuffer srcImage, int x, int y, int width, int pitch, int height, int pixelFormat)
+            throws TJException {
+        if (srcImage == null || !srcImage.isDirect())
+            throw new IllegalArgumentException("Invalid argument in setSourceImage()");
+        setSourceImage(EMPTY, x, y, width, pitch, height, pixelFormat);
+        srcBuf = null;
+        srcBufDirect = srcImage;
+        srcBufDirectOffset = srcImage.position();
+    }
+
     /**
      * @deprecated Use {@link #setSourceImage(byte[], int, int, int, int, int, int)} instead.
      */
@@ -197,7 +236,7 @@ public class TJCompressor implements Closeable {
      */
     public void setSourceImage(BufferedImage srcImage, int x, int y, int width, int height) throws TJException {
         if (handle == 0)
-            init();
+            initHandle();
         if (srcImage == null || x < 0 || y < 0 || width < 0 || height < 0)
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
         srcX = x;
@@ -250,6 +289,7 @@ public class TJCompressor implements Closeable {
             DataBufferInt db = (DataBufferInt) wr.getDataBuffer();
             srcBufInt = db.getData();
             srcBuf = null;
+            srcBufDirect = null;
         } else {
             ComponentSampleModel sm = (ComponentSampleModel) srcImage.getSampleModel();
             int pixelSize = sm.getPixelStride();
@@ -259,6 +299,7 @@ public class TJCompressor implements Closeable {
             DataBufferByte db = (DataBufferByte) wr.getDataBuffer();
             srcBuf = db.getData();
             srcBufInt = null;
+            srcBufDirect = null;
         }
         srcYUVImage = null;
     }
@@ -271,12 +312,13 @@ public class TJCompressor implements Closeable {
      */
     public void setSourceImage(YUVImage srcImage) throws TJException {
         if (handle == 0)
-            init();
+            initHandle();
         if (srcImage == null)
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
         srcYUVImage = srcImage;
         srcBuf = null;
         srcBufInt = null;
+        srcBufDirect = null;
     }
 
     /**
@@ -327,14 +369,12 @@ public class TJCompressor implements Closeable {
     public void compress(byte[] dstBuf, int flags) throws TJException {
         if (dstBuf == null || flags < 0)
             throw new IllegalArgumentException("Invalid argument in compress()");
-        if (srcBuf == null && srcBufInt == null && srcYUVImage == null)
-            throw new IllegalStateException(NO_ASSOC_ERROR);
-        if (jpegQuality < 0)
-            throw new IllegalStateException("JPEG Quality not set");
-        if (subsamp < 0 && srcYUVImage == null)
-            throw new IllegalStateException("Subsampling level not set");
+        checkCompress();
 
-        if (srcYUVImage != null)
+        if (srcBufDirect != null)
+            compressedSize = compressBuffer(srcBufDirect, srcBufDirectOffset, srcX, srcY, srcWidth, srcPitch,
+                    srcHeight, srcPixelFormat, dstBuf, 0, dstBuf.length, subsamp, jpegQuality, flags);
+        else if (srcYUVImage != null)
             compressedSize = compressFromYUV(srcYUVImage.getPlanes(), srcYUVImage.getOffsets(), srcYUVImage.getWidth(),
                     srcYUVImage.getStrides(), srcYUVImage.getHeight(), srcYUVImage.getSubsamp(), dstBuf, jpegQuality,
                     flags);
@@ -372,6 +412,40 @@ public class TJCompressor implements Closeable {
         return buf;
     }
 
+    /**
+     * Compress the uncompressed source image associated with this compressor instance and output a JPEG image to the
+     * given direct buffer. The JPEG image is written at the buffer's current position, and the position is advanced
+     * past it. Compressing a YUV planar source image into a direct buffer is not supported.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the JPEG image. At least {@link TJ#bufSize} bytes must remain in it.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the JPEG image (in bytes)
+     */
+    public int compress(ByteBuffer dstBuf, int flags) throws TJException {
+        if (dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly() || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in compress()");
+        checkCompress();
+        if (srcYUVImage != null)
+            throw new IllegalStateException("Source image is not correct type");
+
+        int x = Math.max(srcX, 0), y = Math.max(srcY, 0);
+        if (srcBufDirect != null)
+            compressedSize = compressBuffer(srcBufDirect, srcBufDirectOffset, x, y, srcWidth, srcPitch, srcHeight,
+                    srcPixelFormat, dstBuf, dstBuf.position(), dstBuf.remaining(), subsamp, jpegQuality, flags);
+        else if (srcBufInt != null)
+            compressedSize = compressBuffer(srcBufInt, 0, x, y, srcWidth, srcStride * 4, srcHeight, srcPixelFormat,
+                    dstBuf, dstBuf.position(), dstBuf.remaining(), subsamp, jpegQuality, flags);
+        else
+            compressedSize = compressBuffer(srcBuf, 0, x, y, srcWidth, srcPitch, srcHeight, srcPixelFormat, dstBuf,
+                    dstBuf.position(), dstBuf.remaining(), subsamp, jpegQuality, flags);
+        dstBuf.position(dstBuf.position() + compressedSize);
+        return compressedSize;
+    }
+
     /**
      * @deprecated Use {@link #setSourceImage(BufferedImage, int, int, int, int)} and {@link #compress(byte[], int)}
      *             instead.
@@ -406,9 +480,9 @@ public class TJCompressor implements Closeable {
     public void encodeYUV(YUVImage dstImage, int flags) throws TJException {
         if (dstImage == null || flags < 0)
             throw new IllegalArgumentException("Invalid argument in encodeYUV()");
-        if (srcBuf == null && srcBufInt == null)
+        if (srcBuf == null && srcBufInt == null && srcBufDirect == null)
             throw new IllegalStateException(NO_ASSOC_ERROR);
-        if (srcYUVImage != null)
+        if (srcYUVImage != null || srcBufDirect != null)
             throw new IllegalStateException("Source image is not correct type");
         checkSubsampling();
         if (srcWidth != dstImage.getWidth() || srcHeight != dstImage.getHeight())
@@ -530,28 +604,30 @@ public class TJCompressor implements Closeable {
     }
 
     /**
-     * Free the native structures associated with this compressor instance.
+     * Free the native structures associated with this compressor instance. Calling this more than once has no effect.
      */
     @Override
     public void close() throws TJException {
-        if (handle != 0)
-            destroy();
+        if (handle != 0) {
+            try {
+                destroy();
+            } finally {
+                registration.cancel();
+            }
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            close();
-        } catch (TJException e) {
-        } finally {
-            super.finalize();
-        }
-    };
+    private void initHandle() throws TJException {
+        init();
+        registration = TJCleaner.register(this, new HandleReleaser(handle));
+    }
 
     private native void init() throws TJException;
 
     private native void destroy() throws TJException;
 
+    static native void destroy(long handle) throws TJException;
+
     // JPEG size in bytes is returned
     @Deprecated
     private native int compress(byte[] srcBuf, int width, int pitch, int height, int pixelFormat, byte[] dstBuf,
@@ -584,6 +660,11 @@ public class TJCompressor implements Closeable {
     private native void encodeYUV(int[] srcBuf, int x, int y, int width, int srcStride, int height, int pixelFormat,
             byte[][] dstPlanes, int[] dstOffsets, int[] dstStrides, int subsamp, int flags) throws TJException;
 
+    // srcBuf is a byte[], int[] or direct ByteBuffer and dstBuf a byte[] or direct ByteBuffer; offsets are in bytes
+    private native int compressBuffer(Object srcBuf, int srcOffset, int x, int y, int width, int pitch, int height,
+            int pixelFormat, Object dstBuf, int dstOffset, int dstSize, int jpegSubsamp, int jpegQual, int flags)
+            throws TJException;
+
     static {
         TJLoader.load();
     }
@@ -593,14 +674,26 @@ public class TJCompressor implements Closeable {
             throw new IllegalStateException(NO_ASSOC_ERROR);
     }
 
+    private void checkCompress() {
+        if (srcBuf == null && srcBufInt == null && srcBufDirect == null && srcYUVImage == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        if (jpegQuality < 0)
+            throw new IllegalStateException("JPEG Quality not set");
+        if (subsamp < 0 && srcYUVImage == null)
+            throw new IllegalStateException("Subsampling level not set");
+    }
+
     private void checkSubsampling() {
         if (subsamp < 0)
             throw new IllegalStateException("Subsampling level not set");
     }
 
     private long handle = 0;
+    private TJCleaner.Registration registration = null;
     private byte[] srcBuf = null;
     private int[] srcBufInt = null;
+    private ByteBuffer srcBufDirect = null;
+    private int srcBufDirectOffset = 0;
     private int srcWidth = 0;
     private int srcHeight = 0;
     private int srcX = -1;
@@ -614,4 +707,22 @@ public class TJCompressor implements Closeable {
     private int compressedSize = 0;
     private int yuvPad = 4;
     private ByteOrder byteOrder = null;
+
+    /**
+     * Releases a handle whose owning instance was never closed. The owner's native <code>destroy()</code> method
+     * cannot be used at that point, so the handle is passed to <code>tjDestroy()</code> directly, through the same
+     * JNI library that created it.
+     */
+    static final class HandleReleaser implements TJCleaner.Releaser {
+        private final long handle;
+
+        HandleReleaser(long handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public void release() throws TJException {
+            destroy(handle);
+        }
+    }
 }
@@ -44,7 +44,7 @@ public class TJDecompressor implements Closeable {
      * Create a TurboJPEG decompresssor instance.
      */
     public TJDecompressor() throws TJException {
-        init();
+        initHandle();
     }
 
     /**
@@ -56,7 +56,7 @@ public class TJDecompressor implements Closeable {
      *            not modified.
      */
     public TJDecompressor(byte[] jpegImage) throws TJException {
-        init();
+        initHandle();
         setSourceImage(jpegImage, jpegImage.length);
     }
 
@@ -71,7 +71,7 @@ public class TJDecompressor implements Closeable {
      *            size of the JPEG image (in bytes)
      */
     public TJDecompressor(byte[] jpegImage, int imageSize) throws TJException {
-        init();
+        initHandle();
         setSourceImage(jpegImage, imageSize);
     }
 
@@ -83,7 +83,7 @@ public class TJDecompressor implements Closeable {
      *            {@link YUVImage} instance containing a YUV planar image to be decoded. This image is not modified.
      */
     public TJDecompressor(YUVImage yuvImage) throws TJException {
-        init();
+        initHandle();
         setSourceImage(yuvImage);
     }
 
@@ -102,10 +102,34 @@ public class TJDecompressor implements Closeable {
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
         jpegBuf = jpegImage;
         jpegBufSize = imageSize;
+        jpegBufDirect = null;
         decompressHeader(jpegBuf, jpegBufSize);
         yuvImage = null;
     }
 
+    /**
+     * Associate the JPEG image of length <code>imageSize</code> bytes stored in a direct buffer with this decompressor
+     * instance. The native code reads the image in place, so no copy of it is made on either side of the JNI boundary.
+     * Such an image can be decompressed to RGB, grayscale, or CMYK but not to YUV.
+     *
+     * @param jpegImage
+     *            direct buffer containing the JPEG image, starting at its current position. This buffer is not
+     *            modified, and its position is not changed.
+     *
+     * @param imageSize
+     *            size of the JPEG image (in bytes)
+     */
+    public void setSourceImage(ByteBuffer jpegImage, int imageSize) throws TJException {
+        if (jpegImage == null || !jpegImage.isDirect() || imageSize < 1 || imageSize > jpegImage.remaining())
+            throw new IllegalArgumentException("Invalid argument in setSourceImage()");
+        decompressHeaderBuffer(jpegImage, jpegImage.position(), imageSize);
+        jpegBufDirect = jpegImage;
+        jpegBufDirectOffset = jpegImage.position();
+        jpegBuf = null;
+        jpegBufSize = imageSize;
+        yuvImage = null;
+    }
+
     /**
      * @deprecated Use {@link #setSourceImage(byte[], int)} instead.
      */
@@ -126,6 +150,7 @@ public class TJDecompressor implements Closeable {
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
         yuvImage = srcImage;
         jpegBuf = null;
+        jpegBufDirect = null;
         jpegBufSize = 0;
     }
 
@@ -347,7 +372,7 @@ public class TJDecompressor implements Closeable {
      */
     public void decompress(byte[] dstBuf, int x, int y, int desiredWidth, int pitch, int desiredHeight,
             int pixelFormat, int flags) throws TJException {
-        if (jpegBuf == null && yuvImage == null)
+        if (jpegBuf == null && jpegBufDirect == null && yuvImage == null)
             throw new IllegalStateException(NO_ASSOC_ERROR);
         if (dstBuf == null || x < 0 || y < 0 || pitch < 0
                 || (yuvImage != null && (desiredWidth < 0 || desiredHeight < 0)) || pixelFormat < 0
@@ -356,12 +381,16 @@ public class TJDecompressor implements Closeable {
         if (yuvImage != null)
             decodeYUV(yuvImage.getPlanes(), yuvImage.getOffsets(), yuvImage.getStrides(), yuvImage.getSubsamp(),
                     dstBuf, x, y, yuvImage.getWidth(), pitch, yuvImage.getHeight(), pixelFormat, flags);
+        else if (jpegBufDirect != null)
+            decompressBuffer(jpegBufDirect, jpegBufDirectOffset, jpegBufSize, dstBuf, 0, dstBuf.length, x, y,
+                    desiredWidth, pitch, desiredHeight, pixelFormat, flags);
         else {
             if (x > 0 || y > 0)
                 decompress(jpegBuf, jpegBufSize, dstBuf, x, y, desiredWidth, pitch, desiredHeight, pixelFormat, flags);
             else
                 decompress(jpegBuf, jpegBufSize, dstBuf, desiredWidth, pitch, desiredHeight, pixelFormat, flags);
         }
+        TJNativeLibrary.recordDecode();
     }
 
     /**
@@ -373,6 +402,55 @@ public class TJDecompressor implements Closeable {
         decompress(dstBuf, 0, 0, desiredWidth, pitch, desiredHeight, pixelFormat, flags);
     }
 
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance and output a grayscale, RGB, or CMYK
+     * image to the given direct buffer. The native code writes the pixels in place, so no copy of the image is made on
+     * either side of the JNI boundary. Decoding a YUV source image into a direct buffer is not supported.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decompressed image. The destination image starts at the buffer's
+     *            current position, and <code>x</code>, <code>y</code>, and <code>pitch</code> are relative to it (see
+     *            {@link #decompress(byte[], int, int, int, int, int, int, int)}.) The position is not changed.
+     *
+     * @param x
+     *            see {@link #decompress(byte[], int, int, int, int, int, int, int)} for description
+     *
+     * @param y
+     *            see {@link #decompress(byte[], int, int, int, int, int, int, int)} for description
+     *
+     * @param desiredWidth
+     *            see {@link #decompress(byte[], int, int, int, int, int, int, int)} for description
+     *
+     * @param pitch
+     *            see {@link #decompress(byte[], int, int, int, int, int, int, int)} for description
+     *
+     * @param desiredHeight
+     *            see {@link #decompress(byte[], int, int, int, int, int, int, int)} for description
+     *
+     * @param pixelFormat
+     *            pixel format of the decompressed image (one of {@link TJ#PF_RGB TJ.PF_*})
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public void decompress(ByteBuffer dstBuf, int x, int y, int desiredWidth, int pitch, int desiredHeight,
+            int pixelFormat, int flags) throws TJException {
+        if (jpegBuf == null && jpegBufDirect == null && yuvImage == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        if (dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly() || x < 0 || y < 0 || pitch < 0
+                || desiredWidth < 0 || desiredHeight < 0 || pixelFormat < 0 || pixelFormat >= TJ.NUMPF || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        if (yuvImage != null)
+            throw new IllegalStateException("Source image is the wrong type");
+        if (jpegBufDirect != null)
+            decompressBuffer(jpegBufDirect, jpegBufDirectOffset, jpegBufSize, dstBuf, dstBuf.position(),
+                    dstBuf.remaining(), x, y, desiredWidth, pitch, desiredHeight, pixelFormat, flags);
+        else
+            decompressBuffer(jpegBuf, 0, jpegBufSize, dstBuf, dstBuf.position(), dstBuf.remaining(), x, y,
+                    desiredWidth, pitch, desiredHeight, pixelFormat, flags);
+        TJNativeLibrary.recordDecode();
+    }
+
     /**
      * Decompress the JPEG source image associated with this decompressor instance and return a buffer containing the
      * decompressed image.
@@ -425,6 +503,8 @@ public class TJDecompressor implements Closeable {
      *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
      */
     public void decompressToYUV(YUVImage dstImage, int flags) throws TJException {
+        if (jpegBufDirect != null)
+            throw new IllegalStateException("Source image is the wrong type");
         if (jpegBuf == null)
             throw new IllegalStateException(NO_ASSOC_ERROR);
         if (dstImage == null || flags < 0)
@@ -614,7 +694,7 @@ public class TJDecompressor implements Closeable {
      */
     public void decompress(int[] dstBuf, int x, int y, int desiredWidth, int stride, int desiredHeight,
             int pixelFormat, int flags) throws TJException {
-        if (jpegBuf == null && yuvImage == null)
+        if (jpegBuf == null && jpegBufDirect == null && yuvImage == null)
             throw new IllegalStateException(NO_ASSOC_ERROR);
         if (dstBuf == null || x < 0 || y < 0 || stride < 0
                 || (yuvImage != null && (desiredWidth < 0 || desiredHeight < 0)) || pixelFormat < 0
@@ -623,8 +703,12 @@ public class TJDecompressor implements Closeable {
         if (yuvImage != null)
             decodeYUV(yuvImage.getPlanes(), yuvImage.getOffsets(), yuvImage.getStrides(), yuvImage.getSubsamp(),
                     dstBuf, x, y, yuvImage.getWidth(), stride, yuvImage.getHeight(), pixelFormat, flags);
+        else if (jpegBufDirect != null)
+            decompressBuffer(jpegBufDirect, jpegBufDirectOffset, jpegBufSize, dstBuf, 0, dstBuf.length * 4, x, y,
+                    desiredWidth, stride * 4, desiredHeight, pixelFormat, flags);
         else
             decompress(jpegBuf, jpegBufSize, dstBuf, x, y, desiredWidth, stride, desiredHeight, pixelFormat, flags);
+        TJNativeLibrary.recordDecode();
     }
 
     /**
@@ -710,11 +794,8 @@ public class TJDecompressor implements Closeable {
             if (yuvImage != null)
                 decodeYUV(yuvImage.getPlanes(), yuvImage.getOffsets(), yuvImage.getStrides(), yuvImage.getSubsamp(),
                         buf, 0, 0, yuvImage.getWidth(), stride, yuvImage.getHeight(), pixelFormat, flags);
-            else {
-                if (jpegBuf == null)
-                    throw new IllegalStateException(NO_ASSOC_ERROR);
-                decompress(jpegBuf, jpegBufSize, buf, 0, 0, scaledWidth, stride, scaledHeight, pixelFormat, flags);
-            }
+            else
+                decompress(buf, 0, 0, scaledWidth, stride, scaledHeight, pixelFormat, flags);
         } else {
             ComponentSampleModel sm = (ComponentSampleModel) dstImage.getSampleModel();
             int pixelSize = sm.getPixelStride();
@@ -758,23 +839,28 @@ public class TJDecompressor implements Closeable {
     }
 
     /**
-     * Free the native structures associated with this decompressor instance.
+     * Free the native structures associated with this decompressor instance. Calling this more than once has no
+     * effect.
      */
     @Override
     public void close() throws TJException {
-        if (handle != 0)
-            destroy();
+        if (handle != 0) {
+            try {
+                destroy();
+            } finally {
+                registration.cancel();
+            }
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            close();
-        } catch (TJException e) {
-        } finally {
-            super.finalize();
-        }
-    };
+    void initHandle() throws TJException {
+        init();
+        registerHandle();
+    }
+
+    void registerHandle() {
+        registration = TJCleaner.register(this, new TJCompressor.HandleReleaser(handle));
+    }
 
     private native void init() throws TJException;
 
@@ -808,13 +894,24 @@ public class TJDecompressor implements Closeable {
     private native void decodeYUV(byte[][] srcPlanes, int[] srcOffsets, int[] srcStrides, int subsamp, int[] dstBuf,
             int x, int y, int width, int stride, int height, int pixelFormat, int flags) throws TJException;
 
+    // srcBuf is a byte[] or direct ByteBuffer and dstBuf a byte[], int[] or direct ByteBuffer; offsets, sizes and
+    // pitch are in bytes
+    private native void decompressHeaderBuffer(Object srcBuf, int srcOffset, int size) throws TJException;
+
+    private native void decompressBuffer(Object srcBuf, int srcOffset, int size, Object dstBuf, int dstOffset,
+            int dstSize, int x, int y, int desiredWidth, int pitch, int desiredHeight, int pixelFormat, int flags)
+            throws TJException;
+
     static {
         TJLoader.load();
     }
 
     protected long handle = 0;
+    private TJCleaner.Registration registration = null;
     protected byte[] jpegBuf = null;
     protected int jpegBufSize = 0;
+    private ByteBuffer jpegBufDirect = null;
+    private int jpegBufDirectOffset = 0;
     protected YUVImage yuvImage = null;
     protected int jpegWidth = 0;
     protected int jpegHeight = 0;
@@ -30,23 +30,14 @@ package org.libjpegturbo.turbojpeg;
 
 final class TJLoader {
     static void load() {
+        // The library bundled in the jar for this platform, if there is one; see TJNativeLibrary
+        if (TJNativeLibrary.load())
+            return;
         try {
-            System.loadLibrary("turbojpeg");
+            // The JNI glue built from src/main/jni, which links against the system libturbojpeg
+            System.loadLibrary("turbojpeg-jni");
         } catch (java.lang.UnsatisfiedLinkError e) {
-            String os = System.getProperty("os.name").toLowerCase();
-            if (os.indexOf("mac") >= 0) {
-                System.load("/opt/libjpeg-turbo/lib/libturbojpeg.jnilib");
-            } else {
-                try {
-                    System.load("/opt/libjpeg-turbo/libturbojpeg.so");
-                } catch (java.lang.UnsatisfiedLinkError e3) {
-                    try {
-                        System.load("/opt/libjpeg-turbo/lib64/libturbojpeg.so");
-                    } catch (java.lang.UnsatisfiedLinkError e4) {
-                        System.load("/opt/libjpeg-turbo/lib32/libturbojpeg.so");
-                    }
-                }
-            }
+            System.loadLibrary("turbojpeg");
         }
     }
 }
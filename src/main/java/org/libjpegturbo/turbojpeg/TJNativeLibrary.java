@@ -0,0 +1,401 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bridj.BridJ;
+
+/**
+ * Loads the TurboJPEG native libraries that are bundled in the jar (cannot be instantiated)
+ * <p>
+ * The libraries for each platform are stored under <code>META-INF/native/&lt;os&gt;-&lt;arch&gt;/</code>, next to a
+ * <code>libraries</code> index that lists the SHA-256 checksum and name of each file. On first use, the files are
+ * extracted to a directory named after the checksum of the index, under the directory given by the
+ * <code>org.libjpegturbo.turbojpeg.cacheDir</code> system property (<code>~/.cache/eh-libjpeg-turbo</code> by
+ * default, or a directory in <code>java.io.tmpdir</code> that only the current user can access if the home directory
+ * is not writable.) Files that are already there and have the right checksum are reused, so a restarted process with a
+ * persistent cache skips extraction. The JNI glue is then loaded with <code>System.load()</code>, and BridJ is
+ * pointed at the extracted libturbojpeg, so both bindings use the same library.
+ * <p>
+ * Calling {@link #preload} early, for instance at the start of <code>main()</code>, does this on a background thread
+ * while the application initializes. Otherwise it is done by the first class that needs the library. If nothing is
+ * bundled for the current platform, or if there is no safe directory to extract them to, then the libraries are
+ * looked up on <code>java.library.path</code> as before.
+ * The time from the first request for the library until the first decompressed image is logged through the
+ * <code>org.libjpegturbo.turbojpeg</code> logger and is available from {@link #getColdStartNanos}.
+ */
+public final class TJNativeLibrary {
+
+    static final String CACHE_DIR_PROPERTY = "org.libjpegturbo.turbojpeg.cacheDir";
+    static final String RESOURCE_ROOT = "META-INF/native/";
+    static final String INDEX = "libraries";
+
+    private static final Logger LOGGER = Logger.getLogger("org.libjpegturbo.turbojpeg");
+    private static final AtomicReference<FutureTask<File>> loading = new AtomicReference<FutureTask<File>>();
+    private static volatile long requestNanos;
+    private static volatile long extractNanos = -1;
+    private static volatile long loadNanos = -1;
+    private static volatile long coldStartNanos = -1;
+
+    private TJNativeLibrary() {
+    }
+
+    /**
+     * Start extracting and loading the bundled native libraries on a background thread, if that has not been started
+     * yet.
+     *
+     * @return a future that completes when the libraries have been loaded. Its value is the directory that they were
+     *         loaded from, or null if no libraries are bundled for the current platform.
+     */
+    public static Future<File> preload() {
+        FutureTask<File> task = loading.get();
+        if (task != null)
+            return task;
+        task = newTask();
+        if (!loading.compareAndSet(null, task))
+            return loading.get();
+        Thread thread = new Thread(task, "TurboJPEG native library loader");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * Extract and load the bundled native libraries, or wait for {@link #preload} to finish doing so.
+     *
+     * @return true if the bundled libraries were loaded, or false if no libraries are bundled for the current
+     *         platform
+     */
+    public static boolean load() {
+        FutureTask<File> task = loading.get();
+        if (task == null) {
+            FutureTask<File> created = newTask();
+            if (loading.compareAndSet(null, created))
+                created.run();
+            task = loading.get();
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get() != null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            UnsatisfiedLinkError error = new UnsatisfiedLinkError("Could not load the bundled TurboJPEG library");
+            error.initCause(e.getCause());
+            throw error;
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the time (in nanoseconds) that was spent checking and extracting the bundled libraries.
+     *
+     * @return the time (in nanoseconds) that was spent checking and extracting the bundled libraries, or -1 if they
+     *         have not been extracted.
+     */
+    public static long getExtractNanos() {
+        return extractNanos;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) that was spent loading the bundled libraries.
+     *
+     * @return the time (in nanoseconds) that was spent loading the bundled libraries, or -1 if they have not been
+     *         loaded.
+     */
+    public static long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) from the first request for the native library until the first image was
+     * decompressed.
+     *
+     * @return the time (in nanoseconds) from the first request for the native library until the first image was
+     *         decompressed, or -1 if no image has been decompressed yet.
+     */
+    public static long getColdStartNanos() {
+        return coldStartNanos;
+    }
+
+    /**
+     * Record that an image has been decompressed. The decompressors call this after every successful decompression;
+     * only the first call has an effect.
+     */
+    public static void recordDecode() {
+        if (coldStartNanos >= 0)
+            return;
+        synchronized (TJNativeLibrary.class) {
+            if (coldStartNanos >= 0 || requestNanos == 0)
+                return;
+            coldStartNanos = System.nanoTime() - requestNanos;
+        }
+        LOGGER.log(Level.INFO, "First TurboJPEG decode {0} ms after the native library was requested "
+                + "(extract {1} ms, load {2} ms, JVM uptime {3} ms)", new Object[] { millis(coldStartNanos),
+                millis(extractNanos), millis(loadNanos), ManagementFactory.getRuntimeMXBean().getUptime() });
+    }
+
+    private static FutureTask<File> newTask() {
+        return new FutureTask<File>(() -> {
+            requestNanos = System.nanoTime();
+            return loadBundled();
+        });
+    }
+
+    private static File loadBundled() throws IOException {
+        String platform = getPlatform();
+        ClassLoader loader = TJNativeLibrary.class.getClassLoader();
+        if (loader.getResource(RESOURCE_ROOT + platform + "/" + INDEX) == null) {
+            LOGGER.log(Level.FINE, "No TurboJPEG library is bundled for {0}", platform);
+            return null;
+        }
+        Path cacheRoot = getCacheRoot();
+        if (cacheRoot == null)
+            return null;
+        long start = System.nanoTime();
+        List<File> files = extract(loader, platform, cacheRoot);
+        long extracted = System.nanoTime();
+        extractNanos = extracted - start;
+        String turbojpeg = System.mapLibraryName("turbojpeg");
+        String jni = System.mapLibraryName("turbojpeg-jni");
+        for (File file : files) {
+            // The glue finds libturbojpeg next to itself, so only the glue is registered with the JVM. That keeps
+            // any JNI entry points in libturbojpeg itself from shadowing the glue's.
+            if (file.getName().equals(jni))
+                System.load(file.getAbsolutePath());
+            else if (file.getName().startsWith(turbojpeg))
+                BridJ.setNativeLibraryFile("turbojpeg", file);
+        }
+        loadNanos = System.nanoTime() - extracted;
+        File dir = files.isEmpty() ? null : files.get(0).getParentFile();
+        LOGGER.log(Level.FINE, "Loaded TurboJPEG from {0} (extract {1} ms, load {2} ms)", new Object[] { dir,
+                millis(extractNanos), millis(loadNanos) });
+        return dir;
+    }
+
+    /**
+     * Extract the libraries listed in the index for the given platform to a subdirectory of <code>cacheRoot</code>,
+     * reusing files that have already been extracted.
+     */
+    static List<File> extract(ClassLoader loader, String platform, Path cacheRoot) throws IOException {
+        String prefix = RESOURCE_ROOT + platform + "/";
+        byte[] index = readIndex(loader, prefix + INDEX);
+        Path dir = cacheRoot.resolve(platform + "-" + hex(sha256(index)).substring(0, 16));
+        Files.createDirectories(dir);
+        List<File> files = new ArrayList<File>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(index),
+                StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+", 2);
+            if (fields.length != 2 || fields[1].contains("/") || fields[1].contains("\\"))
+                throw new IOException("Malformed entry in " + prefix + INDEX + ": " + line);
+            String checksum = fields[0].toLowerCase(Locale.ROOT);
+            String name = fields[1].startsWith("*") ? fields[1].substring(1) : fields[1];
+            Path target = dir.resolve(name);
+            if (!Files.isRegularFile(target) || !checksum.equals(hex(sha256(target))))
+                extractFile(loader, prefix + name, target, checksum);
+            files.add(target.toFile());
+        }
+        return files;
+    }
+
+    private static void extractFile(ClassLoader loader, String resource, Path target, String checksum)
+            throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            try (InputStream in = loader.getResourceAsStream(resource)) {
+                if (in == null)
+                    throw new IOException("Missing bundled library " + resource);
+                Files.copy(new DigestInputStream(in, digest), tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!checksum.equals(hex(digest.digest())))
+                throw new IOException("Checksum mismatch for bundled library " + resource);
+            // Other processes may be extracting the same file, so it only appears under its final name once complete
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static byte[] readIndex(ClassLoader loader, String resource) throws IOException {
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IOException("Missing " + resource);
+            return in.readAllBytes();
+        }
+    }
+
+    static String getPlatform() {
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        if (os.startsWith("mac") || os.startsWith("darwin"))
+            os = "osx";
+        else if (os.startsWith("windows"))
+            os = "windows";
+        else if (os.startsWith("linux"))
+            os = "linux";
+        else
+            os = os.replaceAll("\\W", "");
+        return os + "-" + System.getProperty("os.arch").toLowerCase(Locale.ROOT);
+    }
+
+    static Path getCacheRoot() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (dir != null)
+            return Paths.get(dir);
+        Path home = Paths.get(System.getProperty("user.home"), ".cache", "eh-libjpeg-turbo");
+        try {
+            Files.createDirectories(home);
+            if (Files.isWritable(home))
+                return home;
+        } catch (IOException e) {
+        }
+        Path tmp = Paths.get(System.getProperty("java.io.tmpdir"),
+                "eh-libjpeg-turbo-" + System.getProperty("user.name"));
+        try {
+            return createPrivateDirectory(tmp);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Not extracting the bundled TurboJPEG libraries to " + tmp, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create a directory that only the current user can access, or check that an existing one is owned by the
+     * current user and not writable by anyone else. In a shared directory such as <code>java.io.tmpdir</code>,
+     * another user could otherwise create it first and replace a library between its checksum test and its loading.
+     */
+    static Path createPrivateDirectory(Path dir) throws IOException {
+        boolean posix = dir.getFileSystem().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix)
+                Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions
+                        .fromString("rwx------")));
+            else
+                Files.createDirectory(dir);
+        } catch (FileAlreadyExistsException e) {
+        }
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+            throw new IOException(dir + " is not a directory");
+        UserPrincipal owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS);
+        if (!owner.equals(getCurrentUser(dir.getParent())))
+            throw new IOException(dir + " is owned by " + owner.getName());
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+                throw new IOException(dir + " is writable by other users");
+        }
+        return dir;
+    }
+
+    private static UserPrincipal getCurrentUser(Path dir) throws IOException {
+        // The owner of a new file is the user this process runs as, whatever user.name says
+        Path probe = Files.createTempFile(dir, "owner", ".tmp");
+        try {
+            return Files.getOwner(probe);
+        } finally {
+            Files.delete(probe);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    private static byte[] sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+}
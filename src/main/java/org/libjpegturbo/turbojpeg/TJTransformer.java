@@ -38,7 +38,7 @@ public class TJTransformer extends TJDecompressor {
      * Create a TurboJPEG lossless transformer instance.
      */
     public TJTransformer() throws TJException {
-        init();
+        initTransformHandle();
     }
 
     /**
@@ -50,7 +50,7 @@ public class TJTransformer extends TJDecompressor {
      *            not modified.
      */
     public TJTransformer(byte[] jpegImage) throws TJException {
-        init();
+        initTransformHandle();
         setSourceImage(jpegImage, jpegImage.length);
     }
 
@@ -65,7 +65,7 @@ public class TJTransformer extends TJDecompressor {
      *            size of the JPEG image (in bytes)
      */
     public TJTransformer(byte[] jpegImage, int imageSize) throws TJException {
-        init();
+        initTransformHandle();
         setSourceImage(jpegImage, imageSize);
     }
 
@@ -146,6 +146,13 @@ public class TJTransformer extends TJDecompressor {
         return transformedSizes;
     }
 
+    private void initTransformHandle() throws TJException {
+        // The superclass constructor has already created a decompressor handle, which is replaced here.
+        close();
+        init();
+        registerHandle();
+    }
+
     private native void init() throws TJException;
 
     private native int[] transform(byte[] srcBuf, int srcSize, byte[][] dstBufs, TJTransform[] transforms, int flags)
@@ -10,6 +10,7 @@ import org.bridj.Pointer;
 import org.bridj.ann.Library;
 import org.bridj.ann.Name;
 import org.bridj.ann.Runtime;
+import org.libjpegturbo.turbojpeg.TJNativeLibrary;
 
 /**
  * Wrapper for library <b>turbojpeg</b><br>
@@ -23,6 +24,8 @@ import org.bridj.ann.Runtime;
 @Runtime(CRuntime.class)
 public class TurbojpegLibrary {
     static {
+        // Points BridJ at the bundled library, if there is one for this platform
+        TJNativeLibrary.load();
         BridJ.register();
     }
 
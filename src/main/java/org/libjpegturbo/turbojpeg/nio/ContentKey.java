@@ -0,0 +1,145 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Identifies an operation on the contents of a buffer: a 128-bit MurmurHash3 of the bytes from the buffer's position
+ * to its limit, the number of those bytes, and the parameters of the operation. Only the hash is kept, so the buffer
+ * can be reused once the key has been created.
+ */
+final class ContentKey {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long hash1;
+    private final long hash2;
+    private final int length;
+    private final int[] params;
+
+    ContentKey(ByteBuffer content, int... params) {
+        long[] hash = hash(content);
+        this.hash1 = hash[0];
+        this.hash2 = hash[1];
+        this.length = content.remaining();
+        this.params = params.clone();
+    }
+
+    /**
+     * Returns the 128-bit MurmurHash3 (x64 variant, seed 0) of the remaining bytes of a buffer, without changing its
+     * position.
+     *
+     * @return the low and high 64 bits of the hash.
+     */
+    static long[] hash(ByteBuffer content) {
+        ByteBuffer buf = content.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int pos = buf.position();
+        int length = buf.remaining();
+        int end = pos + (length & ~15);
+        long h1 = 0, h2 = 0;
+        for (int i = pos; i < end; i += 16) {
+            h1 ^= mixK1(buf.getLong(i));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(buf.getLong(i + 8));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = length & 15;
+        long k1 = 0, k2 = 0;
+        for (int i = tail - 1; i >= 8; i--)
+            k2 = (k2 << 8) | (buf.get(end + i) & 0xff);
+        for (int i = Math.min(tail, 8) - 1; i >= 0; i--)
+            k1 = (k1 << 8) | (buf.get(end + i) & 0xff);
+        if (tail > 8)
+            h2 ^= mixK2(k2);
+        if (tail > 0)
+            h1 ^= mixK1(k1);
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] { h1, h2 };
+    }
+
+    private static long mixK1(long k) {
+        return Long.rotateLeft(k * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k) {
+        return Long.rotateLeft(k * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    /**
+     * Returns the low 64 bits of the content hash, which are spread evenly enough to be used as a hash on their own.
+     *
+     * @return the low 64 bits of the content hash.
+     */
+    long getHash() {
+        return hash1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof ContentKey))
+            return false;
+        ContentKey other = (ContentKey) obj;
+        return hash1 == other.hash1 && hash2 == other.hash2 && length == other.length
+                && Arrays.equals(params, other.params);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash1 ^ (hash1 >>> 32)) * 31 + Arrays.hashCode(params);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x/%d%s", hash2, hash1, length, Arrays.toString(params));
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import org.bridj.Pointer;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * This class encapsulates a YUV planar image whose planes are stored in direct buffers, and the metadata associated
+ * with it. It is the off-heap counterpart of {@link org.libjpegturbo.turbojpeg.YUVImage}: a <code>DirectYUVImage</code>
+ * instance serves as the destination image for {@link TJNioCompressor#encodeYUV} and
+ * {@link TJNioDecompressor#decompressToYUV}, and as the source image for compress-from-YUV
+ * ({@link TJNioCompressor#setSourceImage(DirectYUVImage)}) and {@link TJNioDecompressor#decodeYUV}.
+ * <p>
+ * The planes are either supplied by the caller, in which case each plane starts at the position of its buffer, or
+ * leased as one unified buffer from a {@link TJBufferPool} by {@link #allocate}, in which case {@link #close} gives
+ * the buffer back. Plane dimensions follow the same rules as <code>YUVImage</code>.
+ */
+public class DirectYUVImage implements Closeable {
+
+    private static final String CLOSED_ERROR = "This image has been closed";
+    private static final int[] MCU_WIDTH = { 8, 16, 16, 8, 8, 32 };
+    private static final int[] MCU_HEIGHT = { 8, 8, 16, 8, 16, 8 };
+
+    private final ByteBuffer[] planes;
+    private final int[] strides;
+    private final int width;
+    private final int height;
+    private final TJSAMP subsamp;
+    private final TJBufferPool bufferPool;
+    private ByteBuffer buf;
+    private Pointer<Pointer<Byte>> pointerToPlanes;
+    private Pointer<Integer> pointerToStrides;
+
+    /**
+     * Create a YUV planar image from caller-supplied plane buffers.
+     *
+     * @param planes
+     *            a direct buffer for each image plane (one for grayscale, three otherwise.) Each plane starts at the
+     *            position of its buffer. The image keeps duplicates of the buffers, so their contents are shared but
+     *            later changes to their positions and limits do not affect the image.
+     *
+     * @param width
+     *            width (in pixels) of the YUV image (the width of the luminance plane is padded to a multiple of the
+     *            horizontal subsampling factor)
+     *
+     * @param strides
+     *            the number of bytes per line in each plane, or null to use unpadded planes. A stride of 0 is the same
+     *            as the plane width.
+     *
+     * @param height
+     *            height (in pixels) of the YUV image
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling used in the YUV image
+     */
+    public DirectYUVImage(ByteBuffer[] planes, int width, int[] strides, int height, TJSAMP subsamp) {
+        this(planes, width, strides, height, subsamp, null, null);
+    }
+
+    private DirectYUVImage(ByteBuffer[] planes, int width, int[] strides, int height, TJSAMP subsamp,
+            TJBufferPool bufferPool, ByteBuffer buf) {
+        if (planes == null || width < 1 || height < 1 || subsamp == null)
+            throw new IllegalArgumentException("Invalid argument in DirectYUVImage()");
+        int nc = subsamp == TJSAMP.TJSAMP_GRAY ? 1 : 3;
+        if (planes.length != nc || (strides != null && strides.length != nc))
+            throw new IllegalArgumentException("YUV image must have " + nc + " planes");
+        this.planes = new ByteBuffer[nc];
+        this.strides = new int[nc];
+        for (int i = 0; i < nc; i++) {
+            int pw = getPlaneWidth(i, width, subsamp), ph = getPlaneHeight(i, height, subsamp);
+            int stride = strides == null || strides[i] == 0 ? pw : strides[i];
+            if (planes[i] == null || !planes[i].isDirect())
+                throw new IllegalArgumentException("Invalid argument in DirectYUVImage()");
+            this.planes[i] = planes[i].duplicate();
+            if (stride < pw)
+                throw new IllegalArgumentException("Stride for plane " + i + " would cause memory to be accessed "
+                        + "below plane boundary");
+            if (this.planes[i].remaining() < (long) stride * (ph - 1) + pw)
+                throw new IllegalArgumentException("Image plane " + i + " is not large enough");
+            this.strides[i] = stride;
+        }
+        this.width = width;
+        this.height = height;
+        this.subsamp = subsamp;
+        this.bufferPool = bufferPool;
+        this.buf = buf;
+    }
+
+    /**
+     * Create a YUV planar image whose planes are stored sequentially in one buffer leased from a
+     * {@link TJBufferPool}. The buffer is given back to the pool by {@link #close}.
+     *
+     * @param bufferPool
+     *            pool from which the buffer is leased
+     *
+     * @param width
+     *            width (in pixels) of the YUV image
+     *
+     * @param pad
+     *            the line padding used in the YUV image. For instance, if each line in each plane of the YUV image is
+     *            padded to the nearest multiple of 4 bytes, then <code>pad</code> should be set to 4.
+     *
+     * @param height
+     *            height (in pixels) of the YUV image
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling used in the YUV image
+     *
+     * @return a YUV planar image backed by a pooled buffer.
+     */
+    public static DirectYUVImage allocate(TJBufferPool bufferPool, int width, int pad, int height, TJSAMP subsamp)
+            throws TJException {
+        if (bufferPool == null || width < 1 || height < 1 || subsamp == null || pad < 1 || (pad & (pad - 1)) != 0)
+            throw new IllegalArgumentException("Invalid argument in DirectYUVImage.allocate()");
+        int nc = subsamp == TJSAMP.TJSAMP_GRAY ? 1 : 3;
+        int[] strides = new int[nc];
+        long size = 0;
+        for (int i = 0; i < nc; i++) {
+            long stride = ((long) getPlaneWidth(i, width, subsamp) + pad - 1) & ~(pad - 1);
+            size += stride * getPlaneHeight(i, height, subsamp);
+            if (size > TJBufferPool.MAX_BUFFER_SIZE)
+                throw new IllegalArgumentException("YUV image is larger than " + TJBufferPool.MAX_BUFFER_SIZE
+                        + " bytes");
+            strides[i] = (int) stride;
+        }
+        ByteBuffer buf = bufferPool.acquire((int) size);
+        ByteBuffer[] planes = new ByteBuffer[nc];
+        int offset = 0;
+        for (int i = 0; i < nc; i++) {
+            int planeSize = strides[i] * getPlaneHeight(i, height, subsamp);
+            buf.limit(offset + planeSize).position(offset);
+            planes[i] = buf.slice();
+            offset += planeSize;
+        }
+        buf.clear().limit((int) size);
+        return new DirectYUVImage(planes, width, strides, height, subsamp, bufferPool, buf);
+    }
+
+    /**
+     * Returns the plane width of a YUV image plane with the given parameters. Refer to
+     * {@link org.libjpegturbo.turbojpeg.YUVImage} for a description of plane width.
+     *
+     * @param componentID
+     *            ID number of the image plane (0 = Y, 1 = U/Cb, 2 = V/Cr)
+     *
+     * @param width
+     *            width (in pixels) of the YUV image
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling used in the YUV image
+     *
+     * @return the plane width of a YUV image plane with the given parameters.
+     */
+    public static int getPlaneWidth(int componentID, int width, TJSAMP subsamp) {
+        int mcuWidth = MCU_WIDTH[(int) subsamp.value];
+        int pw = (width + mcuWidth / 8 - 1) / (mcuWidth / 8) * (mcuWidth / 8);
+        return componentID == 0 ? pw : pw * 8 / mcuWidth;
+    }
+
+    /**
+     * Returns the plane height of a YUV image plane with the given parameters. Refer to
+     * {@link org.libjpegturbo.turbojpeg.YUVImage} for a description of plane height.
+     *
+     * @param componentID
+     *            ID number of the image plane (0 = Y, 1 = U/Cb, 2 = V/Cr)
+     *
+     * @param height
+     *            height (in pixels) of the YUV image
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling used in the YUV image
+     *
+     * @return the plane height of a YUV image plane with the given parameters.
+     */
+    public static int getPlaneHeight(int componentID, int height, TJSAMP subsamp) {
+        int mcuHeight = MCU_HEIGHT[(int) subsamp.value];
+        int ph = (height + mcuHeight / 8 - 1) / (mcuHeight / 8) * (mcuHeight / 8);
+        return componentID == 0 ? ph : ph * 8 / mcuHeight;
+    }
+
+    /**
+     * Returns the width of the YUV image.
+     *
+     * @return the width of the YUV image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the YUV image.
+     *
+     * @return the height of the YUV image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of bytes per line of each plane in the YUV image.
+     *
+     * @return the number of bytes per line of each plane in the YUV image.
+     */
+    public int[] getStrides() {
+        return strides.clone();
+    }
+
+    /**
+     * Returns the level of chrominance subsampling used in the YUV image.
+     *
+     * @return the level of chrominance subsampling used in the YUV image.
+     */
+    public TJSAMP getSubsamp() {
+        return subsamp;
+    }
+
+    /**
+     * Returns duplicates of the buffers of the image planes. Each plane starts at the position of its buffer.
+     *
+     * @return duplicates of the buffers of the image planes.
+     */
+    public ByteBuffer[] getPlanes() {
+        checkOpen();
+        ByteBuffer[] duplicates = new ByteBuffer[planes.length];
+        for (int i = 0; i < planes.length; i++)
+            duplicates[i] = planes[i].duplicate();
+        return duplicates;
+    }
+
+    /**
+     * Returns the unified buffer holding all planes of an image created by {@link #allocate}.
+     *
+     * @return the unified buffer holding all planes of an image created by {@link #allocate}.
+     */
+    public ByteBuffer getBuf() {
+        checkOpen();
+        if (bufferPool == null)
+            throw new IllegalStateException("Image is not stored in a unified buffer");
+        return buf;
+    }
+
+    /**
+     * Give the buffer of an image created by {@link #allocate} back to its pool. The planes must not be used after
+     * that. Calling this more than once, or on an image with caller-supplied planes, has no effect.
+     */
+    @Override
+    public void close() {
+        if (bufferPool != null && buf != null) {
+            ByteBuffer released = buf;
+            buf = null;
+            pointerToPlanes = null;
+            bufferPool.release(released);
+        }
+    }
+
+    Pointer<Pointer<Byte>> getPointerToPlanes() {
+        checkOpen();
+        if (pointerToPlanes == null) {
+            Pointer<Pointer<Byte>> pointer = Pointer.allocatePointers(Byte.class, planes.length);
+            for (int i = 0; i < planes.length; i++)
+                pointer.set(i, Pointers.pointerToPosition(planes[i]));
+            pointerToPlanes = pointer;
+        }
+        return pointerToPlanes;
+    }
+
+    Pointer<Integer> getPointerToStrides() {
+        if (pointerToStrides == null)
+            pointerToStrides = Pointer.pointerToInts(strides);
+        return pointerToStrides;
+    }
+
+    private void checkOpen() {
+        if (bufferPool != null && buf == null)
+            throw new IllegalStateException(CLOSED_ERROR);
+    }
+}
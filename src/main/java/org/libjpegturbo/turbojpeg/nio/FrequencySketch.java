@@ -0,0 +1,136 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+/**
+ * Count-Min sketch of how often keys have been seen recently, with four rows of 4-bit counters. When the number of
+ * increments reaches ten times the width of the sketch, all counters are halved, so that old popularity fades.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int width;
+    private int rowLength;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Create a sketch.
+     *
+     * @param expectedEntries
+     *            the number of keys that are expected to be tracked at once
+     */
+    FrequencySketch(int expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Widen the sketch if it is narrower than the given number of keys. The counts recorded so far are carried over.
+     *
+     * @param expectedEntries
+     *            the number of keys that are expected to be tracked at once
+     */
+    void ensureCapacity(int expectedEntries) {
+        int newWidth = Integer.highestOneBit((Math.max(16, Math.min(1 << 26, expectedEntries)) - 1) << 1);
+        if (newWidth <= width)
+            return;
+        long[] newTable = new long[SEEDS.length * (newWidth / 16)];
+        if (table != null) {
+            // A key's index in the wider sketch keeps its index in this one as its low bits, so each counter is
+            // repeated across the wider row
+            for (int row = 0; row < SEEDS.length; row++) {
+                for (int i = 0; i < newWidth / 16; i++)
+                    newTable[row * (newWidth / 16) + i] = table[row * rowLength + i % rowLength];
+            }
+        }
+        width = newWidth;
+        rowLength = width / 16;
+        table = newTable;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Returns the number of keys that the sketch is sized for.
+     *
+     * @return the number of keys that the sketch is sized for.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the estimated number of times that a key has been seen recently.
+     *
+     * @return the estimated number of times (0 to 15) that a key has been seen recently.
+     */
+    int frequency(long hash) {
+        int frequency = 15;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(hash, row);
+            long counters = table[row * rowLength + (index >>> 4)];
+            frequency = Math.min(frequency, (int) (counters >>> ((index & 15) << 2)) & 15);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record that a key has been seen.
+     */
+    void increment(long hash) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(hash, row);
+            int i = row * rowLength + (index >>> 4);
+            int shift = (index & 15) << 2;
+            if (((table[i] >>> shift) & 15) < 15) {
+                table[i] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size >>>= 1;
+    }
+
+    private int index(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (width - 1);
+    }
+}
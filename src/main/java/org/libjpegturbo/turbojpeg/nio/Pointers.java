@@ -0,0 +1,126 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+
+import org.bridj.IntValuedEnum;
+import org.bridj.Pointer;
+
+/**
+ * BridJ pointer helpers shared by the NIO codec classes
+ */
+final class Pointers {
+
+    private Pointers() {
+    }
+
+    /**
+     * Returns a pointer to the current position of a direct buffer. (<code>Pointer.pointerToBytes()</code> always
+     * points to the start of the buffer, regardless of its position.)
+     *
+     * @param buf
+     *            a direct buffer
+     *
+     * @return a pointer to the current position of <code>buf</code>.
+     */
+    static Pointer<Byte> pointerToPosition(ByteBuffer buf) {
+        return pointerToIndex(buf, buf.position());
+    }
+
+    /**
+     * Returns a pointer to the given index of a direct buffer.
+     *
+     * @param buf
+     *            a direct buffer
+     *
+     * @param index
+     *            byte offset from the start of <code>buf</code>
+     *
+     * @return a pointer to the given index of <code>buf</code>.
+     */
+    static Pointer<Byte> pointerToIndex(ByteBuffer buf, int index) {
+        Pointer<Byte> pointer = Pointer.pointerToBytes(buf);
+        if (pointer == null)
+            throw new IllegalArgumentException("Buffer has no native memory");
+        return index == 0 ? pointer : pointer.offset(index);
+    }
+
+    /**
+     * Remembers the pointer built for the most recent buffer and index, so that passing the same buffer again,
+     * which is the common case with pooled or caller-recycled buffers, does not allocate a new
+     * <code>Pointer</code>.
+     */
+    static final class Cache {
+        private ByteBuffer buf;
+        private int index;
+        private Pointer<Byte> pointer;
+
+        Pointer<Byte> get(ByteBuffer buf) {
+            return get(buf, buf.position());
+        }
+
+        Pointer<Byte> get(ByteBuffer buf, int index) {
+            if (buf != this.buf || index != this.index) {
+                pointer = pointerToIndex(buf, index);
+                this.index = index;
+                this.buf = buf;
+            }
+            return pointer;
+        }
+
+        void clear() {
+            buf = null;
+            pointer = null;
+        }
+    }
+
+    /**
+     * Returns the constant of an enum whose constants are declared in ascending order of value, without going
+     * through <code>IntValuedEnum.fromValue()</code>, which copies the constants on every call.
+     *
+     * @param values
+     *            the constants of the enum, in the order returned by <code>values()</code>
+     *
+     * @param value
+     *            the native value to look up
+     *
+     * @return the constant of <code>values</code> whose value is <code>value</code>, or null if there is none.
+     */
+    static <E extends Enum<E> & IntValuedEnum<E>> E fromValue(E[] values, int value) {
+        if (value >= 0 && value < values.length && values[value].value() == value)
+            return values[value];
+        for (E e : values) {
+            if (e.value() == value)
+                return e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The restart intervals of a baseline JPEG image, found by scanning its markers and entropy-coded data. Each restart
+ * interval can be decoded on its own, because the decoder state is reset at every restart marker, so a run of
+ * intervals that starts and ends on MCU row boundaries can be turned into a complete JPEG image of that strip of rows
+ * (see {@link #writeStrip}.)
+ */
+final class RestartIndex {
+
+    private static final int SOI = 0xd8;
+    private static final int EOI = 0xd9;
+    private static final int SOS = 0xda;
+    private static final int DRI = 0xdd;
+    private static final int RST0 = 0xd0;
+    private static final int APP0 = 0xe0;
+    private static final int APP14 = 0xee;
+    private static final int COM = 0xfe;
+
+    final int width;
+    final int height;
+    final int mcuWidth;
+    final int mcuHeight;
+    final int mcusPerRow;
+    final int restartInterval;
+    /** Whether some component is subsampled vertically, so fancy upsampling looks across MCU rows */
+    final boolean verticalSubsampling;
+    /** Marker segments up to and including the SOS segment, without application data or comments */
+    private final byte[] header;
+    private final int heightOffset;
+    /** Start of the entropy-coded data of each restart interval */
+    private final int[] starts;
+    /** End (exclusive) of the entropy-coded data of each restart interval */
+    private final int[] ends;
+
+    private RestartIndex(int width, int height, int mcuWidth, int mcuHeight, int restartInterval,
+            boolean verticalSubsampling, byte[] header, int heightOffset, int[] starts, int[] ends) {
+        this.width = width;
+        this.height = height;
+        this.mcuWidth = mcuWidth;
+        this.mcuHeight = mcuHeight;
+        this.mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+        this.restartInterval = restartInterval;
+        this.verticalSubsampling = verticalSubsampling;
+        this.header = header;
+        this.heightOffset = heightOffset;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Index the restart intervals of a JPEG image.
+     *
+     * @param jpegImage
+     *            JPEG image buffer, whose limit is the size of the JPEG image. The image starts at index 0, and the
+     *            buffer is not modified.
+     *
+     * @return the index, or null if the image is not a single-scan Huffman-coded image with restart markers, or if
+     *         its structure is not what the markers say it is.
+     */
+    static RestartIndex parse(ByteBuffer jpegImage) {
+        int limit = jpegImage.limit();
+        if (limit < 4 || u8(jpegImage, 0) != 0xff || u8(jpegImage, 1) != SOI)
+            return null;
+        // The marker segments that go into the header of each strip, as pairs of start and end indices
+        int[] segments = new int[16];
+        int segmentCount = 0;
+        int headerLength = 2;
+        int width = 0, height = 0, heightOffset = -1, restartInterval = 0;
+        int components = 0, maxH = 1, maxV = 1;
+        int[] sampling = null;
+        int pos = 2;
+        while (true) {
+            if (pos + 4 > limit || u8(jpegImage, pos) != 0xff)
+                return null;
+            int marker = u8(jpegImage, pos + 1);
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+            int length = u16(jpegImage, pos + 2);
+            int end = pos + 2 + length;
+            if (length < 2 || end > limit)
+                return null;
+            if (marker == 0xc0 || marker == 0xc1) {
+                if (heightOffset >= 0 || length < 8)
+                    return null;
+                heightOffset = headerLength + 5;
+                height = u16(jpegImage, pos + 5);
+                width = u16(jpegImage, pos + 7);
+                components = u8(jpegImage, pos + 9);
+                if (width == 0 || height == 0 || components == 0 || length != 8 + 3 * components)
+                    return null;
+                sampling = new int[components * 2];
+                for (int i = 0; i < components; i++) {
+                    int hv = u8(jpegImage, pos + 11 + 3 * i);
+                    sampling[2 * i] = hv >> 4;
+                    sampling[2 * i + 1] = hv & 0xf;
+                    if (sampling[2 * i] == 0 || sampling[2 * i + 1] == 0)
+                        return null;
+                    maxH = Math.max(maxH, sampling[2 * i]);
+                    maxV = Math.max(maxV, sampling[2 * i + 1]);
+                }
+            } else if (marker >= 0xc2 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // Progressive, lossless, or arithmetic-coded
+                return null;
+            } else if (marker == DRI) {
+                restartInterval = u16(jpegImage, pos + 4);
+            } else if (marker == SOS) {
+                if (heightOffset < 0 || u8(jpegImage, pos + 4) != components || restartInterval == 0)
+                    return null;
+            } else if (marker == EOI || marker == SOI || (marker >= RST0 && marker < RST0 + 8)) {
+                return null;
+            }
+            // Application data other than the JFIF and Adobe markers, which decide the colorspace, is left out
+            if (marker == APP0 || marker == APP14 || (marker < APP0 && marker != COM)) {
+                if (segmentCount == segments.length)
+                    segments = Arrays.copyOf(segments, 2 * segmentCount);
+                segments[segmentCount++] = pos;
+                segments[segmentCount++] = end;
+                headerLength += end - pos;
+            }
+            pos = end;
+            if (marker == SOS)
+                break;
+        }
+        int mcuWidth = components == 1 ? 8 : 8 * maxH;
+        int mcuHeight = components == 1 ? 8 : 8 * maxV;
+        boolean verticalSubsampling = false;
+        for (int i = 0; components > 1 && i < components; i++)
+            verticalSubsampling |= sampling[2 * i + 1] != maxV;
+        long mcus = (long) ((width + mcuWidth - 1) / mcuWidth) * ((height + mcuHeight - 1) / mcuHeight);
+        long intervals = (mcus + restartInterval - 1) / restartInterval;
+        if (intervals > limit / 2)
+            return null;
+        int[] starts = new int[(int) intervals];
+        int[] ends = new int[(int) intervals];
+        int count = 0;
+        int start = pos;
+        while (true) {
+            if (pos + 1 >= limit)
+                return null;
+            if (u8(jpegImage, pos) != 0xff) {
+                pos++;
+                continue;
+            }
+            int markerStart = pos;
+            while (pos + 1 < limit && u8(jpegImage, pos + 1) == 0xff)
+                pos++;
+            if (pos + 1 >= limit)
+                return null;
+            int marker = u8(jpegImage, pos + 1);
+            pos += 2;
+            if (marker == 0)
+                continue;
+            if (count == intervals)
+                return null;
+            starts[count] = start;
+            ends[count] = markerStart;
+            count++;
+            if (marker == EOI)
+                break;
+            if (marker != RST0 + ((count - 1) & 7))
+                return null;
+            start = pos;
+        }
+        if (count != intervals)
+            return null;
+        byte[] header = new byte[headerLength];
+        header[0] = (byte) 0xff;
+        header[1] = (byte) SOI;
+        ByteBuffer src = jpegImage.duplicate();
+        for (int i = 0, offset = 2; i < segmentCount; i += 2) {
+            src.limit(segments[i + 1]).position(segments[i]);
+            src.get(header, offset, segments[i + 1] - segments[i]);
+            offset += segments[i + 1] - segments[i];
+        }
+        return new RestartIndex(width, height, mcuWidth, mcuHeight, restartInterval, verticalSubsampling, header,
+                heightOffset, starts, ends);
+    }
+
+    /**
+     * Returns the number of restart intervals.
+     *
+     * @return the number of restart intervals.
+     */
+    int getIntervalCount() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the smallest number of restart intervals that starts and ends on MCU row boundaries.
+     *
+     * @return the smallest number of restart intervals that starts and ends on MCU row boundaries.
+     */
+    int getIntervalsPerStep() {
+        return mcusPerRow / gcd(mcusPerRow, restartInterval);
+    }
+
+    /**
+     * Returns the number of MCU rows that {@link #getIntervalsPerStep} restart intervals cover.
+     *
+     * @return the number of MCU rows that {@link #getIntervalsPerStep} restart intervals cover.
+     */
+    int getRowsPerStep() {
+        return restartInterval / gcd(mcusPerRow, restartInterval);
+    }
+
+    /**
+     * Returns the number of MCU rows in the image.
+     *
+     * @return the number of MCU rows in the image.
+     */
+    int getMcuRows() {
+        return (height + mcuHeight - 1) / mcuHeight;
+    }
+
+    /**
+     * Returns the size of the JPEG image that {@link #writeStrip} produces for the given MCU rows.
+     *
+     * @return the size (in bytes) of the JPEG image of the strip.
+     */
+    int getStripSize(int firstRow, int endRow) {
+        int first = firstInterval(firstRow);
+        int end = firstInterval(endRow);
+        long size = header.length + 2L * (end - first);
+        for (int i = first; i < end; i++)
+            size += ends[i] - starts[i];
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write a JPEG image of the given MCU rows, which must start and end on step boundaries (see
+     * {@link #getRowsPerStep}) or at the bottom of the image. Its restart markers are renumbered to start at RST0.
+     *
+     * @param jpegImage
+     *            the JPEG image that was indexed
+     *
+     * @param firstRow
+     *            the first MCU row of the strip
+     *
+     * @param endRow
+     *            the MCU row after the last MCU row of the strip
+     *
+     * @param dst
+     *            buffer that receives the strip, with {@link #getStripSize} bytes remaining
+     */
+    void writeStrip(ByteBuffer jpegImage, int firstRow, int endRow, ByteBuffer dst) {
+        int first = firstInterval(firstRow);
+        int end = firstInterval(endRow);
+        int stripHeight = Math.min(height, endRow * mcuHeight) - firstRow * mcuHeight;
+        int base = dst.position();
+        dst.put(header);
+        dst.putShort(base + heightOffset, (short) stripHeight);
+        ByteBuffer src = jpegImage.duplicate();
+        for (int i = first; i < end; i++) {
+            if (i > first)
+                dst.put((byte) 0xff).put((byte) (RST0 + ((i - first - 1) & 7)));
+            src.limit(ends[i]).position(starts[i]);
+            dst.put(src);
+        }
+        dst.put((byte) 0xff).put((byte) EOI);
+    }
+
+    private int firstInterval(int row) {
+        if (row >= getMcuRows())
+            return starts.length;
+        if ((long) row * mcusPerRow % restartInterval != 0)
+            throw new IllegalArgumentException("MCU row " + row + " does not start a restart interval");
+        return (int) ((long) row * mcusPerRow / restartInterval);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static int u8(ByteBuffer buf, int index) {
+        return buf.get(index) & 0xff;
+    }
+
+    private static int u16(ByteBuffer buf, int index) {
+        return (u8(buf, index) << 8) | u8(buf, index + 1);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.libjpegturbo.turbojpeg.TJException;
+
+/**
+ * Size-classed pool of direct buffers shared by TurboJPEG NIO codec instances
+ * <p>
+ * Requested sizes are rounded up to a size class. Size classes are 4 KiB and then four evenly spaced sizes per power
+ * of two, so a buffer is never more than 25% larger than the request. Buffers of up to {@link #SLAB_SIZE} / 8 bytes are
+ * carved out of {@link #SLAB_SIZE}-byte slabs; larger buffers are allocated individually. Every buffer handed out by
+ * the pool starts on a {@link #ALIGNMENT}-byte boundary, so that the SIMD routines in libjpeg-turbo operate on aligned
+ * memory.
+ * <p>
+ * The pool never holds more than <code>maxBytes</code> of direct memory, counting both idle buffers and buffers that
+ * are in use. When a request would exceed that limit, idle buffers of other size classes are dropped first, and if
+ * that is not enough, the request fails.
+ */
+public final class TJBufferPool {
+
+    /**
+     * Alignment (in bytes) of every buffer handed out by the pool
+     */
+    public static final int ALIGNMENT = 64;
+
+    /**
+     * Size (in bytes) of the slabs from which small buffers are carved
+     */
+    public static final int SLAB_SIZE = 256 * 1024;
+
+    /**
+     * Largest buffer size (in bytes) that the pool can hand out
+     */
+    public static final int MAX_BUFFER_SIZE = 1 << 30;
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+    private static final int MAX_SLAB_CLASS_SIZE = SLAB_SIZE / 8;
+    private static final int NUM_CLASSES = classIndex(MAX_BUFFER_SIZE) + 1;
+
+    private static volatile TJBufferPool defaultPool = null;
+
+    private final long maxBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final SizeClass[] classes = new SizeClass[NUM_CLASSES];
+
+    /**
+     * Create a buffer pool.
+     *
+     * @param maxBytes
+     *            maximum number of bytes of direct memory that the pool may hold, including buffers that are in use
+     */
+    public TJBufferPool(long maxBytes) {
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("Invalid argument in TJBufferPool()");
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < NUM_CLASSES; i++)
+            classes[i] = new SizeClass(classSize(i));
+    }
+
+    /**
+     * Returns the buffer pool that NIO codec instances use unless they are given another one. Its limit is taken from
+     * the <code>org.libjpegturbo.turbojpeg.bufferPoolMaxBytes</code> system property and defaults to the maximum heap
+     * size, which is also the JVM's default limit on direct memory.
+     *
+     * @return the default buffer pool.
+     */
+    public static TJBufferPool getDefault() {
+        TJBufferPool pool = defaultPool;
+        if (pool == null) {
+            synchronized (TJBufferPool.class) {
+                pool = defaultPool;
+                if (pool == null) {
+                    long maxBytes = Long.getLong("org.libjpegturbo.turbojpeg.bufferPoolMaxBytes",
+                            Runtime.getRuntime().maxMemory());
+                    pool = defaultPool = new TJBufferPool(maxBytes);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Lease a direct buffer of at least <code>size</code> bytes from the pool. The buffer's position is 0, its limit is
+     * <code>size</code>, and its byte order is the native byte order. It must be given back with {@link #release} once
+     * the caller is done with it.
+     *
+     * @param size
+     *            required size of the buffer (in bytes)
+     *
+     * @return a direct buffer with a capacity of at least <code>size</code> bytes.
+     */
+    public ByteBuffer acquire(int size) throws TJException {
+        if (size < 0 || size > MAX_BUFFER_SIZE)
+            throw new IllegalArgumentException("Invalid argument in acquire()");
+        SizeClass sizeClass = classes[classIndex(size)];
+        ByteBuffer buf;
+        synchronized (sizeClass) {
+            buf = sizeClass.free.pollFirst();
+        }
+        if (buf != null) {
+            idleBytes.addAndGet(-sizeClass.size);
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buf = allocate(sizeClass);
+        }
+        synchronized (sizeClass) {
+            sizeClass.leased.add(buf);
+        }
+        buf.clear().limit(size);
+        return buf;
+    }
+
+    /**
+     * Give a buffer that was obtained from {@link #acquire} back to the pool. The buffer must not be used after that.
+     * Buffers that were not acquired from this pool, and buffers that have already been given back, are rejected, so
+     * that one buffer can never be leased to two callers at once.
+     *
+     * @param buf
+     *            the buffer to give back
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect())
+            throw new IllegalArgumentException("Invalid argument in release()");
+        int capacity = buf.capacity();
+        SizeClass sizeClass = classes[classIndex(capacity)];
+        if (sizeClass.size != capacity)
+            throw new IllegalArgumentException("Buffer was not acquired from a TJBufferPool");
+        synchronized (sizeClass) {
+            if (!sizeClass.leased.remove(buf))
+                throw new IllegalArgumentException("Buffer is not leased from this pool or was already released");
+            sizeClass.free.offerFirst(buf);
+        }
+        idleBytes.addAndGet(capacity);
+    }
+
+    /**
+     * Drop all idle buffers that can be dropped. Idle buffers carved from a slab can only be dropped once every buffer
+     * in the size class is idle, because they share memory with buffers that may still be in use.
+     *
+     * @return the number of bytes of direct memory that the pool no longer holds.
+     */
+    public long trim() {
+        long trimmed = 0;
+        for (SizeClass sizeClass : classes)
+            trimmed += trim(sizeClass);
+        return trimmed;
+    }
+
+    private long trim(SizeClass sizeClass) {
+        synchronized (sizeClass) {
+            int idle = sizeClass.free.size();
+            if (idle == 0)
+                return 0;
+            long bytes;
+            if (sizeClass.size <= MAX_SLAB_CLASS_SIZE) {
+                if (idle != sizeClass.allocated)
+                    return 0;
+                bytes = (long) sizeClass.slabs * SLAB_SIZE;
+                sizeClass.slabs = 0;
+            } else {
+                bytes = (long) idle * sizeClass.size;
+            }
+            sizeClass.free.clear();
+            sizeClass.allocated -= idle;
+            idleBytes.addAndGet(-(long) idle * sizeClass.size);
+            reservedBytes.addAndGet(-bytes);
+            return bytes;
+        }
+    }
+
+    private ByteBuffer allocate(SizeClass sizeClass) throws TJException {
+        if (sizeClass.size > MAX_SLAB_CLASS_SIZE) {
+            reserve(sizeClass.size);
+            synchronized (sizeClass) {
+                sizeClass.allocated++;
+            }
+            return alignedBuffer(sizeClass.size);
+        }
+        reserve(SLAB_SIZE);
+        ByteBuffer slab = alignedBuffer(SLAB_SIZE);
+        int slices = SLAB_SIZE / sizeClass.size;
+        synchronized (sizeClass) {
+            for (int i = 1; i < slices; i++) {
+                slab.limit((i + 1) * sizeClass.size).position(i * sizeClass.size);
+                sizeClass.free.offerLast(slab.slice().order(ByteOrder.nativeOrder()));
+            }
+            sizeClass.allocated += slices;
+            sizeClass.slabs++;
+        }
+        idleBytes.addAndGet((long) (slices - 1) * sizeClass.size);
+        slab.limit(sizeClass.size).position(0);
+        return slab.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private void reserve(int bytes) throws TJException {
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved + bytes <= maxBytes) {
+                if (reservedBytes.compareAndSet(reserved, reserved + bytes))
+                    return;
+            } else if (trim() == 0) {
+                throw new TJException("Could not allocate " + bytes + " bytes without exceeding the buffer pool limit of "
+                        + maxBytes + " bytes");
+            }
+        }
+    }
+
+    private static ByteBuffer alignedBuffer(int size) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size + ALIGNMENT - 1).alignedSlice(ALIGNMENT);
+        buf.limit(size);
+        return buf.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns the size class (in bytes) that a request for <code>size</code> bytes is rounded up to.
+     *
+     * @param size
+     *            requested size (in bytes)
+     *
+     * @return the size class (in bytes) that a request for <code>size</code> bytes is rounded up to.
+     */
+    public static int getSizeClass(int size) {
+        if (size < 0 || size > MAX_BUFFER_SIZE)
+            throw new IllegalArgumentException("Invalid argument in getSizeClass()");
+        return classSize(classIndex(size));
+    }
+
+    private static int classIndex(int size) {
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+        int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int step = (size - 1 - (1 << shift)) >> (shift - 2);
+        return (shift - MIN_CLASS_SHIFT) * 4 + step + 1;
+    }
+
+    private static int classSize(int index) {
+        if (index == 0)
+            return MIN_CLASS_SIZE;
+        int shift = (index - 1) / 4 + MIN_CLASS_SHIFT;
+        int step = (index - 1) % 4;
+        return (1 << shift) + (step + 1) * (1 << (shift - 2));
+    }
+
+    /**
+     * Returns the maximum number of bytes of direct memory that the pool may hold.
+     *
+     * @return the maximum number of bytes of direct memory that the pool may hold.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory that the pool holds, including buffers that are in use.
+     *
+     * @return the number of bytes of direct memory that the pool holds, including buffers that are in use.
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes of direct memory held in idle buffers.
+     *
+     * @return the number of bytes of direct memory held in idle buffers.
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * Returns the number of acquire operations that were satisfied by an idle buffer.
+     *
+     * @return the number of acquire operations that were satisfied by an idle buffer.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of acquire operations that had to allocate direct memory.
+     *
+     * @return the number of acquire operations that had to allocate direct memory.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+        // ByteBuffer.equals compares contents, so leased buffers are tracked by identity
+        final Set<ByteBuffer> leased = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        int allocated = 0;
+        int slabs = 0;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJCS;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * The header of a JPEG image, as returned by {@link TJNioDecompressor#readHeader}. Instances are immutable.
+ */
+public final class TJHeader {
+
+    private final int width;
+    private final int height;
+    private final TJSAMP subsamp;
+    private final TJCS colorspace;
+
+    TJHeader(int width, int height, TJSAMP subsamp, TJCS colorspace) {
+        this.width = width;
+        this.height = height;
+        this.subsamp = subsamp;
+        this.colorspace = colorspace;
+    }
+
+    /**
+     * Returns the width of the JPEG image.
+     *
+     * @return the width of the JPEG image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the JPEG image.
+     *
+     * @return the height of the JPEG image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the level of chrominance subsampling used in the JPEG image.
+     *
+     * @return the level of chrominance subsampling used in the JPEG image.
+     */
+    public TJSAMP getSubsamp() {
+        return subsamp;
+    }
+
+    /**
+     * Returns the colorspace used in the JPEG image.
+     *
+     * @return the colorspace used in the JPEG image.
+     */
+    public TJCS getColorspace() {
+        return colorspace;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof TJHeader))
+            return false;
+        TJHeader other = (TJHeader) obj;
+        return width == other.width && height == other.height && subsamp == other.subsamp
+                && colorspace == other.colorspace;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * width + height;
+        result = 31 * result + (subsamp == null ? 0 : subsamp.hashCode());
+        return 31 * result + (colorspace == null ? 0 : colorspace.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "TJHeader[" + width + "x" + height + ", " + subsamp + ", " + colorspace + "]";
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.TJScalingFactor;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJCS;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Admission control for decompressions under a global memory budget. The header of each JPEG image is read first, and
+ * the memory that decompressing it would take is estimated: the destination buffer, plus the working memory of
+ * libjpeg, which for progressive images includes the coefficients of the whole image. A decompression starts only
+ * when its estimate fits in what is left of the budget; otherwise it waits in a first-come, first-served queue, so a
+ * large image is not passed over indefinitely by small ones. A single image whose estimate exceeds the whole budget
+ * runs on its own once nothing else holds any of the budget.
+ * <p>
+ * If a minimum scaling factor is given, an image that does not fit right away is decompressed at the largest smaller
+ * scaling factor, down to that minimum, that does fit, instead of waiting. The frame's dimensions tell the caller
+ * which size it got.
+ * <p>
+ * The working memory is given back as soon as the image has been decompressed, and the memory of the destination
+ * buffer once the returned {@link TJNioFrame} is released. The NIO codecs keep no pixel data on the Java heap, so the
+ * estimates count native and direct memory only.
+ */
+public class TJNioAdmission {
+
+    /** Tables, Huffman decoders, and other fixed-size state of a libjpeg decompressor */
+    static final long FIXED_WORKING_BYTES = 64 * 1024;
+
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final long budget;
+    private final TJScalingFactor minScalingFactor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Thread> queue = new ArrayDeque<Thread>();
+    private long reserved;
+    private long peakReserved;
+    private long admitted;
+    private long degraded;
+    private long waitNanos;
+
+    /**
+     * Create an admission controller.
+     *
+     * @param decompressors
+     *            pool from which decompressors are borrowed
+     *
+     * @param budget
+     *            memory budget (in bytes) shared by all decompressions
+     *
+     * @param minScalingFactor
+     *            smallest scaling factor that images are degraded to when they do not fit in the budget, or null to
+     *            wait instead of degrading
+     */
+    public TJNioAdmission(TJNioPool<TJNioDecompressor> decompressors, long budget, TJScalingFactor minScalingFactor) {
+        if (decompressors == null || budget <= 0)
+            throw new IllegalArgumentException("Invalid argument in TJNioAdmission()");
+        this.decompressors = decompressors;
+        this.budget = budget;
+        this.minScalingFactor = minScalingFactor;
+    }
+
+    /**
+     * Decompress an image at the scaled size closest to the given size, or smaller if the budget is tight and
+     * degrading is enabled, once the budget allows it. See {@link TJNioDecompressor#setSourceImage} and
+     * {@link TJNioDecompressor#decompress(int, int, int)} for a description of the parameters.
+     *
+     * @return a frame containing the decompressed image, which holds its share of the budget until it is released.
+     */
+    public TJNioFrame decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight,
+            int flags) throws TJException, InterruptedException {
+        if (jpegImage == null || pixelFormat == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        TJHeader header;
+        TJNioDecompressor decompressor = decompressors.borrow();
+        try {
+            header = decompressor.readHeader(jpegImage);
+        } finally {
+            decompressors.giveBack(decompressor);
+        }
+        TJScalingFactor[] factors = TJNioDecompressor.getScalingFactors();
+        TJScalingFactor requested = getScalingFactor(header, desiredWidth, desiredHeight, factors);
+        Grant grant = admit(header, isProgressive(jpegImage), requested, factors,
+                TJ.getPixelSize((int) pixelFormat.value()));
+        boolean done = false;
+        try {
+            decompressor = decompressors.borrow();
+            try {
+                decompressor.setSourceImage(jpegImage, pixelFormat);
+                decompressor.decompress(grant.scalingFactor, flags);
+                final long pixelBytes = grant.pixelBytes;
+                TJNioFrame frame = new TJNioFrame(decompressor.detachBuffer(),
+                        grant.scalingFactor.getScaled(header.getWidth()),
+                        grant.scalingFactor.getScaled(header.getHeight()), pixelFormat, decompressor.getBufferPool(),
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                release(pixelBytes);
+                            }
+                        });
+                done = true;
+                return frame;
+            } finally {
+                decompressors.giveBack(decompressor);
+            }
+        } finally {
+            release(done ? grant.workingBytes : grant.pixelBytes + grant.workingBytes);
+        }
+    }
+
+    /**
+     * Decompress an image at its full size, or smaller if the budget is tight and degrading is enabled, once the
+     * budget allows it.
+     *
+     * @return a frame containing the decompressed image, which holds its share of the budget until it is released.
+     */
+    public TJNioFrame decompress(ByteBuffer jpegImage, TJPF pixelFormat, int flags) throws TJException,
+            InterruptedException {
+        return decompress(jpegImage, pixelFormat, 0, 0, flags);
+    }
+
+    /**
+     * Estimate the memory that decompressing an image takes.
+     *
+     * @param header
+     *            the header of the image
+     *
+     * @param progressive
+     *            whether the image is progressive, so that libjpeg buffers the coefficients of the whole image
+     *
+     * @param scalingFactor
+     *            the scaling factor that the image is decompressed at
+     *
+     * @param pixelSize
+     *            the pixel size (in bytes) of the decompressed image
+     *
+     * @return the estimated memory (in bytes): the destination buffer, rounded up to its {@link TJBufferPool} size
+     *         class, at index 0, and libjpeg's working memory at index 1.
+     */
+    static long[] estimate(TJHeader header, boolean progressive, TJScalingFactor scalingFactor, int pixelSize) {
+        long width = scalingFactor.getScaled(header.getWidth());
+        long height = scalingFactor.getScaled(header.getHeight());
+        int mcuWidth = 8, mcuHeight = 8;
+        if (header.getSubsamp() == TJSAMP.TJSAMP_422 || header.getSubsamp() == TJSAMP.TJSAMP_420)
+            mcuWidth = 16;
+        else if (header.getSubsamp() == TJSAMP.TJSAMP_411)
+            mcuWidth = 32;
+        if (header.getSubsamp() == TJSAMP.TJSAMP_420 || header.getSubsamp() == TJSAMP.TJSAMP_440)
+            mcuHeight = 16;
+        int components = header.getSubsamp() == TJSAMP.TJSAMP_GRAY || header.getColorspace() == TJCS.TJCS_GRAY ? 1
+                : header.getColorspace() == TJCS.TJCS_CMYK || header.getColorspace() == TJCS.TJCS_YCCK ? 4 : 3;
+        // Each chrominance component has 1 / (mcuWidth * mcuHeight / 64) as many samples as the luminance
+        double samplesPerPixel = 1 + (components - 1) * 64.0 / (mcuWidth * mcuHeight);
+        // Two MCU rows of every component, for context and upsampling, at the output width
+        long working = FIXED_WORKING_BYTES + (long) (2 * mcuHeight * width * samplesPerPixel);
+        if (progressive) {
+            // 64 two-byte coefficients per 8x8 block, at the full size of the image
+            working += (long) (2.0 * header.getWidth() * header.getHeight() * samplesPerPixel);
+        }
+        // The destination buffer is leased from a TJBufferPool, which rounds it up to a size class
+        long pixels = width * height * pixelSize;
+        if (pixels <= TJBufferPool.MAX_BUFFER_SIZE)
+            pixels = TJBufferPool.getSizeClass((int) pixels);
+        return new long[] { pixels, working };
+    }
+
+    static TJScalingFactor getScalingFactor(TJHeader header, int desiredWidth, int desiredHeight,
+            TJScalingFactor[] factors) {
+        int width = header.getWidth(), height = header.getHeight();
+        if (desiredWidth == 0)
+            desiredWidth = width;
+        if (desiredHeight == 0)
+            desiredHeight = height;
+        // Factors are listed from largest to smallest
+        for (TJScalingFactor sf : factors) {
+            if (sf.getScaled(width) <= desiredWidth && sf.getScaled(height) <= desiredHeight)
+                return sf;
+        }
+        throw new IllegalArgumentException("Could not scale down to desired image dimensions");
+    }
+
+    /**
+     * Wait until an image can be decompressed within the budget, and reserve its memory.
+     */
+    Grant admit(TJHeader header, boolean progressive, TJScalingFactor requested, TJScalingFactor[] factors,
+            int pixelSize) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread self = Thread.currentThread();
+        lock.lockInterruptibly();
+        try {
+            queue.addLast(self);
+            try {
+                while (true) {
+                    if (queue.peekFirst() == self) {
+                        Grant grant = choose(header, progressive, requested, factors, pixelSize, budget - reserved);
+                        if (grant != null) {
+                            reserve(grant.pixelBytes + grant.workingBytes);
+                            admitted++;
+                            if (grant.scalingFactor != requested)
+                                degraded++;
+                            waitNanos += System.nanoTime() - start;
+                            return grant;
+                        }
+                    }
+                    changed.await();
+                }
+            } finally {
+                queue.remove(self);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Grant choose(TJHeader header, boolean progressive, TJScalingFactor requested, TJScalingFactor[] factors,
+            int pixelSize, long available) {
+        long[] bytes = estimate(header, progressive, requested, pixelSize);
+        if (bytes[0] + bytes[1] <= available || reserved == 0)
+            return new Grant(requested, bytes[0], bytes[1]);
+        if (minScalingFactor == null)
+            return null;
+        for (TJScalingFactor sf : factors) {
+            if (compare(sf, requested) >= 0 || compare(sf, minScalingFactor) < 0)
+                continue;
+            bytes = estimate(header, progressive, sf, pixelSize);
+            if (bytes[0] + bytes[1] <= available)
+                return new Grant(sf, bytes[0], bytes[1]);
+        }
+        return null;
+    }
+
+    private static int compare(TJScalingFactor a, TJScalingFactor b) {
+        return Long.compare((long) a.getNum() * b.getDenom(), (long) b.getNum() * a.getDenom());
+    }
+
+    private void reserve(long bytes) {
+        reserved += bytes;
+        peakReserved = Math.max(peakReserved, reserved);
+    }
+
+    void release(long bytes) {
+        lock.lock();
+        try {
+            reserved -= bytes;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether a JPEG image is progressive, by finding its start-of-frame marker.
+     *
+     * @return true if the image is progressive, or false if it is not or its markers could not be read.
+     */
+    static boolean isProgressive(ByteBuffer jpegImage) {
+        int limit = jpegImage.limit();
+        int pos = 2;
+        while (pos + 4 <= limit && (jpegImage.get(pos) & 0xff) == 0xff) {
+            int marker = jpegImage.get(pos + 1) & 0xff;
+            if (marker == 0xff) {
+                pos++;
+                continue;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc)
+                return marker == 0xc2 || marker == 0xc6 || marker == 0xca || marker == 0xce;
+            pos += 2 + (((jpegImage.get(pos + 2) & 0xff) << 8) | (jpegImage.get(pos + 3) & 0xff));
+        }
+        return false;
+    }
+
+    /**
+     * Returns the memory budget.
+     *
+     * @return the memory budget (in bytes).
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the memory that admitted decompressions and unreleased frames hold.
+     *
+     * @return the memory (in bytes) that admitted decompressions and unreleased frames hold.
+     */
+    public long getReservedBytes() {
+        lock.lock();
+        try {
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most memory that has been held at one time.
+     *
+     * @return the most memory (in bytes) that has been held at one time.
+     */
+    public long getPeakReservedBytes() {
+        lock.lock();
+        try {
+            return peakReserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of decompressions that are waiting to be admitted.
+     *
+     * @return the number of decompressions that are waiting to be admitted.
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of decompressions that have been admitted.
+     *
+     * @return the number of decompressions that have been admitted.
+     */
+    public long getAdmittedCount() {
+        lock.lock();
+        try {
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of decompressions that were admitted at a smaller scaling factor than requested.
+     *
+     * @return the number of decompressions that were admitted at a smaller scaling factor than requested.
+     */
+    public long getDegradedCount() {
+        lock.lock();
+        try {
+            return degraded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total time that decompressions have waited to be admitted.
+     *
+     * @param unit
+     *            the unit of the result
+     *
+     * @return the total time that decompressions have waited to be admitted.
+     */
+    public long getWaitTime(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static final class Grant {
+        final TJScalingFactor scalingFactor;
+        final long pixelBytes;
+        final long workingBytes;
+
+        Grant(TJScalingFactor scalingFactor, long pixelBytes, long workingBytes) {
+            this.scalingFactor = scalingFactor;
+            this.pixelBytes = pixelBytes;
+            this.workingBytes = workingBytes;
+        }
+    }
+}
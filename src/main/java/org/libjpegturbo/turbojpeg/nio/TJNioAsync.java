@@ -0,0 +1,753 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Asynchronous front end to the NIO codecs. Native compress and decompress calls are long, CPU-bound, and cannot be
+ * interrupted, so they are run on a dedicated, bounded pool of platform threads instead of on the caller's threads or
+ * the common <code>ForkJoinPool</code>. Each worker borrows its codec handles from a {@link TJNioPool}, so it keeps
+ * one handle of each kind.
+ * <p>
+ * Operations wait in a bounded queue until a worker is free. When the queue is full, the {@link Overload} policy
+ * decides whether the operation fails right away or the caller waits for space. The time that operations spend in the
+ * queue and the time that they take to run are recorded separately.
+ * <p>
+ * Work of different kinds, such as interactive requests and bulk jobs, can be kept apart in {@link Lane}s, each with
+ * its own queue and metrics. Whenever a worker finishes an image, it takes the next operation from the lanes by
+ * weighted fair scheduling: a lane of weight 8 is served eight times as often as a lane of weight 1 while both have
+ * operations waiting, and a lane that was idle does not build up credit. A heavily weighted lane therefore overtakes
+ * the queued work of the others between images, and no lane is starved. The operations that are submitted directly to
+ * this instance go to its {@link #getDefaultLane default lane}.
+ * <p>
+ * The returned futures are completed on the worker threads, so dependent stages that do more than a little work should
+ * be attached with the <code>*Async</code> methods of <code>CompletableFuture</code> and an executor of the caller's
+ * choosing. A future that is cancelled before its operation starts is skipped. The buffers that the futures complete
+ * with are leased from {@link TJBufferPool#getDefault} and should be given back to it once the caller is done with
+ * them.
+ */
+public class TJNioAsync implements Closeable {
+
+    /**
+     * What happens to an operation that is submitted while the queue is full
+     */
+    public enum Overload {
+        /**
+         * The returned future fails at once with a <code>RejectedExecutionException</code>
+         */
+        REJECT,
+        /**
+         * The submitting thread waits until there is space in the queue
+         */
+        BLOCK
+    }
+
+    /** The name of the default lane */
+    public static final String DEFAULT_LANE = "default";
+
+    /** Virtual time that a lane of weight 1 advances by per operation */
+    private static final long STRIDE = 1 << 20;
+
+    private final ThreadPoolExecutor executor;
+    private final Overload overload;
+    private final TJNioPool<TJNioCompressor> compressors;
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final boolean ownsPools;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Lane> lanes = new ArrayList<Lane>();
+    private final Lane defaultLane;
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            Task<?> task = next();
+            if (task != null)
+                task.run();
+        }
+    };
+    private long virtualTime;
+    private boolean closed;
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Create an asynchronous codec with its own codec pools.
+     *
+     * @param threads
+     *            number of worker threads
+     *
+     * @param queueCapacity
+     *            number of operations that can wait for a worker in the default lane
+     *
+     * @param overload
+     *            what happens to operations that are submitted while the queue of their lane is full
+     */
+    public TJNioAsync(int threads, int queueCapacity, Overload overload) {
+        this(threads, queueCapacity, overload, TJNioPool.newCompressorPool(0, 0),
+                TJNioPool.newDecompressorPool(0, 0), true);
+    }
+
+    /**
+     * Create an asynchronous codec that borrows its codecs from the given pools, which are not closed by
+     * {@link #close}.
+     *
+     * @param threads
+     *            number of worker threads
+     *
+     * @param queueCapacity
+     *            number of operations that can wait for a worker in the default lane
+     *
+     * @param overload
+     *            what happens to operations that are submitted while the queue of their lane is full
+     *
+     * @param compressors
+     *            pool from which the workers borrow compressors
+     *
+     * @param decompressors
+     *            pool from which the workers borrow decompressors
+     */
+    public TJNioAsync(int threads, int queueCapacity, Overload overload, TJNioPool<TJNioCompressor> compressors,
+            TJNioPool<TJNioDecompressor> decompressors) {
+        this(threads, queueCapacity, overload, compressors, decompressors, false);
+    }
+
+    TJNioAsync(int threads, int queueCapacity, Overload overload, TJNioPool<TJNioCompressor> compressors,
+            TJNioPool<TJNioDecompressor> decompressors, boolean ownsPools) {
+        if (threads < 1 || queueCapacity < 1 || overload == null || compressors == null || decompressors == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioAsync()");
+        this.overload = overload;
+        this.compressors = compressors;
+        this.decompressors = decompressors;
+        this.ownsPools = ownsPools;
+        // The lanes bound the number of waiting operations; the executor queues one dispatch per operation
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerFactory()) {
+            // The operations queued before close() still borrow codecs, so the pools are closed once they are done
+            @Override
+            protected void terminated() {
+                if (ownsPools) {
+                    compressors.close();
+                    decompressors.close();
+                }
+            }
+        };
+        this.executor.prestartAllCoreThreads();
+        this.defaultLane = addLane(DEFAULT_LANE, 1, queueCapacity);
+    }
+
+    /**
+     * Add a lane.
+     *
+     * @param name
+     *            name of the lane, unique within this instance
+     *
+     * @param weight
+     *            share of the workers' time that the lane gets relative to the other lanes while they all have
+     *            operations waiting, between 1 and 1048576 (2<sup>20</sup>)
+     *
+     * @param queueCapacity
+     *            number of operations that can wait for a worker in the lane
+     *
+     * @return the new lane.
+     */
+    public Lane addLane(String name, int weight, int queueCapacity) {
+        if (name == null || weight < 1 || weight > STRIDE || queueCapacity < 1)
+            throw new IllegalArgumentException("Invalid argument in addLane()");
+        lock.lock();
+        try {
+            if (getLane(name) != null)
+                throw new IllegalArgumentException("Lane " + name + " already exists");
+            Lane lane = new Lane(name, weight, queueCapacity);
+            lanes.add(lane);
+            return lane;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lane with the given name.
+     *
+     * @return the lane with the given name, or null if there is none.
+     */
+    public Lane getLane(String name) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (lane.name.equals(name))
+                    return lane;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lane that the operations submitted directly to this instance go to.
+     *
+     * @return the lane that the operations submitted directly to this instance go to.
+     */
+    public Lane getDefaultLane() {
+        return defaultLane;
+    }
+
+    /**
+     * Compress an image on a worker thread. See {@link TJNioCompressor#setSourceImage} for a description of the
+     * parameters.
+     *
+     * @return a future that completes with a buffer containing the JPEG image, from position 0 to its limit.
+     */
+    public CompletableFuture<ByteBuffer> compress(ByteBuffer srcImage, int width, int pitch, int height,
+            TJPF pixelFormat, TJSAMP subsamp, int quality, int flags) {
+        return defaultLane.compress(srcImage, width, pitch, height, pixelFormat, subsamp, quality, flags);
+    }
+
+    /**
+     * Decompress an image on a worker thread, at the scaled size closest to the given size. See
+     * {@link TJNioDecompressor#setSourceImage} and {@link TJNioDecompressor#decompress(int, int, int)} for a
+     * description of the parameters.
+     *
+     * @return a future that completes with a buffer containing the decompressed image, from position 0 to its limit.
+     */
+    public CompletableFuture<ByteBuffer> decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth,
+            int desiredHeight, int flags) {
+        return defaultLane.decompress(jpegImage, pixelFormat, desiredWidth, desiredHeight, flags);
+    }
+
+    /**
+     * Decompress an image at its full size on a worker thread.
+     *
+     * @return a future that completes with a buffer containing the decompressed image, from position 0 to its limit.
+     */
+    public CompletableFuture<ByteBuffer> decompress(ByteBuffer jpegImage, TJPF pixelFormat, int flags) {
+        return decompress(jpegImage, pixelFormat, 0, 0, flags);
+    }
+
+    Callable<ByteBuffer> compressTask(final ByteBuffer srcImage, final int width, final int pitch, final int height,
+            final TJPF pixelFormat, final TJSAMP subsamp, final int quality, final int flags) {
+        return new LeasingTask() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                TJNioCompressor compressor = compressors.borrow();
+                try {
+                    compressor.setSourceImage(srcImage, width, pitch, height, pixelFormat, subsamp);
+                    compressor.setJPEGQuality(quality);
+                    compressor.compress(flags);
+                    bufferPool = compressor.getBufferPool();
+                    return compressor.detachBuffer();
+                } finally {
+                    compressors.giveBack(compressor);
+                }
+            }
+        };
+    }
+
+    Callable<ByteBuffer> decompressTask(final ByteBuffer jpegImage, final TJPF pixelFormat, final int desiredWidth,
+            final int desiredHeight, final int flags) {
+        return new LeasingTask() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                TJNioDecompressor decompressor = decompressors.borrow();
+                try {
+                    decompressor.setSourceImage(jpegImage, pixelFormat);
+                    decompressor.decompress(desiredWidth, desiredHeight, flags);
+                    bufferPool = decompressor.getBufferPool();
+                    return decompressor.detachBuffer();
+                } finally {
+                    decompressors.giveBack(decompressor);
+                }
+            }
+        };
+    }
+
+    <T> CompletableFuture<T> submit(Callable<T> operation) {
+        return defaultLane.submit(operation);
+    }
+
+    private <T> CompletableFuture<T> submit(Lane lane, Callable<T> operation) {
+        Task<T> task = new Task<T>(lane, operation);
+        lock.lock();
+        try {
+            while (true) {
+                if (closed)
+                    return task.reject(new RejectedExecutionException("This instance has been closed"));
+                if (lane.tasks.size() < lane.capacity)
+                    break;
+                if (overload == Overload.REJECT)
+                    return task.reject(new RejectedExecutionException("The queue of lane " + lane.name + " is full"));
+                try {
+                    lane.notFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return task.reject(new RejectedExecutionException(
+                            "Interrupted while waiting for space in the queue", e));
+                }
+            }
+            // A lane that was idle starts from the current virtual time instead of catching up on the time it missed
+            if (lane.tasks.isEmpty())
+                lane.pass = Math.max(lane.pass, virtualTime);
+            lane.tasks.addLast(task);
+            executor.execute(dispatcher);
+            return task.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next operation from the lane with the lowest virtual time, and advance that lane's virtual time in
+     * inverse proportion to its weight.
+     */
+    private Task<?> next() {
+        lock.lock();
+        try {
+            Lane next = null;
+            for (Lane lane : lanes) {
+                if (!lane.tasks.isEmpty() && (next == null || lane.pass < next.pass))
+                    next = lane;
+            }
+            if (next == null)
+                return null;
+            virtualTime = next.pass;
+            next.pass += STRIDE / next.weight;
+            next.notFull.signal();
+            return next.tasks.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of operations that are waiting for a worker in all lanes.
+     *
+     * @return the number of operations that are waiting for a worker in all lanes.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            int depth = 0;
+            for (Lane lane : lanes)
+                depth += lane.tasks.size();
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of operations that have completed successfully.
+     *
+     * @return the number of operations that have completed successfully.
+     */
+    public long getCompletedCount() {
+        return metrics.completed.sum();
+    }
+
+    /**
+     * Returns the number of operations that have failed while running.
+     *
+     * @return the number of operations that have failed while running.
+     */
+    public long getFailedCount() {
+        return metrics.failed.sum();
+    }
+
+    /**
+     * Returns the number of operations that were rejected because the queue was full or this instance was closed.
+     *
+     * @return the number of operations that were rejected because the queue was full or this instance was closed.
+     */
+    public long getRejectedCount() {
+        return metrics.rejected.sum();
+    }
+
+    /**
+     * Returns the number of operations that were skipped because their future had been cancelled.
+     *
+     * @return the number of operations that were skipped because their future had been cancelled.
+     */
+    public long getSkippedCount() {
+        return metrics.skipped.sum();
+    }
+
+    /**
+     * Returns the total time that operations have spent waiting for a worker.
+     *
+     * @return the total time (in nanoseconds) that operations have spent waiting for a worker.
+     */
+    public long getQueueNanos() {
+        return metrics.queueNanos.sum();
+    }
+
+    /**
+     * Returns the longest time that an operation has spent waiting for a worker.
+     *
+     * @return the longest time (in nanoseconds) that an operation has spent waiting for a worker.
+     */
+    public long getMaxQueueNanos() {
+        return metrics.maxQueueNanos.get();
+    }
+
+    /**
+     * Returns the total time that workers have spent running operations.
+     *
+     * @return the total time (in nanoseconds) that workers have spent running operations.
+     */
+    public long getExecutionNanos() {
+        return metrics.executionNanos.sum();
+    }
+
+    /**
+     * Returns the longest time that a worker has spent running an operation.
+     *
+     * @return the longest time (in nanoseconds) that a worker has spent running an operation.
+     */
+    public long getMaxExecutionNanos() {
+        return metrics.maxExecutionNanos.get();
+    }
+
+    /**
+     * Stop accepting operations and let the queued ones finish. The codec pools, if they were created by this instance,
+     * are closed once the last operation has finished.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Lane lane : lanes)
+                lane.notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Wait until the operations that were queued before {@link #close} have finished.
+     *
+     * @param timeout
+     *            the longest time to wait
+     *
+     * @param unit
+     *            the unit of <code>timeout</code>
+     *
+     * @return true if all operations have finished, or false if the timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * A queue of operations with its own share of the workers and its own metrics. Lanes are created with
+     * {@link TJNioAsync#addLane}.
+     */
+    public final class Lane {
+        private final String name;
+        private final int weight;
+        private final int capacity;
+        private final ArrayDeque<Task<?>> tasks = new ArrayDeque<Task<?>>();
+        private final Condition notFull = lock.newCondition();
+        private final Metrics metrics = new Metrics();
+        private long pass;
+
+        private Lane(String name, int weight, int capacity) {
+            this.name = name;
+            this.weight = weight;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Compress an image on a worker thread, with the priority of this lane. See
+         * {@link TJNioAsync#compress(ByteBuffer, int, int, int, TJPF, TJSAMP, int, int)}.
+         *
+         * @return a future that completes with a buffer containing the JPEG image, from position 0 to its limit.
+         */
+        public CompletableFuture<ByteBuffer> compress(ByteBuffer srcImage, int width, int pitch, int height,
+                TJPF pixelFormat, TJSAMP subsamp, int quality, int flags) {
+            return submit(compressTask(srcImage, width, pitch, height, pixelFormat, subsamp, quality, flags));
+        }
+
+        /**
+         * Decompress an image on a worker thread, with the priority of this lane. See
+         * {@link TJNioAsync#decompress(ByteBuffer, TJPF, int, int, int)}.
+         *
+         * @return a future that completes with a buffer containing the decompressed image, from position 0 to its
+         *         limit.
+         */
+        public CompletableFuture<ByteBuffer> decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth,
+                int desiredHeight, int flags) {
+            return submit(decompressTask(jpegImage, pixelFormat, desiredWidth, desiredHeight, flags));
+        }
+
+        /**
+         * Decompress an image at its full size on a worker thread, with the priority of this lane.
+         *
+         * @return a future that completes with a buffer containing the decompressed image, from position 0 to its
+         *         limit.
+         */
+        public CompletableFuture<ByteBuffer> decompress(ByteBuffer jpegImage, TJPF pixelFormat, int flags) {
+            return decompress(jpegImage, pixelFormat, 0, 0, flags);
+        }
+
+        <T> CompletableFuture<T> submit(Callable<T> operation) {
+            return TJNioAsync.this.submit(this, operation);
+        }
+
+        /**
+         * Returns the name of this lane.
+         *
+         * @return the name of this lane.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the weight of this lane.
+         *
+         * @return the weight of this lane.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Returns the number of operations that can wait for a worker in this lane.
+         *
+         * @return the number of operations that can wait for a worker in this lane.
+         */
+        public int getQueueCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns the number of operations that are waiting for a worker in this lane.
+         *
+         * @return the number of operations that are waiting for a worker in this lane.
+         */
+        public int getQueueDepth() {
+            lock.lock();
+            try {
+                return tasks.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns the number of operations in this lane that have completed successfully.
+         *
+         * @return the number of operations in this lane that have completed successfully.
+         */
+        public long getCompletedCount() {
+            return metrics.completed.sum();
+        }
+
+        /**
+         * Returns the number of operations in this lane that have failed while running.
+         *
+         * @return the number of operations in this lane that have failed while running.
+         */
+        public long getFailedCount() {
+            return metrics.failed.sum();
+        }
+
+        /**
+         * Returns the number of operations in this lane that were rejected.
+         *
+         * @return the number of operations in this lane that were rejected.
+         */
+        public long getRejectedCount() {
+            return metrics.rejected.sum();
+        }
+
+        /**
+         * Returns the number of operations in this lane that were skipped because their future had been cancelled.
+         *
+         * @return the number of operations in this lane that were skipped because their future had been cancelled.
+         */
+        public long getSkippedCount() {
+            return metrics.skipped.sum();
+        }
+
+        /**
+         * Returns the total time that operations in this lane have spent waiting for a worker.
+         *
+         * @return the total time (in nanoseconds) that operations in this lane have spent waiting for a worker.
+         */
+        public long getQueueNanos() {
+            return metrics.queueNanos.sum();
+        }
+
+        /**
+         * Returns the longest time that an operation in this lane has spent waiting for a worker.
+         *
+         * @return the longest time (in nanoseconds) that an operation in this lane has spent waiting for a worker.
+         */
+        public long getMaxQueueNanos() {
+            return metrics.maxQueueNanos.get();
+        }
+
+        /**
+         * Returns the total time that workers have spent running operations in this lane.
+         *
+         * @return the total time (in nanoseconds) that workers have spent running operations in this lane.
+         */
+        public long getExecutionNanos() {
+            return metrics.executionNanos.sum();
+        }
+
+        /**
+         * Returns the longest time that a worker has spent running an operation in this lane.
+         *
+         * @return the longest time (in nanoseconds) that a worker has spent running an operation in this lane.
+         */
+        public long getMaxExecutionNanos() {
+            return metrics.maxExecutionNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Lane[" + name + ", weight " + weight + "]";
+        }
+    }
+
+    private final class Task<T> implements Runnable {
+        private final Lane lane;
+        private final Callable<T> operation;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private final long submitted = System.nanoTime();
+
+        Task(Lane lane, Callable<T> operation) {
+            this.lane = lane;
+            this.operation = operation;
+        }
+
+        CompletableFuture<T> reject(RejectedExecutionException e) {
+            metrics.rejected.increment();
+            lane.metrics.rejected.increment();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            metrics.recordQueue(start - submitted);
+            lane.metrics.recordQueue(start - submitted);
+            if (future.isDone()) {
+                metrics.skipped.increment();
+                lane.metrics.skipped.increment();
+                return;
+            }
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = operation.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            long nanos = System.nanoTime() - start;
+            metrics.recordExecution(nanos, failure == null);
+            lane.metrics.recordExecution(nanos, failure == null);
+            if (failure != null)
+                future.completeExceptionally(failure);
+            else if (!future.complete(result) && result != null && operation instanceof LeasingTask)
+                // The future was cancelled while the operation ran, so nobody will give the buffer back
+                ((LeasingTask) operation).bufferPool.release((ByteBuffer) result);
+        }
+    }
+
+    /**
+     * An operation whose result is a buffer leased from <code>bufferPool</code>, which the operation sets before it
+     * returns the buffer.
+     */
+    abstract static class LeasingTask implements Callable<ByteBuffer> {
+        TJBufferPool bufferPool;
+    }
+
+    private static final class Metrics {
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final LongAdder executionNanos = new LongAdder();
+        final AtomicLong maxQueueNanos = new AtomicLong();
+        final AtomicLong maxExecutionNanos = new AtomicLong();
+
+        void recordQueue(long nanos) {
+            record(queueNanos, maxQueueNanos, nanos);
+        }
+
+        void recordExecution(long nanos, boolean succeeded) {
+            record(executionNanos, maxExecutionNanos, nanos);
+            (succeeded ? completed : failed).increment();
+        }
+
+        private static void record(LongAdder total, AtomicLong max, long nanos) {
+            total.add(nanos);
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos))
+                current = max.get();
+        }
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TurboJPEG async worker " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+/**
+ * The binding through which the NIO classes call TurboJPEG. The backend is chosen once, when the NIO classes are first
+ * used: {@link #BRIDJ} by default, or {@link #FFM} if the system property
+ * <code>org.libjpegturbo.turbojpeg.backend</code> is <code>ffm</code> and the runtime supports it. The FFM backend
+ * is experimental and stays opt-in until it is built and tested on Java 22. Either way, the NIO classes take direct
+ * {@link java.nio.ByteBuffer}s; memory segments are passed to them as buffer views (see
+ * <code>TJNioSegments</code>.)
+ */
+public enum TJNioBackend {
+
+    /**
+     * BridJ dynamic calls, available on every supported Java version
+     */
+    BRIDJ,
+
+    /**
+     * <code>java.lang.foreign</code> downcall handles, available on Java 22 and later
+     */
+    FFM;
+
+    /**
+     * Returns the backend in use.
+     *
+     * @return the backend in use.
+     */
+    public static TJNioBackend current() {
+        return TurbojpegNatives.NATIVES.backend();
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Compresses or decompresses a batch of images on a pool of worker threads. Each worker borrows its codec handle from
+ * a {@link TJNioPool}, and because a thread that gives a handle back finds it again in its private slot, every worker
+ * ends up using one native handle of each kind for the lifetime of the batch instance.
+ * <p>
+ * The results of a batch are in the order of its jobs. A job that fails does not affect the others; its result holds
+ * the exception instead of a buffer. The buffers of successful results are leased from the codecs'
+ * {@link TJBufferPool} and must be given back with {@link Result#release} once the caller is done with them.
+ */
+public class TJNioBatch implements Closeable {
+
+    private final ExecutorService executor;
+    private final TJNioPool<TJNioCompressor> compressors;
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final boolean owned;
+
+    /**
+     * Create a batch processor with its own worker threads and codec pools, which are shut down by {@link #close}.
+     *
+     * @param threads
+     *            number of worker threads
+     */
+    public TJNioBatch(int threads) {
+        this(threads, TJNioPool.newCompressorPool(0, 0), TJNioPool.newDecompressorPool(0, 0));
+    }
+
+    TJNioBatch(int threads, final TJNioPool<TJNioCompressor> compressors,
+            final TJNioPool<TJNioDecompressor> decompressors) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid argument in TJNioBatch()");
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerFactory()) {
+            // The jobs still running at close() borrow codecs, so the pools are closed once they are done
+            @Override
+            protected void terminated() {
+                compressors.close();
+                decompressors.close();
+            }
+        };
+        this.compressors = compressors;
+        this.decompressors = decompressors;
+        this.owned = true;
+    }
+
+    /**
+     * Create a batch processor that runs on the given executor and borrows its codecs from the given pools, none of
+     * which are shut down by {@link #close}.
+     *
+     * @param executor
+     *            executor that runs the jobs
+     *
+     * @param compressors
+     *            pool from which the workers borrow compressors
+     *
+     * @param decompressors
+     *            pool from which the workers borrow decompressors
+     */
+    public TJNioBatch(ExecutorService executor, TJNioPool<TJNioCompressor> compressors,
+            TJNioPool<TJNioDecompressor> decompressors) {
+        if (executor == null || compressors == null || decompressors == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioBatch()");
+        this.executor = executor;
+        this.compressors = compressors;
+        this.decompressors = decompressors;
+        this.owned = false;
+    }
+
+    /**
+     * Compress a batch of images and wait for all of them.
+     *
+     * @param jobs
+     *            the images to compress
+     *
+     * @return one result per job, in the order of the jobs. The buffer of a successful result contains the JPEG
+     *         image, from position 0 to its limit.
+     */
+    public List<Result> compressAll(List<CompressJob> jobs) throws InterruptedException {
+        if (jobs == null)
+            throw new IllegalArgumentException("Invalid argument in compressAll()");
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(jobs.size());
+        for (final CompressJob job : jobs) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return compress(job);
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    /**
+     * Decompress a batch of images and wait for all of them.
+     *
+     * @param jobs
+     *            the images to decompress
+     *
+     * @return one result per job, in the order of the jobs. The buffer of a successful result contains the
+     *         decompressed image, from position 0 to its limit.
+     */
+    public List<Result> decompressAll(List<DecompressJob> jobs) throws InterruptedException {
+        if (jobs == null)
+            throw new IllegalArgumentException("Invalid argument in decompressAll()");
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(jobs.size());
+        for (final DecompressJob job : jobs) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return decompress(job);
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    private Result compress(CompressJob job) {
+        if (job == null)
+            return new Result(new IllegalArgumentException("Invalid argument in compressAll()"));
+        try {
+            TJNioCompressor compressor = compressors.borrow();
+            try {
+                compressor.setSourceImage(job.srcImage, job.width, job.pitch, job.height, job.pixelFormat,
+                        job.subsamp);
+                compressor.setJPEGQuality(job.quality);
+                compressor.compress(job.flags);
+                return new Result(compressor.detachBuffer(), job.width, job.height, compressor.getBufferPool());
+            } finally {
+                compressors.giveBack(compressor);
+            }
+        } catch (TJException | RuntimeException e) {
+            return new Result(e);
+        }
+    }
+
+    private Result decompress(DecompressJob job) {
+        if (job == null)
+            return new Result(new IllegalArgumentException("Invalid argument in decompressAll()"));
+        try {
+            TJNioDecompressor decompressor = decompressors.borrow();
+            try {
+                decompressor.setSourceImage(job.jpegImage, job.pixelFormat);
+                int width = decompressor.getScaledWidth(job.desiredWidth, job.desiredHeight);
+                int height = decompressor.getScaledHeight(job.desiredWidth, job.desiredHeight);
+                decompressor.decompress(job.desiredWidth, job.desiredHeight, job.flags);
+                return new Result(decompressor.detachBuffer(), width, height, decompressor.getBufferPool());
+            } finally {
+                decompressors.giveBack(decompressor);
+            }
+        } catch (TJException | RuntimeException e) {
+            return new Result(e);
+        }
+    }
+
+    private List<Result> invokeAll(List<Callable<Result>> tasks) throws InterruptedException {
+        List<Future<Result>> futures = executor.invokeAll(tasks);
+        List<Result> results = new ArrayList<Result>(futures.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                results.add(new Result(e.getCause() instanceof Exception ? (Exception) e.getCause() : e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Shut down the worker threads, if they were created by this instance. The codec pools created by this instance
+     * are closed once the jobs that are still running have finished.
+     */
+    @Override
+    public void close() {
+        if (owned)
+            executor.shutdown();
+    }
+
+    /**
+     * An uncompressed image to compress. See {@link TJNioCompressor#setSourceImage} for a description of the
+     * parameters.
+     */
+    public static final class CompressJob {
+        final ByteBuffer srcImage;
+        final int width;
+        final int pitch;
+        final int height;
+        final TJPF pixelFormat;
+        final TJSAMP subsamp;
+        final int quality;
+        final int flags;
+
+        /**
+         * Create a job that compresses an image at the given JPEG quality level.
+         */
+        public CompressJob(ByteBuffer srcImage, int width, int pitch, int height, TJPF pixelFormat, TJSAMP subsamp,
+                int quality, int flags) {
+            this.srcImage = srcImage;
+            this.width = width;
+            this.pitch = pitch;
+            this.height = height;
+            this.pixelFormat = pixelFormat;
+            this.subsamp = subsamp;
+            this.quality = quality;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * A JPEG image to decompress. See {@link TJNioDecompressor#setSourceImage} and
+     * {@link TJNioDecompressor#decompress(int, int, int)} for a description of the parameters.
+     */
+    public static final class DecompressJob {
+        final ByteBuffer jpegImage;
+        final TJPF pixelFormat;
+        final int desiredWidth;
+        final int desiredHeight;
+        final int flags;
+
+        /**
+         * Create a job that decompresses an image to the scaled size closest to the given size.
+         */
+        public DecompressJob(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight, int flags) {
+            this.jpegImage = jpegImage;
+            this.pixelFormat = pixelFormat;
+            this.desiredWidth = desiredWidth;
+            this.desiredHeight = desiredHeight;
+            this.flags = flags;
+        }
+
+        /**
+         * Create a job that decompresses an image at its full size.
+         */
+        public DecompressJob(ByteBuffer jpegImage, TJPF pixelFormat, int flags) {
+            this(jpegImage, pixelFormat, 0, 0, flags);
+        }
+    }
+
+    /**
+     * The outcome of one job: either a buffer or the exception that the job failed with.
+     */
+    public static final class Result {
+        private ByteBuffer buffer;
+        private final int width;
+        private final int height;
+        private final TJBufferPool bufferPool;
+        private final Exception failure;
+
+        Result(ByteBuffer buffer, int width, int height, TJBufferPool bufferPool) {
+            this.buffer = buffer;
+            this.width = width;
+            this.height = height;
+            this.bufferPool = bufferPool;
+            this.failure = null;
+        }
+
+        Result(Exception failure) {
+            this.buffer = null;
+            this.width = 0;
+            this.height = 0;
+            this.bufferPool = null;
+            this.failure = failure;
+        }
+
+        /**
+         * Returns whether the job succeeded.
+         *
+         * @return true if the job succeeded, or false if it failed.
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * Returns the compressed or decompressed image.
+         *
+         * @return the compressed or decompressed image, or null if the job failed or the buffer has been released.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the width of the image.
+         *
+         * @return the width (in pixels) of the image, or 0 if the job failed.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the height of the image.
+         *
+         * @return the height (in pixels) of the image, or 0 if the job failed.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the exception that the job failed with.
+         *
+         * @return the exception that the job failed with, or null if it succeeded.
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * Give the buffer back to the pool that it was leased from. Calling this more than once, or on a failed
+         * result, has no effect.
+         */
+        public void release() {
+            if (buffer != null) {
+                ByteBuffer buf = buffer;
+                buffer = null;
+                bufferPool.release(buf);
+            }
+        }
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TurboJPEG batch worker " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
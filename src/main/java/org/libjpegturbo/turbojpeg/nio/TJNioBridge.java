@@ -0,0 +1,239 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Blocking codec calls that are safe to make from virtual threads. A virtual thread that calls into native code stays
+ * mounted on its carrier thread until the call returns, so a few large images can occupy every carrier and stall all
+ * other virtual threads. This bridge hands the codec calls of virtual threads to the platform threads of a
+ * {@link TJNioAsync}, the "native carriers", and parks the virtual thread until the result is ready, which frees its
+ * carrier in the meantime. Calls from platform threads run on the calling thread, as they would without the bridge.
+ * <p>
+ * Virtual threads are recognized with <code>Thread.isVirtual()</code>, which is looked up at run time, so this class
+ * works (and never offloads in {@link Mode#AUTO}) on Java versions that have no virtual threads. The buffers that are
+ * returned are leased from the codecs' {@link TJBufferPool} and must be given back to it once the caller is done with
+ * them.
+ */
+public class TJNioBridge implements Closeable {
+
+    /**
+     * Which calls are run on the native carriers
+     */
+    public enum Mode {
+        /**
+         * Calls from virtual threads
+         */
+        AUTO,
+        /**
+         * All calls
+         */
+        ALWAYS,
+        /**
+         * No calls, which is the same as not using the bridge
+         */
+        NEVER
+    }
+
+    private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
+    private final TJNioAsync carriers;
+    private final Mode mode;
+    private final boolean ownsCarriers;
+
+    /**
+     * Create a bridge with its own native carriers, which offloads the calls of virtual threads.
+     *
+     * @param carrierThreads
+     *            number of native carrier threads. Calls wait in a queue of 64 calls per thread, and callers wait
+     *            for space in the queue when it is full.
+     */
+    public TJNioBridge(int carrierThreads) {
+        this(new TJNioAsync(carrierThreads, carrierThreads * 64, TJNioAsync.Overload.BLOCK), Mode.AUTO, true);
+    }
+
+    /**
+     * Create a bridge that runs calls on the given native carriers, which are not closed by {@link #close}.
+     *
+     * @param carriers
+     *            the native carriers
+     *
+     * @param mode
+     *            which calls are run on the native carriers
+     */
+    public TJNioBridge(TJNioAsync carriers, Mode mode) {
+        this(carriers, mode, false);
+    }
+
+    private TJNioBridge(TJNioAsync carriers, Mode mode, boolean ownsCarriers) {
+        if (carriers == null || mode == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioBridge()");
+        this.carriers = carriers;
+        this.mode = mode;
+        this.ownsCarriers = ownsCarriers;
+    }
+
+    /**
+     * Returns whether a thread is a virtual thread.
+     *
+     * @param thread
+     *            the thread
+     *
+     * @return true if <code>thread</code> is a virtual thread, or false if it is a platform thread or the Java version
+     *         has no virtual threads.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null)
+            return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compress an image and wait for the result. See {@link TJNioCompressor#setSourceImage} for a description of the
+     * parameters.
+     *
+     * @return a buffer containing the JPEG image, from position 0 to its limit.
+     */
+    public ByteBuffer compress(ByteBuffer srcImage, int width, int pitch, int height, TJPF pixelFormat,
+            TJSAMP subsamp, int quality, int flags) throws TJException {
+        return call(carriers.compressTask(srcImage, width, pitch, height, pixelFormat, subsamp, quality, flags));
+    }
+
+    /**
+     * Decompress an image at the scaled size closest to the given size and wait for the result. See
+     * {@link TJNioDecompressor#setSourceImage} and {@link TJNioDecompressor#decompress(int, int, int)} for a
+     * description of the parameters.
+     *
+     * @return a buffer containing the decompressed image, from position 0 to its limit.
+     */
+    public ByteBuffer decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight,
+            int flags) throws TJException {
+        return call(carriers.decompressTask(jpegImage, pixelFormat, desiredWidth, desiredHeight, flags));
+    }
+
+    /**
+     * Decompress an image at its full size and wait for the result.
+     *
+     * @return a buffer containing the decompressed image, from position 0 to its limit.
+     */
+    public ByteBuffer decompress(ByteBuffer jpegImage, TJPF pixelFormat, int flags) throws TJException {
+        return decompress(jpegImage, pixelFormat, 0, 0, flags);
+    }
+
+    /**
+     * Returns which calls are run on the native carriers.
+     *
+     * @return which calls are run on the native carriers.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns whether a call from the current thread would be run on the native carriers.
+     *
+     * @return true if a call from the current thread would be run on the native carriers.
+     */
+    public boolean isOffloaded() {
+        return mode == Mode.ALWAYS || (mode == Mode.AUTO && isVirtual(Thread.currentThread()));
+    }
+
+    <T> T call(Callable<T> operation) throws TJException {
+        try {
+            if (!isOffloaded())
+                return operation.call();
+            CompletableFuture<T> future = carriers.submit(operation);
+            // The native call cannot be interrupted, and giving up on it would lose its buffer, so wait it out
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return future.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static TJException rethrow(Throwable e) throws TJException {
+        if (e instanceof TJException)
+            throw (TJException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new TJException(e);
+    }
+
+    /**
+     * Close the native carriers, if they were created by this instance.
+     */
+    @Override
+    public void close() {
+        if (ownsCarriers)
+            carriers.close();
+    }
+
+    private static MethodHandle lookupIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
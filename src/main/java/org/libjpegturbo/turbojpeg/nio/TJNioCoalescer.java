@@ -0,0 +1,327 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Single-flight front end to the NIO codecs. Concurrent requests for the same operation on the same JPEG image share
+ * one computation: the first request runs it, and the requests that arrive while it is running wait for it and get
+ * the same result. Requests are matched by a 128-bit hash of the JPEG image together with the parameters of the
+ * operation, so callers do not need to agree on a name for the image.
+ * <p>
+ * Results are {@link TJNioSharedBuffer}s, of which every request owns one reference that it must release. Nothing is
+ * kept once a computation has finished; a request that arrives after that starts a new one.
+ */
+public class TJNioCoalescer {
+
+    private static final int DECOMPRESS = 1;
+    private static final int RESCALE = 2;
+    private static final int DECOMPRESS_TO_YUV = 3;
+
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final TJNioPool<TJNioCompressor> compressors;
+    private final ConcurrentHashMap<ContentKey, Flight> inFlight = new ConcurrentHashMap<ContentKey, Flight>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Create a coalescer.
+     *
+     * @param decompressors
+     *            pool from which decompressors are borrowed
+     *
+     * @param compressors
+     *            pool from which compressors are borrowed
+     */
+    public TJNioCoalescer(TJNioPool<TJNioDecompressor> decompressors, TJNioPool<TJNioCompressor> compressors) {
+        if (decompressors == null || compressors == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioCoalescer()");
+        this.decompressors = decompressors;
+        this.compressors = compressors;
+    }
+
+    /**
+     * Decompress an image at the scaled size closest to the given size, or wait for an identical decompression that
+     * is already running. See {@link TJNioDecompressor#setSourceImage} and
+     * {@link TJNioDecompressor#decompress(int, int, int)} for a description of the parameters.
+     *
+     * @return the decompressed image, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight,
+            int flags) throws TJException {
+        if (jpegImage == null || pixelFormat == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        return decompress(decompressKey(jpegImage, pixelFormat, desiredWidth, desiredHeight, flags), jpegImage,
+                pixelFormat, desiredWidth, desiredHeight, flags);
+    }
+
+    static ContentKey decompressKey(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight,
+            int flags) {
+        return new ContentKey(whole(jpegImage), DECOMPRESS, (int) pixelFormat.value(), desiredWidth, desiredHeight,
+                flags);
+    }
+
+    TJNioSharedBuffer decompress(ContentKey key, final ByteBuffer jpegImage, final TJPF pixelFormat,
+            final int desiredWidth, final int desiredHeight, final int flags) throws TJException {
+        return execute(key, new Callable<TJNioSharedBuffer>() {
+            @Override
+            public TJNioSharedBuffer call() throws Exception {
+                TJNioDecompressor decompressor = decompressors.borrow();
+                try {
+                    decompressor.setSourceImage(jpegImage, pixelFormat);
+                    int width = decompressor.getScaledWidth(desiredWidth, desiredHeight);
+                    int height = decompressor.getScaledHeight(desiredWidth, desiredHeight);
+                    decompressor.decompress(desiredWidth, desiredHeight, flags);
+                    return new TJNioSharedBuffer(decompressor.detachBuffer(), width, height, pixelFormat,
+                            decompressor.getBufferPool());
+                } finally {
+                    decompressors.giveBack(decompressor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decompress an image into a YUV planar image, scaled to the largest size that fits within the desired dimensions,
+     * or wait for an identical decompression that is already running. The planes are unpadded and use the level of
+     * chrominance subsampling of the JPEG image. See {@link TJNioDecompressor#decompressToYUV(int, int, int, int)}
+     * for a description of the parameters.
+     *
+     * @return the YUV planar image, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer decompressToYUV(ByteBuffer jpegImage, int desiredWidth, int desiredHeight, int flags)
+            throws TJException {
+        if (jpegImage == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompressToYUV()");
+        return decompressToYUV(decompressToYUVKey(jpegImage, desiredWidth, desiredHeight, flags), jpegImage,
+                desiredWidth, desiredHeight, flags);
+    }
+
+    static ContentKey decompressToYUVKey(ByteBuffer jpegImage, int desiredWidth, int desiredHeight, int flags) {
+        return new ContentKey(whole(jpegImage), DECOMPRESS_TO_YUV, desiredWidth, desiredHeight, flags);
+    }
+
+    TJNioSharedBuffer decompressToYUV(ContentKey key, final ByteBuffer jpegImage, final int desiredWidth,
+            final int desiredHeight, final int flags) throws TJException {
+        return execute(key, new Callable<TJNioSharedBuffer>() {
+            @Override
+            public TJNioSharedBuffer call() throws Exception {
+                TJNioDecompressor decompressor = decompressors.borrow();
+                try {
+                    decompressor.setSourceImage(jpegImage, null);
+                    DirectYUVImage image = decompressor.decompressToYUV(desiredWidth, 1, desiredHeight, flags);
+                    return new TJNioSharedBuffer(image, decompressor.getBufferPool());
+                } finally {
+                    decompressors.giveBack(decompressor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Produce a rendition of a JPEG image: decompress it at the scaled size closest to the given size and compress
+     * the result again, or wait for an identical rendition that is already being produced.
+     *
+     * @param jpegImage
+     *            JPEG image buffer, whose limit is the size of the JPEG image. The image starts at index 0, whatever
+     *            the position of the buffer. This buffer is not modified.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the rendition, or 0 for the width of the image
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the rendition, or 0 for the height of the image
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling of the rendition
+     *
+     * @param quality
+     *            the JPEG quality of the rendition (1 = worst, 100 = best)
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link org.libjpegturbo.turbojpeg.TJ#FLAG_BOTTOMUP TJ.FLAG_*},
+     *            used for both the decompression and the compression
+     *
+     * @return the JPEG image of the rendition, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer rescale(final ByteBuffer jpegImage, final int desiredWidth, final int desiredHeight,
+            final TJSAMP subsamp, final int quality, final int flags) throws TJException {
+        if (jpegImage == null || desiredWidth < 0 || desiredHeight < 0 || subsamp == null || quality < 1
+                || quality > 100 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in rescale()");
+        ContentKey key = new ContentKey(whole(jpegImage), RESCALE, desiredWidth, desiredHeight, (int) subsamp.value(),
+                quality, flags);
+        return execute(key, new Callable<TJNioSharedBuffer>() {
+            @Override
+            public TJNioSharedBuffer call() throws Exception {
+                TJNioDecompressor decompressor = decompressors.borrow();
+                TJNioCompressor compressor = null;
+                try {
+                    decompressor.setSourceImage(jpegImage, TJPF.TJPF_RGB);
+                    int width = decompressor.getScaledWidth(desiredWidth, desiredHeight);
+                    int height = decompressor.getScaledHeight(desiredWidth, desiredHeight);
+                    ByteBuffer pixels = decompressor.decompress(desiredWidth, desiredHeight, flags);
+                    compressor = compressors.borrow();
+                    compressor.setSourceImage(pixels, width, 0, height, TJPF.TJPF_RGB, subsamp);
+                    compressor.setJPEGQuality(quality);
+                    compressor.compress(flags);
+                    return new TJNioSharedBuffer(compressor.detachBuffer(), width, height, null,
+                            compressor.getBufferPool());
+                } finally {
+                    decompressor.releaseBuffer();
+                    decompressors.giveBack(decompressor);
+                    if (compressor != null)
+                        compressors.giveBack(compressor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a view of a JPEG image from offset 0 to its limit, which is what the decompressors read, whatever the
+     * position of the buffer.
+     *
+     * @return a view of a JPEG image from offset 0 to its limit.
+     */
+    static ByteBuffer whole(ByteBuffer jpegImage) {
+        ByteBuffer whole = jpegImage.duplicate();
+        whole.position(0);
+        return whole;
+    }
+
+    /**
+     * Run an operation, or wait for the operation with the same key that is already running, and return a reference
+     * to its result.
+     */
+    TJNioSharedBuffer execute(ContentKey key, Callable<TJNioSharedBuffer> operation) throws TJException {
+        requests.increment();
+        while (true) {
+            Flight flight = new Flight();
+            Flight running = inFlight.putIfAbsent(key, flight);
+            if (running == null)
+                return lead(key, flight, operation);
+            synchronized (running) {
+                // Finished between the lookup and now; its result has been handed out already
+                if (running.done)
+                    continue;
+                running.followers++;
+            }
+            duplicates.increment();
+            try {
+                return running.result.join();
+            } catch (CompletionException e) {
+                throw rethrow(e.getCause(), true);
+            }
+        }
+    }
+
+    private TJNioSharedBuffer lead(ContentKey key, Flight flight, Callable<TJNioSharedBuffer> operation)
+            throws TJException {
+        TJNioSharedBuffer result = null;
+        Throwable failure = null;
+        try {
+            result = operation.call();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        int followers;
+        synchronized (flight) {
+            flight.done = true;
+            inFlight.remove(key, flight);
+            followers = flight.followers;
+        }
+        if (failure != null) {
+            flight.result.completeExceptionally(failure);
+            throw rethrow(failure, false);
+        }
+        if (followers > 0)
+            result.retain(followers);
+        flight.result.complete(result);
+        return result;
+    }
+
+    private static TJException rethrow(Throwable failure, boolean shared) throws TJException {
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        // Wrapped for the requests that shared the computation, so that each gets its own stack trace
+        if (failure instanceof TJException && !shared)
+            throw (TJException) failure;
+        throw new TJException(failure);
+    }
+
+    TJNioPool<TJNioDecompressor> getDecompressors() {
+        return decompressors;
+    }
+
+    /**
+     * Returns the number of requests that have been made.
+     *
+     * @return the number of requests that have been made.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Returns the number of requests that shared a computation with an earlier request.
+     *
+     * @return the number of requests that shared a computation with an earlier request.
+     */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns the number of computations that are running.
+     *
+     * @return the number of computations that are running.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static final class Flight {
+        final CompletableFuture<TJNioSharedBuffer> result = new CompletableFuture<TJNioSharedBuffer>();
+        int followers;
+        boolean done;
+    }
+}
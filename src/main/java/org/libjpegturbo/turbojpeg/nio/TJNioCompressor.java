@@ -29,15 +29,17 @@
 
 package org.libjpegturbo.turbojpeg.nio;
 
+import static org.libjpegturbo.turbojpeg.nio.TurbojpegNatives.NATIVES;
+
 import java.io.Closeable;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import org.bridj.CLong;
 import org.bridj.Pointer;
 import org.bridj.Pointer.StringType;
 import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJCleaner;
 import org.libjpegturbo.turbojpeg.TJException;
 import org.libjpegturbo.turbojpeg.YUVImage;
 import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
@@ -48,7 +50,11 @@ import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
 public class TJNioCompressor implements Closeable {
 
     private static final String NO_ASSOC_ERROR = "No source image is associated with this instance";
+    private static final String CLOSED_ERROR = "This instance has been closed";
+    private static final int NATIVE_BUFFER_GRANULE = 4096;
+    private static final double INITIAL_BYTES_PER_PIXEL = 0.5;
     private ByteBuffer srcBuf = null;
+    private DirectYUVImage srcYUVImage = null;
     private int srcWidth = 0;
     private int srcHeight = 0;
     private int srcPitch = 0;
@@ -57,17 +63,47 @@ public class TJNioCompressor implements Closeable {
     private int jpegQuality = -1;
     private int compressedSize = 0;
     Pointer<Byte> pointerToSrcBuf;
-    Pointer<Pointer<Byte>> pointerPointerToDstBuf;
+    final Pointer<Pointer<Byte>> pointerPointerToDstBuf;
+    private final Pointers.Cache srcPointers = new Pointers.Cache();
+    private final Pointers.Cache dstPointers = new Pointers.Cache();
     ByteBuffer dstBuf;
     final Pointer<CLong> pointerToCompressedSize;
     final Pointer<?> pointerToCompressor;
-    
+    private final TJBufferPool bufferPool;
+    private final TJCleaner.Registration registration;
+    private Pointer<Pointer<Byte>> pointerPointerToNativeBuf;
+    private TJCleaner.Registration nativeBufRegistration;
+    private long nativeBufAddress = 0;
+    private int nativeBufCapacity = 0;
+    private boolean nativeBufAllocated;
+    private ByteBuffer nativeBufView;
+    private double bytesPerPixel = 0;
+
+    /**
+     * Create a TurboJPEG compressor instance that leases its destination buffers from the default
+     * {@link TJBufferPool}.
+     */
     public TJNioCompressor() throws TJException {
+        this(TJBufferPool.getDefault());
+    }
+
+    /**
+     * Create a TurboJPEG compressor instance.
+     *
+     * @param bufferPool
+     *            pool from which destination buffers are leased
+     */
+    public TJNioCompressor(TJBufferPool bufferPool) throws TJException {
+        if (bufferPool == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioCompressor()");
+        this.bufferPool = bufferPool;
         this.pointerToCompressor = TurbojpegLibrary.tjInitCompress();
-        this.pointerPointerToDstBuf = (Pointer<Pointer<Byte>>) Pointer.NULL;
+        if (this.pointerToCompressor == null)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        this.registration = TJCleaner.register(this, new HandleReleaser(pointerToCompressor));
+        this.pointerPointerToDstBuf = Pointer.allocatePointer(Byte.class);
         this.pointerToCompressedSize = Pointer.allocateCLong();
-        byte z = (byte)0;
-        this.pointerToSrcBuf = Pointer.pointerToBytes(z,z,z,z,z,z,z,z,z,z,z,z,z,z,z,z);
+        this.pointerToSrcBuf = (Pointer<Byte>) Pointer.NULL;
 
     }
 
@@ -100,9 +136,11 @@ public class TJNioCompressor implements Closeable {
      */
     public void setSourceImage(ByteBuffer srcImageBuffer, int width, int pitch, int height, TurbojpegLibrary.TJPF pixelFormat, TurbojpegLibrary.TJSAMP subsamp)
             throws TJException {
+        checkOpen();
         if (srcImageBuffer == null || width < 1 || height < 1 || pitch < 0 || pixelFormat == null)
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
         this.srcBuf = srcImageBuffer;
+        this.srcYUVImage = null;
         this.srcWidth = width;
         if (pitch == 0)
             this.srcPitch = width * TJ.getPixelSize((int)pixelFormat.value);
@@ -112,22 +150,31 @@ public class TJNioCompressor implements Closeable {
         this.srcPixelFormat = pixelFormat;
         this.subsamp = subsamp;
 
-        this.pointerToSrcBuf = Pointer.pointerToBytes(srcBuf);
-
-        int requiredSize = (int) TurbojpegLibrary.tjBufSize(width, height, (int)subsamp.value());
-        if (dstBuf == null || dstBuf.capacity() < requiredSize) {
-            dstBuf = ByteBuffer.allocateDirect(requiredSize)
-                    .order(ByteOrder.nativeOrder());
-            pointerPointerToDstBuf = Pointer.pointerToPointer(Pointer.pointerToBytes(dstBuf));
-        } else {
-            dstBuf.rewind();
-        }
-        
+        this.pointerToSrcBuf = srcPointers.get(srcBuf, 0);
+    }
 
 
+    /**
+     * Associate an uncompressed YUV planar source image with this compressor instance. Subsequent compress operations
+     * compress it with <code>tjCompressFromYUVPlanes()</code>, which skips color conversion and, because the image is
+     * already subsampled, uses its level of chrominance subsampling.
+     *
+     * @param srcImage
+     *            YUV planar image to be compressed. The image is not modified.
+     */
+    public void setSourceImage(DirectYUVImage srcImage) throws TJException {
+        checkOpen();
+        if (srcImage == null)
+            throw new IllegalArgumentException("Invalid argument in setSourceImage()");
+        this.srcYUVImage = srcImage;
+        this.srcBuf = null;
+        this.srcWidth = srcImage.getWidth();
+        this.srcHeight = srcImage.getHeight();
+        this.srcPitch = 0;
+        this.srcPixelFormat = null;
+        this.subsamp = srcImage.getSubsamp();
     }
 
-
     /**
      * Set the JPEG image quality level for subsequent compress operations.
      *
@@ -140,52 +187,245 @@ public class TJNioCompressor implements Closeable {
         jpegQuality = quality;
     }
 
+    /**
+     * Compress the uncompressed source image associated with this compressor instance and return a buffer containing a
+     * JPEG image. The buffer is leased from this instance's {@link TJBufferPool} and stays valid until the next
+     * compress operation, {@link #releaseBuffer}, or {@link #close}, whichever comes first, unless the caller takes
+     * ownership of it with {@link #detachBuffer}.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the JPEG image.
+     */
+    public ByteBuffer compress(int flags) throws TJException {
+        checkCompress(flags);
+        releaseBuffer();
+        dstBuf = bufferPool.acquire(getRequiredCapacity());
+        compress(dstPointers.get(dstBuf), flags);
+        dstBuf.rewind();
+        dstBuf.limit(compressedSize);
+        return dstBuf;
+    }
+
     /**
      * Compress the uncompressed source image associated with this compressor instance and output a JPEG image to the
-     * given destination buffer.
+     * given destination buffer, starting at its current position.
      *
      * @param dstBuf
-     *            buffer that will receive the JPEG image. Use {@link TJ#bufSize} to determine the maximum size for this
-     *            buffer based on the source image's width and height and the desired level of chrominance subsampling.
+     *            direct buffer that will receive the JPEG image. It must have at least {@link #getRequiredCapacity}
+     *            bytes remaining. On return, its position has been advanced past the JPEG image.
      *
      * @param flags
      *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the JPEG image (in bytes).
      */
-    public ByteBuffer compress(int flags) throws TJException {
+    public int compress(ByteBuffer dstBuf, int flags) throws TJException {
+        if (dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly())
+            throw new IllegalArgumentException("Invalid argument in compress()");
+        checkCompress(flags);
+        if (dstBuf.remaining() < getRequiredCapacity())
+            throw new IllegalArgumentException("Destination buffer is not large enough");
+        compress(dstPointers.get(dstBuf), flags);
+        dstBuf.position(dstBuf.position() + compressedSize);
+        return compressedSize;
+    }
+
+    /**
+     * Compress the uncompressed source image associated with this compressor instance into a native buffer that
+     * TurboJPEG is allowed to grow, and return a view of the JPEG image. Unlike {@link #compress(int)}, this does not
+     * reserve the worst-case {@link #getRequiredCapacity} bytes. Instead, this instance keeps one buffer allocated
+     * with <code>tjAlloc()</code>, sized from the average compression ratio of its recent outputs, and reallocates it
+     * when the image outgrows it or when it becomes much larger than needed.
+     * <p>
+     * The returned buffer is a view of native memory owned by this instance. It stays valid until the next call to
+     * this method or {@link #close}, whichever comes first, and must not be given to a {@link TJBufferPool}.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}, not including
+     *            {@link TurbojpegLibrary#TJFLAG_NOREALLOC}
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the JPEG image.
+     */
+    public ByteBuffer compressGrowable(int flags) throws TJException {
+        if ((flags & TurbojpegLibrary.TJFLAG_NOREALLOC) != 0)
+            throw new IllegalArgumentException("Invalid argument in compressGrowable()");
+        checkCompress(flags);
+        fitNativeBuffer();
+        Pointer<Byte> original = pointerPointerToNativeBuf.get();
+        pointerToCompressedSize.setCLong(nativeBufCapacity);
+        final int errorCode = compressTo(pointerPointerToNativeBuf, flags);
+        long address = pointerPointerToNativeBuf.getSizeT();
+        boolean replaced = address != nativeBufAddress;
+        if (replaced) {
+            // TurboJPEG only frees the buffers that it allocated itself when it grows the destination
+            if (nativeBufAllocated)
+                TurbojpegLibrary.tjFree(original);
+            nativeBufAddress = address;
+            nativeBufAllocated = false;
+            nativeBufView = null;
+        }
+        if (errorCode != 0) {
+            if (replaced)
+                freeNativeBuffer();
+            throw new TJException("Could not compress due to errorCode " + errorCode + ", "
+                    + TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        }
+        compressedSize = (int) pointerToCompressedSize.getCLong();
+        if (replaced) {
+            // TurboJPEG does not report the size of the buffer it allocated, only that the image fits in it
+            nativeBufCapacity = compressedSize;
+            nativeBufView = pointerPointerToNativeBuf.get().getByteBuffer(nativeBufCapacity);
+        }
+        double density = (double) compressedSize / ((long) srcWidth * srcHeight);
+        bytesPerPixel = bytesPerPixel == 0 ? density : bytesPerPixel + (density - bytesPerPixel) / 8;
+        nativeBufView.clear().limit(compressedSize);
+        return nativeBufView;
+    }
+
+    /**
+     * Returns the capacity (in bytes) of the native buffer used by {@link #compressGrowable}, or 0 if there is none.
+     *
+     * @return the capacity (in bytes) of the native buffer used by {@link #compressGrowable}, or 0 if there is none.
+     */
+    public int getNativeBufferCapacity() {
+        return nativeBufCapacity;
+    }
+
+    private void fitNativeBuffer() throws TJException {
+        long pixels = (long) srcWidth * srcHeight;
+        long target = (long) Math.ceil(pixels * (bytesPerPixel == 0 ? INITIAL_BYTES_PER_PIXEL : bytesPerPixel) * 1.25);
+        target = Math.min((target + NATIVE_BUFFER_GRANULE - 1) / NATIVE_BUFFER_GRANULE * NATIVE_BUFFER_GRANULE,
+                getRequiredCapacity());
+        if (nativeBufAddress != 0 && nativeBufCapacity >= target && nativeBufCapacity <= 2 * target)
+            return;
+        if (pointerPointerToNativeBuf == null) {
+            pointerPointerToNativeBuf = Pointer.allocatePointer(Byte.class);
+            nativeBufRegistration = TJCleaner.register(this, new NativeBufferReleaser(pointerPointerToNativeBuf));
+        }
+        freeNativeBuffer();
+        Pointer<Byte> buf = TurbojpegLibrary.tjAlloc((int) target);
+        if (buf == null)
+            throw new TJException("Could not allocate a native buffer of " + target + " bytes");
+        pointerPointerToNativeBuf.setPointer(buf);
+        nativeBufAddress = buf.getPeer();
+        nativeBufCapacity = (int) target;
+        nativeBufAllocated = true;
+        nativeBufView = buf.getByteBuffer(target);
+    }
+
+    private void freeNativeBuffer() {
+        nativeBufView = null;
+        nativeBufAddress = 0;
+        nativeBufCapacity = 0;
+        if (pointerPointerToNativeBuf != null)
+            new NativeBufferReleaser(pointerPointerToNativeBuf).release();
+    }
+
+    /**
+     * Returns the number of bytes that a destination buffer passed to {@link #compress(ByteBuffer, int)} must have
+     * remaining. This is the worst-case size of a JPEG image compressed from the source image associated with this
+     * compressor instance, using its level of chrominance subsampling.
+     *
+     * @return the number of bytes that a destination buffer passed to {@link #compress(ByteBuffer, int)} must have
+     *         remaining.
+     */
+    public int getRequiredCapacity() {
+        checkSourceImage();
+        return (int) NATIVES.tjBufSize(srcWidth, srcHeight, (int) subsamp.value());
+    }
+
+    private void checkCompress(int flags) {
         if (flags < 0)
             throw new IllegalArgumentException("Invalid argument in compress()");
-        if (srcBuf == null)
+        checkOpen();
+        if (srcBuf == null && srcYUVImage == null)
             throw new IllegalStateException(NO_ASSOC_ERROR);
         if (jpegQuality < 0)
             throw new IllegalStateException("JPEG Quality not set");
+    }
 
-        
-        pointerToCompressedSize.set(CLong.valueOf(0));
-            final int errorCode = TurbojpegLibrary.tjCompress2(pointerToCompressor, // handle
-                    pointerToSrcBuf, // srcBuf
-                    this.srcWidth, // width
-                    this.srcPitch, // pitch
-                    this.srcHeight, // height
-                    (int)this.srcPixelFormat.value(), // pixelFormat
-
-                    pointerPointerToDstBuf, // jpegBuf
-                    pointerToCompressedSize, //jpegSize
-                    (int)this.subsamp.value(), // jpegSubsamp
-                    this.jpegQuality, // jpegquality
-                    TurbojpegLibrary.TJFLAG_NOREALLOC | flags); // flags, do not reallocate destination buffer
-            if (errorCode > 0) {
-                throw new TJException("Could not compress due to errorCode " + errorCode + ", " + TurbojpegLibrary.tjGetErrorStr().getString(StringType.C)) ;
-            }
-            compressedSize = (int)pointerToCompressedSize.getCLong();
-            dstBuf.rewind();
-            dstBuf.limit(compressedSize);
-//            ByteBuffer dstBuf = pointerPointerToDstBuf.getPointerAtIndex(0).getByteBuffer(compressedSize);
-//            dstBuf.limit(compressedSize);
-            return dstBuf;
+    private void compress(Pointer<Byte> jpegBuf, int flags) throws TJException {
+        pointerPointerToDstBuf.setPointer(jpegBuf);
+        pointerToCompressedSize.setCLong(0);
+        // do not reallocate destination buffer
+        final int errorCode = compressTo(pointerPointerToDstBuf, TurbojpegLibrary.TJFLAG_NOREALLOC | flags);
+        if (errorCode != 0) {
+            throw new TJException("Could not compress due to errorCode " + errorCode + ", " + TurbojpegLibrary.tjGetErrorStr().getString(StringType.C)) ;
+        }
+        compressedSize = (int)pointerToCompressedSize.getCLong();
     }
 
+    private int compressTo(Pointer<Pointer<Byte>> jpegBuf, int flags) {
+        if (srcYUVImage != null)
+            return NATIVES.tjCompressFromYUVPlanes(pointerToCompressor, srcYUVImage.getPointerToPlanes(),
+                    srcWidth, srcYUVImage.getPointerToStrides(), srcHeight, (int) subsamp.value(), jpegBuf,
+                    pointerToCompressedSize, jpegQuality, flags);
+        return NATIVES.tjCompress2(pointerToCompressor, // handle
+                pointerToSrcBuf, // srcBuf
+                this.srcWidth, // width
+                this.srcPitch, // pitch
+                this.srcHeight, // height
+                (int)this.srcPixelFormat.value(), // pixelFormat
+                jpegBuf, // jpegBuf
+                pointerToCompressedSize, //jpegSize
+                (int)this.subsamp.value(), // jpegSubsamp
+                this.jpegQuality, // jpegquality
+                flags); // flags
+    }
 
+    /**
+     * Encode the uncompressed source image associated with this compressor instance into a YUV planar image and store
+     * it in the given {@link DirectYUVImage} instance. This method uses the accelerated color conversion routines in
+     * TurboJPEG's underlying codec but does not execute any of the other steps in the JPEG compression process. The
+     * level of chrominance subsampling is that of <code>dstImage</code>, whose dimensions must match those of the
+     * source image.
+     *
+     * @param dstImage
+     *            {@link DirectYUVImage} instance that will receive the YUV planar image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public void encodeYUV(DirectYUVImage dstImage, int flags) throws TJException {
+        if (dstImage == null || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in encodeYUV()");
+        checkOpen();
+        if (srcBuf == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        if (dstImage.getWidth() != srcWidth || dstImage.getHeight() != srcHeight)
+            throw new IllegalArgumentException("YUV image dimensions do not match the source image");
+        if (NATIVES.tjEncodeYUVPlanes(pointerToCompressor, pointerToSrcBuf, srcWidth, srcPitch, srcHeight,
+                (int) srcPixelFormat.value(), dstImage.getPointerToPlanes(), dstImage.getPointerToStrides(),
+                (int) dstImage.getSubsamp().value(), flags) != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+    }
 
+    /**
+     * Encode the uncompressed source image associated with this compressor instance into a YUV planar image, using
+     * the level of chrominance subsampling given to {@link #setSourceImage}, and return it. The image's buffer is
+     * leased from this instance's {@link TJBufferPool}, and the caller gives it back by closing the image.
+     *
+     * @param pad
+     *            the line padding to use in the YUV image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a YUV planar image containing the encoded source image.
+     */
+    public DirectYUVImage encodeYUV(int pad, int flags) throws TJException {
+        checkSourceImage();
+        DirectYUVImage dstImage = DirectYUVImage.allocate(bufferPool, srcWidth, pad, srcHeight, subsamp);
+        try {
+            encodeYUV(dstImage, flags);
+        } catch (TJException | RuntimeException e) {
+            dstImage.close();
+            throw e;
+        }
+        return dstImage;
+    }
 
     /**
      * Returns the size of the image (in bytes) generated by the most recent compress operation.
@@ -197,29 +437,100 @@ public class TJNioCompressor implements Closeable {
     }
 
     /**
-     * Free the native structures associated with this compressor instance.
+     * Give the buffer returned by the most recent compress operation back to this instance's {@link TJBufferPool}. The
+     * buffer must not be used after that.
      */
-    @Override
-    public void close() throws TJException {
-        if (this.pointerToCompressor != null) {
-            TurbojpegLibrary.tjDestroy(pointerToCompressor);
+    public void releaseBuffer() {
+        if (dstBuf != null) {
+            ByteBuffer buf = dstBuf;
+            dstBuf = null;
+            bufferPool.release(buf);
         }
     }
 
+    /**
+     * Take ownership of the buffer returned by the most recent compress operation. The caller becomes responsible for
+     * giving it back to {@link #getBufferPool} once it is done with it.
+     *
+     * @return the buffer returned by the most recent compress operation.
+     */
+    public ByteBuffer detachBuffer() {
+        if (dstBuf == null)
+            throw new IllegalStateException("No compressed image is associated with this instance");
+        ByteBuffer buf = dstBuf;
+        dstBuf = null;
+        return buf;
+    }
+
+    /**
+     * Returns the pool from which this instance leases its destination buffers.
+     *
+     * @return the pool from which this instance leases its destination buffers.
+     */
+    public TJBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Free the native structures associated with this compressor instance and give its destination buffer back to the
+     * pool. Calling this more than once has no effect.
+     */
     @Override
-    protected void finalize() throws Throwable {
-        try {
-            close();
-        } catch (TJException e) {
-        } finally {
-            super.finalize();
-        }
-    };
+    public void close() throws TJException {
+        releaseBuffer();
+        srcPointers.clear();
+        dstPointers.clear();
+        srcYUVImage = null;
+        nativeBufView = null;
+        nativeBufAddress = 0;
+        nativeBufCapacity = 0;
+        if (nativeBufRegistration != null)
+            nativeBufRegistration.clean();
+        registration.clean();
+    }
 
+    private void checkOpen() {
+        if (registration.isCleaned())
+            throw new IllegalStateException(CLOSED_ERROR);
+    }
 
     private void checkSourceImage() {
         if (srcWidth < 1 || srcHeight < 1)
             throw new IllegalStateException(NO_ASSOC_ERROR);
     }
 
+    /**
+     * Frees the <code>tjAlloc()</code>'d buffer that a pointer-to-pointer refers to, if any.
+     */
+    static final class NativeBufferReleaser implements TJCleaner.Releaser {
+        private final Pointer<Pointer<Byte>> pointerPointerToBuf;
+
+        NativeBufferReleaser(Pointer<Pointer<Byte>> pointerPointerToBuf) {
+            this.pointerPointerToBuf = pointerPointerToBuf;
+        }
+
+        @Override
+        public void release() {
+            Pointer<Byte> buf = pointerPointerToBuf.get();
+            if (buf != null) {
+                pointerPointerToBuf.setSizeT(0);
+                TurbojpegLibrary.tjFree(buf);
+            }
+        }
+    }
+
+    static final class HandleReleaser implements TJCleaner.Releaser {
+        private final Pointer<?> handle;
+
+        HandleReleaser(Pointer<?> handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public void release() throws TJException {
+            if (TurbojpegLibrary.tjDestroy(handle) != 0)
+                throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        }
+    }
+
 }
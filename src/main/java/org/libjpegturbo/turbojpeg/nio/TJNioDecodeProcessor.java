@@ -0,0 +1,106 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+/**
+ * <code>Flow.Processor</code> that decompresses the JPEG images it receives into {@link TJNioFrame}s. At most
+ * <code>maxInFlight</code> decompressed images exist at a time: once that many frames have been emitted and not
+ * released, no more JPEG images are requested from upstream until a frame is released. The JPEG image buffers are
+ * only read, and can be reused by the publisher once the corresponding frame has been emitted.
+ */
+public class TJNioDecodeProcessor extends TJNioStage<ByteBuffer> {
+
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final TJPF pixelFormat;
+    private final int desiredWidth;
+    private final int desiredHeight;
+    private final int flags;
+
+    /**
+     * Create a decode processor that decompresses images at their full size.
+     *
+     * @param decompressors
+     *            pool from which a decompressor is borrowed for each image
+     *
+     * @param executor
+     *            executor on which images are decompressed and signals are sent to the subscriber
+     *
+     * @param maxInFlight
+     *            largest number of decompressed images that exist at a time
+     *
+     * @param pixelFormat
+     *            pixel format of the decompressed images
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link org.libjpegturbo.turbojpeg.TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public TJNioDecodeProcessor(TJNioPool<TJNioDecompressor> decompressors, Executor executor, int maxInFlight,
+            TJPF pixelFormat, int flags) {
+        this(decompressors, executor, maxInFlight, pixelFormat, 0, 0, flags);
+    }
+
+    /**
+     * Create a decode processor that decompresses images at the scaled size closest to the given size. See
+     * {@link TJNioDecompressor#decompress(int, int, int)} for a description of <code>desiredWidth</code> and
+     * <code>desiredHeight</code>, and {@link #TJNioDecodeProcessor(TJNioPool, Executor, int, TJPF, int)} for the
+     * other parameters.
+     */
+    public TJNioDecodeProcessor(TJNioPool<TJNioDecompressor> decompressors, Executor executor, int maxInFlight,
+            TJPF pixelFormat, int desiredWidth, int desiredHeight, int flags) {
+        super(executor, maxInFlight);
+        if (decompressors == null || pixelFormat == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in TJNioDecodeProcessor()");
+        this.decompressors = decompressors;
+        this.pixelFormat = pixelFormat;
+        this.desiredWidth = desiredWidth;
+        this.desiredHeight = desiredHeight;
+        this.flags = flags;
+    }
+
+    @Override
+    TJNioFrame process(ByteBuffer jpegImage) throws Exception {
+        TJNioDecompressor decompressor = decompressors.borrow();
+        try {
+            decompressor.setSourceImage(jpegImage, pixelFormat);
+            int width = decompressor.getScaledWidth(desiredWidth, desiredHeight);
+            int height = decompressor.getScaledHeight(desiredWidth, desiredHeight);
+            decompressor.decompress(desiredWidth, desiredHeight, flags);
+            return new TJNioFrame(decompressor.detachBuffer(), width, height, pixelFormat,
+                    decompressor.getBufferPool(), releaser);
+        } finally {
+            decompressors.giveBack(decompressor);
+        }
+    }
+}
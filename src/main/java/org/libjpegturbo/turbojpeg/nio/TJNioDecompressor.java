@@ -29,14 +29,20 @@
 
 package org.libjpegturbo.turbojpeg.nio;
 
+import static org.libjpegturbo.turbojpeg.nio.TurbojpegNatives.NATIVES;
+
 import java.awt.image.*;
 import java.nio.*;
 import java.io.*;
 
 import org.bridj.CLong;
 import org.bridj.Pointer;
+import org.bridj.Pointer.StringType;
 import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJCleaner;
 import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.TJNativeLibrary;
+import org.libjpegturbo.turbojpeg.TJScalingFactor;
 import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
 import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJCS;
 import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
@@ -48,12 +54,19 @@ import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
 public class TJNioDecompressor implements Closeable {
 
     private static final String NO_ASSOC_ERROR = "No JPEG image is associated with this instance";
+    private static final String CLOSED_ERROR = "This instance has been closed";
+    private static final TJSAMP[] SUBSAMPS = TJSAMP.values();
+    private static final TJCS[] COLORSPACES = TJCS.values();
+    private static volatile TJScalingFactor[] scalingFactors;
     protected int jpegWidth = 0;
     protected int jpegHeight = 0;
     protected int jpegSubsamp = -1;
     protected int jpegColorspace = -1;
     Pointer<Byte> pointerToSrcBuf;
     Pointer<Byte> pointerToDstBuf;
+    private final Pointers.Cache srcPointers = new Pointers.Cache();
+    private final Pointers.Cache dstPointers = new Pointers.Cache();
+    private final Pointers.Cache headerPointers = new Pointers.Cache();
     ByteBuffer dstBuf;
     long jpegSize;
     final Pointer<?> pointerToDecompressor;
@@ -61,20 +74,59 @@ public class TJNioDecompressor implements Closeable {
     final private Pointer<Integer> pointerToHeight;
     final private Pointer<Integer> pointerToJpegSubsamp;
     final private Pointer<Integer> pointerToJpegColorspace;
+    final private Pointer<Integer> pointerToHeaderWidth;
+    final private Pointer<Integer> pointerToHeaderHeight;
+    final private Pointer<Integer> pointerToHeaderSubsamp;
+    final private Pointer<Integer> pointerToHeaderColorspace;
     private TJPF pixelFormat;
+    private final TJBufferPool bufferPool;
+    private final TJCleaner.Registration registration;
 
     /**
-     * Create a TurboJPEG decompresssor instance.
+     * Create a TurboJPEG decompresssor instance that leases its destination buffers from the default
+     * {@link TJBufferPool}.
      */
     public TJNioDecompressor() throws TJException {
-        this.pointerToDecompressor = TurbojpegLibrary.tjInitDecompress();
+        this(TJBufferPool.getDefault());
+    }
+
+    /**
+     * Create a TurboJPEG decompresssor instance.
+     *
+     * @param bufferPool
+     *            pool from which destination buffers are leased
+     */
+    public TJNioDecompressor(TJBufferPool bufferPool) throws TJException {
+        this(checkBufferPool(bufferPool), TurbojpegLibrary.tjInitDecompress());
+    }
+
+    /**
+     * Create an instance around a TurboJPEG handle that was just initialized, such as a transformer handle. The
+     * instance takes ownership of the handle.
+     *
+     * @param bufferPool
+     *            pool from which destination buffers are leased
+     *
+     * @param handle
+     *            the handle returned by <code>tjInitDecompress()</code> or <code>tjInitTransform()</code>, or null if
+     *            that failed
+     */
+    TJNioDecompressor(TJBufferPool bufferPool, Pointer<?> handle) throws TJException {
+        this.bufferPool = bufferPool;
+        this.pointerToDecompressor = handle;
+        if (this.pointerToDecompressor == null)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        this.registration = TJCleaner.register(this, new TJNioCompressor.HandleReleaser(pointerToDecompressor));
         this.pointerToDstBuf = (Pointer<Byte>) Pointer.NULL;
-        byte z = (byte)0;
         this.pointerToSrcBuf = (Pointer<Byte>) Pointer.NULL;
         this.pointerToHeight = Pointer.allocateInt();
         this.pointerToWidth = Pointer.allocateInt();
         this.pointerToJpegSubsamp = Pointer.allocateInt();
         this.pointerToJpegColorspace = Pointer.allocateInt();
+        this.pointerToHeaderWidth = Pointer.allocateInt();
+        this.pointerToHeaderHeight = Pointer.allocateInt();
+        this.pointerToHeaderSubsamp = Pointer.allocateInt();
+        this.pointerToHeaderColorspace = Pointer.allocateInt();
    
     }
 
@@ -82,37 +134,51 @@ public class TJNioDecompressor implements Closeable {
 
 
     /**
-     * Associate the JPEG image of length <code>imageSize</code> bytes stored in <code>jpegImage</code> with this
-     * decompressor instance. This image will be used as the source image for subsequent decompress operations.
+     * Associate a JPEG image with this decompressor instance. This image will be used as the source image for
+     * subsequent decompress operations. Only the header is read here; no destination buffer is leased until a
+     * decompress operation is performed.
      *
      * @param jpegImage
-     *            JPEG image buffer. This buffer is not modified.
+     *            JPEG image buffer, whose limit is the size of the JPEG image. This buffer is not modified.
      *
-     * @param imageSize
-     *            size of the JPEG image (in bytes)
+     * @param pixelFormat
+     *            pixel format of the images produced by subsequent decompress operations
      */
     public void setSourceImage(ByteBuffer jpegImage, TJPF pixelFormat) throws TJException {
-        
-        if (jpegImage == null || jpegImage.limit() < 1)
+        checkOpen();
+        if (jpegImage == null || jpegImage.limit() < 1 || !jpegImage.isDirect())
             throw new IllegalArgumentException("Invalid argument in setSourceImage()");
-        this.pointerToSrcBuf = Pointer.pointerToBytes(jpegImage);
+        this.pointerToSrcBuf = srcPointers.get(jpegImage, 0);
         this.pixelFormat = pixelFormat;
         jpegSize = (long)jpegImage.limit();
-        TurbojpegLibrary.tjDecompressHeader3(pointerToDecompressor, pointerToSrcBuf, jpegSize, pointerToWidth, pointerToHeight, pointerToJpegSubsamp, pointerToJpegColorspace);
-
-        int pixelSize = TJ.getPixelSize((int)pixelFormat.value());
-        int requiredSize = getWidth() * getHeight() * pixelSize;
-        if (this.dstBuf == null || this.dstBuf.capacity() < requiredSize) {
-            this.dstBuf = ByteBuffer.allocateDirect(requiredSize)
-                    .order(ByteOrder.nativeOrder());
-        } else {
-            this.dstBuf.rewind();
+        if (NATIVES.tjDecompressHeader3(pointerToDecompressor, pointerToSrcBuf, jpegSize, pointerToWidth,
+                pointerToHeight, pointerToJpegSubsamp, pointerToJpegColorspace) != 0) {
+            jpegSize = 0;
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
         }
-        pointerToDstBuf = Pointer.pointerToBytes(this.dstBuf);
-
     }
 
-
+    /**
+     * Read the header of a JPEG image without associating the image with this decompressor instance and without
+     * leasing any destination buffer. The source image associated with this instance, if any, is not affected.
+     *
+     * @param jpegImage
+     *            JPEG image buffer, whose limit is the size of the JPEG image. This buffer is not modified.
+     *
+     * @return the header of the JPEG image.
+     */
+    public TJHeader readHeader(ByteBuffer jpegImage) throws TJException {
+        checkOpen();
+        if (jpegImage == null || jpegImage.limit() < 1 || !jpegImage.isDirect())
+            throw new IllegalArgumentException("Invalid argument in readHeader()");
+        if (NATIVES.tjDecompressHeader3(pointerToDecompressor, headerPointers.get(jpegImage, 0),
+                jpegImage.limit(), pointerToHeaderWidth, pointerToHeaderHeight, pointerToHeaderSubsamp,
+                pointerToHeaderColorspace) != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        return new TJHeader(pointerToHeaderWidth.getInt(), pointerToHeaderHeight.getInt(),
+                Pointers.fromValue(SUBSAMPS, pointerToHeaderSubsamp.getInt()),
+                Pointers.fromValue(COLORSPACES, pointerToHeaderColorspace.getInt()));
+    }
 
     /**
      * Returns the width of the source image (JPEG or YUV) associated with this decompressor instance.
@@ -140,7 +206,7 @@ public class TJNioDecompressor implements Closeable {
      *         decompressor instance.
      */
     public TJSAMP getSubsamp() {
-        return (TJSAMP) TJSAMP.fromValue(pointerToJpegSubsamp.getInt());
+        return Pointers.fromValue(SUBSAMPS, pointerToJpegSubsamp.getInt());
     }
 
     /**
@@ -150,18 +216,161 @@ public class TJNioDecompressor implements Closeable {
      * @return the colorspace used in the source image (JPEG or YUV) associated with this decompressor instance.
      */
     public TJCS getColorspace() {
-        return (TJCS) TJCS.fromValue(pointerToJpegColorspace.getInt());
+        return Pointers.fromValue(COLORSPACES, pointerToJpegColorspace.getInt());
+    }
+
+    /**
+     * Returns a list of fractional scaling factors that the JPEG decompressor in this implementation of TurboJPEG
+     * supports. The list is obtained from <code>tjGetScalingFactors()</code> once and cached.
+     *
+     * @return a list of fractional scaling factors that the JPEG decompressor in this implementation of TurboJPEG
+     *         supports.
+     */
+    public static TJScalingFactor[] getScalingFactors() throws TJException {
+        return scalingFactors().clone();
+    }
+
+    private static TJScalingFactor[] scalingFactors() throws TJException {
+        TJScalingFactor[] sf = scalingFactors;
+        if (sf == null) {
+            Pointer<Integer> pointerToCount = Pointer.allocateInt();
+            Pointer<org.libjpegturbo.turbojpeg.bridj.TJScalingFactor> pointerToFactors = TurbojpegLibrary
+                    .tjGetScalingFactors(pointerToCount);
+            if (pointerToFactors == null)
+                throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+            sf = new TJScalingFactor[pointerToCount.getInt()];
+            for (int i = 0; i < sf.length; i++) {
+                org.libjpegturbo.turbojpeg.bridj.TJScalingFactor factor = pointerToFactors.get(i);
+                sf[i] = new TJScalingFactor(factor.num(), factor.denom());
+            }
+            scalingFactors = sf;
+        }
+        return sf;
+    }
+
+    /**
+     * Returns the width of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     * exceeding the desired image width and height.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image. Setting this to 0 is the same as setting it to
+     *            the width of the JPEG image (in other words, the width will not be considered when determining the
+     *            scaled image size.)
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image. Setting this to 0 is the same as setting it to
+     *            the height of the JPEG image (in other words, the height will not be considered when determining the
+     *            scaled image size.)
+     *
+     * @return the width of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     *         exceeding the desired image width and height.
+     */
+    public int getScaledWidth(int desiredWidth, int desiredHeight) throws TJException {
+        if (desiredWidth < 0 || desiredHeight < 0)
+            throw new IllegalArgumentException("Invalid argument in getScaledWidth()");
+        return getScalingFactor(desiredWidth, desiredHeight).getScaled(getWidth());
+    }
+
+    /**
+     * Returns the height of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     * exceeding the desired image width and height.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image. Setting this to 0 is the same as setting it to
+     *            the width of the JPEG image (in other words, the width will not be considered when determining the
+     *            scaled image size.)
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image. Setting this to 0 is the same as setting it to
+     *            the height of the JPEG image (in other words, the height will not be considered when determining the
+     *            scaled image size.)
+     *
+     * @return the height of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     *         exceeding the desired image width and height.
+     */
+    public int getScaledHeight(int desiredWidth, int desiredHeight) throws TJException {
+        if (desiredWidth < 0 || desiredHeight < 0)
+            throw new IllegalArgumentException("Invalid argument in getScaledHeight()");
+        return getScalingFactor(desiredWidth, desiredHeight).getScaled(getHeight());
+    }
+
+    /**
+     * Returns the scaling factor of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     * exceeding the desired image width and height.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image, or 0 to ignore the width
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image, or 0 to ignore the height
+     *
+     * @return the scaling factor of the largest scaled-down image that the TurboJPEG decompressor can generate without
+     *         exceeding the desired image width and height.
+     */
+    public TJScalingFactor getScalingFactor(int desiredWidth, int desiredHeight) throws TJException {
+        if (desiredWidth < 0 || desiredHeight < 0)
+            throw new IllegalArgumentException("Invalid argument in getScalingFactor()");
+        if (pixelFormat == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        int jpegWidth = getWidth(), jpegHeight = getHeight();
+        if (desiredWidth == 0)
+            desiredWidth = jpegWidth;
+        if (desiredHeight == 0)
+            desiredHeight = jpegHeight;
+        // Factors are listed from largest to smallest
+        for (TJScalingFactor sf : scalingFactors()) {
+            if (sf.getScaled(jpegWidth) <= desiredWidth && sf.getScaled(jpegHeight) <= desiredHeight)
+                return sf;
+        }
+        throw new IllegalArgumentException("Could not scale down to desired image dimensions");
     }
 
     /**
-     * Returns the destination image buffer associated with this decompressor instance.
+     * Returns the buffer returned by the most recent decompress operation, or null if there is none.
      *
-     * @return the destination image buffer associated with this decompressor instance.
+     * @return the buffer returned by the most recent decompress operation, or null if there is none.
      */
     public ByteBuffer getDstBuf() {
         return this.dstBuf;
     }
 
+    /**
+     * Give the buffer returned by the most recent decompress operation back to this instance's {@link TJBufferPool}.
+     * The buffer must not be used after that.
+     */
+    public void releaseBuffer() {
+        if (dstBuf != null) {
+            ByteBuffer buf = dstBuf;
+            dstBuf = null;
+            pointerToDstBuf = null;
+            bufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Take ownership of the buffer returned by the most recent decompress operation. The caller becomes responsible
+     * for giving it back to {@link #getBufferPool} once it is done with it.
+     *
+     * @return the buffer returned by the most recent decompress operation.
+     */
+    public ByteBuffer detachBuffer() {
+        if (dstBuf == null)
+            throw new IllegalStateException("No decompressed image is associated with this instance");
+        ByteBuffer buf = dstBuf;
+        dstBuf = null;
+        pointerToDstBuf = null;
+        return buf;
+    }
+
+    /**
+     * Returns the pool from which this instance leases its destination buffers.
+     *
+     * @return the pool from which this instance leases its destination buffers.
+     */
+    public TJBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
 
     /**
      * Decompress the JPEG source image or decode the YUV source image associated with this decompressor instance and
@@ -220,40 +429,425 @@ public class TJNioDecompressor implements Closeable {
      * @param flags
      *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
 
-     * @return ByteBuffer with the decompressed image
+     * @return ByteBuffer with the decompressed image. The buffer is leased from this instance's {@link TJBufferPool}
+     *         and stays valid until the next decompress operation, {@link #releaseBuffer}, or {@link #close}, whichever
+     *         comes first, unless the caller takes ownership of it with {@link #detachBuffer}.
      */
     public ByteBuffer decompress(int flags) throws TJException {
-        TurbojpegLibrary.tjDecompress2(pointerToDecompressor, pointerToSrcBuf, jpegSize, pointerToDstBuf, getWidth(), 0, getHeight(), (int) pixelFormat.value(), flags);
+        return decompress(0, 0, flags);
+    }
+
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance, scaling it in the DCT domain to the
+     * largest size that fits within the desired dimensions, and return a buffer containing the decompressed image.
+     * The buffer is leased from this instance's {@link TJBufferPool}, as with {@link #decompress(int)}.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image, or 0 to ignore the width. See
+     *            {@link #getScaledWidth}.
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image, or 0 to ignore the height. See
+     *            {@link #getScaledHeight}.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the decompressed image.
+     */
+    public ByteBuffer decompress(int desiredWidth, int desiredHeight, int flags) throws TJException {
+        checkDecompress(flags);
+        TJScalingFactor sf = getScalingFactor(desiredWidth, desiredHeight);
+        int requiredSize = getRequiredCapacity(sf);
+        releaseBuffer();
+        dstBuf = bufferPool.acquire(requiredSize);
+        pointerToDstBuf = dstPointers.get(dstBuf);
+        decompress(pointerToDstBuf, sf, 0, flags);
         dstBuf.rewind();
-        int pixelSize = TJ.getPixelSize((int)pixelFormat.value());
-        int newLimit = getWidth() * getHeight() * pixelSize;
-        dstBuf.limit(newLimit);
+        dstBuf.limit(requiredSize);
         
         return dstBuf;
     }
 
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance, scaled by one of the factors
+     * returned from {@link #getScalingFactors}, and return a buffer containing the decompressed image. The buffer is
+     * leased from this instance's {@link TJBufferPool}, as with {@link #decompress(int)}.
+     *
+     * @param scalingFactor
+     *            one of the scaling factors returned from {@link #getScalingFactors}
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the decompressed image.
+     */
+    public ByteBuffer decompress(TJScalingFactor scalingFactor, int flags) throws TJException {
+        checkScalingFactor(scalingFactor);
+        return decompress(scalingFactor.getScaled(getWidth()), scalingFactor.getScaled(getHeight()), flags);
+    }
 
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance and output an image in the pixel
+     * format given to {@link #setSourceImage} to the given destination buffer, starting at its current position.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decompressed image. It must have at least
+     *            {@link #getRequiredCapacity} bytes remaining. On return, its position has been advanced past the
+     *            decompressed image.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the decompressed image (in bytes).
+     */
+    public int decompress(ByteBuffer dstBuf, int flags) throws TJException {
+        return decompress(dstBuf, 0, 0, flags);
+    }
 
     /**
-     * Free the native structures associated with this decompressor instance.
+     * Decompress the JPEG source image associated with this decompressor instance, scaling it in the DCT domain to the
+     * largest size that fits within the desired dimensions, and output it to the given destination buffer, starting at
+     * its current position.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decompressed image. It must have at least
+     *            {@link #getRequiredCapacity(int, int)} bytes remaining. On return, its position has been advanced past
+     *            the decompressed image.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image, or 0 to ignore the width
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image, or 0 to ignore the height
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the decompressed image (in bytes).
      */
-    @Override
-    public void close() throws TJException {
-        if (this.pointerToDecompressor != null) {
-            TurbojpegLibrary.tjDestroy(pointerToDecompressor);
-        }
+    public int decompress(ByteBuffer dstBuf, int desiredWidth, int desiredHeight, int flags) throws TJException {
+        if (dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly())
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        checkDecompress(flags);
+        TJScalingFactor sf = getScalingFactor(desiredWidth, desiredHeight);
+        int requiredSize = getRequiredCapacity(sf);
+        if (dstBuf.remaining() < requiredSize)
+            throw new IllegalArgumentException("Destination buffer is not large enough");
+        decompress(dstPointers.get(dstBuf), sf, 0, flags);
+        dstBuf.position(dstBuf.position() + requiredSize);
+        return requiredSize;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance, scaled by one of the factors
+     * returned from {@link #getScalingFactors}, and output it to the given destination buffer, starting at its current
+     * position.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decompressed image. It must have at least
+     *            {@link #getRequiredCapacity(TJScalingFactor)} bytes remaining. On return, its position has been
+     *            advanced past the decompressed image.
+     *
+     * @param scalingFactor
+     *            one of the scaling factors returned from {@link #getScalingFactors}
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the decompressed image (in bytes).
+     */
+    public int decompress(ByteBuffer dstBuf, TJScalingFactor scalingFactor, int flags) throws TJException {
+        checkScalingFactor(scalingFactor);
+        return decompress(dstBuf, scalingFactor.getScaled(getWidth()), scalingFactor.getScaled(getHeight()), flags);
+    }
+
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance into a region of a larger image,
+     * such as one cell of a contact sheet. The region is addressed from the start of the destination buffer, and the
+     * buffer's position and limit are not changed, so the same buffer can be shared by many decompress operations and
+     * then given to {@link TJNioCompressor#setSourceImage} as a whole.
+     *
+     * @param dstBuf
+     *            direct buffer containing the destination image, in the pixel format given to {@link #setSourceImage}
+     *
+     * @param x
+     *            x offset (in pixels) of the region in the destination image into which the source image should be
+     *            decompressed
+     *
+     * @param y
+     *            y offset (in pixels) of the region in the destination image into which the source image should be
+     *            decompressed
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image, or 0 to ignore the width. See
+     *            {@link #getScaledWidth}.
+     *
+     * @param pitch
+     *            bytes per line of the destination image. Setting this parameter to 0 is the equivalent of setting it
+     *            to <code>scaledWidth * TJ.pixelSize(pixelFormat)</code>.
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image, or 0 to ignore the height. See
+     *            {@link #getScaledHeight}.
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public void decompress(ByteBuffer dstBuf, int x, int y, int desiredWidth, int pitch, int desiredHeight, int flags)
+            throws TJException {
+        if (dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly() || x < 0 || y < 0 || pitch < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        checkDecompress(flags);
+        TJScalingFactor sf = getScalingFactor(desiredWidth, desiredHeight);
+        int pixelSize = TJ.getPixelSize((int) pixelFormat.value());
+        int rowSize = sf.getScaled(getWidth()) * pixelSize;
+        if (pitch == 0)
+            pitch = rowSize;
+        else if (pitch < rowSize)
+            throw new IllegalArgumentException("Pitch is smaller than a scaled row");
+        long offset = (long) y * pitch + (long) x * pixelSize;
+        long end = offset + (long) (sf.getScaled(getHeight()) - 1) * pitch + rowSize;
+        if (x * pixelSize + rowSize > pitch || end > dstBuf.limit())
+            throw new IllegalArgumentException("Destination region does not fit in the destination buffer");
+        decompress(dstPointers.get(dstBuf, (int) offset), sf, pitch, flags);
+    }
+
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance into a YUV planar image and store it
+     * in the given {@link DirectYUVImage} instance. This method performs IDCT and entropy decoding but bypasses the
+     * color conversion step. The YUV image must use the level of chrominance subsampling of the JPEG image, and its
+     * dimensions must be those of the JPEG image or of one of its scaled-down sizes (see {@link #getScaledWidth}.)
+     *
+     * @param dstImage
+     *            {@link DirectYUVImage} instance that will receive the YUV planar image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public void decompressToYUV(DirectYUVImage dstImage, int flags) throws TJException {
+        if (dstImage == null || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompressToYUV()");
+        checkOpen();
+        if (jpegSize < 1)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        if (dstImage.getSubsamp() != getSubsamp())
+            throw new IllegalArgumentException("YUV image subsampling does not match the JPEG image");
+        TJScalingFactor sf = getScalingFactor(dstImage.getWidth(), dstImage.getHeight());
+        if (sf.getScaled(getWidth()) != dstImage.getWidth() || sf.getScaled(getHeight()) != dstImage.getHeight())
+            throw new IllegalArgumentException("YUV image dimensions are not a supported scaled size of the JPEG image");
+        if (NATIVES.tjDecompressToYUVPlanes(pointerToDecompressor, pointerToSrcBuf, jpegSize,
+                dstImage.getPointerToPlanes(), dstImage.getWidth(), dstImage.getPointerToStrides(),
+                dstImage.getHeight(), flags) != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        TJNativeLibrary.recordDecode();
+    }
+
+    /**
+     * Decompress the JPEG source image associated with this decompressor instance into a YUV planar image, scaled to
+     * the largest size that fits within the desired dimensions, and return it. The image's buffer is leased from this
+     * instance's {@link TJBufferPool}, and the caller gives it back by closing the image.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the YUV image, or 0 to ignore the width
+     *
+     * @param pad
+     *            the line padding to use in the YUV image
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the YUV image, or 0 to ignore the height
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a YUV planar image containing the decompressed image.
+     */
+    public DirectYUVImage decompressToYUV(int desiredWidth, int pad, int desiredHeight, int flags)
+            throws TJException {
+        checkOpen();
+        TJScalingFactor sf = getScalingFactor(desiredWidth, desiredHeight);
+        DirectYUVImage dstImage = DirectYUVImage.allocate(bufferPool, sf.getScaled(getWidth()), pad,
+                sf.getScaled(getHeight()), getSubsamp());
         try {
-            close();
-        } catch (TJException e) {
-        } finally {
-            super.finalize();
+            decompressToYUV(dstImage, flags);
+        } catch (TJException | RuntimeException e) {
+            dstImage.close();
+            throw e;
         }
-    };
+        return dstImage;
+    }
 
+    /**
+     * Decode a YUV planar image into an RGB, grayscale, or CMYK image and output it to the given destination buffer,
+     * starting at its current position. This method uses the accelerated color conversion routines in TurboJPEG's
+     * underlying codec but does not execute any of the other steps in the JPEG decompression process. It does not use
+     * or change the JPEG source image associated with this decompressor instance.
+     *
+     * @param srcImage
+     *            YUV planar image to decode. The image is not modified.
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decoded image. It must have at least
+     *            <code>width * height * TJ.getPixelSize(pixelFormat)</code> bytes remaining. On return, its position
+     *            has been advanced past the decoded image.
+     *
+     * @param pixelFormat
+     *            pixel format of the decoded image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the size of the decoded image (in bytes).
+     */
+    public int decodeYUV(DirectYUVImage srcImage, ByteBuffer dstBuf, TJPF pixelFormat, int flags) throws TJException {
+        if (srcImage == null || dstBuf == null || !dstBuf.isDirect() || dstBuf.isReadOnly() || pixelFormat == null
+                || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decodeYUV()");
+        checkOpen();
+        int requiredSize = srcImage.getWidth() * srcImage.getHeight() * TJ.getPixelSize((int) pixelFormat.value());
+        if (dstBuf.remaining() < requiredSize)
+            throw new IllegalArgumentException("Destination buffer is not large enough");
+        decodeYUV(srcImage, dstPointers.get(dstBuf), pixelFormat, flags);
+        dstBuf.position(dstBuf.position() + requiredSize);
+        return requiredSize;
+    }
+
+    /**
+     * Decode a YUV planar image into an RGB, grayscale, or CMYK image and return a buffer containing it. The buffer is
+     * leased from this instance's {@link TJBufferPool}, as with {@link #decompress(int)}.
+     *
+     * @param srcImage
+     *            YUV planar image to decode. The image is not modified.
+     *
+     * @param pixelFormat
+     *            pixel format of the decoded image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return a buffer whose position is 0 and whose limit is the size of the decoded image.
+     */
+    public ByteBuffer decodeYUV(DirectYUVImage srcImage, TJPF pixelFormat, int flags) throws TJException {
+        if (srcImage == null || pixelFormat == null || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decodeYUV()");
+        checkOpen();
+        int requiredSize = srcImage.getWidth() * srcImage.getHeight() * TJ.getPixelSize((int) pixelFormat.value());
+        releaseBuffer();
+        dstBuf = bufferPool.acquire(requiredSize);
+        pointerToDstBuf = dstPointers.get(dstBuf);
+        decodeYUV(srcImage, pointerToDstBuf, pixelFormat, flags);
+        dstBuf.rewind();
+        dstBuf.limit(requiredSize);
+        return dstBuf;
+    }
+
+    private void decodeYUV(DirectYUVImage srcImage, Pointer<Byte> dst, TJPF pixelFormat, int flags)
+            throws TJException {
+        if (NATIVES.tjDecodeYUVPlanes(pointerToDecompressor, srcImage.getPointerToPlanes(),
+                srcImage.getPointerToStrides(), (int) srcImage.getSubsamp().value(), dst, srcImage.getWidth(), 0,
+                srcImage.getHeight(), (int) pixelFormat.value(), flags) != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        TJNativeLibrary.recordDecode();
+    }
+
+    /**
+     * Returns the exact size (in bytes) of the image that a decompress operation produces from the JPEG source image
+     * associated with this decompressor instance, which is <code>width * height * TJ.getPixelSize(pixelFormat)</code>.
+     *
+     * @return the exact size (in bytes) of the image that a decompress operation produces.
+     */
+    public int getRequiredCapacity() {
+        if (pixelFormat == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        return getWidth() * getHeight() * TJ.getPixelSize((int) pixelFormat.value());
+    }
+
+    /**
+     * Returns the exact size (in bytes) of the image that a decompress operation with the given desired dimensions
+     * produces from the JPEG source image associated with this decompressor instance.
+     *
+     * @param desiredWidth
+     *            desired width (in pixels) of the decompressed image, or 0 to ignore the width
+     *
+     * @param desiredHeight
+     *            desired height (in pixels) of the decompressed image, or 0 to ignore the height
+     *
+     * @return the exact size (in bytes) of the image that a decompress operation with the given desired dimensions
+     *         produces.
+     */
+    public int getRequiredCapacity(int desiredWidth, int desiredHeight) throws TJException {
+        return getRequiredCapacity(getScalingFactor(desiredWidth, desiredHeight));
+    }
 
+    /**
+     * Returns the exact size (in bytes) of the image that a decompress operation with the given scaling factor
+     * produces from the JPEG source image associated with this decompressor instance.
+     *
+     * @param scalingFactor
+     *            one of the scaling factors returned from {@link #getScalingFactors}
+     *
+     * @return the exact size (in bytes) of the image that a decompress operation with the given scaling factor
+     *         produces.
+     */
+    public int getRequiredCapacity(TJScalingFactor scalingFactor) {
+        if (scalingFactor == null)
+            throw new IllegalArgumentException("Invalid argument in getRequiredCapacity()");
+        if (pixelFormat == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+        return scalingFactor.getScaled(getWidth()) * scalingFactor.getScaled(getHeight())
+                * TJ.getPixelSize((int) pixelFormat.value());
+    }
+
+    private void checkDecompress(int flags) {
+        if (flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        checkOpen();
+        if (pixelFormat == null)
+            throw new IllegalStateException(NO_ASSOC_ERROR);
+    }
+
+    private void checkScalingFactor(TJScalingFactor scalingFactor) throws TJException {
+        if (scalingFactor == null)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        for (TJScalingFactor sf : scalingFactors()) {
+            if (sf.equals(scalingFactor))
+                return;
+        }
+        throw new IllegalArgumentException("Unsupported scaling factor " + scalingFactor.getNum() + "/"
+                + scalingFactor.getDenom());
+    }
+
+    private void decompress(Pointer<Byte> dst, TJScalingFactor sf, int pitch, int flags) throws TJException {
+        if (NATIVES.tjDecompress2(pointerToDecompressor, pointerToSrcBuf, jpegSize, dst,
+                sf.getScaled(getWidth()), pitch, sf.getScaled(getHeight()), (int) pixelFormat.value(), flags) != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        TJNativeLibrary.recordDecode();
+    }
+
+
+
+    /**
+     * Free the native structures associated with this decompressor instance and give its destination buffer back to
+     * the pool. Calling this more than once has no effect.
+     */
+    @Override
+    public void close() throws TJException {
+        releaseBuffer();
+        srcPointers.clear();
+        dstPointers.clear();
+        headerPointers.clear();
+        registration.clean();
+    }
+
+    static TJBufferPool checkBufferPool(TJBufferPool bufferPool) {
+        if (bufferPool == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioDecompressor()");
+        return bufferPool;
+    }
+
+    void checkOpen() {
+        if (registration.isCleaned())
+            throw new IllegalStateException(CLOSED_ERROR);
+    }
 
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.util.concurrent.Executor;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * <code>Flow.Processor</code> that compresses the {@link TJNioFrame}s it receives, such as those of a
+ * {@link TJNioDecodeProcessor}, into frames that contain JPEG images. Each received frame is released as soon as it
+ * has been compressed, and frames that are still queued when the processor terminates are released without being
+ * compressed. At most <code>maxInFlight</code> JPEG frames exist at a time.
+ */
+public class TJNioEncodeProcessor extends TJNioStage<TJNioFrame> {
+
+    private final TJNioPool<TJNioCompressor> compressors;
+    private final TJSAMP subsamp;
+    private final int quality;
+    private final int flags;
+
+    /**
+     * Create an encode processor.
+     *
+     * @param compressors
+     *            pool from which a compressor is borrowed for each image
+     *
+     * @param executor
+     *            executor on which images are compressed and signals are sent to the subscriber
+     *
+     * @param maxInFlight
+     *            largest number of compressed images that exist at a time
+     *
+     * @param subsamp
+     *            the level of chrominance subsampling to use in the JPEG images
+     *
+     * @param quality
+     *            the JPEG image quality level (1 to 100, 1 = worst, 100 = best)
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link org.libjpegturbo.turbojpeg.TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public TJNioEncodeProcessor(TJNioPool<TJNioCompressor> compressors, Executor executor, int maxInFlight,
+            TJSAMP subsamp, int quality, int flags) {
+        super(executor, maxInFlight);
+        if (compressors == null || subsamp == null || quality < 1 || quality > 100 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in TJNioEncodeProcessor()");
+        this.compressors = compressors;
+        this.subsamp = subsamp;
+        this.quality = quality;
+        this.flags = flags;
+    }
+
+    @Override
+    TJNioFrame process(TJNioFrame frame) throws Exception {
+        try {
+            TJNioCompressor compressor = compressors.borrow();
+            try {
+                compressor.setSourceImage(frame.getBuffer(), frame.getWidth(), 0, frame.getHeight(),
+                        frame.getPixelFormat(), subsamp);
+                compressor.setJPEGQuality(quality);
+                compressor.compress(flags);
+                return new TJNioFrame(compressor.detachBuffer(), frame.getWidth(), frame.getHeight(), null,
+                        compressor.getBufferPool(), releaser);
+            } finally {
+                compressors.giveBack(compressor);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    void discard(TJNioFrame frame) {
+        frame.release();
+    }
+}
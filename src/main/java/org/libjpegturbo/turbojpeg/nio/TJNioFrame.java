@@ -0,0 +1,118 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+/**
+ * An image in a buffer that is leased from a {@link TJBufferPool}, as passed between the stages of a
+ * {@link TJNioDecodeProcessor} / {@link TJNioEncodeProcessor} pipeline. The consumer of a frame must call
+ * {@link #release} once it is done with the buffer, which gives the buffer back to its pool and lets the stage that
+ * produced the frame take on more work.
+ */
+public final class TJNioFrame {
+
+    private final ByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final TJPF pixelFormat;
+    private final TJBufferPool bufferPool;
+    private final Runnable onRelease;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    TJNioFrame(ByteBuffer buffer, int width, int height, TJPF pixelFormat, TJBufferPool bufferPool,
+            Runnable onRelease) {
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+        this.bufferPool = bufferPool;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * Returns the buffer containing the image, from position 0 to its limit.
+     *
+     * @return the buffer containing the image, from position 0 to its limit.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the width of the image.
+     *
+     * @return the width (in pixels) of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return the height (in pixels) of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pixel format of the image.
+     *
+     * @return the pixel format of the image, or null if the buffer contains a JPEG image.
+     */
+    public TJPF getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Returns whether {@link #release} has been called.
+     *
+     * @return true if {@link #release} has been called.
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Give the buffer back to its pool. The buffer must not be used after that. Calling this more than once has no
+     * effect.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            bufferPool.release(buffer);
+            onRelease.run();
+        }
+    }
+}
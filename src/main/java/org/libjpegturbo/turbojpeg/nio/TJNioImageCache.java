@@ -0,0 +1,482 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+/**
+ * Cache of decompressed images, keyed by a hash of the JPEG image together with the requested size, pixel format and
+ * flags. The pixels stay in the direct buffers that the decompressors lease from their {@link TJBufferPool}, so the
+ * cache is bounded by the bytes of those buffers rather than by the number of images, and the Java heap only holds
+ * the bookkeeping.
+ * <p>
+ * Images are admitted W-TinyLFU style: a new image first goes to a small window, which takes 1% of the budget, and
+ * then competes for a place in the main part of the cache with the image that would be evicted to make room. The
+ * one that has been requested more often recently, according to a {@link FrequencySketch}, stays. An image that is
+ * requested once and never again therefore does not push out images that are requested all the time. The main part
+ * is a segmented LRU, in which images that are requested again while on probation are protected.
+ * <p>
+ * The images are returned as {@link TJNioSharedBuffer}s, of which the caller owns one reference and the cache
+ * another, so an image that is evicted stays valid until its last holder releases it. Concurrent misses on the same
+ * image are decompressed once, through a {@link TJNioCoalescer}.
+ * <p>
+ * With {@link Storage#YUV} storage, the cache keeps the YUV planes that the images decompress to, before color
+ * conversion, and converts them to the requested pixel format on every request. An image with 4:2:0 subsampling then
+ * takes 1.5 bytes per pixel instead of 3 or 4, so the same budget holds twice as many images or more, at the cost of
+ * the color conversion, and one entry serves every pixel format. Consumers of planar images can get the planes
+ * themselves from {@link #decompressToYUV}, in either storage mode.
+ */
+public class TJNioImageCache {
+
+    /** Size of a cached image that the frequency sketch is initially sized by */
+    static final int AVERAGE_ENTRY_BYTES = 64 * 1024;
+
+    /** Smallest number of keys that the frequency sketch is sized for, which takes 2 KiB */
+    static final int MIN_SKETCH_WIDTH = 1024;
+
+    /**
+     * How the cache stores the images that {@link TJNioImageCache#decompress} returns
+     */
+    public enum Storage {
+        /**
+         * As packed pixels in the requested pixel format, which are returned as they are
+         */
+        PIXELS,
+        /**
+         * As YUV planes with the chrominance subsampling of the JPEG image, which are converted to the requested pixel
+         * format on every request
+         */
+        YUV
+    }
+
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private final TJNioCoalescer loader;
+    private final Storage storage;
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final HashMap<ContentKey, Node> index = new HashMap<ContentKey, Node>();
+    private final LinkedHashMap<ContentKey, Node> window = new LinkedHashMap<ContentKey, Node>();
+    private final LinkedHashMap<ContentKey, Node> probation = new LinkedHashMap<ContentKey, Node>();
+    private final LinkedHashMap<ContentKey, Node> protect = new LinkedHashMap<ContentKey, Node>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a cache that stores images as packed pixels.
+     *
+     * @param loader
+     *            coalescer through which the images that are not in the cache are decompressed
+     *
+     * @param maxBytes
+     *            the most bytes of decompressed images that the cache holds, counting the whole capacity of their
+     *            buffers
+     */
+    public TJNioImageCache(TJNioCoalescer loader, long maxBytes) {
+        this(loader, maxBytes, Storage.PIXELS);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param loader
+     *            coalescer through which the images that are not in the cache are decompressed, and from whose
+     *            decompressor pool the decompressors that convert YUV planes are borrowed
+     *
+     * @param maxBytes
+     *            the most bytes of decompressed images that the cache holds, counting the whole capacity of their
+     *            buffers
+     *
+     * @param storage
+     *            how the cache stores the images that {@link #decompress} returns
+     */
+    public TJNioImageCache(TJNioCoalescer loader, long maxBytes, Storage storage) {
+        if (loader == null || maxBytes <= 0 || storage == null)
+            throw new IllegalArgumentException("Invalid argument in TJNioImageCache()");
+        this.loader = loader;
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = maxBytes / 100;
+        this.maxProtectedBytes = (maxBytes - maxWindowBytes) * 4 / 5;
+        this.sketch = new FrequencySketch((int) Math.max(MIN_SKETCH_WIDTH,
+                Math.min(Integer.MAX_VALUE, maxBytes / AVERAGE_ENTRY_BYTES)));
+    }
+
+    /**
+     * Returns an image from the cache, or decompress it at the scaled size closest to the given size and add it to the
+     * cache. See {@link TJNioDecompressor#setSourceImage} and {@link TJNioDecompressor#decompress(int, int, int)} for
+     * a description of the parameters.
+     *
+     * @return the decompressed image, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer decompress(ByteBuffer jpegImage, TJPF pixelFormat, int desiredWidth, int desiredHeight,
+            int flags) throws TJException {
+        if (jpegImage == null || pixelFormat == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        if (storage == Storage.YUV) {
+            // Bottom-up order only applies to the conversion, so one entry serves both orders
+            TJNioSharedBuffer planes = decompressToYUV(jpegImage, desiredWidth, desiredHeight,
+                    flags & ~TJ.FLAG_BOTTOMUP);
+            try {
+                return decodeYUV(planes, pixelFormat, flags);
+            } finally {
+                planes.release();
+            }
+        }
+        ContentKey key = TJNioCoalescer.decompressKey(jpegImage, pixelFormat, desiredWidth, desiredHeight, flags);
+        TJNioSharedBuffer image = get(key);
+        if (image == null) {
+            image = loader.decompress(key, jpegImage, pixelFormat, desiredWidth, desiredHeight, flags);
+            put(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * Returns an image from the cache, or decompress it at its full size and add it to the cache.
+     *
+     * @return the decompressed image, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer decompress(ByteBuffer jpegImage, TJPF pixelFormat, int flags) throws TJException {
+        return decompress(jpegImage, pixelFormat, 0, 0, flags);
+    }
+
+    /**
+     * Returns a YUV planar image from the cache, or decompress it into YUV planes, scaled to the largest size that
+     * fits within the desired dimensions, and add it to the cache. See
+     * {@link TJNioCoalescer#decompressToYUV(ByteBuffer, int, int, int)} for a description of the parameters.
+     *
+     * @return the YUV planar image, of which the caller owns one reference.
+     */
+    public TJNioSharedBuffer decompressToYUV(ByteBuffer jpegImage, int desiredWidth, int desiredHeight, int flags)
+            throws TJException {
+        if (jpegImage == null || desiredWidth < 0 || desiredHeight < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompressToYUV()");
+        ContentKey key = TJNioCoalescer.decompressToYUVKey(jpegImage, desiredWidth, desiredHeight, flags);
+        TJNioSharedBuffer planes = get(key);
+        if (planes == null) {
+            planes = loader.decompressToYUV(key, jpegImage, desiredWidth, desiredHeight, flags);
+            put(key, planes);
+        }
+        return planes;
+    }
+
+    private TJNioSharedBuffer decodeYUV(TJNioSharedBuffer planes, TJPF pixelFormat, int flags) throws TJException {
+        TJNioPool<TJNioDecompressor> decompressors = loader.getDecompressors();
+        TJNioDecompressor decompressor = decompressors.borrow();
+        try {
+            decompressor.decodeYUV(planes.getYUVImage(), pixelFormat, flags);
+            return new TJNioSharedBuffer(decompressor.detachBuffer(), planes.getWidth(), planes.getHeight(),
+                    pixelFormat, decompressor.getBufferPool());
+        } finally {
+            decompressors.giveBack(decompressor);
+        }
+    }
+
+    /**
+     * Returns a new reference to a cached image, and records the request in the frequency sketch.
+     *
+     * @return a new reference to the cached image, or null if the image is not in the cache.
+     */
+    TJNioSharedBuffer get(ContentKey key) {
+        lock.lock();
+        try {
+            sketch.increment(key.getHash());
+            Node node = index.get(key);
+            if (node == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            touch(node);
+            return node.image.retain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offer an image to the cache, which takes its own reference to the image if the image is admitted. The caller
+     * keeps its reference either way.
+     */
+    void put(ContentKey key, TJNioSharedBuffer image) {
+        lock.lock();
+        try {
+            if (index.containsKey(key))
+                return;
+            // The buffer holds its whole size class, which can be a quarter larger than the image
+            if (image.getCapacity() > maxBytes) {
+                evictions++;
+                return;
+            }
+            Node node = new Node(key, image.retain(), image.getCapacity());
+            index.put(key, node);
+            // Images smaller than expected: keep the sketch wide enough to tell the cached ones apart
+            if (index.size() > sketch.getWidth() / 2)
+                sketch.ensureCapacity(index.size() * 2);
+            add(node, Segment.WINDOW);
+            // The window overflows into probation, where each newcomer has to beat the LRU victim to stay
+            while (windowBytes > maxWindowBytes)
+                admit(first(window));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void touch(Node node) {
+        switch (node.segment) {
+        case WINDOW:
+            remove(node);
+            add(node, Segment.WINDOW);
+            break;
+        case PROBATION:
+        case PROTECTED:
+            remove(node);
+            add(node, Segment.PROTECTED);
+            while (protectedBytes > maxProtectedBytes) {
+                Node demoted = first(protect);
+                remove(demoted);
+                add(demoted, Segment.PROBATION);
+            }
+            break;
+        }
+    }
+
+    private void admit(Node candidate) {
+        remove(candidate);
+        int frequency = sketch.frequency(candidate.key.getHash());
+        while (probationBytes + protectedBytes + candidate.size > maxBytes - maxWindowBytes) {
+            Node victim = probation.isEmpty() ? first(protect) : first(probation);
+            if (victim == null || frequency <= sketch.frequency(victim.key.getHash())) {
+                evict(candidate);
+                return;
+            }
+            remove(victim);
+            evict(victim);
+        }
+        add(candidate, Segment.PROBATION);
+    }
+
+    private void evict(Node node) {
+        index.remove(node.key);
+        node.image.release();
+        evictions++;
+    }
+
+    private static Node first(LinkedHashMap<ContentKey, Node> segment) {
+        Iterator<Node> nodes = segment.values().iterator();
+        return nodes.hasNext() ? nodes.next() : null;
+    }
+
+    private void add(Node node, Segment segment) {
+        node.segment = segment;
+        switch (segment) {
+        case WINDOW:
+            window.put(node.key, node);
+            windowBytes += node.size;
+            break;
+        case PROBATION:
+            probation.put(node.key, node);
+            probationBytes += node.size;
+            break;
+        case PROTECTED:
+            protect.put(node.key, node);
+            protectedBytes += node.size;
+            break;
+        }
+    }
+
+    private void remove(Node node) {
+        switch (node.segment) {
+        case WINDOW:
+            window.remove(node.key);
+            windowBytes -= node.size;
+            break;
+        case PROBATION:
+            probation.remove(node.key);
+            probationBytes -= node.size;
+            break;
+        case PROTECTED:
+            protect.remove(node.key);
+            protectedBytes -= node.size;
+            break;
+        }
+    }
+
+    /**
+     * Remove all images from the cache. Images that are still held by callers stay valid until they are released.
+     */
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            for (Node node : index.values())
+                node.image.release();
+            index.clear();
+            window.clear();
+            probation.clear();
+            protect.clear();
+            windowBytes = probationBytes = protectedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how the cache stores the images that {@link #decompress} returns.
+     *
+     * @return how the cache stores the images that {@link #decompress} returns.
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the most bytes of decompressed images that the cache holds.
+     *
+     * @return the most bytes of decompressed images that the cache holds.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the bytes of the decompressed images in the cache, counting the whole capacity of their buffers.
+     *
+     * @return the bytes of the decompressed images in the cache.
+     */
+    public long getResidentBytes() {
+        lock.lock();
+        try {
+            return windowBytes + probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of images in the cache.
+     *
+     * @return the number of images in the cache.
+     */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests that were served from the cache.
+     *
+     * @return the number of requests that were served from the cache.
+     */
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests that were not served from the cache.
+     *
+     * @return the number of requests that were not served from the cache.
+     */
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fraction of requests that were served from the cache.
+     *
+     * @return the fraction of requests that were served from the cache, or 0 if there have been none.
+     */
+    public double getHitRatio() {
+        lock.lock();
+        try {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of images that were evicted from the cache or not admitted to it.
+     *
+     * @return the number of images that were evicted from the cache or not admitted to it.
+     */
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Node {
+        final ContentKey key;
+        final TJNioSharedBuffer image;
+        final int size;
+        Segment segment;
+
+        Node(ContentKey key, TJNioSharedBuffer image, int size) {
+            this.key = key;
+            this.image = image;
+            this.size = size;
+        }
+    }
+}
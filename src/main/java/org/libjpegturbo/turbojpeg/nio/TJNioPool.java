@@ -0,0 +1,462 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.libjpegturbo.turbojpeg.TJException;
+
+/**
+ * Bounded pool of TurboJPEG NIO codec handles. Creating a {@link TJNioCompressor} or {@link TJNioDecompressor}
+ * initializes a complete libjpeg codec state, which is expensive relative to compressing or decompressing a small
+ * image, so handles should be borrowed from a pool rather than created per request.
+ * <p>
+ * Each thread has a private slot holding the handle it returned most recently, so a thread that repeatedly borrows and
+ * returns a handle never touches shared state. Handles returned while the thread's slot is occupied go to a shared
+ * overflow list of at most <code>maxShared</code> entries; handles returned while that list is full are closed. Idle
+ * handles (in thread slots or in the shared list) that have not been used for <code>maxIdleMillis</code> are closed
+ * by {@link #evictIdle}, which is also run opportunistically when handles are returned. The slots of threads that
+ * have terminated, and the handles left in them, are reclaimed whenever a new thread first uses the pool, whether or
+ * not idle eviction is enabled, so pools used from short-lived threads do not grow without bound. Virtual threads are
+ * too short-lived and too numerous for a slot to pay off, so they use the shared list only.
+ * <p>
+ * A borrowed handle keeps whatever state the previous user left on it (source image, JPEG quality, etc.), so callers
+ * must set up the handle completely before each use.
+ */
+public abstract class TJNioPool<T extends Closeable> implements Closeable {
+
+    private static final String CLOSED_ERROR = "This pool has been closed";
+
+    private final int maxShared;
+    private final long maxIdleNanos;
+    private final ConcurrentLinkedDeque<Entry<T>> shared = new ConcurrentLinkedDeque<Entry<T>>();
+    private final AtomicInteger sharedSize = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Slot<T>> slots = new ConcurrentLinkedQueue<Slot<T>>();
+    private final ThreadLocal<Slot<T>> localSlot = new ThreadLocal<Slot<T>>() {
+        @Override
+        protected Slot<T> initialValue() {
+            evictDeadSlots();
+            Slot<T> slot = new Slot<T>(Thread.currentThread());
+            slots.add(slot);
+            return slot;
+        }
+    };
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool of TurboJPEG NIO codec handles.
+     *
+     * @param maxShared
+     *            maximum number of idle handles kept in the shared overflow list, in addition to the one handle that
+     *            each thread may keep in its private slot
+     *
+     * @param maxIdleMillis
+     *            idle handles that have not been used for this many milliseconds are closed. Setting this to 0
+     *            disables idle eviction.
+     */
+    protected TJNioPool(int maxShared, long maxIdleMillis) {
+        if (maxShared < 0 || maxIdleMillis < 0)
+            throw new IllegalArgumentException("Invalid argument in TJNioPool()");
+        this.maxShared = maxShared;
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+    }
+
+    /**
+     * Create a pool of {@link TJNioCompressor} instances.
+     *
+     * @param maxShared
+     *            see {@link #TJNioPool} for description
+     *
+     * @param maxIdleMillis
+     *            see {@link #TJNioPool} for description
+     *
+     * @return a pool of {@link TJNioCompressor} instances.
+     */
+    public static TJNioPool<TJNioCompressor> newCompressorPool(int maxShared, long maxIdleMillis) {
+        return new TJNioPool<TJNioCompressor>(maxShared, maxIdleMillis) {
+            @Override
+            protected TJNioCompressor create() throws TJException {
+                return new TJNioCompressor();
+            }
+
+            @Override
+            protected void passivate(TJNioCompressor handle) {
+                handle.releaseBuffer();
+            }
+        };
+    }
+
+    /**
+     * Create a pool of {@link TJNioDecompressor} instances.
+     *
+     * @param maxShared
+     *            see {@link #TJNioPool} for description
+     *
+     * @param maxIdleMillis
+     *            see {@link #TJNioPool} for description
+     *
+     * @return a pool of {@link TJNioDecompressor} instances.
+     */
+    public static TJNioPool<TJNioDecompressor> newDecompressorPool(int maxShared, long maxIdleMillis) {
+        return new TJNioPool<TJNioDecompressor>(maxShared, maxIdleMillis) {
+            @Override
+            protected TJNioDecompressor create() throws TJException {
+                return new TJNioDecompressor();
+            }
+
+            @Override
+            protected void passivate(TJNioDecompressor handle) {
+                handle.releaseBuffer();
+            }
+        };
+    }
+
+    /**
+     * Create a new handle. Called whenever a handle is borrowed and no idle handle is available.
+     *
+     * @return a new handle.
+     */
+    protected abstract T create() throws TJException;
+
+    /**
+     * Prepare a handle that has been given back for a period of idleness. The default implementation does nothing;
+     * the codec pools use this to give the handle's destination buffer back to its {@link TJBufferPool}, so that idle
+     * handles do not hold on to direct memory.
+     *
+     * @param handle
+     *            the handle that has been given back
+     */
+    protected void passivate(T handle) {
+    }
+
+    /**
+     * Borrow a handle from this pool. The handle must be given back with {@link #giveBack} once the caller is done with
+     * it, and it must not be used after that.
+     *
+     * @return an idle handle, or a newly created one if no idle handle is available.
+     */
+    public T borrow() throws TJException {
+        if (closed)
+            throw new IllegalStateException(CLOSED_ERROR);
+        Entry<T> entry = TJNioBridge.isVirtual(Thread.currentThread()) ? null : localSlot.get().entry.getAndSet(null);
+        if (entry != null) {
+            localHits.incrementAndGet();
+            return entry.handle;
+        }
+        entry = shared.pollFirst();
+        if (entry != null) {
+            sharedSize.decrementAndGet();
+            sharedHits.incrementAndGet();
+            return entry.handle;
+        }
+        misses.incrementAndGet();
+        T handle = create();
+        created.incrementAndGet();
+        return handle;
+    }
+
+    /**
+     * Borrow a handle from this pool for use in a try-with-resources statement. Closing the returned lease gives the
+     * handle back to this pool.
+     *
+     * @return a lease on an idle or newly created handle.
+     */
+    public Lease<T> lease() throws TJException {
+        return new Lease<T>(this, borrow());
+    }
+
+    /**
+     * Give a handle that was obtained from {@link #borrow} back to this pool. If the pool has been closed or its shared
+     * overflow list is full, then the handle is closed instead.
+     *
+     * @param handle
+     *            the handle to give back
+     */
+    public void giveBack(T handle) {
+        if (handle == null)
+            throw new IllegalArgumentException("Invalid argument in giveBack()");
+        passivate(handle);
+        long now = System.nanoTime();
+        if (closed) {
+            closeQuietly(handle);
+            return;
+        }
+        Entry<T> entry = new Entry<T>(handle, now);
+        if (TJNioBridge.isVirtual(Thread.currentThread()) || !localSlot.get().entry.compareAndSet(null, entry)) {
+            if (sharedSize.incrementAndGet() <= maxShared) {
+                shared.offerFirst(entry);
+            } else {
+                sharedSize.decrementAndGet();
+                discarded.incrementAndGet();
+                closeQuietly(handle);
+            }
+        }
+        // A pool closed concurrently with this call may have missed the entry we just stored.
+        if (closed)
+            drain();
+        else if (maxIdleNanos > 0) {
+            long last = lastEviction.get();
+            if (now - last >= maxIdleNanos && lastEviction.compareAndSet(last, now))
+                evictIdle(now);
+        }
+    }
+
+    /**
+     * Close all idle handles that have not been used for <code>maxIdleMillis</code>, as well as handles that were left
+     * in the private slots of threads that have since terminated.
+     *
+     * @return the number of handles that were closed.
+     */
+    public int evictIdle() {
+        return evictIdle(System.nanoTime());
+    }
+
+    private int evictIdle(long now) {
+        int count = 0;
+        for (Iterator<Slot<T>> it = slots.iterator(); it.hasNext();) {
+            Slot<T> slot = it.next();
+            Entry<T> entry = slot.entry.get();
+            boolean dead = slot.isDead();
+            if (entry != null && (dead || isIdle(entry, now)) && slot.entry.compareAndSet(entry, null)) {
+                closeQuietly(entry.handle);
+                count++;
+            }
+            if (dead)
+                it.remove();
+        }
+        // Handles are pushed and popped at the head, so the least recently used ones are at the tail.
+        for (Iterator<Entry<T>> it = shared.descendingIterator(); it.hasNext();) {
+            Entry<T> entry = it.next();
+            if (!isIdle(entry, now))
+                break;
+            if (shared.removeLastOccurrence(entry)) {
+                sharedSize.decrementAndGet();
+                closeQuietly(entry.handle);
+                count++;
+            }
+        }
+        evicted.addAndGet(count);
+        return count;
+    }
+
+    private void evictDeadSlots() {
+        int count = 0;
+        for (Iterator<Slot<T>> it = slots.iterator(); it.hasNext();) {
+            Slot<T> slot = it.next();
+            if (!slot.isDead())
+                continue;
+            Entry<T> entry = slot.entry.getAndSet(null);
+            if (entry != null) {
+                closeQuietly(entry.handle);
+                count++;
+            }
+            it.remove();
+        }
+        evicted.addAndGet(count);
+    }
+
+    private boolean isIdle(Entry<T> entry, long now) {
+        return maxIdleNanos > 0 && now - entry.lastUsed >= maxIdleNanos;
+    }
+
+    /**
+     * Returns the number of idle handles currently held by this pool.
+     *
+     * @return the number of idle handles currently held by this pool.
+     */
+    public int getIdleCount() {
+        int count = sharedSize.get();
+        for (Slot<T> slot : slots) {
+            if (slot.entry.get() != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of borrow operations that were satisfied by the calling thread's private slot.
+     *
+     * @return the number of borrow operations that were satisfied by the calling thread's private slot.
+     */
+    public long getThreadLocalHits() {
+        return localHits.get();
+    }
+
+    /**
+     * Returns the number of borrow operations that were satisfied by the shared overflow list.
+     *
+     * @return the number of borrow operations that were satisfied by the shared overflow list.
+     */
+    public long getSharedHits() {
+        return sharedHits.get();
+    }
+
+    /**
+     * Returns the number of borrow operations that found no idle handle.
+     *
+     * @return the number of borrow operations that found no idle handle.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of handles that this pool has created.
+     *
+     * @return the number of handles that this pool has created.
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of idle handles that this pool has closed because they were idle for too long or because
+     * their thread terminated.
+     *
+     * @return the number of idle handles that this pool has closed because they were idle for too long or because
+     *         their thread terminated.
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * Returns the number of handles that were closed when given back because the shared overflow list was full.
+     *
+     * @return the number of handles that were closed when given back because the shared overflow list was full.
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * Close all idle handles held by this pool. Handles that are still borrowed are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    private void drain() {
+        for (Slot<T> slot : slots) {
+            Entry<T> entry = slot.entry.getAndSet(null);
+            if (entry != null)
+                closeQuietly(entry.handle);
+        }
+        Entry<T> entry;
+        while ((entry = shared.pollFirst()) != null) {
+            sharedSize.decrementAndGet();
+            closeQuietly(entry.handle);
+        }
+    }
+
+    private static void closeQuietly(Closeable handle) {
+        try {
+            handle.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * A handle borrowed from a {@link TJNioPool}. Closing the lease gives the handle back to the pool.
+     */
+    public static final class Lease<T extends Closeable> implements Closeable {
+
+        private final TJNioPool<T> pool;
+        private T handle;
+
+        Lease(TJNioPool<T> pool, T handle) {
+            this.pool = pool;
+            this.handle = handle;
+        }
+
+        /**
+         * Returns the borrowed handle.
+         *
+         * @return the borrowed handle.
+         */
+        public T get() {
+            if (handle == null)
+                throw new IllegalStateException("This lease has been closed");
+            return handle;
+        }
+
+        /**
+         * Give the borrowed handle back to the pool. Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (handle != null) {
+                pool.giveBack(handle);
+                handle = null;
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        final T handle;
+        final long lastUsed;
+
+        Entry(T handle, long lastUsed) {
+            this.handle = handle;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final class Slot<T> {
+        final WeakReference<Thread> owner;
+        final AtomicReference<Entry<T>> entry = new AtomicReference<Entry<T>>();
+
+        Slot(Thread owner) {
+            this.owner = new WeakReference<Thread>(owner);
+        }
+
+        boolean isDead() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * An image in a buffer that is leased from a {@link TJBufferPool} and shared by several holders, each of which owns a
+ * reference to it. The buffer is given back to its pool when the last reference is released. The holders get
+ * read-only views of the buffer, so that none of them can change the image under the others.
+ * <p>
+ * The image is either a JPEG image, an image of packed pixels, or a YUV planar image whose planes are stored one
+ * after the other, as in {@link DirectYUVImage#allocate}.
+ */
+public final class TJNioSharedBuffer {
+
+    private final ByteBuffer buffer;
+    private final int width;
+    private final int height;
+    private final TJPF pixelFormat;
+    private final TJSAMP subsamp;
+    private final int[] strides;
+    private final TJBufferPool bufferPool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Create a shared buffer with a single reference, which is owned by the caller.
+     */
+    TJNioSharedBuffer(ByteBuffer buffer, int width, int height, TJPF pixelFormat, TJBufferPool bufferPool) {
+        this(buffer, width, height, pixelFormat, null, null, bufferPool);
+    }
+
+    /**
+     * Create a shared buffer with a single reference, which is owned by the caller, from the unified buffer of a
+     * YUV planar image.
+     */
+    TJNioSharedBuffer(DirectYUVImage image, TJBufferPool bufferPool) {
+        this(image.getBuf(), image.getWidth(), image.getHeight(), null, image.getSubsamp(), image.getStrides(),
+                bufferPool);
+    }
+
+    private TJNioSharedBuffer(ByteBuffer buffer, int width, int height, TJPF pixelFormat, TJSAMP subsamp,
+            int[] strides, TJBufferPool bufferPool) {
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+        this.subsamp = subsamp;
+        this.strides = strides;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns a read-only view of the buffer containing the image, from position 0 to its limit.
+     *
+     * @return a read-only view of the buffer containing the image, from position 0 to its limit.
+     */
+    public ByteBuffer getBuffer() {
+        if (refCount.get() <= 0)
+            throw new IllegalStateException("This buffer has been released");
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the width of the image.
+     *
+     * @return the width (in pixels) of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return the height (in pixels) of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pixel format of the image.
+     *
+     * @return the pixel format of the image, or null if the buffer contains a JPEG image or a YUV planar image.
+     */
+    public TJPF getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Returns the level of chrominance subsampling of the YUV planar image in the buffer.
+     *
+     * @return the level of chrominance subsampling of the YUV planar image, or null if the buffer does not contain a
+     *         YUV planar image.
+     */
+    public TJSAMP getSubsamp() {
+        return subsamp;
+    }
+
+    /**
+     * Returns a view of the YUV planar image in the buffer, whose planes are read-only. The view is valid as long as
+     * the caller holds its reference, and closing it has no effect.
+     *
+     * @return a view of the YUV planar image in the buffer.
+     */
+    public DirectYUVImage getYUVImage() {
+        if (subsamp == null)
+            throw new IllegalStateException("This buffer does not contain a YUV planar image");
+        ByteBuffer buf = getBuffer();
+        ByteBuffer[] planes = new ByteBuffer[strides.length];
+        int offset = 0;
+        for (int i = 0; i < planes.length; i++) {
+            int planeSize = strides[i] * DirectYUVImage.getPlaneHeight(i, height, subsamp);
+            buf.limit(offset + planeSize).position(offset);
+            planes[i] = buf.slice();
+            offset += planeSize;
+        }
+        return new DirectYUVImage(planes, width, strides, height, subsamp);
+    }
+
+    /**
+     * Returns the size of the image.
+     *
+     * @return the size (in bytes) of the image.
+     */
+    public int getSize() {
+        return buffer.limit();
+    }
+
+    /**
+     * Returns the capacity of the buffer holding the image, which for a pooled buffer is its
+     * {@link TJBufferPool} size class.
+     *
+     * @return the capacity (in bytes) of the buffer holding the image.
+     */
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the number of references to this buffer that have not been released.
+     *
+     * @return the number of references to this buffer that have not been released.
+     */
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /**
+     * Take another reference to this buffer, which must be released separately.
+     *
+     * @return this buffer.
+     */
+    public TJNioSharedBuffer retain() {
+        retain(1);
+        return this;
+    }
+
+    void retain(int references) {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0)
+                throw new IllegalStateException("This buffer has been released");
+        } while (!refCount.compareAndSet(count, count + references));
+    }
+
+    /**
+     * Take another reference to this buffer unless it has already been given back to its pool.
+     *
+     * @return true if a reference was taken.
+     */
+    boolean tryRetain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0)
+                return false;
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Release a reference to this buffer. The buffer is given back to its pool once all references have been
+     * released, and must not be used by a holder after it has released its reference.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0)
+            bufferPool.release(buffer);
+        else if (count < 0)
+            throw new IllegalStateException("This buffer has already been released");
+    }
+}
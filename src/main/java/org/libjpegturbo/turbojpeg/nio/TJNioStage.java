@@ -0,0 +1,257 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Demand-driven stage that turns each item from upstream into one {@link TJNioFrame}. Items are requested from
+ * upstream only while the subscriber has demand and fewer than <code>maxInFlight</code> frames are queued, being
+ * produced, or emitted but not yet released, so a burst upstream cannot lease more than <code>maxInFlight</code>
+ * buffers. All processing and all signals to the subscriber happen in a drain loop that runs on the executor, one
+ * pass at a time.
+ */
+abstract class TJNioStage<I> implements Flow.Processor<I, TJNioFrame> {
+
+    private final Executor executor;
+    private final int maxInFlight;
+    private final ConcurrentLinkedQueue<I> queue = new ConcurrentLinkedQueue<I>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<Flow.Subscription>();
+    private final AtomicReference<Flow.Subscriber<? super TJNioFrame>> downstream =
+            new AtomicReference<Flow.Subscriber<? super TJNioFrame>>();
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile Throwable downstreamError;
+    private volatile boolean cancelled;
+    private boolean terminated;
+    /** Passed to the frames that this stage emits, and run when they are released */
+    final Runnable releaser = new Runnable() {
+        @Override
+        public void run() {
+            inFlight.decrementAndGet();
+            signal();
+        }
+    };
+
+    TJNioStage(Executor executor, int maxInFlight) {
+        if (executor == null || maxInFlight < 1)
+            throw new IllegalArgumentException("Invalid argument in " + getClass().getSimpleName() + "()");
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Turn an item from upstream into a frame whose release runs {@link #releaser}.
+     */
+    abstract TJNioFrame process(I item) throws Exception;
+
+    /**
+     * Dispose of an item from upstream that will not be processed.
+     */
+    void discard(I item) {
+    }
+
+    /**
+     * Returns the number of frames that have been emitted and not yet released, or are being produced.
+     *
+     * @return the number of frames that have been emitted and not yet released, or are being produced.
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TJNioFrame> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("This processor already has a subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    downstreamError = new IllegalArgumentException("Non-positive request: " + n);
+                } else {
+                    long current, next;
+                    do {
+                        current = demand.get();
+                        next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                    } while (!demand.compareAndSet(current, next));
+                }
+                signal();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                signal();
+            }
+        });
+        signal();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (!upstream.compareAndSet(null, subscription)) {
+            subscription.cancel();
+            return;
+        }
+        signal();
+    }
+
+    @Override
+    public void onNext(I item) {
+        pending.decrementAndGet();
+        queued.incrementAndGet();
+        queue.offer(item);
+        signal();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        signal();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        signal();
+    }
+
+    private void signal() {
+        if (wip.getAndIncrement() == 0)
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int missed = 1;
+                    do {
+                        drain();
+                        missed = wip.addAndGet(-missed);
+                    } while (missed != 0);
+                }
+            });
+    }
+
+    private void drain() {
+        Flow.Subscriber<? super TJNioFrame> subscriber = downstream.get();
+        if (terminated) {
+            // Items that were already on their way when the stage terminated
+            for (I item = queue.poll(); item != null; item = queue.poll())
+                discard(item);
+            return;
+        }
+        if (subscriber == null)
+            return;
+        if (cancelled) {
+            terminate(null, null);
+            return;
+        }
+        if (downstreamError != null) {
+            terminate(subscriber, downstreamError);
+            return;
+        }
+        if (upstreamError != null) {
+            terminate(subscriber, upstreamError);
+            return;
+        }
+        while (demand.get() > 0 && !queue.isEmpty()) {
+            I item = queue.poll();
+            queued.decrementAndGet();
+            inFlight.incrementAndGet();
+            TJNioFrame frame;
+            try {
+                frame = process(item);
+            } catch (Throwable e) {
+                inFlight.decrementAndGet();
+                terminate(subscriber, e);
+                return;
+            }
+            demand.decrementAndGet();
+            subscriber.onNext(frame);
+            if (cancelled) {
+                terminate(null, null);
+                return;
+            }
+        }
+        if (upstreamDone && queue.isEmpty()) {
+            terminate(subscriber, null);
+            return;
+        }
+        Flow.Subscription subscription = upstream.get();
+        if (subscription == null || upstreamDone)
+            return;
+        long outstanding = queued.get() + pending.get();
+        long wanted = Math.min(demand.get(), maxInFlight) - outstanding;
+        long capacity = maxInFlight - inFlight.get() - outstanding;
+        int n = (int) Math.min(wanted, capacity);
+        if (n > 0) {
+            pending.addAndGet(n);
+            subscription.request(n);
+        }
+    }
+
+    private void terminate(Flow.Subscriber<? super TJNioFrame> subscriber, Throwable error) {
+        terminated = true;
+        Flow.Subscription subscription = upstream.get();
+        if (subscription != null && !upstreamDone)
+            subscription.cancel();
+        for (I item = queue.poll(); item != null; item = queue.poll())
+            discard(item);
+        if (subscriber == null)
+            return;
+        if (error != null)
+            subscriber.onError(error);
+        else
+            subscriber.onComplete();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.libjpegturbo.turbojpeg.nio.TurbojpegNatives.NATIVES;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+import org.bridj.CLong;
+import org.bridj.Pointer;
+import org.bridj.Pointer.StringType;
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJCustomFilter;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.TJTransform;
+import org.libjpegturbo.turbojpeg.bridj.TJRegion;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+/**
+ * TurboJPEG lossless transformer
+ */
+public class TJNioTransformer extends TJNioDecompressor {
+
+    private Pointer<org.libjpegturbo.turbojpeg.bridj.TJTransform> pointerToTransforms;
+    private Pointer<Pointer<Byte>> pointerToDstBufs;
+    private Pointer<CLong> pointerToDstSizes;
+    private int capacity = 0;
+    private ByteBuffer[] transformedBufs = null;
+    private int[] transformedSizes = null;
+    private FilterCallback filterCallback;
+    private Pointer<org.libjpegturbo.turbojpeg.bridj.TJTransform.CustomFilterCallback> pointerToFilterCallback;
+
+    /**
+     * Create a TurboJPEG lossless transformer instance that leases its destination buffers from the default
+     * {@link TJBufferPool}.
+     */
+    public TJNioTransformer() throws TJException {
+        this(TJBufferPool.getDefault());
+    }
+
+    /**
+     * Create a TurboJPEG lossless transformer instance.
+     *
+     * @param bufferPool
+     *            pool from which destination buffers are leased
+     */
+    public TJNioTransformer(TJBufferPool bufferPool) throws TJException {
+        super(checkBufferPool(bufferPool), TurbojpegLibrary.tjInitTransform());
+    }
+
+    /**
+     * Associate a JPEG image with this transformer instance. This image will be used as the source image for
+     * subsequent transform operations. Decompress operations on this instance produce RGB images unless another pixel
+     * format is given to {@link #setSourceImage(ByteBuffer, TJPF)}.
+     *
+     * @param jpegImage
+     *            direct or mapped JPEG image buffer, whose limit is the size of the JPEG image. This buffer is not
+     *            modified.
+     */
+    public void setSourceImage(ByteBuffer jpegImage) throws TJException {
+        setSourceImage(jpegImage, TJPF.TJPF_RGB);
+    }
+
+    /**
+     * Losslessly transform the JPEG image associated with this transformer instance into one or more JPEG images in a
+     * single native call, which reads and Huffman-decodes the source coefficients only once. The output buffers are
+     * leased from this instance's {@link TJBufferPool} and stay valid until the next transform operation,
+     * {@link #releaseBuffers}, or {@link #close}, whichever comes first, unless the caller takes ownership of them with
+     * {@link #detachBuffers}.
+     *
+     * @param transforms
+     *            an array of {@link TJTransform} instances, each of which specifies the transform parameters and/or
+     *            cropping region for the corresponding transformed output image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return an array of buffers, the <code>i</code>th of which contains the JPEG image transformed using
+     *         <code>transforms[i]</code>, with position 0 and limit equal to its size.
+     */
+    public ByteBuffer[] transform(TJTransform[] transforms, int flags) throws TJException {
+        checkTransform(transforms, flags);
+        releaseBuffers();
+        ByteBuffer[] bufs = new ByteBuffer[transforms.length];
+        try {
+            for (int i = 0; i < transforms.length; i++)
+                bufs[i] = getBufferPool().acquire(getRequiredCapacity(transforms[i]));
+        } catch (TJException | RuntimeException e) {
+            for (ByteBuffer buf : bufs) {
+                if (buf != null)
+                    getBufferPool().release(buf);
+            }
+            throw e;
+        }
+        transformedBufs = bufs;
+        transformTo(bufs, transforms, flags);
+        for (int i = 0; i < bufs.length; i++)
+            bufs[i].limit(transformedSizes[i]);
+        return bufs.clone();
+    }
+
+    /**
+     * Losslessly transform the JPEG image associated with this transformer instance into one or more JPEG images
+     * stored in the given destination buffers, starting at their current positions.
+     *
+     * @param dstBufs
+     *            an array of direct buffers. <code>dstBufs[i]</code> will receive a JPEG image that has been
+     *            transformed using the parameters in <code>transforms[i]</code>, and must have at least
+     *            {@link #getRequiredCapacity(TJTransform)} bytes remaining. On return, the position of each buffer has
+     *            been advanced past its JPEG image.
+     *
+     * @param transforms
+     *            an array of {@link TJTransform} instances, each of which specifies the transform parameters and/or
+     *            cropping region for the corresponding transformed output image
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     */
+    public void transform(ByteBuffer[] dstBufs, TJTransform[] transforms, int flags) throws TJException {
+        checkTransform(transforms, flags);
+        if (dstBufs == null || dstBufs.length != transforms.length)
+            throw new IllegalArgumentException("Invalid argument in transform()");
+        for (int i = 0; i < dstBufs.length; i++) {
+            if (dstBufs[i] == null || !dstBufs[i].isDirect() || dstBufs[i].isReadOnly())
+                throw new IllegalArgumentException("Invalid argument in transform()");
+            if (dstBufs[i].remaining() < getRequiredCapacity(transforms[i]))
+                throw new IllegalArgumentException("Destination buffer " + i + " is not large enough");
+        }
+        transformTo(dstBufs, transforms, flags);
+        for (int i = 0; i < dstBufs.length; i++)
+            dstBufs[i].position(dstBufs[i].position() + transformedSizes[i]);
+    }
+
+    /**
+     * Returns the worst-case size (in bytes) of the JPEG image that the given transform produces from the JPEG source
+     * image associated with this transformer instance.
+     *
+     * @param transform
+     *            the transform parameters and/or cropping region
+     *
+     * @return the worst-case size (in bytes) of the JPEG image that the given transform produces.
+     */
+    public int getRequiredCapacity(TJTransform transform) {
+        if (transform == null)
+            throw new IllegalArgumentException("Invalid argument in getRequiredCapacity()");
+        if (jpegSize < 1)
+            throw new IllegalStateException("JPEG buffer not initialized");
+        int w = getWidth(), h = getHeight();
+        if ((transform.options & TJTransform.OPT_CROP) != 0) {
+            if (transform.width != 0)
+                w = transform.width;
+            if (transform.height != 0)
+                h = transform.height;
+        }
+        int subsamp = (int) getSubsamp().value();
+        // Transposing operations swap the dimensions, and the MCU of some subsampling levels is not square
+        return (int) Math.max(NATIVES.tjBufSize(w, h, subsamp), NATIVES.tjBufSize(h, w, subsamp));
+    }
+
+    /**
+     * Returns an array containing the sizes of the transformed JPEG images generated by the most recent transform
+     * operation.
+     *
+     * @return an array containing the sizes of the transformed JPEG images generated by the most recent transform
+     *         operation.
+     */
+    public int[] getTransformedSizes() {
+        if (transformedSizes == null)
+            throw new IllegalStateException("No image has been transformed yet");
+        return transformedSizes.clone();
+    }
+
+    /**
+     * Give the buffers returned by the most recent transform operation back to this instance's {@link TJBufferPool}.
+     * The buffers must not be used after that.
+     */
+    public void releaseBuffers() {
+        if (transformedBufs != null) {
+            ByteBuffer[] bufs = transformedBufs;
+            transformedBufs = null;
+            for (ByteBuffer buf : bufs)
+                getBufferPool().release(buf);
+        }
+    }
+
+    /**
+     * Take ownership of the buffers returned by the most recent transform operation. The caller becomes responsible
+     * for giving them back to {@link #getBufferPool} once it is done with them.
+     *
+     * @return the buffers returned by the most recent transform operation.
+     */
+    public ByteBuffer[] detachBuffers() {
+        if (transformedBufs == null)
+            throw new IllegalStateException("No transformed images are associated with this instance");
+        ByteBuffer[] bufs = transformedBufs;
+        transformedBufs = null;
+        return bufs;
+    }
+
+    /**
+     * Free the native structures associated with this transformer instance and give its destination buffers back to
+     * the pool. Calling this more than once has no effect.
+     */
+    @Override
+    public void close() throws TJException {
+        releaseBuffers();
+        super.close();
+    }
+
+    private void checkTransform(TJTransform[] transforms, int flags) {
+        if (transforms == null || transforms.length < 1 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in transform()");
+        checkOpen();
+        if (jpegSize < 1)
+            throw new IllegalStateException("JPEG buffer not initialized");
+        for (TJTransform transform : transforms) {
+            if (transform == null)
+                throw new IllegalArgumentException("Invalid argument in transform()");
+        }
+    }
+
+    /**
+     * Fills the native transform, destination and size arrays, which are reused across calls, and runs
+     * <code>tjTransform()</code> with automatic reallocation disabled. Each output starts at the position of its
+     * buffer.
+     */
+    private void transformTo(ByteBuffer[] dstBufs, TJTransform[] transforms, int flags) throws TJException {
+        int n = transforms.length;
+        if (n > capacity) {
+            pointerToTransforms = Pointer.allocateArray(org.libjpegturbo.turbojpeg.bridj.TJTransform.class, n);
+            pointerToDstBufs = Pointer.allocatePointers(Byte.class, n);
+            pointerToDstSizes = Pointer.allocateCLongs(n);
+            capacity = n;
+        }
+        for (int i = 0; i < n; i++) {
+            TJTransform transform = transforms[i];
+            org.libjpegturbo.turbojpeg.bridj.TJTransform t = pointerToTransforms.get(i);
+            t.r().x(transform.x).y(transform.y).w(transform.width).h(transform.height);
+            t.op(transform.op);
+            t.options(transform.options);
+            t.data(null);
+            t.customFilter(transform.cf == null ? null : filterCallback(transforms));
+            ByteBuffer buf = dstBufs[i];
+            pointerToDstBufs.set(i, Pointers.pointerToPosition(buf));
+            pointerToDstSizes.setCLongAtIndex(i, buf.remaining());
+        }
+        int errorCode;
+        try {
+            errorCode = NATIVES.tjTransform(pointerToDecompressor, pointerToSrcBuf, jpegSize, n,
+                    pointerToDstBufs, pointerToDstSizes, pointerToTransforms, TurbojpegLibrary.TJFLAG_NOREALLOC | flags);
+        } finally {
+            if (filterCallback != null)
+                filterCallback.transforms = null;
+        }
+        if (filterCallback != null && filterCallback.exception != null) {
+            TJException e = filterCallback.exception;
+            filterCallback.exception = null;
+            throw e;
+        }
+        if (errorCode != 0)
+            throw new TJException(TurbojpegLibrary.tjGetErrorStr().getString(StringType.C));
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++)
+            sizes[i] = (int) pointerToDstSizes.getCLongAtIndex(i);
+        transformedSizes = sizes;
+    }
+
+    private Pointer<org.libjpegturbo.turbojpeg.bridj.TJTransform.CustomFilterCallback> filterCallback(
+            TJTransform[] transforms) {
+        if (filterCallback == null) {
+            filterCallback = new FilterCallback();
+            pointerToFilterCallback = Pointer.getPointer(filterCallback);
+        }
+        filterCallback.transforms = transforms;
+        return pointerToFilterCallback;
+    }
+
+    /**
+     * Adapts the native custom filter callback to {@link TJCustomFilter}. One instance is kept per transformer, and it
+     * reuses its rectangles and, while the native side hands it the same coefficient array, its buffer view, so
+     * invoking a filter does not allocate on the Java side. The rectangles and the buffer are only valid during the
+     * call to the filter.
+     */
+    static final class FilterCallback extends org.libjpegturbo.turbojpeg.bridj.TJTransform.CustomFilterCallback {
+        private final Rectangle bufferRegion = new Rectangle();
+        private final Rectangle planeRegion = new Rectangle();
+        private long coeffsAddress;
+        private int coeffsLength;
+        private ShortBuffer coeffBuffer;
+        TJTransform[] transforms;
+        TJException exception;
+
+        @Override
+        public int apply(Pointer<Short> coeffs, TJRegion arrayRegion, TJRegion planeRegion, int componentIndex,
+                int transformIndex, Pointer<org.libjpegturbo.turbojpeg.bridj.TJTransform> transform) {
+            try {
+                int length = arrayRegion.w() * arrayRegion.h();
+                long address = Pointer.getPeer(coeffs);
+                if (coeffBuffer == null || address != coeffsAddress || length != coeffsLength) {
+                    coeffBuffer = coeffs.getShortBuffer(length);
+                    coeffsAddress = address;
+                    coeffsLength = length;
+                }
+                coeffBuffer.clear();
+                bufferRegion.setBounds(arrayRegion.x(), arrayRegion.y(), arrayRegion.w(), arrayRegion.h());
+                this.planeRegion.setBounds(planeRegion.x(), planeRegion.y(), planeRegion.w(), planeRegion.h());
+                TJTransform t = transforms[transformIndex];
+                t.cf.customFilter(coeffBuffer, bufferRegion, this.planeRegion, componentIndex, transformIndex, t);
+                return 0;
+            } catch (TJException e) {
+                exception = e;
+            } catch (RuntimeException e) {
+                exception = new TJException("Custom filter failed", e);
+            }
+            // Exceptions cannot propagate through the native code, so they are rethrown once tjTransform() returns
+            return -1;
+        }
+    }
+}
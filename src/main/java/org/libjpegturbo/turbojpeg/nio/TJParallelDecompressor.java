@@ -0,0 +1,263 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+/**
+ * Decompresses a single large JPEG image on several threads. If the image contains restart markers, its entropy-coded
+ * data is split at restart intervals that begin on MCU row boundaries, and each strip of MCU rows is decompressed by
+ * its own {@link TJNioDecompressor} into its part of the destination image.
+ * <p>
+ * The result is identical to that of {@link TJNioDecompressor#decompress(ByteBuffer, int, int, int, int, int, int)}.
+ * When chrominance is subsampled vertically and {@link TJ#FLAG_FASTUPSAMPLE} is not given, the upsampling of a row
+ * depends on the rows above and below it, so each strip is decompressed together with some of the rows on either side
+ * into a scratch buffer, and only its own rows are copied to the destination image. Images without restart markers,
+ * progressive images, and images too small to be worth splitting are decompressed on the calling thread.
+ */
+public class TJParallelDecompressor {
+
+    /**
+     * Smallest number of pixels that is decompressed as a strip of its own
+     */
+    public static final int MIN_STRIP_PIXELS = 256 * 1024;
+
+    private final TJNioPool<TJNioDecompressor> decompressors;
+    private final ForkJoinPool executor;
+
+    /**
+     * Create a parallel decompressor that runs on the common {@link ForkJoinPool}.
+     *
+     * @param decompressors
+     *            pool from which a decompressor is borrowed for each strip
+     */
+    public TJParallelDecompressor(TJNioPool<TJNioDecompressor> decompressors) {
+        this(decompressors, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a parallel decompressor.
+     *
+     * @param decompressors
+     *            pool from which a decompressor is borrowed for each strip
+     *
+     * @param executor
+     *            pool on which the strips are decompressed. Its parallelism is the largest number of strips that an
+     *            image is split into.
+     */
+    public TJParallelDecompressor(TJNioPool<TJNioDecompressor> decompressors, ForkJoinPool executor) {
+        if (decompressors == null || executor == null)
+            throw new IllegalArgumentException("Invalid argument in TJParallelDecompressor()");
+        this.decompressors = decompressors;
+        this.executor = executor;
+    }
+
+    /**
+     * Decompress a JPEG image at its full size into the given direct buffer, in parallel if the image allows it.
+     *
+     * @param jpegImage
+     *            direct buffer containing the JPEG image, whose limit is the size of the JPEG image. The image starts
+     *            at index 0, and the buffer is not modified.
+     *
+     * @param pixelFormat
+     *            pixel format of the decompressed image
+     *
+     * @param dstBuf
+     *            direct buffer that will receive the decompressed image, starting at index 0. The buffer's position
+     *            and limit are not changed.
+     *
+     * @param pitch
+     *            bytes per line of the destination image, or 0 for <code>width * TJ.getPixelSize(pixelFormat)</code>
+     *
+     * @param flags
+     *            the bitwise OR of one or more of {@link TJ#FLAG_BOTTOMUP TJ.FLAG_*}
+     *
+     * @return the number of strips that the image was decompressed in, which is 1 if it was decompressed on the
+     *         calling thread.
+     */
+    public int decompress(ByteBuffer jpegImage, TJPF pixelFormat, ByteBuffer dstBuf, int pitch, int flags)
+            throws TJException {
+        if (jpegImage == null || !jpegImage.isDirect() || pixelFormat == null || dstBuf == null || !dstBuf.isDirect()
+                || dstBuf.isReadOnly() || pitch < 0 || flags < 0)
+            throw new IllegalArgumentException("Invalid argument in decompress()");
+        RestartIndex index = RestartIndex.parse(jpegImage);
+        int[] rows = index == null ? null : planStrips(index, executor.getParallelism());
+        if (rows == null) {
+            TJNioDecompressor decompressor = decompressors.borrow();
+            try {
+                decompressor.setSourceImage(jpegImage, pixelFormat);
+                decompressor.decompress(dstBuf, 0, 0, 0, pitch, 0, flags);
+            } finally {
+                decompressors.giveBack(decompressor);
+            }
+            return 1;
+        }
+        int rowSize = index.width * TJ.getPixelSize((int) pixelFormat.value());
+        if (pitch == 0)
+            pitch = rowSize;
+        else if (pitch < rowSize)
+            throw new IllegalArgumentException("Pitch is smaller than a row");
+        if ((long) (index.height - 1) * pitch + rowSize > dstBuf.limit())
+            throw new IllegalArgumentException("Destination image does not fit in the destination buffer");
+        boolean context = index.verticalSubsampling && (flags & TJ.FLAG_FASTUPSAMPLE) == 0;
+        List<Strip> strips = new ArrayList<Strip>(rows.length - 1);
+        for (int i = 0; i < rows.length - 1; i++)
+            strips.add(new Strip(index, jpegImage, pixelFormat, dstBuf, pitch, rowSize, flags, rows[i], rows[i + 1],
+                    context));
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == executor)
+            ForkJoinTask.invokeAll(strips);
+        else
+            executor.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(strips);
+                }
+            });
+        for (Strip strip : strips) {
+            if (strip.failure != null)
+                throw strip.failure;
+        }
+        return strips.size();
+    }
+
+    /**
+     * Returns the MCU rows at which the strips of an image start, followed by the number of MCU rows.
+     *
+     * @return the MCU rows at which the strips of an image start, followed by the number of MCU rows, or null if the
+     *         image should not be split.
+     */
+    static int[] planStrips(RestartIndex index, int parallelism) {
+        int rowsPerStep = index.getRowsPerStep();
+        int steps = (index.getMcuRows() + rowsPerStep - 1) / rowsPerStep;
+        long pixels = (long) index.width * index.height;
+        int count = (int) Math.min(Math.min(parallelism, steps), pixels / MIN_STRIP_PIXELS);
+        if (count < 2)
+            return null;
+        int[] rows = new int[count + 1];
+        for (int i = 0; i < count; i++)
+            rows[i] = (int) ((long) steps * i / count) * rowsPerStep;
+        rows[count] = index.getMcuRows();
+        return rows;
+    }
+
+    private final class Strip extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RestartIndex index;
+        private final ByteBuffer jpegImage;
+        private final TJPF pixelFormat;
+        private final ByteBuffer dstBuf;
+        private final int pitch;
+        private final int rowSize;
+        private final int flags;
+        private final int firstRow;
+        private final int endRow;
+        private final boolean context;
+        TJException failure;
+
+        Strip(RestartIndex index, ByteBuffer jpegImage, TJPF pixelFormat, ByteBuffer dstBuf, int pitch, int rowSize,
+                int flags, int firstRow, int endRow, boolean context) {
+            this.index = index;
+            this.jpegImage = jpegImage;
+            this.pixelFormat = pixelFormat;
+            this.dstBuf = dstBuf;
+            this.pitch = pitch;
+            this.rowSize = rowSize;
+            this.flags = flags;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.context = context;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                TJNioDecompressor decompressor = decompressors.borrow();
+                try {
+                    decompress(decompressor);
+                } finally {
+                    decompressors.giveBack(decompressor);
+                }
+            } catch (TJException e) {
+                failure = e;
+            }
+        }
+
+        private void decompress(TJNioDecompressor decompressor) throws TJException {
+            int rowsPerStep = index.getRowsPerStep();
+            int mcuRows = index.getMcuRows();
+            // One step of context on each side, because a strip can only start on a step boundary
+            int first = context && firstRow > 0 ? firstRow - rowsPerStep : firstRow;
+            int end = context && endRow < mcuRows ? Math.min(endRow + rowsPerStep, mcuRows) : endRow;
+            int y0 = firstRow * index.mcuHeight;
+            int y1 = Math.min(endRow * index.mcuHeight, index.height);
+            int top = y0 - first * index.mcuHeight;
+            int bottom = Math.min(end * index.mcuHeight, index.height) - y1;
+            boolean bottomUp = (flags & TJ.FLAG_BOTTOMUP) != 0;
+            int y = bottomUp ? index.height - y1 : y0;
+            TJBufferPool bufferPool = decompressor.getBufferPool();
+            ByteBuffer strip = bufferPool.acquire(index.getStripSize(first, end));
+            try {
+                index.writeStrip(jpegImage, first, end, strip);
+                decompressor.setSourceImage(strip, pixelFormat);
+                if (top == 0 && bottom == 0) {
+                    decompressor.decompress(dstBuf, 0, y, 0, pitch, 0, flags);
+                    return;
+                }
+                ByteBuffer scratch = bufferPool.acquire(decompressor.getRequiredCapacity());
+                try {
+                    decompressor.decompress(scratch, 0, 0, 0, rowSize, 0, flags);
+                    int skip = bottomUp ? bottom : top;
+                    ByteBuffer dst = dstBuf.duplicate();
+                    for (int row = 0; row < y1 - y0; row++) {
+                        scratch.limit((skip + row) * rowSize + rowSize).position((skip + row) * rowSize);
+                        dst.limit(dst.capacity()).position((y + row) * pitch);
+                        dst.put(scratch);
+                    }
+                } finally {
+                    bufferPool.release(scratch);
+                }
+            } finally {
+                bufferPool.release(strip);
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bridj.CLong;
+import org.bridj.Pointer;
+import org.libjpegturbo.turbojpeg.bridj.TJTransform;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
+
+/**
+ * The TurboJPEG functions that the NIO classes call for every image. This implementation goes through the BridJ
+ * bindings in {@link TurbojpegLibrary}. On Java 22 and later, a subclass that calls the same functions through
+ * <code>java.lang.foreign</code> downcall handles can be selected instead (see {@link TJNioBackend}.) Handles,
+ * buffers and all other functions stay on BridJ either way, so the two backends share the same native library and
+ * error state.
+ */
+class TurbojpegNatives {
+
+    static final String BACKEND_PROPERTY = "org.libjpegturbo.turbojpeg.backend";
+    private static final String FFM_CLASS = "org.libjpegturbo.turbojpeg.nio.FfmTurbojpegNatives";
+
+    static final TurbojpegNatives NATIVES = select(System.getProperty(BACKEND_PROPERTY));
+
+    static TurbojpegNatives select(String backend) {
+        if (backend != null && backend.equalsIgnoreCase(TJNioBackend.FFM.name())) {
+            try {
+                return load(TJNioBackend.FFM);
+            } catch (Exception | LinkageError e) {
+                Logger.getLogger("org.libjpegturbo.turbojpeg").log(Level.WARNING, "Falling back to the BridJ backend",
+                        e);
+            }
+        }
+        return new TurbojpegNatives();
+    }
+
+    static TurbojpegNatives load(TJNioBackend backend) throws Exception {
+        if (backend == TJNioBackend.BRIDJ)
+            return new TurbojpegNatives();
+        if (Runtime.version().feature() < 22)
+            throw new UnsupportedOperationException("The FFM backend requires Java 22 or later");
+        return (TurbojpegNatives) Class.forName(FFM_CLASS).getDeclaredConstructor().newInstance();
+    }
+
+    TJNioBackend backend() {
+        return TJNioBackend.BRIDJ;
+    }
+
+    int tjCompress2(Pointer<?> handle, Pointer<Byte> srcBuf, int width, int pitch, int height, int pixelFormat,
+            Pointer<Pointer<Byte>> jpegBuf, Pointer<CLong> jpegSize, int jpegSubsamp, int jpegQual, int flags) {
+        return TurbojpegLibrary.tjCompress2(handle, srcBuf, width, pitch, height, pixelFormat, jpegBuf, jpegSize,
+                jpegSubsamp, jpegQual, flags);
+    }
+
+    int tjCompressFromYUVPlanes(Pointer<?> handle, Pointer<Pointer<Byte>> srcPlanes, int width,
+            Pointer<Integer> strides, int height, int subsamp, Pointer<Pointer<Byte>> jpegBuf, Pointer<CLong> jpegSize,
+            int jpegQual, int flags) {
+        return TurbojpegLibrary.tjCompressFromYUVPlanes(handle, srcPlanes, width, strides, height, subsamp, jpegBuf,
+                jpegSize, jpegQual, flags);
+    }
+
+    int tjEncodeYUVPlanes(Pointer<?> handle, Pointer<Byte> srcBuf, int width, int pitch, int height, int pixelFormat,
+            Pointer<Pointer<Byte>> dstPlanes, Pointer<Integer> strides, int subsamp, int flags) {
+        return TurbojpegLibrary.tjEncodeYUVPlanes(handle, srcBuf, width, pitch, height, pixelFormat, dstPlanes,
+                strides, subsamp, flags);
+    }
+
+    int tjDecompressHeader3(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, Pointer<Integer> width,
+            Pointer<Integer> height, Pointer<Integer> jpegSubsamp, Pointer<Integer> jpegColorspace) {
+        return TurbojpegLibrary.tjDecompressHeader3(handle, jpegBuf, jpegSize, width, height, jpegSubsamp,
+                jpegColorspace);
+    }
+
+    int tjDecompress2(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, Pointer<Byte> dstBuf, int width,
+            int pitch, int height, int pixelFormat, int flags) {
+        return TurbojpegLibrary.tjDecompress2(handle, jpegBuf, jpegSize, dstBuf, width, pitch, height, pixelFormat,
+                flags);
+    }
+
+    int tjDecompressToYUVPlanes(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize,
+            Pointer<Pointer<Byte>> dstPlanes, int width, Pointer<Integer> strides, int height, int flags) {
+        return TurbojpegLibrary.tjDecompressToYUVPlanes(handle, jpegBuf, jpegSize, dstPlanes, width, strides, height,
+                flags);
+    }
+
+    int tjDecodeYUVPlanes(Pointer<?> handle, Pointer<Pointer<Byte>> srcPlanes, Pointer<Integer> strides, int subsamp,
+            Pointer<Byte> dstBuf, int width, int pitch, int height, int pixelFormat, int flags) {
+        return TurbojpegLibrary.tjDecodeYUVPlanes(handle, srcPlanes, strides, subsamp, dstBuf, width, pitch, height,
+                pixelFormat, flags);
+    }
+
+    int tjTransform(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, int n, Pointer<Pointer<Byte>> dstBufs,
+            Pointer<CLong> dstSizes, Pointer<TJTransform> transforms, int flags) {
+        return TurbojpegLibrary.tjTransform(handle, jpegBuf, jpegSize, n, dstBufs, dstSizes, transforms, flags);
+    }
+
+    long tjBufSize(int width, int height, int jpegSubsamp) {
+        return TurbojpegLibrary.tjBufSize(width, height, jpegSubsamp);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+import org.bridj.BridJ;
+import org.bridj.CLong;
+import org.bridj.Pointer;
+import org.libjpegturbo.turbojpeg.bridj.TJTransform;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
+
+/**
+ * Calls the per-image TurboJPEG functions through <code>java.lang.foreign</code> downcall handles instead of BridJ's
+ * dynamic calls. Pointer arguments are declared as integers and passed as the raw addresses of the BridJ pointers
+ * that the NIO classes already cache, so neither BridJ call machinery nor a <code>MemorySegment</code> per argument
+ * is involved on the hot path. The library is the one BridJ resolved, so both bindings share its error state. Short,
+ * non-blocking functions are linked as critical.
+ */
+final class FfmTurbojpegNatives extends TurbojpegNatives {
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    /** <code>unsigned long</code>; declared as a Java long below and narrowed where C longs are 32 bits */
+    private static final MemoryLayout C_LONG = LINKER.canonicalLayouts().get("long");
+    /** A pointer, passed as its raw address; declared as a Java long below and narrowed where pointers are 32 bits */
+    private static final MemoryLayout POINTER = JAVA_LONG.withName("pointer");
+    private static final SymbolLookup LOOKUP = lookup();
+
+    private static final MethodHandle COMPRESS2 = downcall("tjCompress2", FunctionDescriptor.of(JAVA_INT, POINTER,
+            POINTER, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, POINTER, POINTER, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle COMPRESS_FROM_YUV_PLANES = downcall("tjCompressFromYUVPlanes",
+            FunctionDescriptor.of(JAVA_INT, POINTER, POINTER, JAVA_INT, POINTER, JAVA_INT, JAVA_INT, POINTER, POINTER,
+                    JAVA_INT, JAVA_INT));
+    private static final MethodHandle ENCODE_YUV_PLANES = downcall("tjEncodeYUVPlanes", FunctionDescriptor.of(
+            JAVA_INT, POINTER, POINTER, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, POINTER, POINTER, JAVA_INT, JAVA_INT));
+    private static final MethodHandle DECOMPRESS_HEADER3 = downcall("tjDecompressHeader3", FunctionDescriptor.of(
+            JAVA_INT, POINTER, POINTER, JAVA_LONG, POINTER, POINTER, POINTER, POINTER), Linker.Option.critical(false));
+    private static final MethodHandle DECOMPRESS2 = downcall("tjDecompress2", FunctionDescriptor.of(JAVA_INT,
+            POINTER, POINTER, JAVA_LONG, POINTER, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle DECOMPRESS_TO_YUV_PLANES = downcall("tjDecompressToYUVPlanes",
+            FunctionDescriptor.of(JAVA_INT, POINTER, POINTER, JAVA_LONG, POINTER, JAVA_INT, POINTER, JAVA_INT,
+                    JAVA_INT));
+    private static final MethodHandle DECODE_YUV_PLANES = downcall("tjDecodeYUVPlanes", FunctionDescriptor.of(
+            JAVA_INT, POINTER, POINTER, POINTER, JAVA_INT, POINTER, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle TRANSFORM = downcall("tjTransform", FunctionDescriptor.of(JAVA_INT, POINTER,
+            POINTER, JAVA_LONG, JAVA_INT, POINTER, POINTER, POINTER, JAVA_INT));
+    private static final MethodHandle BUF_SIZE = downcall("tjBufSize", FunctionDescriptor.of(JAVA_LONG, JAVA_INT,
+            JAVA_INT, JAVA_INT), Linker.Option.critical(false));
+
+    private static SymbolLookup lookup() {
+        // Make sure BridJ has located the library, so both bindings use the same file
+        TurbojpegLibrary.tjGetErrorStr();
+        File file = BridJ.getNativeLibraryFile("turbojpeg");
+        if (file != null)
+            return SymbolLookup.libraryLookup(file.toPath(), Arena.global());
+        return SymbolLookup.libraryLookup(System.mapLibraryName("turbojpeg"), Arena.global());
+    }
+
+    private static MethodHandle downcall(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment symbol = LOOKUP.find(name).orElseThrow(
+                () -> new UnsatisfiedLinkError("Symbol " + name + " not found in libturbojpeg"));
+        FunctionDescriptor narrowed = FunctionDescriptor.of(narrow(descriptor.returnLayout().get()),
+                descriptor.argumentLayouts().stream().map(FfmTurbojpegNatives::narrow).toArray(MemoryLayout[]::new));
+        if (narrowed.equals(descriptor))
+            return LINKER.downcallHandle(symbol, descriptor, options);
+        return MethodHandles.explicitCastArguments(LINKER.downcallHandle(symbol, narrowed, options),
+                descriptor.toMethodType());
+    }
+
+    private static MemoryLayout narrow(MemoryLayout layout) {
+        if (layout.equals(JAVA_LONG) && C_LONG.byteSize() != JAVA_LONG.byteSize())
+            return C_LONG;
+        if (layout.equals(POINTER) && ADDRESS.byteSize() != JAVA_LONG.byteSize())
+            return JAVA_INT;
+        return layout;
+    }
+
+    private static long address(Pointer<?> pointer) {
+        return Pointer.getPeer(pointer);
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new IllegalStateException(t);
+    }
+
+    @Override
+    TJNioBackend backend() {
+        return TJNioBackend.FFM;
+    }
+
+    @Override
+    int tjCompress2(Pointer<?> handle, Pointer<Byte> srcBuf, int width, int pitch, int height, int pixelFormat,
+            Pointer<Pointer<Byte>> jpegBuf, Pointer<CLong> jpegSize, int jpegSubsamp, int jpegQual, int flags) {
+        try {
+            return (int) COMPRESS2.invokeExact(address(handle), address(srcBuf), width, pitch, height, pixelFormat,
+                    address(jpegBuf), address(jpegSize), jpegSubsamp, jpegQual, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjCompressFromYUVPlanes(Pointer<?> handle, Pointer<Pointer<Byte>> srcPlanes, int width,
+            Pointer<Integer> strides, int height, int subsamp, Pointer<Pointer<Byte>> jpegBuf, Pointer<CLong> jpegSize,
+            int jpegQual, int flags) {
+        try {
+            return (int) COMPRESS_FROM_YUV_PLANES.invokeExact(address(handle), address(srcPlanes), width,
+                    address(strides), height, subsamp, address(jpegBuf), address(jpegSize), jpegQual, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjEncodeYUVPlanes(Pointer<?> handle, Pointer<Byte> srcBuf, int width, int pitch, int height, int pixelFormat,
+            Pointer<Pointer<Byte>> dstPlanes, Pointer<Integer> strides, int subsamp, int flags) {
+        try {
+            return (int) ENCODE_YUV_PLANES.invokeExact(address(handle), address(srcBuf), width, pitch, height,
+                    pixelFormat, address(dstPlanes), address(strides), subsamp, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjDecompressHeader3(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, Pointer<Integer> width,
+            Pointer<Integer> height, Pointer<Integer> jpegSubsamp, Pointer<Integer> jpegColorspace) {
+        try {
+            return (int) DECOMPRESS_HEADER3.invokeExact(address(handle), address(jpegBuf), jpegSize, address(width),
+                    address(height), address(jpegSubsamp), address(jpegColorspace));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjDecompress2(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, Pointer<Byte> dstBuf, int width,
+            int pitch, int height, int pixelFormat, int flags) {
+        try {
+            return (int) DECOMPRESS2.invokeExact(address(handle), address(jpegBuf), jpegSize, address(dstBuf), width,
+                    pitch, height, pixelFormat, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjDecompressToYUVPlanes(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize,
+            Pointer<Pointer<Byte>> dstPlanes, int width, Pointer<Integer> strides, int height, int flags) {
+        try {
+            return (int) DECOMPRESS_TO_YUV_PLANES.invokeExact(address(handle), address(jpegBuf), jpegSize,
+                    address(dstPlanes), width, address(strides), height, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjDecodeYUVPlanes(Pointer<?> handle, Pointer<Pointer<Byte>> srcPlanes, Pointer<Integer> strides, int subsamp,
+            Pointer<Byte> dstBuf, int width, int pitch, int height, int pixelFormat, int flags) {
+        try {
+            return (int) DECODE_YUV_PLANES.invokeExact(address(handle), address(srcPlanes), address(strides), subsamp,
+                    address(dstBuf), width, pitch, height, pixelFormat, flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    int tjTransform(Pointer<?> handle, Pointer<Byte> jpegBuf, long jpegSize, int n, Pointer<Pointer<Byte>> dstBufs,
+            Pointer<CLong> dstSizes, Pointer<TJTransform> transforms, int flags) {
+        try {
+            return (int) TRANSFORM.invokeExact(address(handle), address(jpegBuf), jpegSize, n, address(dstBufs),
+                    address(dstSizes), address(transforms), flags);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    long tjBufSize(int width, int height, int jpegSubsamp) {
+        try {
+            return (long) BUF_SIZE.invokeExact(width, height, jpegSubsamp);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts <code>java.lang.foreign</code> memory segments to the NIO classes, whose image buffers are direct
+ * {@link ByteBuffer}s. The buffers returned here are views of the segments, so compressing from or decompressing into
+ * them reads and writes the segment memory without copying. The views are only valid while the arena that owns the
+ * segment is alive.
+ */
+public final class TJNioSegments {
+
+    private TJNioSegments() {
+    }
+
+    /**
+     * Allocates a segment suitable for use as a TurboJPEG source or destination buffer, aligned like the buffers of
+     * {@link TJBufferPool}.
+     *
+     * @param arena the arena that owns the segment
+     * @param size the size of the segment (in bytes)
+     * @return a new native segment of the given size
+     */
+    public static MemorySegment allocate(Arena arena, long size) {
+        if (arena == null || size < 0)
+            throw new IllegalArgumentException("Invalid argument in allocate()");
+        return arena.allocate(size, TJBufferPool.ALIGNMENT);
+    }
+
+    /**
+     * Returns a direct buffer view of the given segment, for use with {@link TJNioCompressor},
+     * {@link TJNioDecompressor} and {@link TJNioTransformer}.
+     *
+     * @param segment a native segment no larger than <code>Integer.MAX_VALUE</code> bytes
+     * @return a direct buffer covering the whole segment, with position 0 and limit equal to its size
+     */
+    public static ByteBuffer asBuffer(MemorySegment segment) {
+        if (segment == null || !segment.isNative() || segment.byteSize() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid argument in asBuffer()");
+        return segment.asByteBuffer();
+    }
+
+    /**
+     * Returns the part of a segment that the given buffer, returned by {@link #asBuffer(MemorySegment)} or by one of
+     * the NIO classes, holds between its position and limit.
+     *
+     * @param buffer a direct buffer
+     * @return a segment covering the remaining bytes of the buffer
+     */
+    public static MemorySegment asSegment(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            throw new IllegalArgumentException("Invalid argument in asSegment()");
+        return MemorySegment.ofBuffer(buffer);
+    }
+}
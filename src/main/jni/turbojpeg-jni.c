@@ -0,0 +1,1316 @@
+/*
+ * Copyright (C)2011-2015 D. R. Commander.  All Rights Reserved.
+ * Copyright (C)2015 Viktor Szathmáry.  All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the libjpeg-turbo Project nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS",
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ * JNI glue for the org.libjpegturbo.turbojpeg classes.  Image buffers are
+ * never copied: byte[] and int[] arguments are pinned with
+ * GetPrimitiveArrayCritical for the duration of the TurboJPEG call only, and
+ * direct ByteBuffers are accessed through GetDirectBufferAddress.  Nothing
+ * else is done through JNI while an array is pinned, so all argument checks
+ * happen before pinning, and errors are thrown after unpinning.  The one
+ * exception is tjTransform() with a custom filter, which calls back into Java
+ * and therefore copies the arrays instead of pinning them.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <jni.h>
+#include "turbojpeg.h"
+
+#define TJEXCEPTION "org/libjpegturbo/turbojpeg/TJException"
+#define ILLEGAL_ARGUMENT "java/lang/IllegalArgumentException"
+#define ILLEGAL_STATE "java/lang/IllegalStateException"
+
+#define IS_TRANSPOSING(op) \
+  ((op) == TJXOP_TRANSPOSE || (op) == TJXOP_TRANSVERSE || \
+   (op) == TJXOP_ROT90 || (op) == TJXOP_ROT270)
+
+static jfieldID compressorHandleID, decompressorHandleID, jpegWidthID,
+  jpegHeightID, jpegSubsampID, jpegColorspaceID;
+static jclass intArrayClass;
+
+static void throwNew(JNIEnv *env, const char *className, const char *msg)
+{
+  jclass cls = (*env)->FindClass(env, className);
+  if (cls) (*env)->ThrowNew(env, cls, msg);
+}
+
+static void throwTJ(JNIEnv *env)
+{
+  throwNew(env, TJEXCEPTION, tjGetErrorStr());
+}
+
+
+/* Instance state */
+
+static jfieldID getField(JNIEnv *env, jobject obj, jfieldID *cache,
+  const char *name)
+{
+  if (!*cache) {
+    jclass cls = (*env)->GetObjectClass(env, obj);
+    if (!cls) return NULL;
+    *cache = (*env)->GetFieldID(env, cls, name, "I");
+  }
+  return *cache;
+}
+
+static tjhandle getHandle(JNIEnv *env, jobject obj, jfieldID *cache)
+{
+  tjhandle handle;
+
+  if (!*cache) {
+    jclass cls = (*env)->GetObjectClass(env, obj);
+    if (!cls || !(*cache = (*env)->GetFieldID(env, cls, "handle", "J")))
+      return NULL;
+  }
+  handle = (tjhandle)(size_t)(*env)->GetLongField(env, obj, *cache);
+  if (!handle) throwNew(env, ILLEGAL_STATE, "Instance has been closed");
+  return handle;
+}
+
+static int setHandle(JNIEnv *env, jobject obj, jfieldID *cache,
+  tjhandle handle)
+{
+  if (!*cache) {
+    jclass cls = (*env)->GetObjectClass(env, obj);
+    if (!cls || !(*cache = (*env)->GetFieldID(env, cls, "handle", "J")))
+      return -1;
+  }
+  (*env)->SetLongField(env, obj, *cache, (jlong)(size_t)handle);
+  return 0;
+}
+
+static int getJPEGField(JNIEnv *env, jobject obj, jfieldID *cache,
+  const char *name, int *value)
+{
+  jfieldID fid = getField(env, obj, cache, name);
+  if (!fid) return -1;
+  *value = (*env)->GetIntField(env, obj, fid);
+  return 0;
+}
+
+static int setJPEGField(JNIEnv *env, jobject obj, jfieldID *cache,
+  const char *name, int value)
+{
+  jfieldID fid = getField(env, obj, cache, name);
+  if (!fid) return -1;
+  (*env)->SetIntField(env, obj, fid, value);
+  return 0;
+}
+
+/* Computes the size of the largest scaled image that fits within the desired
+   dimensions, as TJDecompressor.getScaledWidth()/getScaledHeight() do. */
+static int getScaledSize(JNIEnv *env, jobject obj, int desiredWidth,
+  int desiredHeight, int *scaledWidth, int *scaledHeight)
+{
+  int jpegWidth, jpegHeight, n = 0, i;
+  tjscalingfactor *sf;
+
+  if (getJPEGField(env, obj, &jpegWidthID, "jpegWidth", &jpegWidth) < 0 ||
+      getJPEGField(env, obj, &jpegHeightID, "jpegHeight", &jpegHeight) < 0)
+    return -1;
+  if (desiredWidth == 0) desiredWidth = jpegWidth;
+  if (desiredHeight == 0) desiredHeight = jpegHeight;
+  if ((sf = tjGetScalingFactors(&n)) == NULL || n == 0) {
+    throwTJ(env);
+    return -1;
+  }
+  for (i = 0; i < n; i++) {
+    *scaledWidth = TJSCALED(jpegWidth, sf[i]);
+    *scaledHeight = TJSCALED(jpegHeight, sf[i]);
+    if (*scaledWidth <= desiredWidth && *scaledHeight <= desiredHeight)
+      return 0;
+  }
+  throwNew(env, ILLEGAL_ARGUMENT,
+    "Could not scale down to desired image dimensions");
+  return -1;
+}
+
+
+/* Image buffers */
+
+/* A byte[], int[], or direct ByteBuffer argument */
+typedef struct {
+  jarray array;           /* NULL for a direct buffer */
+  unsigned char *address; /* start of a direct buffer */
+  unsigned char *ptr;     /* start of the buffer while it is pinned */
+  jlong size;             /* in bytes */
+  jboolean ints;          /* an int[] */
+  jboolean copied;        /* pinned with Get<Type>ArrayElements */
+} buffer;
+
+static int initBuffer(JNIEnv *env, buffer *buf, jobject obj)
+{
+  memset(buf, 0, sizeof(buffer));
+  if (!obj) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument");
+    return -1;
+  }
+  if ((buf->address = (*env)->GetDirectBufferAddress(env, obj)) != NULL) {
+    buf->size = (*env)->GetDirectBufferCapacity(env, obj);
+    return 0;
+  }
+  if ((*env)->ExceptionCheck(env)) return -1;
+  if (!intArrayClass) {
+    jclass cls = (*env)->FindClass(env, "[I");
+    if (!cls || !(intArrayClass = (*env)->NewGlobalRef(env, cls))) return -1;
+  }
+  buf->array = (jarray)obj;
+  buf->size = (*env)->GetArrayLength(env, buf->array);
+  if ((*env)->IsInstanceOf(env, obj, intArrayClass)) {
+    buf->ints = JNI_TRUE;
+    buf->size *= sizeof(jint);
+  }
+  return 0;
+}
+
+static int checkBuffer(JNIEnv *env, buffer *buf, jlong offset, jlong length,
+  const char *msg)
+{
+  if (offset < 0 || length < 0 || offset + length > buf->size) {
+    throwNew(env, ILLEGAL_ARGUMENT, msg);
+    return -1;
+  }
+  return 0;
+}
+
+/* Checks that a region of an image lies within a buffer and returns the
+   offset of its first pixel */
+static int checkRegion(JNIEnv *env, buffer *buf, jlong offset, int x, int y,
+  int width, int pitch, int height, int pixelFormat, const char *msg,
+  jlong *regionOffset)
+{
+  jlong ps = tjPixelSize[pixelFormat];
+
+  if (x < 0 || y < 0 || width < 1 || height < 1 || pitch < 0) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument");
+    return -1;
+  }
+  if (checkBuffer(env, buf, offset,
+                  (jlong)(y + height - 1) * pitch + (jlong)(x + width) * ps,
+                  msg) < 0)
+    return -1;
+  *regionOffset = offset + (jlong)y * pitch + x * ps;
+  return 0;
+}
+
+static int pin(JNIEnv *env, buffer *buf, jboolean critical)
+{
+  if (!buf->array)
+    buf->ptr = buf->address;
+  else if (critical)
+    buf->ptr = (*env)->GetPrimitiveArrayCritical(env, buf->array, NULL);
+  else {
+    buf->ptr = (unsigned char *)(*env)->GetByteArrayElements(env,
+      (jbyteArray)buf->array, NULL);
+    buf->copied = JNI_TRUE;
+  }
+  return buf->ptr ? 0 : -1;
+}
+
+/* Modified is false for source buffers, so that copies need not be written
+   back */
+static void unpin(JNIEnv *env, buffer *buf, jboolean modified)
+{
+  if (buf->array && buf->ptr) {
+    jint mode = modified ? 0 : JNI_ABORT;
+    if (buf->copied)
+      (*env)->ReleaseByteArrayElements(env, (jbyteArray)buf->array,
+        (jbyte *)buf->ptr, mode);
+    else
+      (*env)->ReleasePrimitiveArrayCritical(env, buf->array, buf->ptr, mode);
+  }
+  buf->ptr = NULL;
+}
+
+/* The Y, U, and V planes of a YUVImage */
+typedef struct {
+  int n;
+  buffer planes[3];
+  jint offsets[3];
+  jint strides[3];
+  unsigned char *ptrs[3];
+} yuvplanes;
+
+static int initPlanes(JNIEnv *env, yuvplanes *yuv, jobjectArray planes,
+  jintArray offsets, jintArray strides, int width, int height, int subsamp)
+{
+  int i;
+
+  memset(yuv, 0, sizeof(yuvplanes));
+  if (!planes || !offsets || !strides || width < 1 || height < 1 ||
+      subsamp < 0 || subsamp >= TJ_NUMSAMP) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument");
+    return -1;
+  }
+  yuv->n = subsamp == TJSAMP_GRAY ? 1 : 3;
+  if ((*env)->GetArrayLength(env, planes) < yuv->n ||
+      (*env)->GetArrayLength(env, offsets) < yuv->n ||
+      (*env)->GetArrayLength(env, strides) < yuv->n) {
+    throwNew(env, ILLEGAL_ARGUMENT,
+      "Planes, offsets, or strides array is the wrong size");
+    return -1;
+  }
+  (*env)->GetIntArrayRegion(env, offsets, 0, yuv->n, yuv->offsets);
+  (*env)->GetIntArrayRegion(env, strides, 0, yuv->n, yuv->strides);
+  if ((*env)->ExceptionCheck(env)) return -1;
+  for (i = 0; i < yuv->n; i++) {
+    jobject plane = (*env)->GetObjectArrayElement(env, planes, i);
+    unsigned long planeSize;
+
+    if (!plane || initBuffer(env, &yuv->planes[i], plane) < 0) {
+      if (!(*env)->ExceptionCheck(env))
+        throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument");
+      return -1;
+    }
+    planeSize = tjPlaneSizeYUV(i, width, yuv->strides[i], height, subsamp);
+    if (planeSize == (unsigned long)-1) {
+      throwTJ(env);
+      return -1;
+    }
+    if (checkBuffer(env, &yuv->planes[i], yuv->offsets[i], (jlong)planeSize,
+                    "Image plane is not large enough") < 0)
+      return -1;
+  }
+  return 0;
+}
+
+static int pinPlanes(JNIEnv *env, yuvplanes *yuv)
+{
+  int i;
+
+  for (i = 0; i < yuv->n; i++) {
+    if (pin(env, &yuv->planes[i], JNI_TRUE) < 0) return -1;
+    yuv->ptrs[i] = yuv->planes[i].ptr + yuv->offsets[i];
+  }
+  return 0;
+}
+
+static void unpinPlanes(JNIEnv *env, yuvplanes *yuv, jboolean modified)
+{
+  int i;
+
+  for (i = yuv->n - 1; i >= 0; i--)
+    unpin(env, &yuv->planes[i], modified);
+}
+
+
+/* TJ */
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_bufSize
+  (JNIEnv *env, jclass cls, jint width, jint height, jint jpegSubsamp)
+{
+  unsigned long size = tjBufSize(width, height, jpegSubsamp);
+
+  if (size == (unsigned long)-1) throwTJ(env);
+  return (jint)size;
+}
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_bufSizeYUV__IIII
+  (JNIEnv *env, jclass cls, jint width, jint pad, jint height, jint subsamp)
+{
+  unsigned long size = tjBufSizeYUV2(width, pad, height, subsamp);
+
+  if (size == (unsigned long)-1) throwTJ(env);
+  return (jint)size;
+}
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_bufSizeYUV__III
+  (JNIEnv *env, jclass cls, jint width, jint height, jint subsamp)
+{
+  return Java_org_libjpegturbo_turbojpeg_TJ_bufSizeYUV__IIII(env, cls, width,
+    4, height, subsamp);
+}
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_planeSizeYUV
+  (JNIEnv *env, jclass cls, jint componentID, jint width, jint stride,
+   jint height, jint subsamp)
+{
+  unsigned long size = tjPlaneSizeYUV(componentID, width, stride, height,
+    subsamp);
+
+  if (size == (unsigned long)-1) throwTJ(env);
+  return (jint)size;
+}
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_planeWidth
+  (JNIEnv *env, jclass cls, jint componentID, jint width, jint subsamp)
+{
+  int result = tjPlaneWidth(componentID, width, subsamp);
+
+  if (result == -1) throwTJ(env);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_org_libjpegturbo_turbojpeg_TJ_planeHeight
+  (JNIEnv *env, jclass cls, jint componentID, jint height, jint subsamp)
+{
+  int result = tjPlaneHeight(componentID, height, subsamp);
+
+  if (result == -1) throwTJ(env);
+  return result;
+}
+
+JNIEXPORT jobjectArray JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJ_getScalingFactors
+  (JNIEnv *env, jclass cls)
+{
+  jclass sfcls;
+  jmethodID ctor;
+  jobjectArray result;
+  tjscalingfactor *sf;
+  int n = 0, i;
+
+  if ((sf = tjGetScalingFactors(&n)) == NULL || n == 0) {
+    throwTJ(env);
+    return NULL;
+  }
+  if (!(sfcls = (*env)->FindClass(env,
+                  "org/libjpegturbo/turbojpeg/TJScalingFactor")) ||
+      !(ctor = (*env)->GetMethodID(env, sfcls, "<init>", "(II)V")) ||
+      !(result = (*env)->NewObjectArray(env, n, sfcls, NULL)))
+    return NULL;
+  for (i = 0; i < n; i++) {
+    jobject obj = (*env)->NewObject(env, sfcls, ctor, sf[i].num,
+      sf[i].denom);
+    if (!obj) return NULL;
+    (*env)->SetObjectArrayElement(env, result, i, obj);
+    (*env)->DeleteLocalRef(env, obj);
+  }
+  return result;
+}
+
+
+/* TJCompressor */
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJCompressor_init
+  (JNIEnv *env, jobject obj)
+{
+  tjhandle handle = tjInitCompress();
+
+  if (!handle) {
+    throwTJ(env);
+    return;
+  }
+  if (setHandle(env, obj, &compressorHandleID, handle) < 0)
+    tjDestroy(handle);
+}
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJCompressor_destroy__
+  (JNIEnv *env, jobject obj)
+{
+  tjhandle handle = getHandle(env, obj, &compressorHandleID);
+
+  if (!handle) return;
+  if (tjDestroy(handle) == -1) throwTJ(env);
+  setHandle(env, obj, &compressorHandleID, NULL);
+}
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJCompressor_destroy__J
+  (JNIEnv *env, jclass cls, jlong handle)
+{
+  if (tjDestroy((tjhandle)(size_t)handle) == -1) throwTJ(env);
+}
+
+static jint compress(JNIEnv *env, jobject obj, buffer *src, jlong srcOffset,
+  jint x, jint y, jint width, jint pitch, jint height, jint pixelFormat,
+  buffer *dst, jlong dstOffset, jlong dstSize, jint jpegSubsamp,
+  jint jpegQual, jint flags)
+{
+  tjhandle handle;
+  unsigned long jpegSize;
+  unsigned char *jpegBuf;
+  jlong regionOffset;
+  int result;
+
+  if (!(handle = getHandle(env, obj, &compressorHandleID))) return 0;
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF || jpegSubsamp < 0 ||
+      jpegSubsamp >= TJ_NUMSAMP || jpegQual < 0 || jpegQual > 100) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in compress()");
+    return 0;
+  }
+  if (pitch == 0) pitch = width * tjPixelSize[pixelFormat];
+  if (checkRegion(env, src, srcOffset, x, y, width, pitch, height,
+                  pixelFormat, "Source buffer is not large enough",
+                  &regionOffset) < 0 ||
+      checkBuffer(env, dst, dstOffset, dstSize,
+                  "Invalid argument in compress()") < 0)
+    return 0;
+  if (dstSize < (jlong)tjBufSize(width, height, jpegSubsamp)) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Destination buffer is not large enough");
+    return 0;
+  }
+
+  jpegSize = (unsigned long)dstSize;
+  if (pin(env, src, JNI_TRUE) < 0) return 0;
+  if (pin(env, dst, JNI_TRUE) < 0) {
+    unpin(env, src, JNI_FALSE);
+    return 0;
+  }
+  jpegBuf = dst->ptr + dstOffset;
+  result = tjCompress2(handle, src->ptr + regionOffset, width, pitch, height,
+    pixelFormat, &jpegBuf, &jpegSize, jpegSubsamp, jpegQual,
+    flags | TJFLAG_NOREALLOC);
+  unpin(env, dst, JNI_TRUE);
+  unpin(env, src, JNI_FALSE);
+
+  if (result == -1) {
+    throwTJ(env);
+    return 0;
+  }
+  return (jint)jpegSize;
+}
+
+static jint compressArray(JNIEnv *env, jobject obj, jarray src, jint x,
+  jint y, jint width, jint pitch, jint height, jint pixelFormat,
+  jbyteArray dst, jint jpegSubsamp, jint jpegQual, jint flags)
+{
+  buffer srcBuf, dstBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0 || initBuffer(env, &dstBuf, dst) < 0)
+    return 0;
+  return compress(env, obj, &srcBuf, 0, x, y, width, pitch, height,
+    pixelFormat, &dstBuf, 0, dstBuf.size, jpegSubsamp, jpegQual, flags);
+}
+
+/* Integer buffers are addressed in pixels, and each pixel must fill an int */
+static int checkIntPixelFormat(JNIEnv *env, jint pixelFormat,
+  const char *msg)
+{
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument");
+    return -1;
+  }
+  if (tjPixelSize[pixelFormat] != sizeof(jint)) {
+    throwNew(env, ILLEGAL_ARGUMENT, msg);
+    return -1;
+  }
+  return 0;
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compress___3BIIII_3BIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint width, jint pitch,
+   jint height, jint pixelFormat, jbyteArray dst, jint jpegSubsamp,
+   jint jpegQual, jint flags)
+{
+  return compressArray(env, obj, src, 0, 0, width, pitch, height,
+    pixelFormat, dst, jpegSubsamp, jpegQual, flags);
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compress___3BIIIIII_3BIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint x, jint y, jint width,
+   jint pitch, jint height, jint pixelFormat, jbyteArray dst,
+   jint jpegSubsamp, jint jpegQual, jint flags)
+{
+  return compressArray(env, obj, src, x, y, width, pitch, height,
+    pixelFormat, dst, jpegSubsamp, jpegQual, flags);
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compress___3IIIII_3BIII
+  (JNIEnv *env, jobject obj, jintArray src, jint width, jint stride,
+   jint height, jint pixelFormat, jbyteArray dst, jint jpegSubsamp,
+   jint jpegQual, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when compressing from an integer buffer.")
+      < 0)
+    return 0;
+  return compressArray(env, obj, src, 0, 0, width, stride * sizeof(jint),
+    height, pixelFormat, dst, jpegSubsamp, jpegQual, flags);
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compress___3IIIIIII_3BIII
+  (JNIEnv *env, jobject obj, jintArray src, jint x, jint y, jint width,
+   jint stride, jint height, jint pixelFormat, jbyteArray dst,
+   jint jpegSubsamp, jint jpegQual, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when compressing from an integer buffer.")
+      < 0)
+    return 0;
+  return compressArray(env, obj, src, x, y, width, stride * sizeof(jint),
+    height, pixelFormat, dst, jpegSubsamp, jpegQual, flags);
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compressBuffer
+  (JNIEnv *env, jobject obj, jobject src, jint srcOffset, jint x, jint y,
+   jint width, jint pitch, jint height, jint pixelFormat, jobject dst,
+   jint dstOffset, jint dstSize, jint jpegSubsamp, jint jpegQual, jint flags)
+{
+  buffer srcBuf, dstBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0 || initBuffer(env, &dstBuf, dst) < 0)
+    return 0;
+  if (srcBuf.ints &&
+      checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when compressing from an integer buffer.")
+      < 0)
+    return 0;
+  return compress(env, obj, &srcBuf, srcOffset, x, y, width, pitch, height,
+    pixelFormat, &dstBuf, dstOffset, dstSize, jpegSubsamp, jpegQual, flags);
+}
+
+JNIEXPORT jint JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_compressFromYUV
+  (JNIEnv *env, jobject obj, jobjectArray srcPlanes, jintArray srcOffsets,
+   jint width, jintArray srcStrides, jint height, jint subsamp,
+   jbyteArray dst, jint jpegQual, jint flags)
+{
+  tjhandle handle;
+  yuvplanes yuv;
+  buffer dstBuf;
+  unsigned long jpegSize;
+  unsigned char *jpegBuf;
+  int result;
+
+  if (!(handle = getHandle(env, obj, &compressorHandleID)) ||
+      initPlanes(env, &yuv, srcPlanes, srcOffsets, srcStrides, width, height,
+                 subsamp) < 0 ||
+      initBuffer(env, &dstBuf, dst) < 0)
+    return 0;
+  if (dstBuf.size < (jlong)tjBufSize(width, height, subsamp)) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Destination buffer is not large enough");
+    return 0;
+  }
+
+  jpegSize = (unsigned long)dstBuf.size;
+  if (pinPlanes(env, &yuv) < 0) {
+    unpinPlanes(env, &yuv, JNI_FALSE);
+    return 0;
+  }
+  if (pin(env, &dstBuf, JNI_TRUE) < 0) {
+    unpinPlanes(env, &yuv, JNI_FALSE);
+    return 0;
+  }
+  jpegBuf = dstBuf.ptr;
+  result = tjCompressFromYUVPlanes(handle,
+    (const unsigned char **)yuv.ptrs, width, yuv.strides, height, subsamp,
+    &jpegBuf, &jpegSize, jpegQual, flags | TJFLAG_NOREALLOC);
+  unpin(env, &dstBuf, JNI_TRUE);
+  unpinPlanes(env, &yuv, JNI_FALSE);
+
+  if (result == -1) {
+    throwTJ(env);
+    return 0;
+  }
+  return (jint)jpegSize;
+}
+
+static void encodeYUV(JNIEnv *env, jobject obj, jarray src, jint x, jint y,
+  jint width, jint pitch, jint height, jint pixelFormat,
+  jobjectArray dstPlanes, jintArray dstOffsets, jintArray dstStrides,
+  jint subsamp, jint flags)
+{
+  tjhandle handle;
+  buffer srcBuf;
+  yuvplanes yuv;
+  jlong regionOffset;
+  int result;
+
+  if (!(handle = getHandle(env, obj, &compressorHandleID)) ||
+      initBuffer(env, &srcBuf, src) < 0)
+    return;
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in encodeYUV()");
+    return;
+  }
+  if (pitch == 0) pitch = width * tjPixelSize[pixelFormat];
+  if (checkRegion(env, &srcBuf, 0, x, y, width, pitch, height, pixelFormat,
+                  "Source buffer is not large enough", &regionOffset) < 0 ||
+      initPlanes(env, &yuv, dstPlanes, dstOffsets, dstStrides, width, height,
+                 subsamp) < 0)
+    return;
+
+  if (pin(env, &srcBuf, JNI_TRUE) < 0) return;
+  if (pinPlanes(env, &yuv) < 0) {
+    unpinPlanes(env, &yuv, JNI_TRUE);
+    unpin(env, &srcBuf, JNI_FALSE);
+    return;
+  }
+  result = tjEncodeYUVPlanes(handle, srcBuf.ptr + regionOffset, width, pitch,
+    height, pixelFormat, yuv.ptrs, yuv.strides, subsamp, flags);
+  unpinPlanes(env, &yuv, JNI_TRUE);
+  unpin(env, &srcBuf, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+static void encodeYUVUnified(JNIEnv *env, jobject obj, jarray src,
+  jint width, jint pitch, jint height, jint pixelFormat, jbyteArray dst,
+  jint subsamp, jint flags)
+{
+  tjhandle handle;
+  buffer srcBuf, dstBuf;
+  jlong regionOffset;
+  unsigned long yuvSize;
+  int result;
+
+  if (!(handle = getHandle(env, obj, &compressorHandleID)) ||
+      initBuffer(env, &srcBuf, src) < 0 || initBuffer(env, &dstBuf, dst) < 0)
+    return;
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in encodeYUV()");
+    return;
+  }
+  if (pitch == 0) pitch = width * tjPixelSize[pixelFormat];
+  if ((yuvSize = tjBufSizeYUV2(width, 4, height, subsamp)) ==
+      (unsigned long)-1) {
+    throwTJ(env);
+    return;
+  }
+  if (checkRegion(env, &srcBuf, 0, 0, 0, width, pitch, height, pixelFormat,
+                  "Source buffer is not large enough", &regionOffset) < 0 ||
+      checkBuffer(env, &dstBuf, 0, (jlong)yuvSize,
+                  "Destination buffer is not large enough") < 0)
+    return;
+
+  if (pin(env, &srcBuf, JNI_TRUE) < 0) return;
+  if (pin(env, &dstBuf, JNI_TRUE) < 0) {
+    unpin(env, &srcBuf, JNI_FALSE);
+    return;
+  }
+  result = tjEncodeYUV3(handle, srcBuf.ptr, width, pitch, height, pixelFormat,
+    dstBuf.ptr, 4, subsamp, flags);
+  unpin(env, &dstBuf, JNI_TRUE);
+  unpin(env, &srcBuf, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_encodeYUV___3BIIII_3BII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint width, jint pitch,
+   jint height, jint pixelFormat, jbyteArray dst, jint subsamp, jint flags)
+{
+  encodeYUVUnified(env, obj, src, width, pitch, height, pixelFormat, dst,
+    subsamp, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_encodeYUV___3BIIIIII_3_3B_3I_3III
+  (JNIEnv *env, jobject obj, jbyteArray src, jint x, jint y, jint width,
+   jint pitch, jint height, jint pixelFormat, jobjectArray dstPlanes,
+   jintArray dstOffsets, jintArray dstStrides, jint subsamp, jint flags)
+{
+  encodeYUV(env, obj, src, x, y, width, pitch, height, pixelFormat,
+    dstPlanes, dstOffsets, dstStrides, subsamp, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_encodeYUV___3IIIII_3BII
+  (JNIEnv *env, jobject obj, jintArray src, jint width, jint stride,
+   jint height, jint pixelFormat, jbyteArray dst, jint subsamp, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when encoding from an integer buffer.")
+      < 0)
+    return;
+  encodeYUVUnified(env, obj, src, width, stride * sizeof(jint), height,
+    pixelFormat, dst, subsamp, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJCompressor_encodeYUV___3IIIIIII_3_3B_3I_3III
+  (JNIEnv *env, jobject obj, jintArray src, jint x, jint y, jint width,
+   jint stride, jint height, jint pixelFormat, jobjectArray dstPlanes,
+   jintArray dstOffsets, jintArray dstStrides, jint subsamp, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when encoding from an integer buffer.")
+      < 0)
+    return;
+  encodeYUV(env, obj, src, x, y, width, stride * sizeof(jint), height,
+    pixelFormat, dstPlanes, dstOffsets, dstStrides, subsamp, flags);
+}
+
+
+/* TJDecompressor */
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJDecompressor_init
+  (JNIEnv *env, jobject obj)
+{
+  tjhandle handle = tjInitDecompress();
+
+  if (!handle) {
+    throwTJ(env);
+    return;
+  }
+  if (setHandle(env, obj, &decompressorHandleID, handle) < 0)
+    tjDestroy(handle);
+}
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJDecompressor_destroy
+  (JNIEnv *env, jobject obj)
+{
+  tjhandle handle = getHandle(env, obj, &decompressorHandleID);
+
+  if (!handle) return;
+  if (tjDestroy(handle) == -1) throwTJ(env);
+  setHandle(env, obj, &decompressorHandleID, NULL);
+}
+
+static void decompressHeader(JNIEnv *env, jobject obj, buffer *src,
+  jlong srcOffset, jint size)
+{
+  tjhandle handle;
+  int width = 0, height = 0, subsamp = -1, colorspace = -1, result;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID)) ||
+      checkBuffer(env, src, srcOffset, size,
+                  "Source buffer is not large enough") < 0)
+    return;
+
+  if (pin(env, src, JNI_TRUE) < 0) return;
+  result = tjDecompressHeader3(handle, src->ptr + srcOffset,
+    (unsigned long)size, &width, &height, &subsamp, &colorspace);
+  unpin(env, src, JNI_FALSE);
+
+  if (result == -1) {
+    throwTJ(env);
+    return;
+  }
+  if (setJPEGField(env, obj, &jpegSubsampID, "jpegSubsamp", subsamp) < 0 ||
+      setJPEGField(env, obj, &jpegColorspaceID, "jpegColorspace",
+                   colorspace) < 0 ||
+      setJPEGField(env, obj, &jpegWidthID, "jpegWidth", width) < 0)
+    return;
+  setJPEGField(env, obj, &jpegHeightID, "jpegHeight", height);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompressHeader
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size)
+{
+  buffer srcBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0) return;
+  decompressHeader(env, obj, &srcBuf, 0, size);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompressHeaderBuffer
+  (JNIEnv *env, jobject obj, jobject src, jint srcOffset, jint size)
+{
+  buffer srcBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0) return;
+  decompressHeader(env, obj, &srcBuf, srcOffset, size);
+}
+
+static void decompress(JNIEnv *env, jobject obj, buffer *src,
+  jlong srcOffset, jint size, buffer *dst, jlong dstOffset, jlong dstSize,
+  jint x, jint y, jint desiredWidth, jint pitch, jint desiredHeight,
+  jint pixelFormat, jint flags)
+{
+  tjhandle handle;
+  int scaledWidth, scaledHeight, result;
+  jlong regionOffset;
+  buffer region;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID))) return;
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF || desiredWidth < 0 ||
+      desiredHeight < 0) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in decompress()");
+    return;
+  }
+  if (checkBuffer(env, src, srcOffset, size,
+                  "Source buffer is not large enough") < 0 ||
+      checkBuffer(env, dst, dstOffset, dstSize,
+                  "Invalid argument in decompress()") < 0 ||
+      getScaledSize(env, obj, desiredWidth, desiredHeight, &scaledWidth,
+                    &scaledHeight) < 0)
+    return;
+  if (pitch == 0) pitch = scaledWidth * tjPixelSize[pixelFormat];
+  /* The region is checked against the part of the buffer that the caller
+     made available */
+  region = *dst;
+  region.size = dstOffset + dstSize;
+  if (checkRegion(env, &region, dstOffset, x, y, scaledWidth, pitch,
+                  scaledHeight, pixelFormat,
+                  "Destination buffer is not large enough",
+                  &regionOffset) < 0)
+    return;
+
+  if (pin(env, src, JNI_TRUE) < 0) return;
+  if (pin(env, dst, JNI_TRUE) < 0) {
+    unpin(env, src, JNI_FALSE);
+    return;
+  }
+  result = tjDecompress2(handle, src->ptr + srcOffset, (unsigned long)size,
+    dst->ptr + regionOffset, desiredWidth, pitch, desiredHeight, pixelFormat,
+    flags);
+  unpin(env, dst, JNI_TRUE);
+  unpin(env, src, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+static void decompressArray(JNIEnv *env, jobject obj, jbyteArray src,
+  jint size, jarray dst, jint x, jint y, jint desiredWidth, jint pitch,
+  jint desiredHeight, jint pixelFormat, jint flags)
+{
+  buffer srcBuf, dstBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0 || initBuffer(env, &dstBuf, dst) < 0)
+    return;
+  decompress(env, obj, &srcBuf, 0, size, &dstBuf, 0, dstBuf.size, x, y,
+    desiredWidth, pitch, desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompress___3BI_3BIIIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size, jbyteArray dst,
+   jint desiredWidth, jint pitch, jint desiredHeight, jint pixelFormat,
+   jint flags)
+{
+  decompressArray(env, obj, src, size, dst, 0, 0, desiredWidth, pitch,
+    desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompress___3BI_3BIIIIIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size, jbyteArray dst,
+   jint x, jint y, jint desiredWidth, jint pitch, jint desiredHeight,
+   jint pixelFormat, jint flags)
+{
+  decompressArray(env, obj, src, size, dst, x, y, desiredWidth, pitch,
+    desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompress___3BI_3IIIIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size, jintArray dst,
+   jint desiredWidth, jint stride, jint desiredHeight, jint pixelFormat,
+   jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when decompressing to an integer buffer.")
+      < 0)
+    return;
+  decompressArray(env, obj, src, size, dst, 0, 0, desiredWidth,
+    stride * sizeof(jint), desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompress___3BI_3IIIIIIII
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size, jintArray dst,
+   jint x, jint y, jint desiredWidth, jint stride, jint desiredHeight,
+   jint pixelFormat, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when decompressing to an integer buffer.")
+      < 0)
+    return;
+  decompressArray(env, obj, src, size, dst, x, y, desiredWidth,
+    stride * sizeof(jint), desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompressBuffer
+  (JNIEnv *env, jobject obj, jobject src, jint srcOffset, jint size,
+   jobject dst, jint dstOffset, jint dstSize, jint x, jint y,
+   jint desiredWidth, jint pitch, jint desiredHeight, jint pixelFormat,
+   jint flags)
+{
+  buffer srcBuf, dstBuf;
+
+  if (initBuffer(env, &srcBuf, src) < 0 || initBuffer(env, &dstBuf, dst) < 0)
+    return;
+  if (dstBuf.ints &&
+      checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when decompressing to an integer buffer.")
+      < 0)
+    return;
+  decompress(env, obj, &srcBuf, srcOffset, size, &dstBuf, dstOffset, dstSize,
+    x, y, desiredWidth, pitch, desiredHeight, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompressToYUV___3BI_3BI
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size, jbyteArray dst,
+   jint flags)
+{
+  tjhandle handle;
+  buffer srcBuf, dstBuf;
+  int jpegWidth, jpegHeight, jpegSubsamp, result;
+  unsigned long yuvSize;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID)) ||
+      initBuffer(env, &srcBuf, src) < 0 ||
+      initBuffer(env, &dstBuf, dst) < 0 ||
+      getJPEGField(env, obj, &jpegWidthID, "jpegWidth", &jpegWidth) < 0 ||
+      getJPEGField(env, obj, &jpegHeightID, "jpegHeight", &jpegHeight) < 0 ||
+      getJPEGField(env, obj, &jpegSubsampID, "jpegSubsamp",
+                   &jpegSubsamp) < 0)
+    return;
+  if ((yuvSize = tjBufSizeYUV2(jpegWidth, 4, jpegHeight, jpegSubsamp)) ==
+      (unsigned long)-1) {
+    throwTJ(env);
+    return;
+  }
+  if (checkBuffer(env, &srcBuf, 0, size,
+                  "Source buffer is not large enough") < 0 ||
+      checkBuffer(env, &dstBuf, 0, (jlong)yuvSize,
+                  "Destination buffer is not large enough") < 0)
+    return;
+
+  if (pin(env, &srcBuf, JNI_TRUE) < 0) return;
+  if (pin(env, &dstBuf, JNI_TRUE) < 0) {
+    unpin(env, &srcBuf, JNI_FALSE);
+    return;
+  }
+  result = tjDecompressToYUV2(handle, srcBuf.ptr, (unsigned long)size,
+    dstBuf.ptr, jpegWidth, 4, jpegHeight, flags);
+  unpin(env, &dstBuf, JNI_TRUE);
+  unpin(env, &srcBuf, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decompressToYUV___3BI_3_3B_3II_3III
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size,
+   jobjectArray dstPlanes, jintArray dstOffsets, jint desiredWidth,
+   jintArray dstStrides, jint desiredHeight, jint flags)
+{
+  tjhandle handle;
+  buffer srcBuf;
+  yuvplanes yuv;
+  int scaledWidth, scaledHeight, jpegSubsamp, result;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID)) ||
+      initBuffer(env, &srcBuf, src) < 0 ||
+      checkBuffer(env, &srcBuf, 0, size,
+                  "Source buffer is not large enough") < 0 ||
+      getJPEGField(env, obj, &jpegSubsampID, "jpegSubsamp",
+                   &jpegSubsamp) < 0 ||
+      getScaledSize(env, obj, desiredWidth, desiredHeight, &scaledWidth,
+                    &scaledHeight) < 0 ||
+      initPlanes(env, &yuv, dstPlanes, dstOffsets, dstStrides, scaledWidth,
+                 scaledHeight, jpegSubsamp) < 0)
+    return;
+
+  if (pin(env, &srcBuf, JNI_TRUE) < 0) return;
+  if (pinPlanes(env, &yuv) < 0) {
+    unpinPlanes(env, &yuv, JNI_TRUE);
+    unpin(env, &srcBuf, JNI_FALSE);
+    return;
+  }
+  result = tjDecompressToYUVPlanes(handle, srcBuf.ptr, (unsigned long)size,
+    yuv.ptrs, desiredWidth, yuv.strides, desiredHeight, flags);
+  unpinPlanes(env, &yuv, JNI_TRUE);
+  unpin(env, &srcBuf, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+static void decodeYUV(JNIEnv *env, jobject obj, jobjectArray srcPlanes,
+  jintArray srcOffsets, jintArray srcStrides, jint subsamp, jarray dst,
+  jint x, jint y, jint width, jint pitch, jint height, jint pixelFormat,
+  jint flags)
+{
+  tjhandle handle;
+  yuvplanes yuv;
+  buffer dstBuf;
+  jlong regionOffset;
+  int result;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID)) ||
+      initPlanes(env, &yuv, srcPlanes, srcOffsets, srcStrides, width, height,
+                 subsamp) < 0 ||
+      initBuffer(env, &dstBuf, dst) < 0)
+    return;
+  if (pixelFormat < 0 || pixelFormat >= TJ_NUMPF) {
+    throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in decodeYUV()");
+    return;
+  }
+  if (pitch == 0) pitch = width * tjPixelSize[pixelFormat];
+  if (checkRegion(env, &dstBuf, 0, x, y, width, pitch, height, pixelFormat,
+                  "Destination buffer is not large enough",
+                  &regionOffset) < 0)
+    return;
+
+  if (pinPlanes(env, &yuv) < 0) {
+    unpinPlanes(env, &yuv, JNI_FALSE);
+    return;
+  }
+  if (pin(env, &dstBuf, JNI_TRUE) < 0) {
+    unpinPlanes(env, &yuv, JNI_FALSE);
+    return;
+  }
+  result = tjDecodeYUVPlanes(handle, (const unsigned char **)yuv.ptrs,
+    yuv.strides, subsamp, dstBuf.ptr + regionOffset, width, pitch, height,
+    pixelFormat, flags);
+  unpin(env, &dstBuf, JNI_TRUE);
+  unpinPlanes(env, &yuv, JNI_FALSE);
+
+  if (result == -1) throwTJ(env);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decodeYUV___3_3B_3I_3II_3BIIIIIII
+  (JNIEnv *env, jobject obj, jobjectArray srcPlanes, jintArray srcOffsets,
+   jintArray srcStrides, jint subsamp, jbyteArray dst, jint x, jint y,
+   jint width, jint pitch, jint height, jint pixelFormat, jint flags)
+{
+  decodeYUV(env, obj, srcPlanes, srcOffsets, srcStrides, subsamp, dst, x, y,
+    width, pitch, height, pixelFormat, flags);
+}
+
+JNIEXPORT void JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJDecompressor_decodeYUV___3_3B_3I_3II_3IIIIIIII
+  (JNIEnv *env, jobject obj, jobjectArray srcPlanes, jintArray srcOffsets,
+   jintArray srcStrides, jint subsamp, jintArray dst, jint x, jint y,
+   jint width, jint stride, jint height, jint pixelFormat, jint flags)
+{
+  if (checkIntPixelFormat(env, pixelFormat,
+        "Pixel format must be 32-bit when decoding to an integer buffer.")
+      < 0)
+    return;
+  decodeYUV(env, obj, srcPlanes, srcOffsets, srcStrides, subsamp, dst, x, y,
+    width, stride * sizeof(jint), height, pixelFormat, flags);
+}
+
+
+/* TJTransformer */
+
+JNIEXPORT void JNICALL Java_org_libjpegturbo_turbojpeg_TJTransformer_init
+  (JNIEnv *env, jobject obj)
+{
+  tjhandle handle = tjInitTransform();
+
+  if (!handle) {
+    throwTJ(env);
+    return;
+  }
+  if (setHandle(env, obj, &decompressorHandleID, handle) < 0)
+    tjDestroy(handle);
+}
+
+/* What a custom filter callback needs in order to call back into Java */
+typedef struct {
+  JNIEnv *env;
+  jobject tobj;
+  jobject cfobj;
+} filterdata;
+
+static jobject newRectangle(JNIEnv *env, tjregion r)
+{
+  jclass cls = (*env)->FindClass(env, "java/awt/Rectangle");
+  jmethodID ctor;
+
+  if (!cls || !(ctor = (*env)->GetMethodID(env, cls, "<init>", "(IIII)V")))
+    return NULL;
+  return (*env)->NewObject(env, cls, ctor, r.x, r.y, r.w, r.h);
+}
+
+static int customFilter(short *coeffs, tjregion arrayRegion,
+  tjregion planeRegion, int componentIndex, int transformIndex,
+  tjtransform *transform)
+{
+  filterdata *data = (filterdata *)transform->data;
+  JNIEnv *env = data->env;
+  jobject bufobj, arrayobj, planeobj;
+  jclass cls;
+  jmethodID mid;
+
+  (*env)->PushLocalFrame(env, 8);
+  if (!(bufobj = (*env)->NewDirectByteBuffer(env, coeffs,
+                   (jlong)sizeof(short) * arrayRegion.w * arrayRegion.h)) ||
+      !(cls = (*env)->FindClass(env, "java/nio/ByteOrder")) ||
+      !(mid = (*env)->GetStaticMethodID(env, cls, "nativeOrder",
+                                        "()Ljava/nio/ByteOrder;")))
+    goto bailout;
+  bufobj = (*env)->CallObjectMethod(env, bufobj,
+    (*env)->GetMethodID(env, (*env)->GetObjectClass(env, bufobj), "order",
+                        "(Ljava/nio/ByteOrder;)Ljava/nio/ByteBuffer;"),
+    (*env)->CallStaticObjectMethod(env, cls, mid));
+  if ((*env)->ExceptionCheck(env) || !bufobj) goto bailout;
+  bufobj = (*env)->CallObjectMethod(env, bufobj,
+    (*env)->GetMethodID(env, (*env)->GetObjectClass(env, bufobj),
+                        "asShortBuffer", "()Ljava/nio/ShortBuffer;"));
+  if ((*env)->ExceptionCheck(env) || !bufobj ||
+      !(arrayobj = newRectangle(env, arrayRegion)) ||
+      !(planeobj = newRectangle(env, planeRegion)) ||
+      !(cls = (*env)->GetObjectClass(env, data->cfobj)) ||
+      !(mid = (*env)->GetMethodID(env, cls, "customFilter",
+         "(Ljava/nio/ShortBuffer;Ljava/awt/Rectangle;Ljava/awt/Rectangle;IILorg/libjpegturbo/turbojpeg/TJTransform;)V")))
+    goto bailout;
+  (*env)->CallVoidMethod(env, data->cfobj, mid, bufobj, arrayobj, planeobj,
+    componentIndex, transformIndex, data->tobj);
+
+  bailout:
+  (*env)->PopLocalFrame(env, NULL);
+  /* A pending exception makes tjTransform() fail, and it is rethrown when
+     the call returns */
+  return (*env)->ExceptionCheck(env) ? -1 : 0;
+}
+
+static int getIntField(JNIEnv *env, jobject obj, jclass cls, const char *name,
+  int *value)
+{
+  jfieldID fid = (*env)->GetFieldID(env, cls, name, "I");
+
+  if (!fid) return -1;
+  *value = (*env)->GetIntField(env, obj, fid);
+  return 0;
+}
+
+JNIEXPORT jintArray JNICALL
+  Java_org_libjpegturbo_turbojpeg_TJTransformer_transform
+  (JNIEnv *env, jobject obj, jbyteArray src, jint size,
+   jobjectArray dstBufs, jobjectArray transforms, jint flags)
+{
+  tjhandle handle;
+  buffer srcBuf, *dstBuf = NULL;
+  tjtransform *t = NULL;
+  filterdata *data = NULL;
+  unsigned char **dstPtrs = NULL;
+  unsigned long *dstSizes = NULL;
+  jint *sizes = NULL;
+  jintArray result = NULL;
+  jboolean critical = JNI_TRUE;
+  int jpegWidth, jpegHeight, jpegSubsamp, n, i, status = -1;
+
+  if (!(handle = getHandle(env, obj, &decompressorHandleID)) ||
+      initBuffer(env, &srcBuf, src) < 0 ||
+      checkBuffer(env, &srcBuf, 0, size,
+                  "Source buffer is not large enough") < 0 ||
+      getJPEGField(env, obj, &jpegWidthID, "jpegWidth", &jpegWidth) < 0 ||
+      getJPEGField(env, obj, &jpegHeightID, "jpegHeight", &jpegHeight) < 0 ||
+      getJPEGField(env, obj, &jpegSubsampID, "jpegSubsamp",
+                   &jpegSubsamp) < 0)
+    return NULL;
+  if (!dstBufs || !transforms ||
+      (n = (*env)->GetArrayLength(env, transforms)) < 1 ||
+      (*env)->GetArrayLength(env, dstBufs) != n) {
+    throwNew(env, ILLEGAL_ARGUMENT,
+      "Mismatch between size of transforms array and destination buffers "
+      "array");
+    return NULL;
+  }
+  /* Each transform holds local references to itself, its destination
+     buffer, and its custom filter */
+  if ((*env)->EnsureLocalCapacity(env, 3 * n) < 0) return NULL;
+
+  if (!(dstBuf = (buffer *)calloc(n, sizeof(buffer))) ||
+      !(t = (tjtransform *)calloc(n, sizeof(tjtransform))) ||
+      !(data = (filterdata *)calloc(n, sizeof(filterdata))) ||
+      !(dstPtrs = (unsigned char **)calloc(n, sizeof(unsigned char *))) ||
+      !(dstSizes = (unsigned long *)calloc(n, sizeof(unsigned long))) ||
+      !(sizes = (jint *)calloc(n, sizeof(jint)))) {
+    throwNew(env, "java/lang/OutOfMemoryError", "Memory allocation failure");
+    goto bailout;
+  }
+
+  for (i = 0; i < n; i++) {
+    jobject tobj = (*env)->GetObjectArrayElement(env, transforms, i);
+    jobject dobj = (*env)->GetObjectArrayElement(env, dstBufs, i);
+    jclass cls;
+    jfieldID fid;
+    int w = jpegWidth, h = jpegHeight;
+
+    if (!tobj || !dobj) {
+      if (!(*env)->ExceptionCheck(env))
+        throwNew(env, ILLEGAL_ARGUMENT, "Invalid argument in transform()");
+      goto bailout;
+    }
+    if (!(cls = (*env)->GetObjectClass(env, tobj)) ||
+        getIntField(env, tobj, cls, "op", &t[i].op) < 0 ||
+        getIntField(env, tobj, cls, "options", &t[i].options) < 0 ||
+        getIntField(env, tobj, cls, "x", &t[i].r.x) < 0 ||
+        getIntField(env, tobj, cls, "y", &t[i].r.y) < 0 ||
+        getIntField(env, tobj, cls, "width", &t[i].r.w) < 0 ||
+        getIntField(env, tobj, cls, "height", &t[i].r.h) < 0 ||
+        !(fid = (*env)->GetFieldID(env, cls, "cf",
+                  "Lorg/libjpegturbo/turbojpeg/TJCustomFilter;")))
+      goto bailout;
+    if ((data[i].cfobj = (*env)->GetObjectField(env, tobj, fid)) != NULL) {
+      data[i].env = env;
+      data[i].tobj = tobj;
+      t[i].data = &data[i];
+      t[i].customFilter = customFilter;
+      critical = JNI_FALSE;
+    }
+
+    if (t[i].options & TJXOPT_CROP) {
+      if (t[i].r.w != 0) w = t[i].r.w;
+      if (t[i].r.h != 0) h = t[i].r.h;
+    }
+    if (IS_TRANSPOSING(t[i].op)) {
+      int tmp = w;  w = h;  h = tmp;
+    }
+    if (initBuffer(env, &dstBuf[i], dobj) < 0) goto bailout;
+    if ((t[i].options & TJXOPT_NOOUTPUT) == 0 &&
+        dstBuf[i].size < (jlong)tjBufSize(w, h, jpegSubsamp)) {
+      throwNew(env, ILLEGAL_ARGUMENT,
+        "Destination buffer is not large enough");
+      goto bailout;
+    }
+    dstSizes[i] = (unsigned long)dstBuf[i].size;
+  }
+
+  /* Custom filters call back into Java during tjTransform(), which is not
+     allowed while arrays are pinned with GetPrimitiveArrayCritical */
+  if (pin(env, &srcBuf, critical) < 0) goto bailout;
+  for (i = 0; i < n; i++) {
+    if (pin(env, &dstBuf[i], critical) < 0) break;
+    dstPtrs[i] = dstBuf[i].ptr;
+  }
+  if (i == n) {
+    status = tjTransform(handle, srcBuf.ptr, (unsigned long)size, n, dstPtrs,
+      dstSizes, t, flags | TJFLAG_NOREALLOC);
+    for (i = 0; i < n; i++)
+      sizes[i] = (jint)dstSizes[i];
+  }
+  for (i = n - 1; i >= 0; i--)
+    unpin(env, &dstBuf[i], JNI_TRUE);
+  unpin(env, &srcBuf, JNI_FALSE);
+  if (status == -1) {
+    if (!(*env)->ExceptionCheck(env)) throwTJ(env);
+    goto bailout;
+  }
+
+  if ((result = (*env)->NewIntArray(env, n)) != NULL)
+    (*env)->SetIntArrayRegion(env, result, 0, n, sizes);
+
+  bailout:
+  free(dstBuf);
+  free(t);
+  free(data);
+  free(dstPtrs);
+  free(dstSizes);
+  free(sizes);
+  return result;
+}
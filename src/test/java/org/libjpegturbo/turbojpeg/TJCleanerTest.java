@@ -0,0 +1,61 @@
+package org.libjpegturbo.turbojpeg;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TJCleanerTest {
+
+    static class CountingReleaser implements TJCleaner.Releaser {
+        final AtomicInteger releases = new AtomicInteger();
+
+        @Override
+        public void release() throws TJException {
+            releases.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testCleanIsIdempotent() throws Exception {
+        CountingReleaser releaser = new CountingReleaser();
+        Object owner = new Object();
+        TJCleaner.Registration registration = TJCleaner.register(owner, releaser);
+        assertFalse(registration.isCleaned());
+        registration.clean();
+        registration.clean();
+        assertTrue(registration.isCleaned());
+        assertEquals(1, releaser.releases.get());
+    }
+
+    @Test
+    public void testCancelDoesNotRelease() throws Exception {
+        CountingReleaser releaser = new CountingReleaser();
+        Object owner = new Object();
+        TJCleaner.Registration registration = TJCleaner.register(owner, releaser);
+        registration.cancel();
+        registration.clean();
+        assertTrue(registration.isCleaned());
+        assertEquals(0, releaser.releases.get());
+    }
+
+    @Test
+    public void testUnreachableOwnerIsReleasedAndCountedAsLeak() throws Exception {
+        CountingReleaser releaser = new CountingReleaser();
+        long leaks = TJCleaner.getLeakCount();
+        boolean leakDetection = TJCleaner.isLeakDetection();
+        TJCleaner.setLeakDetection(true);
+        try {
+            TJCleaner.register(new Object(), releaser);
+        } finally {
+            TJCleaner.setLeakDetection(leakDetection);
+        }
+        for (int i = 0; i < 100 && releaser.releases.get() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, releaser.releases.get());
+        assertEquals(leaks + 1, TJCleaner.getLeakCount());
+    }
+}
@@ -2,10 +2,15 @@ package org.libjpegturbo.turbojpeg;
 
 import java.awt.image.BufferedImage;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
+import static org.junit.Assert.*;
+
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class TJCompressorTest {
@@ -32,4 +37,32 @@ public class TJCompressorTest {
 
     }
 
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testCompressDirectBuffers() throws Exception {
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("ocean.jpg"));
+        int[] widthHolder = new int[1];
+        int[] heightHolder = new int[1];
+        int pixelFormat = TJ.PF_BGR;
+        byte[] srcImage = TJBench.loadImage(img, widthHolder, heightHolder, pixelFormat);
+        compressor.setJPEGQuality(50);
+        compressor.setSubsamp(TJ.SAMP_420);
+        compressor.setSourceImage(srcImage, 0, 0, widthHolder[0], 0, heightHolder[0], pixelFormat);
+        byte[] expected = Arrays.copyOf(compressor.compress(0), compressor.getCompressedSize());
+
+        ByteBuffer src = ByteBuffer.allocateDirect(srcImage.length + 16);
+        src.position(16);
+        src.put(srcImage).position(16);
+        compressor.setSourceImage(src, 0, 0, widthHolder[0], 0, heightHolder[0], pixelFormat);
+        ByteBuffer dst = ByteBuffer.allocateDirect(TJ.bufSize(widthHolder[0], heightHolder[0], TJ.SAMP_420));
+        int size = compressor.compress(dst, 0);
+        assertEquals(expected.length, size);
+        assertEquals(size, dst.position());
+        byte[] actual = new byte[size];
+        dst.flip();
+        dst.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
 }
@@ -6,12 +6,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 public class TJDecompressorTest {
@@ -37,4 +39,36 @@ public class TJDecompressorTest {
 
     }
 
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testDecompressDirectBuffers() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer jpegBuf = ByteBuffer.allocateDirect(jpegImage.length);
+        jpegBuf.put(jpegImage).flip();
+
+        decompressor.setSourceImage(jpegBuf, jpegImage.length);
+        assertEquals(720, decompressor.getWidth());
+        assertEquals(960, decompressor.getHeight());
+        ByteBuffer dstBuf = ByteBuffer.allocateDirect(720 * 960 * 3);
+        decompressor.decompress(dstBuf, 0, 0, 720, 0, 960, TJ.PF_BGR, TJ.FLAG_FASTDCT);
+        final byte[] uncompressedImage = new byte[720 * 960 * 3];
+        dstBuf.get(uncompressedImage);
+        assertEquals(519088164, Arrays.hashCode(uncompressedImage));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test(expected = IllegalArgumentException.class)
+    public void testDirectSourceToIntBufferRequires32BitPixelFormat() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer jpegBuf = ByteBuffer.allocateDirect(jpegImage.length);
+        jpegBuf.put(jpegImage).flip();
+
+        decompressor.setSourceImage(jpegBuf, jpegImage.length);
+        decompressor.decompress(new int[720 * 960], 0, 0, 720, 0, 960, TJ.PF_BGR, 0);
+    }
+
 }
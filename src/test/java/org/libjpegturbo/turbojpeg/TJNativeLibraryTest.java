@@ -0,0 +1,120 @@
+package org.libjpegturbo.turbojpeg;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TJNativeLibraryTest {
+
+    static final String PLATFORM = "test-platform";
+
+    ClassLoader loader;
+    Path cacheRoot;
+
+    @Before
+    public void setup() throws Exception {
+        this.loader = getClass().getClassLoader();
+        this.cacheRoot = Files.createTempDirectory("tjnative");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(cacheRoot.toFile());
+    }
+
+    @Test
+    public void testExtract() throws Exception {
+        List<File> files = TJNativeLibrary.extract(loader, PLATFORM, cacheRoot);
+        assertEquals(2, files.size());
+        assertEquals("libfirst.bin", files.get(0).getName());
+        assertEquals("libsecond.bin", files.get(1).getName());
+        assertEquals(files.get(0).getParentFile(), files.get(1).getParentFile());
+        assertTrue(files.get(0).getParentFile().getName().startsWith(PLATFORM + "-"));
+        assertEquals("not really a library\n", read(files.get(0)));
+        assertEquals(1, cacheRoot.toFile().list().length);
+        assertEquals(2, files.get(0).getParentFile().list().length);
+    }
+
+    @Test
+    public void testExtractedFilesAreReused() throws Exception {
+        File first = TJNativeLibrary.extract(loader, PLATFORM, cacheRoot).get(0);
+        long modified = first.lastModified() - 10000;
+        assertTrue(first.setLastModified(modified));
+        assertEquals(first, TJNativeLibrary.extract(loader, PLATFORM, cacheRoot).get(0));
+        assertEquals(modified, first.lastModified());
+    }
+
+    @Test
+    public void testCorruptedFileIsReplaced() throws Exception {
+        File first = TJNativeLibrary.extract(loader, PLATFORM, cacheRoot).get(0);
+        Files.write(first.toPath(), "truncated".getBytes(StandardCharsets.UTF_8));
+        assertEquals(first, TJNativeLibrary.extract(loader, PLATFORM, cacheRoot).get(0));
+        assertEquals("not really a library\n", read(first));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingPlatform() throws Exception {
+        TJNativeLibrary.extract(loader, "no-such-platform", cacheRoot);
+    }
+
+    @Test
+    public void testPlatform() throws Exception {
+        String platform = TJNativeLibrary.getPlatform();
+        assertTrue(platform, platform.endsWith("-" + System.getProperty("os.arch")));
+        assertFalse(platform, platform.contains(" "));
+    }
+
+    @Test
+    public void testCacheRootProperty() throws Exception {
+        String previous = System.getProperty(TJNativeLibrary.CACHE_DIR_PROPERTY);
+        System.setProperty(TJNativeLibrary.CACHE_DIR_PROPERTY, cacheRoot.toString());
+        try {
+            assertEquals(cacheRoot, TJNativeLibrary.getCacheRoot());
+        } finally {
+            if (previous == null)
+                System.clearProperty(TJNativeLibrary.CACHE_DIR_PROPERTY);
+            else
+                System.setProperty(TJNativeLibrary.CACHE_DIR_PROPERTY, previous);
+        }
+    }
+
+    @Test
+    public void testPrivateDirectoryIsOwnerOnly() throws Exception {
+        assumeTrue(cacheRoot.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path dir = TJNativeLibrary.createPrivateDirectory(cacheRoot.resolve("private"));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir)));
+        assertEquals(dir, TJNativeLibrary.createPrivateDirectory(dir));
+        assertEquals(1, cacheRoot.toFile().list().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testSharedDirectoryIsRejected() throws Exception {
+        assumeTrue(cacheRoot.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path dir = Files.createDirectory(cacheRoot.resolve("shared"));
+        Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxrwxrwx"));
+        TJNativeLibrary.createPrivateDirectory(dir);
+    }
+
+    @Test(expected = IOException.class)
+    public void testSymbolicLinkIsRejected() throws Exception {
+        Path link = Files.createSymbolicLink(cacheRoot.resolve("link"), Files.createDirectory(cacheRoot
+                .resolve("target")));
+        TJNativeLibrary.createPrivateDirectory(link);
+    }
+
+    static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
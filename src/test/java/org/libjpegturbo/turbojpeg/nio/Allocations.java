@@ -0,0 +1,40 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures heap allocation by the current thread, for tests that guard allocation-free code paths.
+ */
+final class Allocations {
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private Allocations() {
+    }
+
+    static boolean isSupported() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * Runs an operation enough times for it to be compiled, then returns the average number of heap bytes allocated
+     * by the current thread per run.
+     */
+    static double bytesPerOperation(int iterations, Operation operation) throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        bean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < iterations; i++)
+            operation.run();
+        long overhead = -bean.getThreadAllocatedBytes(threadId) + bean.getThreadAllocatedBytes(threadId);
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++)
+            operation.run();
+        long after = bean.getThreadAllocatedBytes(threadId);
+        return (double) (after - before - overhead) / iterations;
+    }
+}
@@ -0,0 +1,42 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ContentKeyTest {
+
+    static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testKnownHashes() throws Exception {
+        assertArrayEquals(new long[] { 0, 0 }, ContentKey.hash(bytes("")));
+        assertArrayEquals(new long[] { 0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L }, ContentKey.hash(bytes("hello")));
+        assertArrayEquals(new long[] { 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L },
+                ContentKey.hash(bytes("The quick brown fox jumps over the lazy dog")));
+    }
+
+    @Test
+    public void testHashIgnoresBytesOutsideRemaining() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        ByteBuffer fox = bytes("The quick brown fox jumps over the lazy dog");
+        direct.put(new byte[] { 1, 2, 3 }).put(fox.duplicate()).put((byte) 4);
+        direct.position(3).limit(3 + fox.remaining());
+        assertArrayEquals(ContentKey.hash(fox), ContentKey.hash(direct));
+        assertEquals(3, direct.position());
+    }
+
+    @Test
+    public void testEquality() throws Exception {
+        ContentKey key = new ContentKey(bytes("hello"), 1, 2);
+        assertEquals(key, new ContentKey(bytes("hello"), 1, 2));
+        assertEquals(key.hashCode(), new ContentKey(bytes("hello"), 1, 2).hashCode());
+        assertFalse(key.equals(new ContentKey(bytes("hello"), 1, 3)));
+        assertFalse(key.equals(new ContentKey(bytes("hellp"), 1, 2)));
+    }
+}
@@ -0,0 +1,118 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+public class DirectYUVImageTest {
+
+    TJBufferPool pool;
+
+    @Before
+    public void setup() throws Exception {
+        this.pool = new TJBufferPool(4 * 1024 * 1024);
+    }
+
+    @Test
+    public void testPlaneDimensions() throws Exception {
+        // 35 x 35 at 4:2:2 gives a 36 x 35 luminance plane and 18 x 35 chrominance planes
+        assertEquals(36, DirectYUVImage.getPlaneWidth(0, 35, TJSAMP.TJSAMP_422));
+        assertEquals(35, DirectYUVImage.getPlaneHeight(0, 35, TJSAMP.TJSAMP_422));
+        assertEquals(18, DirectYUVImage.getPlaneWidth(1, 35, TJSAMP.TJSAMP_422));
+        assertEquals(35, DirectYUVImage.getPlaneHeight(2, 35, TJSAMP.TJSAMP_422));
+        assertEquals(18, DirectYUVImage.getPlaneHeight(1, 35, TJSAMP.TJSAMP_420));
+        assertEquals(9, DirectYUVImage.getPlaneWidth(1, 35, TJSAMP.TJSAMP_411));
+        assertEquals(35, DirectYUVImage.getPlaneWidth(0, 35, TJSAMP.TJSAMP_444));
+    }
+
+    @Test
+    public void testAllocateLaysOutPaddedPlanesSequentially() throws Exception {
+        DirectYUVImage image = DirectYUVImage.allocate(pool, 35, 4, 35, TJSAMP.TJSAMP_422);
+        assertArrayEquals(new int[] { 36, 20, 20 }, image.getStrides());
+        ByteBuffer[] planes = image.getPlanes();
+        assertEquals(3, planes.length);
+        assertEquals(36 * 35, planes[0].remaining());
+        assertEquals(20 * 35, planes[1].remaining());
+        assertEquals((36 + 20 + 20) * 35, image.getBuf().limit());
+        planes[1].put(0, (byte) 7);
+        assertEquals(7, image.getBuf().get(36 * 35));
+        image.close();
+        image.close();
+        assertEquals(pool.getReservedBytes(), pool.getIdleBytes());
+    }
+
+    @Test
+    public void testGrayscaleHasOnePlane() throws Exception {
+        DirectYUVImage image = DirectYUVImage.allocate(pool, 10, 1, 10, TJSAMP.TJSAMP_GRAY);
+        assertEquals(1, image.getPlanes().length);
+        image.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlaneTooSmallIsRejected() throws Exception {
+        ByteBuffer[] planes = { ByteBuffer.allocateDirect(16 * 16), ByteBuffer.allocateDirect(8 * 8),
+                ByteBuffer.allocateDirect(8 * 7) };
+        new DirectYUVImage(planes, 16, null, 16, TJSAMP.TJSAMP_420);
+    }
+
+    @Test
+    public void testPlanePositionsAreNotShared() throws Exception {
+        ByteBuffer luma = ByteBuffer.allocateDirect(16 * 16 + 4);
+        luma.position(4);
+        DirectYUVImage image = new DirectYUVImage(new ByteBuffer[] { luma }, 16, null, 16, TJSAMP.TJSAMP_GRAY);
+        luma.position(0);
+        image.getPlanes()[0].position(16);
+        assertEquals(4, image.getPlanes()[0].position());
+        assertNotSame(luma, image.getPlanes()[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversizedImageIsRejected() throws Exception {
+        // 3 planes of 20000 x 20000 bytes would overflow an int
+        DirectYUVImage.allocate(pool, 20000, 1, 20000, TJSAMP.TJSAMP_444);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPlanesCannotBeUsedAfterClose() throws Exception {
+        DirectYUVImage image = DirectYUVImage.allocate(pool, 16, 1, 16, TJSAMP.TJSAMP_420);
+        image.close();
+        image.getPlanes();
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testYUVRoundTrip() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        try (TJNioDecompressor decompressor = new TJNioDecompressor(pool);
+                TJNioCompressor compressor = new TJNioCompressor(pool)) {
+            decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+            try (DirectYUVImage yuv = decompressor.decompressToYUV(0, 4, 0, 0)) {
+                assertEquals(720, yuv.getWidth());
+                assertEquals(960, yuv.getHeight());
+                compressor.setJPEGQuality(50);
+                compressor.setSourceImage(yuv);
+                ByteBuffer jpeg = compressor.compress(0);
+                assertTrue(jpeg.limit() > 0);
+                ByteBuffer pixels = decompressor.decodeYUV(yuv, TJPF.TJPF_RGB, 0);
+                assertEquals(720 * 960 * 3, pixels.limit());
+                compressor.setSourceImage(pixels, 720, 0, 960, TJPF.TJPF_RGB, TJSAMP.TJSAMP_420);
+                try (DirectYUVImage encoded = compressor.encodeYUV(1, TJ.FLAG_FASTDCT)) {
+                    assertEquals(TJSAMP.TJSAMP_420, encoded.getSubsamp());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+public class RestartIndexTest {
+
+    static final int[] YUV420 = { 0x22, 0x11, 0x11 };
+    static final int[] YUV444 = { 0x11, 0x11, 0x11 };
+
+    /**
+     * Build the markers of a JPEG image around made-up entropy-coded data, one array per restart interval.
+     */
+    static ByteBuffer jpeg(int sof, int width, int height, int[] sampling, int restartInterval, byte[][] intervals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, 0xff, 0xd8);
+        write(out, 0xff, 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0);
+        write(out, 0xff, 0xe1, 0, 8, 'E', 'x', 'i', 'f', 0, 0);
+        write(out, 0xff, 0xdb, 0, 3, 0);
+        int n = sampling.length;
+        write(out, 0xff, sof, 0, 8 + 3 * n, 8, height >> 8, height & 0xff, width >> 8, width & 0xff, n);
+        for (int i = 0; i < n; i++)
+            write(out, i + 1, sampling[i], 0);
+        if (restartInterval > 0)
+            write(out, 0xff, 0xdd, 0, 4, restartInterval >> 8, restartInterval & 0xff);
+        write(out, 0xff, 0xda, 0, 6 + 2 * n, n);
+        for (int i = 0; i < n; i++)
+            write(out, i + 1, 0);
+        write(out, 0, 63, 0);
+        for (int i = 0; i < intervals.length; i++) {
+            if (i > 0)
+                write(out, 0xff, 0xd0 + ((i - 1) & 7));
+            out.write(intervals[i], 0, intervals[i].length);
+        }
+        write(out, 0xff, 0xd9);
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        return buf;
+    }
+
+    /**
+     * Re-encode an image with ImageIO, which writes 4:2:0 baseline JPEG images, with a restart marker after every
+     * <code>restartInterval</code> MCUs.
+     */
+    static ByteBuffer restartMarkedJpeg(String resource, int restartInterval) throws Exception {
+        BufferedImage img = ImageIO.read(RestartIndexTest.class.getClassLoader().getResource(resource));
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+            String format = "javax_imageio_jpeg_image_1.0";
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode markerSequence = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            markerSequence.insertBefore(dri, markerSequence.getFirstChild());
+            metadata.setFromTree(format, root);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        return buf;
+    }
+
+    static byte[][] intervals(int count) {
+        byte[][] intervals = new byte[count][];
+        for (int i = 0; i < count; i++)
+            intervals[i] = new byte[] { (byte) i, (byte) 0xff, 0, (byte) 0x80 };
+        return intervals;
+    }
+
+    static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes)
+            out.write(b);
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        RestartIndex index = RestartIndex.parse(jpeg(0xc0, 64, 48, YUV420, 2, intervals(6)));
+        assertNotNull(index);
+        assertEquals(64, index.width);
+        assertEquals(48, index.height);
+        assertEquals(16, index.mcuWidth);
+        assertEquals(16, index.mcuHeight);
+        assertEquals(4, index.mcusPerRow);
+        assertEquals(3, index.getMcuRows());
+        assertEquals(6, index.getIntervalCount());
+        assertEquals(2, index.getIntervalsPerStep());
+        assertEquals(1, index.getRowsPerStep());
+        assertTrue(index.verticalSubsampling);
+    }
+
+    @Test
+    public void testGrayscaleAndUnsubsampled() throws Exception {
+        RestartIndex gray = RestartIndex.parse(jpeg(0xc1, 20, 20, new int[] { 0x22 }, 3, intervals(3)));
+        assertEquals(8, gray.mcuWidth);
+        assertEquals(8, gray.mcuHeight);
+        assertFalse(gray.verticalSubsampling);
+        RestartIndex yuv444 = RestartIndex.parse(jpeg(0xc0, 16, 16, YUV444, 1, intervals(4)));
+        assertEquals(8, yuv444.mcuHeight);
+        assertFalse(yuv444.verticalSubsampling);
+    }
+
+    @Test
+    public void testUnalignedRestartInterval() throws Exception {
+        RestartIndex index = RestartIndex.parse(jpeg(0xc0, 64, 48, YUV420, 3, intervals(4)));
+        assertEquals(4, index.getIntervalsPerStep());
+        assertEquals(3, index.getRowsPerStep());
+    }
+
+    @Test
+    public void testWriteStrip() throws Exception {
+        ByteBuffer jpeg = jpeg(0xc0, 64, 40, YUV420, 2, intervals(6));
+        RestartIndex index = RestartIndex.parse(jpeg);
+        ByteBuffer strip = ByteBuffer.allocateDirect(index.getStripSize(1, 3));
+        index.writeStrip(jpeg, 1, 3, strip);
+        assertFalse(strip.hasRemaining());
+        strip.flip();
+        // Renumbered restart markers and the patched height make the strip a valid image of its own
+        RestartIndex stripIndex = RestartIndex.parse(strip);
+        assertNotNull(stripIndex);
+        assertEquals(64, stripIndex.width);
+        assertEquals(24, stripIndex.height);
+        assertEquals(4, stripIndex.getIntervalCount());
+        ByteBuffer expected = jpeg(0xc0, 64, 24, YUV420, 2, new byte[][] { intervals(6)[2], intervals(6)[3],
+                intervals(6)[4], intervals(6)[5] });
+        // The strip leaves out the APP1 segment
+        assertEquals(expected.limit() - 10, strip.limit());
+        expected.position(expected.limit() - 30);
+        strip.position(strip.limit() - 30);
+        assertEquals(expected, strip);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripMustStartAnInterval() throws Exception {
+        ByteBuffer jpeg = jpeg(0xc0, 64, 48, YUV420, 3, intervals(4));
+        RestartIndex index = RestartIndex.parse(jpeg);
+        index.writeStrip(jpeg, 1, 3, ByteBuffer.allocate(1024));
+    }
+
+    @Test
+    public void testImagesThatCannotBeSplit() throws Exception {
+        assertNull(RestartIndex.parse(jpeg(0xc0, 64, 48, YUV420, 0, intervals(1))));
+        assertNull(RestartIndex.parse(jpeg(0xc2, 64, 48, YUV420, 2, intervals(6))));
+        assertNull(RestartIndex.parse(jpeg(0xc9, 64, 48, YUV420, 2, intervals(6))));
+        assertNull(RestartIndex.parse(jpeg(0xc0, 64, 48, YUV420, 2, intervals(5))));
+        assertNull(RestartIndex.parse(jpeg(0xc0, 64, 48, YUV420, 2, intervals(7))));
+        ByteBuffer truncated = jpeg(0xc0, 64, 48, YUV420, 2, intervals(6));
+        truncated.limit(truncated.limit() - 2);
+        assertNull(RestartIndex.parse(truncated));
+        ByteBuffer misnumbered = jpeg(0xc0, 64, 48, YUV420, 2, intervals(6));
+        for (int i = 0; i < misnumbered.limit() - 1; i++) {
+            if ((misnumbered.get(i) & 0xff) == 0xff && (misnumbered.get(i + 1) & 0xff) == 0xd2)
+                misnumbered.put(i + 1, (byte) 0xd3);
+        }
+        assertNull(RestartIndex.parse(misnumbered));
+        assertNull(RestartIndex.parse(ByteBuffer.allocateDirect(16)));
+    }
+
+    @Test
+    public void testParseRestartMarkedImage() throws Exception {
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("ocean.jpg"));
+        int mcusPerRow = (img.getWidth() + 15) / 16;
+        ByteBuffer jpeg = restartMarkedJpeg("ocean.jpg", mcusPerRow);
+        RestartIndex index = RestartIndex.parse(jpeg);
+        assertNotNull(index);
+        assertEquals(img.getWidth(), index.width);
+        assertEquals(img.getHeight(), index.height);
+        assertEquals(16, index.mcuHeight);
+        assertEquals(index.getMcuRows(), index.getIntervalCount());
+        assertEquals(1, index.getRowsPerStep());
+        assertEquals(0, jpeg.position());
+        // The same image without restart markers is rejected before its entropy-coded data is scanned
+        assertNull(RestartIndex.parse(restartMarkedJpeg("ocean.jpg", 0)));
+    }
+}
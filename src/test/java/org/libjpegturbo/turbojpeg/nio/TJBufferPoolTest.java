@@ -0,0 +1,110 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJException;
+
+public class TJBufferPoolTest {
+
+    TJBufferPool pool;
+
+    @Before
+    public void setup() throws Exception {
+        this.pool = new TJBufferPool(4 * 1024 * 1024);
+    }
+
+    @Test
+    public void testSizeClasses() throws Exception {
+        assertEquals(4096, TJBufferPool.getSizeClass(0));
+        assertEquals(4096, TJBufferPool.getSizeClass(4096));
+        assertEquals(5120, TJBufferPool.getSizeClass(4097));
+        assertEquals(8192, TJBufferPool.getSizeClass(8192));
+        assertEquals(10240, TJBufferPool.getSizeClass(8193));
+        for (int size = 4097; size < 64 * 1024 * 1024; size = size * 3 / 2 + 1) {
+            int sizeClass = TJBufferPool.getSizeClass(size);
+            assertTrue(sizeClass >= size);
+            assertTrue(sizeClass <= size * 1.25);
+            assertEquals(0, sizeClass % TJBufferPool.ALIGNMENT);
+        }
+    }
+
+    @Test
+    public void testBuffersAreAlignedAndReused() throws Exception {
+        ByteBuffer small = pool.acquire(1000);
+        ByteBuffer large = pool.acquire(100000);
+        assertTrue(small.isDirect());
+        assertEquals(0, small.position());
+        assertEquals(1000, small.limit());
+        assertEquals(0, small.alignmentOffset(0, TJBufferPool.ALIGNMENT));
+        assertEquals(0, large.alignmentOffset(0, TJBufferPool.ALIGNMENT));
+        pool.release(large);
+        assertSame(large, pool.acquire(110000));
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void testSlabSlicesDoNotOverlap() throws Exception {
+        ByteBuffer a = pool.acquire(4096);
+        ByteBuffer b = pool.acquire(4096);
+        a.put(0, (byte) 1);
+        b.put(0, (byte) 2);
+        assertEquals(1, a.get(0));
+        assertEquals(TJBufferPool.SLAB_SIZE, pool.getReservedBytes());
+    }
+
+    @Test(expected = TJException.class)
+    public void testLimitIsEnforced() throws Exception {
+        pool.acquire(3 * 1024 * 1024);
+        pool.acquire(3 * 1024 * 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForeignBufferOfClassSizeIsRejected() throws Exception {
+        pool.acquire(4096);
+        pool.release(ByteBuffer.allocateDirect(4096));
+    }
+
+    @Test
+    public void testDoubleReleaseIsRejected() throws Exception {
+        ByteBuffer buf = pool.acquire(100000);
+        pool.release(buf);
+        try {
+            pool.release(buf);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertSame(buf, pool.acquire(100000));
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void testIdleBuffersAreDroppedToStayUnderLimit() throws Exception {
+        ByteBuffer buf = pool.acquire(3 * 1024 * 1024);
+        pool.release(buf);
+        pool.acquire(2 * 1024 * 1024);
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(TJBufferPool.getSizeClass(2 * 1024 * 1024), pool.getReservedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForeignBufferIsRejected() throws Exception {
+        pool.release(ByteBuffer.allocateDirect(1000));
+    }
+
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws Exception {
+        assumeTrue(Allocations.isSupported());
+        double bytes = Allocations.bytesPerOperation(20000, new Allocations.Operation() {
+            @Override
+            public void run() throws Exception {
+                pool.release(pool.acquire(100000));
+            }
+        });
+        assertTrue("allocated " + bytes + " bytes per operation", bytes < 1);
+    }
+}
@@ -0,0 +1,145 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJScalingFactor;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJCS;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+public class TJNioAdmissionTest {
+
+    static final TJScalingFactor[] FACTORS = { new TJScalingFactor(1, 1), new TJScalingFactor(1, 2),
+            new TJScalingFactor(1, 4), new TJScalingFactor(1, 8) };
+
+    static final TJHeader LARGE = new TJHeader(4000, 3000, TJSAMP.TJSAMP_420, TJCS.TJCS_YCbCr);
+
+    static long total(TJHeader header, boolean progressive, TJScalingFactor sf) {
+        long[] bytes = TJNioAdmission.estimate(header, progressive, sf, 3);
+        return bytes[0] + bytes[1];
+    }
+
+    @Test
+    public void testEstimate() throws Exception {
+        long[] baseline = TJNioAdmission.estimate(LARGE, false, FACTORS[0], 3);
+        assertEquals(TJBufferPool.getSizeClass(4000 * 3000 * 3), baseline[0]);
+        // Two 16-row MCU rows of 1.5 samples per pixel
+        assertEquals(TJNioAdmission.FIXED_WORKING_BYTES + 2 * 16 * 4000 * 3 / 2, baseline[1]);
+
+        long[] progressive = TJNioAdmission.estimate(LARGE, true, FACTORS[0], 3);
+        assertEquals(baseline[0], progressive[0]);
+        assertEquals(baseline[1] + 2L * 4000 * 3000 * 3 / 2, progressive[1]);
+
+        long[] scaled = TJNioAdmission.estimate(LARGE, false, FACTORS[1], 4);
+        assertEquals(TJBufferPool.getSizeClass(2000 * 1500 * 4), scaled[0]);
+
+        long[] gray = TJNioAdmission.estimate(new TJHeader(800, 600, TJSAMP.TJSAMP_GRAY, TJCS.TJCS_GRAY), true,
+                FACTORS[0], 1);
+        assertEquals(TJBufferPool.getSizeClass(800 * 600), gray[0]);
+        assertEquals(TJNioAdmission.FIXED_WORKING_BYTES + 2 * 8 * 800 + 2L * 800 * 600, gray[1]);
+    }
+
+    @Test
+    public void testIsProgressive() throws Exception {
+        assertTrue(TJNioAdmission.isProgressive(jpeg(0xc2)));
+        assertFalse(TJNioAdmission.isProgressive(jpeg(0xc0)));
+        assertFalse(TJNioAdmission.isProgressive(ByteBuffer.allocate(3)));
+    }
+
+    static ByteBuffer jpeg(int sof) {
+        return ByteBuffer.wrap(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 4, 0, 0,
+                (byte) 0xff, (byte) 0xc4, 0, 2, (byte) 0xff, (byte) sof, 0, 2 });
+    }
+
+    @Test
+    public void testScalingFactor() throws Exception {
+        assertSame(FACTORS[0], TJNioAdmission.getScalingFactor(LARGE, 0, 0, FACTORS));
+        assertSame(FACTORS[1], TJNioAdmission.getScalingFactor(LARGE, 2500, 0, FACTORS));
+        assertSame(FACTORS[3], TJNioAdmission.getScalingFactor(LARGE, 500, 375, FACTORS));
+    }
+
+    @Test
+    public void testOversizedImageIsAdmittedAlone() throws Exception {
+        TJNioAdmission admission = new TJNioAdmission(new TJNioBatchTest.FailingPool<TJNioDecompressor>(), 1024,
+                null);
+        TJNioAdmission.Grant grant = admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+        assertSame(FACTORS[0], grant.scalingFactor);
+        assertEquals(total(LARGE, false, FACTORS[0]), admission.getReservedBytes());
+        admission.release(grant.pixelBytes + grant.workingBytes);
+        assertEquals(0, admission.getReservedBytes());
+        assertEquals(1, admission.getAdmittedCount());
+    }
+
+    @Test
+    public void testWaitsForBudget() throws Exception {
+        final TJNioAdmission admission = new TJNioAdmission(new TJNioBatchTest.FailingPool<TJNioDecompressor>(),
+                total(LARGE, false, FACTORS[0]) + 1, null);
+        TJNioAdmission.Grant first = admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+                    admitted.countDown();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        waiter.start();
+        while (admission.getQueueLength() == 0)
+            Thread.sleep(1);
+        assertFalse(admitted.await(50, TimeUnit.MILLISECONDS));
+
+        admission.release(first.pixelBytes + first.workingBytes);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertNull(failure.get());
+        assertEquals(0, admission.getQueueLength());
+        assertEquals(2, admission.getAdmittedCount());
+        assertEquals(0, admission.getDegradedCount());
+    }
+
+    @Test
+    public void testDegradesToFit() throws Exception {
+        TJNioAdmission admission = new TJNioAdmission(new TJNioBatchTest.FailingPool<TJNioDecompressor>(),
+                total(LARGE, false, FACTORS[0]) + total(LARGE, false, FACTORS[2]), FACTORS[2]);
+        admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+        TJNioAdmission.Grant grant = admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+        assertSame(FACTORS[2], grant.scalingFactor);
+        assertEquals(1, admission.getDegradedCount());
+        assertEquals(admission.getBudget(), admission.getReservedBytes());
+    }
+
+    @Test
+    public void testInterruptedWaiterLeavesQueue() throws Exception {
+        final TJNioAdmission admission = new TJNioAdmission(new TJNioBatchTest.FailingPool<TJNioDecompressor>(),
+                1024, null);
+        admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    admission.admit(LARGE, false, FACTORS[0], FACTORS, 3);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        waiter.start();
+        while (admission.getQueueLength() == 0)
+            Thread.sleep(1);
+        waiter.interrupt();
+        waiter.join();
+        assertTrue(failure.get() instanceof InterruptedException);
+        assertEquals(0, admission.getQueueLength());
+    }
+}
@@ -0,0 +1,255 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJException;
+
+public class TJNioAsyncTest {
+
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    TJNioAsync async;
+
+    final Callable<String> blocker = new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+            started.countDown();
+            release.await();
+            return "first";
+        }
+    };
+
+    static Callable<String> value(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    static Callable<String> record(final List<String> order, final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                order.add(value);
+                return value;
+            }
+        };
+    }
+
+    @After
+    public void teardown() throws Exception {
+        release.countDown();
+        async.close();
+        assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFullQueueIsRejected() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        CompletableFuture<String> first = async.submit(blocker);
+        started.await();
+        CompletableFuture<String> second = async.submit(value("second"));
+        CompletableFuture<String> third = async.submit(value("third"));
+        assertTrue(third.isCompletedExceptionally());
+        try {
+            third.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, async.getQueueDepth());
+        release.countDown();
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+        assertEquals(2, async.getCompletedCount());
+        assertEquals(1, async.getRejectedCount());
+        assertTrue(async.getMaxQueueNanos() > 0);
+        assertTrue(async.getExecutionNanos() >= async.getMaxExecutionNanos());
+    }
+
+    @Test
+    public void testFullQueueBlocksSubmitter() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.BLOCK);
+        async.submit(blocker);
+        started.await();
+        async.submit(value("second"));
+        final CompletableFuture<CompletableFuture<String>> third = new CompletableFuture<CompletableFuture<String>>();
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                third.complete(async.submit(value("third")));
+            }
+        };
+        submitter.start();
+        submitter.join(100);
+        assertFalse(third.isDone());
+        release.countDown();
+        assertEquals("third", third.get().get());
+        assertEquals(0, async.getRejectedCount());
+    }
+
+    @Test
+    public void testFailuresAndCancellations() throws Exception {
+        async = new TJNioAsync(1, 4, TJNioAsync.Overload.REJECT);
+        async.submit(blocker);
+        started.await();
+        CompletableFuture<String> failing = async.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new TJException("failed");
+            }
+        });
+        CompletableFuture<String> cancelled = async.submit(value("cancelled"));
+        cancelled.cancel(false);
+        release.countDown();
+        try {
+            failing.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TJException);
+        }
+        async.close();
+        assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, async.getFailedCount());
+        assertEquals(1, async.getSkippedCount());
+    }
+
+    @Test
+    public void testSubmitAfterClose() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.BLOCK);
+        async.close();
+        assertTrue(async.submit(value("late")).isCompletedExceptionally());
+        assertEquals(1, async.getRejectedCount());
+    }
+
+    @Test
+    public void testLanesAreServedByWeight() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        TJNioAsync.Lane interactive = async.addLane("interactive", 4, 16);
+        TJNioAsync.Lane bulk = async.addLane("bulk", 1, 16);
+        assertSame(bulk, async.getLane("bulk"));
+        bulk.submit(blocker);
+        started.await();
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 1; i <= 8; i++)
+            futures.add(bulk.submit(record(order, "b" + i)));
+        for (int i = 1; i <= 8; i++)
+            futures.add(interactive.submit(record(order, "i" + i)));
+        assertEquals(8, bulk.getQueueDepth());
+        assertEquals(8, interactive.getQueueDepth());
+        assertEquals(16, async.getQueueDepth());
+        release.countDown();
+        for (CompletableFuture<String> future : futures)
+            future.get();
+        assertEquals(Arrays.asList("i1", "i2", "i3", "i4", "i5", "b1", "i6", "i7", "i8", "b2", "b3", "b4", "b5",
+                "b6", "b7", "b8"), order);
+        assertEquals(9, bulk.getCompletedCount());
+        assertEquals(8, interactive.getCompletedCount());
+        assertEquals(17, async.getCompletedCount());
+        assertEquals(0, async.getDefaultLane().getCompletedCount());
+        assertTrue(bulk.getMaxQueueNanos() > interactive.getMaxQueueNanos());
+    }
+
+    @Test
+    public void testFullLaneDoesNotRejectOthers() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        TJNioAsync.Lane bulk = async.addLane("bulk", 1, 1);
+        async.submit(blocker);
+        started.await();
+        assertFalse(bulk.submit(value("queued")).isDone());
+        assertTrue(bulk.submit(value("rejected")).isCompletedExceptionally());
+        CompletableFuture<String> interactive = async.submit(value("interactive"));
+        assertFalse(interactive.isCompletedExceptionally());
+        assertEquals(1, bulk.getRejectedCount());
+        assertEquals(0, async.getDefaultLane().getRejectedCount());
+        release.countDown();
+        assertEquals("interactive", interactive.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateLane() throws Exception {
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        async.addLane(TJNioAsync.DEFAULT_LANE, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLaneWeightAboveStride() throws Exception {
+        // A larger weight would advance the lane's pass by 0
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        async.addLane("heavy", (1 << 20) + 1, 1);
+    }
+
+    @Test
+    public void testOwnedPoolsAreClosedAfterQueuedOperations() throws Exception {
+        final AtomicBoolean poolsClosed = new AtomicBoolean();
+        TJNioPool<TJNioCompressor> compressors = new TJNioPool<TJNioCompressor>(0, 0) {
+            @Override
+            protected TJNioCompressor create() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                poolsClosed.set(true);
+                super.close();
+            }
+        };
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT, compressors, TJNioPool.newDecompressorPool(0, 0),
+                true);
+        async.submit(blocker);
+        started.await();
+        CompletableFuture<Boolean> queued = async.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return poolsClosed.get();
+            }
+        });
+        async.close();
+        assertFalse(poolsClosed.get());
+        release.countDown();
+        assertFalse(queued.get());
+        assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(poolsClosed.get());
+    }
+
+    @Test
+    public void testBufferOfCancelledOperationIsGivenBack() throws Exception {
+        final TJBufferPool pool = new TJBufferPool(1 << 20);
+        async = new TJNioAsync(1, 1, TJNioAsync.Overload.REJECT);
+        CompletableFuture<ByteBuffer> running = async.submit(new TJNioAsync.LeasingTask() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                bufferPool = pool;
+                ByteBuffer buf = pool.acquire(1000);
+                started.countDown();
+                release.await();
+                return buf;
+            }
+        });
+        started.await();
+        running.cancel(false);
+        release.countDown();
+        async.close();
+        assertTrue(async.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(pool.getReservedBytes(), pool.getIdleBytes());
+        assertEquals(1, async.getCompletedCount());
+    }
+}
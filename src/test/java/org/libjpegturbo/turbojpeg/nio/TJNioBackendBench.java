@@ -0,0 +1,110 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.util.Random;
+
+import org.bridj.CLong;
+import org.bridj.Pointer;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Compares the per-call cost of the BridJ and FFM backends. Run with the turbojpeg library on the library path, on
+ * Java 22 or later to include the FFM backend:
+ *
+ * <pre>
+ * java -cp ... org.libjpegturbo.turbojpeg.nio.TJNioBackendBench [iterations]
+ * </pre>
+ */
+public class TJNioBackendBench {
+
+    static final int[][] SIZES = { { 64, 64 }, { 256, 256 }, { 1024, 1024 }, { 3840, 2160 } };
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        TurbojpegNatives[] backends;
+        try {
+            backends = new TurbojpegNatives[] { TurbojpegNatives.load(TJNioBackend.BRIDJ),
+                    TurbojpegNatives.load(TJNioBackend.FFM) };
+        } catch (Exception e) {
+            System.out.println("FFM backend unavailable (" + e + "), measuring BridJ only");
+            backends = new TurbojpegNatives[] { TurbojpegNatives.load(TJNioBackend.BRIDJ) };
+        }
+        for (TurbojpegNatives natives : backends)
+            bufSize(natives, iterations * 100);
+        for (int[] size : SIZES) {
+            int scaled = Math.max(1, iterations * 64 * 64 / (size[0] * size[1]));
+            for (TurbojpegNatives natives : backends)
+                roundTrip(natives, size[0], size[1], scaled);
+        }
+    }
+
+    static void bufSize(TurbojpegNatives natives, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++)
+            sum += natives.tjBufSize(64 + (i & 7), 64, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sum += natives.tjBufSize(64 + (i & 7), 64, 0);
+        report(natives, "tjBufSize", System.nanoTime() - start, iterations);
+        sink = sum;
+    }
+
+    static void roundTrip(TurbojpegNatives natives, int width, int height, int iterations) {
+        int pixelFormat = (int) TJPF.TJPF_RGB.value();
+        int subsamp = (int) TJSAMP.TJSAMP_420.value();
+        Pointer<?> compressor = TurbojpegLibrary.tjInitCompress();
+        Pointer<?> decompressor = TurbojpegLibrary.tjInitDecompress();
+        Pointer<Byte> src = Pointer.allocateBytes(width * 3L * height);
+        Pointer<Byte> dst = Pointer.allocateBytes(width * 3L * height);
+        long capacity = natives.tjBufSize(width, height, subsamp);
+        Pointer<Byte> jpeg = Pointer.allocateBytes(capacity);
+        Pointer<Pointer<Byte>> jpegBuf = Pointer.allocatePointer(Byte.class);
+        Pointer<CLong> jpegSize = Pointer.allocateCLong();
+        Pointer<Integer> header = Pointer.allocateInts(4);
+        byte[] noise = new byte[(int) src.getValidBytes()];
+        new Random(42).nextBytes(noise);
+        src.setBytes(noise);
+        try {
+            long compressNanos = 0, headerNanos = 0, decompressNanos = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                compressNanos = headerNanos = decompressNanos = 0;
+                for (int i = 0; i < iterations; i++) {
+                    long t0 = System.nanoTime();
+                    jpegBuf.set(jpeg);
+                    jpegSize.setCLong(capacity);
+                    check(natives.tjCompress2(compressor, src, width, 0, height, pixelFormat, jpegBuf, jpegSize,
+                            subsamp, 90, TurbojpegLibrary.TJFLAG_NOREALLOC));
+                    long t1 = System.nanoTime();
+                    long size = jpegSize.getCLong();
+                    check(natives.tjDecompressHeader3(decompressor, jpeg, size, header, header.next(1),
+                            header.next(2), header.next(3)));
+                    long t2 = System.nanoTime();
+                    check(natives.tjDecompress2(decompressor, jpeg, size, dst, width, 0, height, pixelFormat, 0));
+                    long t3 = System.nanoTime();
+                    compressNanos += t1 - t0;
+                    headerNanos += t2 - t1;
+                    decompressNanos += t3 - t2;
+                }
+            }
+            String label = width + "x" + height;
+            report(natives, "compress " + label, compressNanos, iterations);
+            report(natives, "header " + label, headerNanos, iterations);
+            report(natives, "decompress " + label, decompressNanos, iterations);
+        } finally {
+            TurbojpegLibrary.tjDestroy(compressor);
+            TurbojpegLibrary.tjDestroy(decompressor);
+        }
+    }
+
+    static void check(int result) {
+        if (result != 0)
+            throw new IllegalStateException(TurbojpegLibrary.tjGetErrorStr().getCString());
+    }
+
+    static void report(TurbojpegNatives natives, String operation, long nanos, int iterations) {
+        System.out.printf("%-6s %-24s %12.1f ns/op%n", natives.backend(), operation, (double) nanos / iterations);
+    }
+}
@@ -0,0 +1,156 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+public class TJNioBatchTest {
+
+    static class FailingPool<T extends Closeable> extends TJNioPool<T> {
+        FailingPool() {
+            super(0, 0);
+        }
+
+        @Override
+        protected T create() throws TJException {
+            throw new TJException("No handles in this test");
+        }
+    }
+
+    ExecutorService executor;
+    TJNioBatch batch;
+
+    @Before
+    public void setup() throws Exception {
+        this.executor = Executors.newFixedThreadPool(2);
+        this.batch = new TJNioBatch(executor, new FailingPool<TJNioCompressor>(), new FailingPool<TJNioDecompressor>());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        batch.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailuresAreReportedPerJobInOrder() throws Exception {
+        ByteBuffer jpeg = ByteBuffer.allocateDirect(16);
+        List<TJNioBatch.Result> results = batch.decompressAll(Arrays.asList(
+                new TJNioBatch.DecompressJob(jpeg, TJPF.TJPF_RGB, 0), null,
+                new TJNioBatch.DecompressJob(jpeg, TJPF.TJPF_RGB, 0)));
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).getFailure() instanceof TJException);
+        assertTrue(results.get(1).getFailure() instanceof IllegalArgumentException);
+        assertTrue(results.get(2).getFailure() instanceof TJException);
+        for (TJNioBatch.Result result : results) {
+            assertFalse(result.isSuccess());
+            assertNull(result.getBuffer());
+            result.release();
+        }
+    }
+
+    @Test
+    public void testEmptyBatch() throws Exception {
+        assertTrue(batch.compressAll(Arrays.<TJNioBatch.CompressJob> asList()).isEmpty());
+    }
+
+    @Test
+    public void testCloseLeavesSharedExecutorRunning() throws Exception {
+        batch.close();
+        assertFalse(executor.isShutdown());
+    }
+
+    @Test
+    public void testOwnedPoolsAreClosedAfterRunningJobs() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        FailingPool<TJNioDecompressor> decompressors = new FailingPool<TJNioDecompressor>() {
+            @Override
+            protected TJNioDecompressor create() throws TJException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.create();
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+                super.close();
+            }
+        };
+        final TJNioBatch owner = new TJNioBatch(1, new FailingPool<TJNioCompressor>(), decompressors);
+        final AtomicReference<List<TJNioBatch.Result>> results = new AtomicReference<List<TJNioBatch.Result>>();
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    results.set(owner.decompressAll(Arrays.asList(new TJNioBatch.DecompressJob(
+                            ByteBuffer.allocateDirect(16), TJPF.TJPF_RGB, 0))));
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        caller.start();
+        started.await();
+        owner.close();
+        assertEquals(1, closed.getCount());
+        release.countDown();
+        caller.join();
+        // The running job fails on its own, not because its pool was closed under it
+        assertTrue(results.get().get(0).getFailure() instanceof TJException);
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testRoundTrip() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        ByteBuffer corrupt = ByteBuffer.allocateDirect(100);
+        try (TJNioBatch owned = new TJNioBatch(4)) {
+            List<TJNioBatch.Result> decompressed = owned.decompressAll(Arrays.asList(
+                    new TJNioBatch.DecompressJob(source, TJPF.TJPF_RGB, 0),
+                    new TJNioBatch.DecompressJob(corrupt, TJPF.TJPF_RGB, 0),
+                    new TJNioBatch.DecompressJob(source, TJPF.TJPF_RGB, 360, 480, TJ.FLAG_FASTDCT)));
+            assertTrue(decompressed.get(0).isSuccess());
+            assertEquals(720 * 960 * 3, decompressed.get(0).getBuffer().limit());
+            assertTrue(decompressed.get(1).getFailure() instanceof TJException);
+            assertEquals(360, decompressed.get(2).getWidth());
+            TJNioBatch.Result image = decompressed.get(0);
+            List<TJNioBatch.Result> compressed = owned.compressAll(Arrays.asList(new TJNioBatch.CompressJob(
+                    image.getBuffer(), image.getWidth(), 0, image.getHeight(), TJPF.TJPF_RGB, TJSAMP.TJSAMP_420, 90,
+                    0)));
+            assertTrue(compressed.get(0).isSuccess());
+            for (TJNioBatch.Result result : decompressed)
+                result.release();
+            compressed.get(0).release();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+/**
+ * Compares the throughput of virtual threads that decompress a mix of small and large images with and without
+ * {@link TJNioBridge}, and the latency of cheap requests that share the carriers with them. Run with the turbojpeg
+ * library on the library path, on Java 21 or later:
+ *
+ * <pre>
+ * java -cp ... org.libjpegturbo.turbojpeg.nio.TJNioBridgeBench [requests] [carrierThreads]
+ * </pre>
+ */
+public class TJNioBridgeBench {
+
+    /** Image sizes and how many requests out of 100 decompress each */
+    static final int[][] MIX = { { 320, 240, 80 }, { 1280, 960, 17 }, { 4000, 3000, 3 } };
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int carrierThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        Method newVirtualThreadPerTaskExecutor;
+        try {
+            newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads are not available on Java " + System.getProperty("java.version"));
+            return;
+        }
+        ByteBuffer[] images = new ByteBuffer[MIX.length];
+        try (TJNioCompressor compressor = new TJNioCompressor()) {
+            for (int i = 0; i < MIX.length; i++)
+                images[i] = compress(compressor, MIX[i][0], MIX[i][1]);
+        }
+        // In NEVER mode the codecs are borrowed by virtual threads, which share the idle handles of the pool; at most
+        // one call per carrier of the virtual threads runs at a time
+        int handles = Math.max(carrierThreads, Runtime.getRuntime().availableProcessors());
+        try (TJNioPool<TJNioCompressor> compressors = TJNioPool.newCompressorPool(handles, 0);
+                TJNioPool<TJNioDecompressor> decompressors = TJNioPool.newDecompressorPool(handles, 0);
+                TJNioAsync carriers = new TJNioAsync(carrierThreads, carrierThreads * 64, TJNioAsync.Overload.BLOCK,
+                        compressors, decompressors)) {
+            for (int pass = 0; pass < 2; pass++) {
+                boolean report = pass == 1;
+                run(new TJNioBridge(carriers, TJNioBridge.Mode.NEVER), newVirtualThreadPerTaskExecutor, images,
+                        requests, report);
+                run(new TJNioBridge(carriers, TJNioBridge.Mode.AUTO), newVirtualThreadPerTaskExecutor, images,
+                        requests, report);
+            }
+        }
+    }
+
+    static void run(final TJNioBridge bridge, Method newExecutor, final ByteBuffer[] images, int requests,
+            boolean report) throws Exception {
+        final long[] decodeNanos = new long[requests];
+        final long[] pingNanos = new long[requests];
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = (ExecutorService) newExecutor.invoke(null);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            final int request = i;
+            final int image = pick(i);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long t0 = System.nanoTime();
+                    try {
+                        ByteBuffer buf = bridge.decompress(images[image].duplicate(), TJPF.TJPF_RGB, 0);
+                        TJBufferPool.getDefault().release(buf);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    decodeNanos[request] = System.nanoTime() - t0;
+                }
+            });
+            // A request that does no codec work, which only has to wait for a free carrier
+            final long submitted = System.nanoTime();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pingNanos[request] = System.nanoTime() - submitted;
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        if (!report)
+            return;
+        Arrays.sort(decodeNanos);
+        Arrays.sort(pingNanos);
+        System.out.printf("%-6s %8.1f decodes/s  decode p50 %7.2f ms p99 %7.2f ms  ping p50 %7.3f ms p99 %7.3f ms"
+                + "  failures %d%n", bridge.getMode(),
+                requests * 1e9 / elapsed, decodeNanos[requests / 2] / 1e6, decodeNanos[requests * 99 / 100] / 1e6,
+                pingNanos[requests / 2] / 1e6, pingNanos[requests * 99 / 100] / 1e6, failures.get());
+    }
+
+    static int pick(int request) {
+        int slot = request % 100;
+        for (int i = 0; i < MIX.length; i++) {
+            if (slot < MIX[i][2])
+                return i;
+            slot -= MIX[i][2];
+        }
+        return 0;
+    }
+
+    static ByteBuffer compress(TJNioCompressor compressor, int width, int height) throws Exception {
+        ByteBuffer src = ByteBuffer.allocateDirect(width * height * 3);
+        Random random = new Random(42);
+        for (int i = 0; i < src.capacity(); i++)
+            src.put(i, (byte) (i / 3 % width + random.nextInt(16)));
+        compressor.setSourceImage(src, width, 0, height, TJPF.TJPF_RGB, TJSAMP.TJSAMP_420);
+        compressor.setJPEGQuality(90);
+        ByteBuffer jpeg = compressor.compress(0);
+        ByteBuffer copy = ByteBuffer.allocateDirect(jpeg.limit());
+        copy.put(jpeg).flip();
+        return copy;
+    }
+}
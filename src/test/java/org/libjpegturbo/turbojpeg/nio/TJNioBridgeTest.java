@@ -0,0 +1,95 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJException;
+
+public class TJNioBridgeTest {
+
+    static final Callable<Thread> CURRENT_THREAD = new Callable<Thread>() {
+        @Override
+        public Thread call() {
+            return Thread.currentThread();
+        }
+    };
+
+    TJNioAsync carriers;
+
+    @Before
+    public void setup() throws Exception {
+        this.carriers = new TJNioAsync(1, 4, TJNioAsync.Overload.BLOCK);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        carriers.close();
+    }
+
+    @Test
+    public void testPlatformThreadsRunInline() throws Exception {
+        TJNioBridge bridge = new TJNioBridge(carriers, TJNioBridge.Mode.AUTO);
+        assertFalse(TJNioBridge.isVirtual(Thread.currentThread()));
+        assertFalse(bridge.isOffloaded());
+        assertSame(Thread.currentThread(), bridge.call(CURRENT_THREAD));
+    }
+
+    @Test
+    public void testAlwaysRunsOnCarrier() throws Exception {
+        TJNioBridge bridge = new TJNioBridge(carriers, TJNioBridge.Mode.ALWAYS);
+        Thread carrier = bridge.call(CURRENT_THREAD);
+        assertNotSame(Thread.currentThread(), carrier);
+        assertTrue(carrier.getName().startsWith("TurboJPEG async worker"));
+        assertEquals(1, carriers.getCompletedCount());
+    }
+
+    @Test
+    public void testVirtualThreadsAreOffloaded() throws Exception {
+        // No virtual threads before Java 21
+        assumeTrue(hasMethod(Thread.class, "ofVirtual"));
+        final TJNioBridge bridge = new TJNioBridge(carriers, TJNioBridge.Mode.AUTO);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(bridge.call(CURRENT_THREAD));
+                } catch (TJException e) {
+                    result.set(e);
+                }
+            }
+        };
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Thread thread = (Thread) Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class)
+                .invoke(builder, task);
+        thread.join();
+        assertTrue(TJNioBridge.isVirtual(thread));
+        assertTrue(result.get() instanceof Thread);
+        assertFalse(TJNioBridge.isVirtual((Thread) result.get()));
+    }
+
+    @Test(expected = TJException.class)
+    public void testCarrierFailureIsRethrown() throws Exception {
+        new TJNioBridge(carriers, TJNioBridge.Mode.ALWAYS).call(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new TJException("failed");
+            }
+        });
+    }
+
+    static boolean hasMethod(Class<?> type, String name) {
+        try {
+            type.getMethod(name);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+public class TJNioCoalescerTest {
+
+    static final int FOLLOWERS = 7;
+
+    TJBufferPool pool;
+    TJNioCoalescer coalescer;
+    ExecutorService executor;
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger computations = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        this.pool = new TJBufferPool(1024 * 1024);
+        this.coalescer = new TJNioCoalescer(new TJNioBatchTest.FailingPool<TJNioDecompressor>(),
+                new TJNioBatchTest.FailingPool<TJNioCompressor>());
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    Callable<TJNioSharedBuffer> operation(final boolean fail) {
+        return new Callable<TJNioSharedBuffer>() {
+            @Override
+            public TJNioSharedBuffer call() throws Exception {
+                computations.incrementAndGet();
+                release.await();
+                if (fail)
+                    throw new TJException("failed");
+                ByteBuffer buf = pool.acquire(4 * 4 * 3);
+                return new TJNioSharedBuffer(buf, 4, 4, TJPF.TJPF_RGB, pool);
+            }
+        };
+    }
+
+    List<Future<TJNioSharedBuffer>> submit(final ContentKey key, final boolean fail) throws Exception {
+        List<Future<TJNioSharedBuffer>> results = new ArrayList<Future<TJNioSharedBuffer>>();
+        for (int i = 0; i <= FOLLOWERS; i++) {
+            results.add(executor.submit(new Callable<TJNioSharedBuffer>() {
+                @Override
+                public TJNioSharedBuffer call() throws Exception {
+                    return coalescer.execute(key, operation(fail));
+                }
+            }));
+        }
+        while (coalescer.getDuplicateCount() < FOLLOWERS)
+            Thread.sleep(1);
+        return results;
+    }
+
+    @Test
+    public void testIdenticalRequestsShareOneResult() throws Exception {
+        List<Future<TJNioSharedBuffer>> results = submit(new ContentKey(ByteBuffer.allocate(16), 1), false);
+        assertEquals(1, coalescer.getInFlightCount());
+        release.countDown();
+        TJNioSharedBuffer first = results.get(0).get();
+        for (Future<TJNioSharedBuffer> result : results)
+            assertSame(first, result.get());
+        assertEquals(1, computations.get());
+        assertEquals(FOLLOWERS + 1, first.getRefCount());
+        assertEquals(FOLLOWERS + 1, coalescer.getRequestCount());
+        assertEquals(0, coalescer.getInFlightCount());
+        assertTrue(first.getBuffer().isReadOnly());
+
+        for (int i = 0; i < FOLLOWERS; i++)
+            results.get(i).get().release();
+        long idle = pool.getIdleBytes();
+        first.release();
+        assertEquals(0, first.getRefCount());
+        assertEquals(idle + TJBufferPool.getSizeClass(48), pool.getIdleBytes());
+        try {
+            first.release();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        List<Future<TJNioSharedBuffer>> results = submit(new ContentKey(ByteBuffer.allocate(16), 1), true);
+        release.countDown();
+        for (Future<TJNioSharedBuffer> result : results) {
+            try {
+                result.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TJException);
+            }
+        }
+        assertEquals(1, computations.get());
+    }
+
+    @Test
+    public void testLaterRequestStartsNewComputation() throws Exception {
+        release.countDown();
+        ContentKey key = new ContentKey(ByteBuffer.allocate(16), 1);
+        coalescer.execute(key, operation(false)).release();
+        coalescer.execute(key, operation(false)).release();
+        assertEquals(2, computations.get());
+        assertEquals(0, coalescer.getDuplicateCount());
+    }
+}
@@ -104,6 +104,103 @@ public class TJNioCompressorTest {
               e.printStackTrace();
           }
     }
-    
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws Exception{
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("ocean.jpg"));
+        int [] widthHolder = new int[1];
+        int [] heightHolder = new int[1];
+        byte[] srcImage = TJBench.loadImage(img, widthHolder, heightHolder, TJ.PF_BGR);
+        final ByteBuffer srcImageBuffer = ByteBuffer.allocateDirect(srcImage.length);
+        srcImageBuffer.put(srcImage);
+        srcImageBuffer.rewind();
+        final int width = widthHolder[0];
+        final int height = heightHolder[0];
+        compressor.setJPEGQuality(50);
+        compressor.setSourceImage(srcImageBuffer, width, 0, height, TJPF.TJPF_BGR, TJSAMP.TJSAMP_420);
+        final ByteBuffer callerBuffer = ByteBuffer.allocateDirect(compressor.getRequiredCapacity());
+        double bytes = Allocations.bytesPerOperation(200, new Allocations.Operation() {
+            @Override
+            public void run() throws Exception {
+                compressor.setSourceImage(srcImageBuffer, width, 0, height, TJPF.TJPF_BGR, TJSAMP.TJSAMP_420);
+                compressor.compress(0);
+                callerBuffer.clear();
+                compressor.compress(callerBuffer, 0);
+            }
+        });
+        assertTrue("allocated " + bytes + " bytes per operation", bytes < 1);
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testSourcePositionIsIgnored() throws Exception{
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("ocean.jpg"));
+        int [] widthHolder = new int[1];
+        int [] heightHolder = new int[1];
+        byte[] srcImage = TJBench.loadImage(img, widthHolder, heightHolder, TJ.PF_BGR);
+        ByteBuffer srcImageBuffer = ByteBuffer.allocateDirect(srcImage.length);
+        srcImageBuffer.put(srcImage);
+        srcImageBuffer.rewind();
+        compressor.setJPEGQuality(50);
+        compressor.setSourceImage(srcImageBuffer, widthHolder[0], 0, heightHolder[0], TJPF.TJPF_BGR, TJSAMP.TJSAMP_420);
+        ByteBuffer first = compressor.compress(0);
+        ByteBuffer expected = ByteBuffer.allocate(first.remaining());
+        expected.put(first).flip();
+        // The image is read from index 0 to the limit, whatever the position, as with a buffer that was just filled
+        srcImageBuffer.position(srcImageBuffer.limit());
+        compressor.setSourceImage(srcImageBuffer, widthHolder[0], 0, heightHolder[0], TJPF.TJPF_BGR, TJSAMP.TJSAMP_420);
+        assertEquals(expected, compressor.compress(0));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testCompressGrowableRightSizesItsBuffer() throws Exception{
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("jungle.jpg"));
+        int [] widthHolder = new int[1];
+        int [] heightHolder = new int[1];
+        byte[] srcImage = TJBench.loadImage(img, widthHolder, heightHolder, TJ.PF_BGRA);
+        compressor.setJPEGQuality(50);
+        ByteBuffer srcImageBuffer = ByteBuffer.allocateDirect(srcImage.length);
+        srcImageBuffer.put(srcImage);
+        srcImageBuffer.rewind();
+        compressor.setSourceImage(srcImageBuffer, widthHolder[0], 0, heightHolder[0], TJPF.TJPF_BGRA, TJSAMP.TJSAMP_422);
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer destImage = compressor.compressGrowable(0);
+            assertEquals(1036269,destImage.limit());
+        }
+        assertTrue(compressor.getNativeBufferCapacity() >= 1036269);
+        assertTrue(compressor.getNativeBufferCapacity() < compressor.getRequiredCapacity() / 4);
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testCompressGrowableTracksGrownBuffer() throws Exception{
+        BufferedImage img = ImageIO.read(getClass().getClassLoader().getResource("jungle.jpg"));
+        int [] widthHolder = new int[1];
+        int [] heightHolder = new int[1];
+        byte[] srcImage = TJBench.loadImage(img, widthHolder, heightHolder, TJ.PF_BGRA);
+        ByteBuffer srcImageBuffer = ByteBuffer.allocateDirect(srcImage.length);
+        srcImageBuffer.put(srcImage);
+        srcImageBuffer.rewind();
+        compressor.setSourceImage(srcImageBuffer, widthHolder[0], 0, heightHolder[0], TJPF.TJPF_BGRA, TJSAMP.TJSAMP_420);
+        compressor.setJPEGQuality(1);
+        int small = compressor.compressGrowable(0).limit();
+        int capacity = compressor.getNativeBufferCapacity();
+        // The estimate from the low-quality image is far too small, so TurboJPEG has to grow the buffer
+        compressor.setJPEGQuality(100);
+        ByteBuffer destImage = compressor.compressGrowable(0);
+        assertTrue(destImage.limit() > 2 * small);
+        assertTrue(compressor.getNativeBufferCapacity() > capacity);
+        assertEquals(destImage.limit(), compressor.getNativeBufferCapacity());
+        assertEquals(compressor.getNativeBufferCapacity(), destImage.capacity());
+        // The grown buffer is reallocated to fit the next image
+        assertEquals(destImage.limit(), compressor.compressGrowable(0).limit());
+        assertTrue(compressor.getNativeBufferCapacity() >= destImage.limit());
+    }
 
 }
@@ -19,6 +19,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.TJScalingFactor;
 import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
 
 public class TJNioDecompressorTest {
@@ -49,4 +50,119 @@ public class TJNioDecompressorTest {
 
     }
 
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testDecompressIntoCallerBuffer() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length).order(ByteOrder.nativeOrder());
+        source.put(jpegImage);
+        decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+        assertEquals(720 * 960 * 3, decompressor.getRequiredCapacity());
+        ByteBuffer dst = ByteBuffer.allocateDirect(16 + decompressor.getRequiredCapacity());
+        dst.position(16);
+        assertEquals(720 * 960 * 3, decompressor.decompress(dst, TJ.FLAG_FASTDCT));
+        assertEquals(dst.capacity(), dst.position());
+        final byte[] uncompressedImage = new byte[720 * 960 * 3];
+        dst.position(16);
+        dst.get(uncompressedImage);
+        assertEquals(519088164,Arrays.hashCode(uncompressedImage));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        final ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length).order(ByteOrder.nativeOrder());
+        source.put(jpegImage);
+        final ByteBuffer callerBuffer = ByteBuffer.allocateDirect(720 * 960 * 3);
+        double bytes = Allocations.bytesPerOperation(200, new Allocations.Operation() {
+            @Override
+            public void run() throws Exception {
+                decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+                decompressor.getSubsamp();
+                decompressor.getColorspace();
+                decompressor.decompress(TJ.FLAG_FASTDCT);
+                callerBuffer.clear();
+                decompressor.decompress(callerBuffer, TJ.FLAG_FASTDCT);
+            }
+        });
+        assertTrue("allocated " + bytes + " bytes per operation", bytes < 1);
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testSourcePositionIsIgnored() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        source.rewind();
+        decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+        ByteBuffer first = decompressor.decompress(0);
+        ByteBuffer expected = ByteBuffer.allocate(first.remaining());
+        expected.put(first).flip();
+        // The image is read from index 0 to the limit, whatever the position, as with a buffer that was just filled
+        source.position(100);
+        decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+        assertEquals(720, decompressor.getWidth());
+        assertEquals(expected, decompressor.decompress(0));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testScaledDecompress() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length).order(ByteOrder.nativeOrder());
+        source.put(jpegImage);
+        decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+        assertEquals(180, decompressor.getScaledWidth(200, 0));
+        assertEquals(240, decompressor.getScaledHeight(200, 0));
+        ByteBuffer buf = decompressor.decompress(200, 0, TJ.FLAG_FASTDCT);
+        assertEquals(180 * 240 * 3, buf.limit());
+        buf = decompressor.decompress(new TJScalingFactor(1, 2), TJ.FLAG_FASTDCT);
+        assertEquals(360 * 480 * 3, buf.limit());
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testDecompressIntoCanvas() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length).order(ByteOrder.nativeOrder());
+        source.put(jpegImage);
+        decompressor.setSourceImage(source, TJPF.TJPF_BGR);
+        int pitch = 2 * 180 * 3;
+        ByteBuffer canvas = ByteBuffer.allocateDirect(pitch * 2 * 240);
+        for (int cell = 0; cell < 4; cell++)
+            decompressor.decompress(canvas, (cell % 2) * 180, (cell / 2) * 240, 180, pitch, 240, TJ.FLAG_FASTDCT);
+        assertEquals(0, canvas.position());
+        ByteBuffer tile = decompressor.decompress(180, 240, TJ.FLAG_FASTDCT);
+        for (int row = 0; row < 240; row++) {
+            for (int col = 0; col < 180 * 3; col++)
+                assertEquals(tile.get(row * 180 * 3 + col), canvas.get((240 + row) * pitch + 180 * 3 + col));
+        }
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testReadHeader() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length).order(ByteOrder.nativeOrder());
+        source.put(jpegImage);
+        TJHeader header = decompressor.readHeader(source);
+        assertEquals(720, header.getWidth());
+        assertEquals(960, header.getHeight());
+        assertNull(decompressor.getDstBuf());
+    }
+
 }
@@ -0,0 +1,204 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJSAMP;
+
+public class TJNioImageCacheTest {
+
+    static final int IMAGE_SIZE = 4096;
+
+    TJBufferPool pool;
+    TJNioImageCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        this.pool = new TJBufferPool(1024 * 1024);
+        this.cache = new TJNioImageCache(new TJNioCoalescer(new TJNioBatchTest.FailingPool<TJNioDecompressor>(),
+                new TJNioBatchTest.FailingPool<TJNioCompressor>()), 10 * IMAGE_SIZE);
+    }
+
+    static ContentKey key(int i) {
+        ByteBuffer content = ByteBuffer.allocate(4);
+        content.putInt(0, i);
+        return new ContentKey(content);
+    }
+
+    TJNioSharedBuffer image(int size) throws Exception {
+        ByteBuffer buf = pool.acquire(size);
+        return new TJNioSharedBuffer(buf, size, 1, TJPF.TJPF_GRAY, pool);
+    }
+
+    /** Request an image, and add it to the cache on a miss, the way {@link TJNioImageCache#decompress} does */
+    TJNioSharedBuffer request(int i) throws Exception {
+        TJNioSharedBuffer image = cache.get(key(i));
+        if (image == null) {
+            image = image(IMAGE_SIZE);
+            cache.put(key(i), image);
+        }
+        return image;
+    }
+
+    @Test
+    public void testHitsAndReferences() throws Exception {
+        TJNioSharedBuffer first = request(1);
+        assertEquals(2, first.getRefCount());
+        TJNioSharedBuffer second = request(1);
+        assertSame(first, second);
+        assertEquals(3, first.getRefCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRatio(), 0);
+        assertEquals(IMAGE_SIZE, cache.getResidentBytes());
+        assertEquals(1, cache.getEntryCount());
+
+        first.release();
+        second.release();
+        cache.invalidateAll();
+        assertEquals(0, first.getRefCount());
+        assertEquals(0, cache.getResidentBytes());
+    }
+
+    @Test
+    public void testEvictedImageStaysValidWhileHeld() throws Exception {
+        TJNioSharedBuffer held = request(1);
+        cache.invalidateAll();
+        assertEquals(1, held.getRefCount());
+        assertEquals(IMAGE_SIZE, held.getBuffer().remaining());
+        held.release();
+        assertEquals(0, held.getRefCount());
+    }
+
+    @Test
+    public void testOversizedImageIsNotAdmitted() throws Exception {
+        TJNioSharedBuffer large = image(11 * IMAGE_SIZE);
+        cache.put(key(1), large);
+        assertEquals(1, large.getRefCount());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testBudgetCountsSizeClasses() throws Exception {
+        TJNioSharedBuffer image = image(IMAGE_SIZE + 1);
+        cache.put(key(1), image);
+        image.release();
+        assertEquals(TJBufferPool.getSizeClass(IMAGE_SIZE + 1), cache.getResidentBytes());
+    }
+
+    @Test
+    public void testOneHitWondersDoNotEvictHotImages() throws Exception {
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 8; i++)
+                request(i).release();
+        }
+        for (int i = 100; i < 200; i++)
+            request(i).release();
+        long hits = cache.getHitCount();
+        for (int i = 0; i < 8; i++)
+            request(i).release();
+        assertEquals(hits + 8, cache.getHitCount());
+        assertTrue(cache.getResidentBytes() <= cache.getMaxBytes());
+        assertTrue(cache.getEvictionCount() >= 99);
+    }
+
+    @Test
+    public void testRecencyWinsOverStalePopularity() throws Exception {
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 9; i++)
+                request(i).release();
+        }
+        // A new working set that is requested repeatedly replaces the old one
+        for (int round = 0; round < 8; round++) {
+            for (int i = 100; i < 109; i++)
+                request(i).release();
+        }
+        long hits = cache.getHitCount();
+        for (int i = 100; i < 109; i++)
+            request(i).release();
+        assertEquals(hits + 9, cache.getHitCount());
+    }
+
+    @Test
+    public void testSketch() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++)
+            sketch.increment(42);
+        assertEquals(15, sketch.frequency(42));
+        assertEquals(0, sketch.frequency(43));
+        for (int i = 0; i < 160; i++)
+            sketch.increment(1000 + i);
+        assertTrue(sketch.frequency(42) < 15);
+
+        int frequency = sketch.frequency(42);
+        sketch.ensureCapacity(100);
+        assertEquals(128, sketch.getWidth());
+        assertEquals(frequency, sketch.frequency(42));
+    }
+
+    @Test
+    public void testYUVPlanesAreSharedReadOnly() throws Exception {
+        TJNioSharedBuffer planes = new TJNioSharedBuffer(DirectYUVImage.allocate(pool, 5, 1, 3, TJSAMP.TJSAMP_420),
+                pool);
+        assertEquals(TJSAMP.TJSAMP_420, planes.getSubsamp());
+        assertNull(planes.getPixelFormat());
+        assertEquals(6 * 4 + 2 * 3 * 2, planes.getSize());
+        DirectYUVImage image = planes.getYUVImage();
+        assertEquals(5, image.getWidth());
+        assertEquals(3, image.getHeight());
+        ByteBuffer[] buffers = image.getPlanes();
+        assertEquals(3, buffers.length);
+        assertEquals(24, buffers[0].remaining());
+        assertEquals(6, buffers[1].remaining());
+        assertEquals(6, buffers[2].remaining());
+        assertTrue(buffers[0].isReadOnly());
+        assertTrue(buffers[0].isDirect());
+        image.close();
+        assertEquals(1, planes.getRefCount());
+        planes.release();
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testYUVStorage() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        TJNioPool<TJNioDecompressor> decompressors = TJNioPool.newDecompressorPool(0, 0);
+        TJNioPool<TJNioCompressor> compressors = TJNioPool.newCompressorPool(0, 0);
+        try {
+            TJNioImageCache yuvCache = new TJNioImageCache(new TJNioCoalescer(decompressors, compressors),
+                    64 * 1024 * 1024, TJNioImageCache.Storage.YUV);
+            TJNioSharedBuffer rgb = yuvCache.decompress(source, TJPF.TJPF_RGB, 0);
+            TJNioSharedBuffer bgrx = yuvCache.decompress(source, TJPF.TJPF_BGRX, TJ.FLAG_BOTTOMUP);
+            assertEquals(rgb.getWidth() * rgb.getHeight() * 3, rgb.getSize());
+            assertEquals(rgb.getWidth() * rgb.getHeight() * 4, bgrx.getSize());
+            assertEquals(1, rgb.getRefCount());
+            assertEquals(1, yuvCache.getEntryCount());
+            assertEquals(1, yuvCache.getHitCount());
+            assertTrue(yuvCache.getResidentBytes() < rgb.getSize());
+
+            TJNioSharedBuffer planes = yuvCache.decompressToYUV(source, 0, 0, 0);
+            assertEquals(2, yuvCache.getHitCount());
+            assertEquals(rgb.getWidth(), planes.getYUVImage().getWidth());
+            rgb.release();
+            bgrx.release();
+            planes.release();
+            yuvCache.invalidateAll();
+        } finally {
+            decompressors.close();
+            compressors.close();
+        }
+    }
+}
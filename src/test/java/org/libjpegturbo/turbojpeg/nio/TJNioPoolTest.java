@@ -0,0 +1,186 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJException;
+
+public class TJNioPoolTest {
+
+    static class FakeHandle implements Closeable {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    static class FakePool extends TJNioPool<FakeHandle> {
+        FakePool(int maxShared, long maxIdleMillis) {
+            super(maxShared, maxIdleMillis);
+        }
+
+        @Override
+        protected FakeHandle create() throws TJException {
+            return new FakeHandle();
+        }
+    }
+
+    FakePool pool;
+
+    @Before
+    public void setup() throws Exception {
+        this.pool = new FakePool(1, 0);
+    }
+
+    @Test
+    public void testThreadLocalSlotIsReused() throws Exception {
+        FakeHandle first = pool.borrow();
+        pool.giveBack(first);
+        FakeHandle second = pool.borrow();
+        assertSame(first, second);
+        assertEquals(1, pool.getThreadLocalHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testSharedOverflowIsBounded() throws Exception {
+        FakeHandle a = pool.borrow();
+        FakeHandle b = pool.borrow();
+        FakeHandle c = pool.borrow();
+        pool.giveBack(a);
+        pool.giveBack(b);
+        pool.giveBack(c);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(1, pool.getDiscardedCount());
+        assertFalse(a.closed);
+        assertFalse(b.closed);
+        assertTrue(c.closed);
+    }
+
+    @Test
+    public void testSharedOverflowServesOtherThreads() throws Exception {
+        FakeHandle a = pool.borrow();
+        FakeHandle b = pool.borrow();
+        pool.giveBack(a);
+        pool.giveBack(b);
+        final AtomicReference<FakeHandle> borrowed = new AtomicReference<FakeHandle>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed.set(pool.borrow());
+                } catch (TJException e) {
+                }
+            }
+        };
+        t.start();
+        t.join();
+        assertSame(b, borrowed.get());
+        assertEquals(1, pool.getSharedHits());
+    }
+
+    @Test
+    public void testLeaseGivesHandleBack() throws Exception {
+        FakeHandle handle;
+        try (TJNioPool.Lease<FakeHandle> lease = pool.lease()) {
+            handle = lease.get();
+        }
+        assertEquals(1, pool.getIdleCount());
+        assertSame(handle, pool.borrow());
+    }
+
+    @Test
+    public void testEvictIdle() throws Exception {
+        pool = new FakePool(4, 1);
+        FakeHandle a = pool.borrow();
+        FakeHandle b = pool.borrow();
+        pool.giveBack(a);
+        pool.giveBack(b);
+        Thread.sleep(5);
+        assertEquals(2, pool.evictIdle());
+        assertTrue(a.closed);
+        assertTrue(b.closed);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(2, pool.getEvictedCount());
+    }
+
+    @Test
+    public void testDeadThreadSlotsAreReclaimedWithoutIdleEviction() throws Exception {
+        final AtomicReference<FakeHandle> borrowed = new AtomicReference<FakeHandle>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FakeHandle handle = pool.borrow();
+                    pool.giveBack(handle);
+                    borrowed.set(handle);
+                } catch (TJException e) {
+                }
+            }
+        };
+        Thread first = new Thread(task);
+        first.start();
+        first.join();
+        FakeHandle left = borrowed.get();
+        assertFalse(left.closed);
+        assertEquals(1, pool.getIdleCount());
+        for (int i = 0; i < 10; i++) {
+            Thread t = new Thread(task);
+            t.start();
+            t.join();
+        }
+        assertTrue(left.closed);
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(10, pool.getEvictedCount());
+    }
+
+    @Test
+    public void testVirtualThreadsShareIdleHandles() throws Exception {
+        // No virtual threads before Java 21
+        assumeTrue(TJNioBridgeTest.hasMethod(Thread.class, "ofVirtual"));
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.giveBack(pool.borrow());
+                } catch (TJException e) {
+                }
+            }
+        };
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        for (int i = 0; i < 10; i++) {
+            Thread thread = (Thread) Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class)
+                    .invoke(builder, task);
+            thread.join();
+        }
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(9, pool.getSharedHits());
+        assertEquals(0, pool.getThreadLocalHits());
+    }
+
+    @Test
+    public void testCloseClosesIdleAndReturnedHandles() throws Exception {
+        FakeHandle idle = pool.borrow();
+        FakeHandle inUse = pool.borrow();
+        pool.giveBack(idle);
+        pool.close();
+        assertTrue(idle.closed);
+        assertFalse(inUse.closed);
+        pool.giveBack(inUse);
+        assertTrue(inUse.closed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBorrowAfterClose() throws Exception {
+        pool.close();
+        pool.borrow();
+    }
+}
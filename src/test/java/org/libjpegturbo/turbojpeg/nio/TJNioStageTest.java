@@ -0,0 +1,181 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TJNioStageTest {
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    static class FakeUpstream implements Flow.Subscription {
+        long requested;
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    static class FakeDownstream implements Flow.Subscriber<TJNioFrame> {
+        Flow.Subscription subscription;
+        final List<TJNioFrame> frames = new ArrayList<TJNioFrame>();
+        Throwable error;
+        boolean complete;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(TJNioFrame item) {
+            frames.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    /** Turns a size into a frame with a buffer of that size, and fails on negative sizes */
+    class SizeStage extends TJNioStage<Integer> {
+        final List<Integer> discarded = new ArrayList<Integer>();
+
+        SizeStage(int maxInFlight) {
+            super(DIRECT, maxInFlight);
+        }
+
+        @Override
+        TJNioFrame process(Integer size) throws Exception {
+            if (size < 0)
+                throw new IllegalStateException("negative size");
+            return new TJNioFrame(bufferPool.acquire(size), size, 1, null, bufferPool, releaser);
+        }
+
+        @Override
+        void discard(Integer item) {
+            discarded.add(item);
+        }
+    }
+
+    TJBufferPool bufferPool;
+    SizeStage stage;
+    FakeUpstream upstream;
+    FakeDownstream downstream;
+
+    @Before
+    public void setup() throws Exception {
+        this.bufferPool = new TJBufferPool(1024 * 1024);
+        this.stage = new SizeStage(2);
+        this.upstream = new FakeUpstream();
+        this.downstream = new FakeDownstream();
+        stage.onSubscribe(upstream);
+        stage.subscribe(downstream);
+    }
+
+    @Test
+    public void testNothingIsRequestedWithoutDemand() throws Exception {
+        assertEquals(0, upstream.requested);
+        downstream.subscription.request(1);
+        assertEquals(1, upstream.requested);
+    }
+
+    @Test
+    public void testInFlightFramesAreBounded() throws Exception {
+        downstream.subscription.request(10);
+        assertEquals(2, upstream.requested);
+        stage.onNext(100);
+        stage.onNext(200);
+        assertEquals(2, downstream.frames.size());
+        assertEquals(2, stage.getInFlightCount());
+        assertEquals(2, upstream.requested);
+        downstream.frames.get(0).release();
+        downstream.frames.get(0).release();
+        assertEquals(1, stage.getInFlightCount());
+        assertEquals(3, upstream.requested);
+        assertTrue(bufferPool.getIdleBytes() > 0);
+    }
+
+    @Test
+    public void testCompletesAfterQueueIsDrained() throws Exception {
+        downstream.subscription.request(1);
+        stage.onNext(10);
+        stage.onComplete();
+        assertTrue(downstream.complete);
+        assertEquals(1, downstream.frames.size());
+    }
+
+    @Test
+    public void testCompletionWaitsForDemand() throws Exception {
+        downstream.subscription.request(1);
+        stage.onNext(10);
+        downstream.subscription.request(1);
+        assertEquals(2, upstream.requested);
+        stage.onNext(20);
+        stage.onComplete();
+        assertEquals(2, downstream.frames.size());
+        assertTrue(downstream.complete);
+    }
+
+    @Test
+    public void testFailureCancelsUpstream() throws Exception {
+        downstream.subscription.request(2);
+        stage.onNext(-1);
+        stage.onNext(10);
+        assertTrue(downstream.error instanceof IllegalStateException);
+        assertTrue(upstream.cancelled);
+        assertEquals(0, stage.getInFlightCount());
+        assertEquals(1, stage.discarded.size());
+    }
+
+    @Test
+    public void testCancelDiscardsLateItems() throws Exception {
+        downstream.subscription.request(2);
+        downstream.subscription.cancel();
+        assertTrue(upstream.cancelled);
+        stage.onNext(10);
+        assertEquals(0, downstream.frames.size());
+        assertEquals(1, stage.discarded.size());
+        assertFalse(downstream.complete);
+        assertNull(downstream.error);
+    }
+
+    @Test
+    public void testInvalidRequestIsAnError() throws Exception {
+        downstream.subscription.request(0);
+        assertTrue(downstream.error instanceof IllegalArgumentException);
+        assertTrue(upstream.cancelled);
+    }
+
+    @Test
+    public void testSecondSubscriberIsRejected() throws Exception {
+        FakeDownstream second = new FakeDownstream();
+        stage.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+        assertNull(downstream.error);
+    }
+}
@@ -0,0 +1,60 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.nio.ShortBuffer;
+
+import org.bridj.Pointer;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJCustomFilter;
+import org.libjpegturbo.turbojpeg.TJException;
+import org.libjpegturbo.turbojpeg.TJTransform;
+import org.libjpegturbo.turbojpeg.bridj.TJRegion;
+
+public class TJNioTransformerFilterTest {
+
+    @Test
+    public void testFilterSeesCoefficientsWithoutCopying() throws Exception {
+        Pointer<Short> coeffs = Pointer.allocateShorts(64 * 2);
+        TJRegion arrayRegion = new TJRegion().x(0).y(8).w(16).h(8);
+        TJRegion planeRegion = new TJRegion().x(0).y(0).w(16).h(16);
+        final Rectangle[] seen = new Rectangle[2];
+        TJCustomFilter dcBoost = new TJCustomFilter() {
+            @Override
+            public void customFilter(ShortBuffer coeffBuffer, Rectangle bufferRegion, Rectangle planeRegion,
+                    int componentID, int transformID, TJTransform transform) throws TJException {
+                assertEquals(128, coeffBuffer.remaining());
+                coeffBuffer.put(0, (short) (coeffBuffer.get(0) + 10));
+                seen[0] = bufferRegion;
+                seen[1] = planeRegion;
+            }
+        };
+        TJNioTransformer.FilterCallback callback = new TJNioTransformer.FilterCallback();
+        callback.transforms = new TJTransform[] { new TJTransform(0, 0, 0, 0, TJTransform.OP_NONE, 0, dcBoost) };
+        assertEquals(0, callback.apply(coeffs, arrayRegion, planeRegion, 0, 0, null));
+        assertEquals(0, callback.apply(coeffs, arrayRegion, planeRegion, 0, 0, null));
+        assertEquals(20, (int) coeffs.getShortAtIndex(0));
+        assertEquals(new Rectangle(0, 8, 16, 8), seen[0]);
+        assertEquals(new Rectangle(0, 0, 16, 16), seen[1]);
+        Rectangle first = seen[0];
+        callback.apply(coeffs, arrayRegion, planeRegion, 0, 0, null);
+        assertSame(first, seen[0]);
+    }
+
+    @Test
+    public void testFilterExceptionIsCaptured() throws Exception {
+        TJCustomFilter failing = new TJCustomFilter() {
+            @Override
+            public void customFilter(ShortBuffer coeffBuffer, Rectangle bufferRegion, Rectangle planeRegion,
+                    int componentID, int transformID, TJTransform transform) throws TJException {
+                throw new TJException("failed");
+            }
+        };
+        TJNioTransformer.FilterCallback callback = new TJNioTransformer.FilterCallback();
+        callback.transforms = new TJTransform[] { new TJTransform(0, 0, 0, 0, TJTransform.OP_NONE, 0, failing) };
+        assertEquals(-1, callback.apply(Pointer.allocateShorts(64), new TJRegion().w(8).h(8),
+                new TJRegion().w(8).h(8), 0, 0, null));
+        assertEquals("failed", callback.exception.getMessage());
+    }
+}
@@ -0,0 +1,49 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJTransform;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+public class TJNioTransformerTest {
+    TJNioTransformer transformer;
+
+    @Before
+    public void setup() throws Exception {
+        this.transformer = new TJNioTransformer();
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testTransform() throws Exception{
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        final byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        transformer.setSourceImage(source);
+        TJTransform[] transforms = { new TJTransform(0, 0, 0, 0, TJTransform.OP_ROT90, 0, null),
+                new TJTransform(0, 0, 320, 240, TJTransform.OP_NONE, TJTransform.OPT_CROP | TJTransform.OPT_GRAY,
+                        null) };
+        ByteBuffer[] outputs = transformer.transform(transforms, 0);
+        assertEquals(2, outputs.length);
+        try (TJNioDecompressor decompressor = new TJNioDecompressor()) {
+            decompressor.setSourceImage(outputs[0], TJPF.TJPF_RGB);
+            assertEquals(960, decompressor.getWidth());
+            assertEquals(720, decompressor.getHeight());
+            decompressor.setSourceImage(outputs[1], TJPF.TJPF_GRAY);
+            assertEquals(320, decompressor.getWidth());
+            assertEquals(240, decompressor.getHeight());
+        }
+        assertEquals(outputs[1].limit(), transformer.getTransformedSizes()[1]);
+        transformer.close();
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJ;
+import org.libjpegturbo.turbojpeg.bridj.TurbojpegLibrary.TJPF;
+
+public class TJParallelDecompressorTest {
+
+    @Test
+    public void testPlanStrips() throws Exception {
+        RestartIndex index = RestartIndex.parse(RestartIndexTest.jpeg(0xc0, 2048, 2048, RestartIndexTest.YUV444, 256,
+                RestartIndexTest.intervals(256)));
+        assertArrayEquals(new int[] { 0, 64, 128, 192, 256 }, TJParallelDecompressor.planStrips(index, 4));
+        assertArrayEquals(new int[] { 0, 85, 170, 256 }, TJParallelDecompressor.planStrips(index, 3));
+        assertEquals(17, TJParallelDecompressor.planStrips(index, 64).length);
+        assertNull(TJParallelDecompressor.planStrips(index, 1));
+    }
+
+    @Test
+    public void testPlanStripsOnStepBoundaries() throws Exception {
+        // 3 restart intervals span 2 MCU rows, so strips can only start on even rows
+        RestartIndex index = RestartIndex.parse(RestartIndexTest.jpeg(0xc0, 1536, 1024, RestartIndexTest.YUV420, 64,
+                RestartIndexTest.intervals(96)));
+        int[] rows = TJParallelDecompressor.planStrips(index, 5);
+        assertEquals(6, rows.length);
+        for (int i = 0; i < rows.length - 1; i++)
+            assertEquals(0, rows[i] % 2);
+        assertEquals(64, rows[rows.length - 1]);
+    }
+
+    @Test
+    public void testSmallImagesAreNotSplit() throws Exception {
+        RestartIndex index = RestartIndex.parse(RestartIndexTest.jpeg(0xc0, 64, 48, RestartIndexTest.YUV420, 2,
+                RestartIndexTest.intervals(6)));
+        assertNull(TJParallelDecompressor.planStrips(index, 8));
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testImageWithoutRestartMarkersIsDecompressedSerially() throws Exception {
+        InputStream is = getClass().getClassLoader().getResourceAsStream("ocean.jpg");
+        byte[] jpegImage = IOUtils.toByteArray(is);
+        ByteBuffer source = ByteBuffer.allocateDirect(jpegImage.length);
+        source.put(jpegImage);
+        try (TJNioPool<TJNioDecompressor> pool = TJNioPool.newDecompressorPool(4, 0)) {
+            TJParallelDecompressor parallel = new TJParallelDecompressor(pool);
+            ByteBuffer dst = ByteBuffer.allocateDirect(720 * 960 * 3);
+            assertEquals(1, parallel.decompress(source, TJPF.TJPF_BGR, dst, 0, TJ.FLAG_FASTDCT));
+            TJNioDecompressor serial = pool.borrow();
+            serial.setSourceImage(source, TJPF.TJPF_BGR);
+            assertEquals(serial.decompress(TJ.FLAG_FASTDCT), dst);
+            pool.giveBack(serial);
+        }
+    }
+
+    // Requires turbojpeg library to be integrated properly into maven
+    @Ignore
+    @Test
+    public void testStripsMatchSerialDecompression() throws Exception {
+        // One restart interval per MCU row of the 720x960 4:2:0 image
+        ByteBuffer source = RestartIndexTest.restartMarkedJpeg("ocean.jpg", 45);
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try (TJNioPool<TJNioDecompressor> pool = TJNioPool.newDecompressorPool(4, 0)) {
+            TJParallelDecompressor parallel = new TJParallelDecompressor(pool, executor);
+            for (int flags : new int[] { 0, TJ.FLAG_FASTUPSAMPLE }) {
+                ByteBuffer dst = ByteBuffer.allocateDirect(720 * 960 * 3);
+                assertEquals(2, parallel.decompress(source, TJPF.TJPF_BGR, dst, 0, flags));
+                TJNioDecompressor serial = pool.borrow();
+                serial.setSourceImage(source, TJPF.TJPF_BGR);
+                assertEquals(serial.decompress(flags), dst);
+                pool.giveBack(serial);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
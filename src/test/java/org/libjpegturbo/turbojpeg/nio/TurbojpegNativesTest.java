@@ -0,0 +1,34 @@
+package org.libjpegturbo.turbojpeg.nio;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TurbojpegNativesTest {
+
+    @Test
+    public void testBridjCanBeForced() throws Exception {
+        assertEquals(TJNioBackend.BRIDJ, TurbojpegNatives.select("bridj").backend());
+        assertEquals(TJNioBackend.BRIDJ, TurbojpegNatives.load(TJNioBackend.BRIDJ).backend());
+    }
+
+    @Test
+    public void testBridjIsTheDefault() throws Exception {
+        assertEquals(TJNioBackend.BRIDJ, TurbojpegNatives.select(null).backend());
+        assertEquals(TJNioBackend.BRIDJ, TurbojpegNatives.select("").backend());
+    }
+
+    @Test
+    public void testFallsBackToBridjWhenFfmIsUnavailable() throws Exception {
+        if (Runtime.version().feature() >= 22)
+            return;
+        assertEquals(TJNioBackend.BRIDJ, TurbojpegNatives.select("ffm").backend());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFfmRequiresJava22() throws Exception {
+        if (Runtime.version().feature() >= 22)
+            throw new UnsupportedOperationException();
+        TurbojpegNatives.load(TJNioBackend.FFM);
+    }
+}